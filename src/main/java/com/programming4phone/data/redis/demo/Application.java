@@ -1,13 +1,46 @@
 package com.programming4phone.data.redis.demo;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.RedisURI;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.programming4phone.data.redis.demo.dao.RedisShards;
+import com.programming4phone.data.redis.demo.dao.ReplicaReads;
+import com.programming4phone.data.redis.demo.dao.TierDao;
+import com.programming4phone.data.redis.demo.dao.UsageStorageMigration;
+import com.programming4phone.data.redis.demo.rest.TierChangeController;
+
+import redis.clients.jedis.JedisPoolConfig;
 
 @SpringBootApplication
+@EnableScheduling
+@EnableConfigurationProperties(RedisConnectionSettings.class)
 public class Application {
 
 	public static void main(String[] args) {
@@ -24,18 +57,159 @@ public class Application {
 	 * When finished, enter these commands from a Windows commmand prompt.
 	 * <br><code>docker stop some-redis</code>
 	 * <br><code>docker rm some-redis</code>
+	 * <br><br>
+	 * The host, port, timeout, client library and Jedis pool sizing are set by the <i>redis.*</i> 
+	 * properties in the application.properties file (use the Ip addr of DockerNAT from ipconfig 
+	 * as the host when Redis is not published on localhost).
+	 * <br><br>
+	 * In the CLUSTER <i>redis.mode</i> the factory connects to the cluster through the <i>redis.nodes</i>
+	 * seed nodes, in the SHARDED mode to the first of the <i>redis.nodes</i>, which holds the tiers.
+	 * @param settings RedisConnectionSettings
 	 * @return RedisConnectionFactory
 	 */
 	@Bean
-	public RedisConnectionFactory redisCF() {
-		JedisConnectionFactory cf = new JedisConnectionFactory();
-		                                                                                                                                                 
-		cf.setHostName("127.0.0.1");
-		//cf.setHostName("10.0.75.1"); // ipconfig use Ip addr of DockerNAT
-		cf.setPort(6379);
+	public RedisConnectionFactory redisCF(RedisConnectionSettings settings) {
+		return createConnectionFactory(settings);
+	}
+	
+	/**
+	 * Create (but do not initialize) a connection factory for the configured client library.
+	 * Jedis borrows a pooled connection for every command, Lettuce multiplexes the commands of 
+	 * all threads over a single shared connection.
+	 * @param settings RedisConnectionSettings
+	 * @return RedisConnectionFactory
+	 */
+	static RedisConnectionFactory createConnectionFactory(RedisConnectionSettings settings) {
+		switch(settings.getMode()) {
+		case CLUSTER:
+			RedisClusterConfiguration clusterConfig = new RedisClusterConfiguration(settings.getNodes());
+			clusterConfig.setMaxRedirects(settings.getMaxRedirects());
+			if(settings.getClient() == RedisConnectionSettings.Client.LETTUCE) {
+				LettuceConnectionFactory cf = new LettuceConnectionFactory(clusterConfig);
+				cf.setTimeout(settings.getTimeoutMillis());
+				return cf;
+			}
+			JedisConnectionFactory cf = new JedisConnectionFactory(clusterConfig, poolConfig(settings));
+			cf.setTimeout(settings.getTimeoutMillis());
+			return cf;
+		case SHARDED:
+			return createConnectionFactory(settings, settings.getNodes().get(0));
+		default:
+			return createConnectionFactory(settings, settings.getHost() + ":" + settings.getPort());
+		}
+	}
+	
+	/**
+	 * Create (but do not initialize) a connection factory for a single Redis instance.
+	 * @param settings RedisConnectionSettings
+	 * @param node String host:port
+	 * @return RedisConnectionFactory
+	 */
+	static RedisConnectionFactory createConnectionFactory(RedisConnectionSettings settings, String node) {
+		int separator = node.lastIndexOf(':');
+		String host = node.substring(0, separator);
+		int port = Integer.parseInt(node.substring(separator + 1));
+		if(settings.getClient() == RedisConnectionSettings.Client.LETTUCE) {
+			LettuceConnectionFactory cf = new LettuceConnectionFactory(host, port);
+			cf.setTimeout(settings.getTimeoutMillis());
+			cf.setShareNativeConnection(true);
+			return cf;
+		}
+		JedisConnectionFactory cf = new JedisConnectionFactory(poolConfig(settings));
+		cf.setHostName(host);
+		cf.setPort(port);
+		cf.setTimeout(settings.getTimeoutMillis());
 		return cf;
 	}
 	
+	private static JedisPoolConfig poolConfig(RedisConnectionSettings settings) {
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(settings.getPool().getMaxTotal());
+		poolConfig.setMaxIdle(settings.getPool().getMaxIdle());
+		poolConfig.setMinIdle(settings.getPool().getMinIdle());
+		poolConfig.setMaxWaitMillis(settings.getPool().getMaxWaitMillis());
+		poolConfig.setTestOnBorrow(settings.getPool().isTestOnBorrow());
+		return poolConfig;
+	}
+	
+	/**
+	 * Routes the usage keys to the Redis nodes. In the CLUSTER and SHARDED <i>redis.mode</i> every node 
+	 * gets its own standalone connection factory, created when the node is first used.
+	 * @param settings RedisConnectionSettings
+	 * @param stringRedisTemplate StringRedisTemplate
+	 * @return <b>RedisShards</b>
+	 */
+	@Bean(destroyMethod="close")
+	public RedisShards redisShards(RedisConnectionSettings settings, StringRedisTemplate stringRedisTemplate) {
+		return new RedisShards(settings.getMode(), settings.getNodes(), stringRedisTemplate, node -> createNodeTemplate(settings, node), 
+				settings.getShardThreads(), settings.getMaxRedirects(), settings.getTimeoutMillis());
+	}
+	
+	/**
+	 * Routes the reads of the read-only throttle endpoints to the <i>redis.replicas</i> when <i>redis.read-from</i> 
+	 * is REPLICA, only supported in the STANDALONE <i>redis.mode</i>.
+	 * @param settings RedisConnectionSettings
+	 * @param stringRedisTemplate StringRedisTemplate
+	 * @return <b>ReplicaReads</b>
+	 */
+	@Bean(destroyMethod="close")
+	public ReplicaReads replicaReads(RedisConnectionSettings settings, StringRedisTemplate stringRedisTemplate) {
+		List<String> replicas = Collections.emptyList();
+		if(settings.getReadFrom() == RedisConnectionSettings.ReadFrom.REPLICA) {
+			if(settings.getMode() != RedisConnectionSettings.Mode.STANDALONE) {
+				throw new IllegalStateException("Reading from replicas requires the STANDALONE redis.mode");
+			}
+			if(settings.getReplicas().isEmpty()) throw new IllegalArgumentException("redis.replicas must be set to read from replicas");
+			replicas = settings.getReplicas();
+		}
+		return new ReplicaReads(replicas, stringRedisTemplate, node -> createNodeTemplate(settings, node), settings.getReplicaMaxStalenessMillis());
+	}
+	
+	private static StringRedisTemplate createNodeTemplate(RedisConnectionSettings settings, String node) {
+		RedisConnectionFactory cf = createConnectionFactory(settings, node);
+		try {
+			((InitializingBean) cf).afterPropertiesSet();
+		}
+		catch(Exception e) {
+			throw new IllegalStateException("Unable to connect to the Redis node " + node, e);
+		}
+		return new StringRedisTemplate(cf);
+	}
+	
+	/**
+	 * Lettuce client used by the non-blocking DAOs of the <i>async</i> profile. Its Netty event loop 
+	 * completes the command futures, so no request thread waits on Redis. The non-blocking DAOs send every
+	 * command over a single connection, so only the STANDALONE <i>redis.mode</i> is supported and the application
+	 * fails to start in any other.
+	 * @param settings RedisConnectionSettings
+	 * @return <b>RedisClient</b>
+	 */
+	@Bean(destroyMethod="shutdown")
+	@Profile("async")
+	public RedisClient asyncRedisClient(RedisConnectionSettings settings) {
+		if(settings.getMode() != RedisConnectionSettings.Mode.STANDALONE) {
+			throw new IllegalStateException("The async profile requires the STANDALONE redis.mode");
+		}
+		return RedisClient.create(RedisURI.Builder.redis(settings.getHost(), settings.getPort())
+				.withTimeout(settings.getTimeoutMillis(), TimeUnit.MILLISECONDS)
+				.build());
+	}
+	
+	/**
+	 * Single connection shared by every request of the <i>async</i> profile. Commands from all requests are 
+	 * pipelined over it without waiting for the previous replies.
+	 * @param redisClient RedisClient
+	 * @param settings RedisConnectionSettings
+	 * @return <b>StatefulRedisConnection</b>
+	 */
+	@Bean(destroyMethod="close")
+	@Profile("async")
+	public StatefulRedisConnection<String, String> asyncRedisConnection(RedisClient redisClient, RedisConnectionSettings settings) {
+		StatefulRedisConnection<String, String> connection = redisClient.connect();
+		connection.setTimeout(settings.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+		return connection;
+	}
+	
 	/*
 	 * 
 	 */
@@ -44,4 +218,124 @@ public class Application {
 		return new StringRedisTemplate(cf);
 	}
 	
+	/**
+	 * Subscribes the TierDao to the tiers channel so that every node invalidates its
+	 * local tier snapshot whenever a tier is added or removed, and, when <i>tier.events.enabled</i> is set,
+	 * the TierChangeController to both channels so that account tier changes are streamed to its subscribers.
+	 * @return <b>RedisMessageListenerContainer</b>
+	 */
+	@Bean
+	public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory cf, TierDao tierDao, 
+			ObjectProvider<TierChangeController> tierChangeControllerProvider) {
+		RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+		container.setConnectionFactory(cf);
+		container.addMessageListener(tierDao, new ChannelTopic(TierDao.TIERS_CHANNEL));
+		TierChangeController tierChangeController = tierChangeControllerProvider.getIfAvailable();
+		if(tierChangeController != null) {
+			container.addMessageListener(tierChangeController, 
+					Arrays.asList(new ChannelTopic(TierDao.TIER_CHANGES_CHANNEL), new ChannelTopic(TierDao.TIERS_CHANNEL)));
+		}
+		return container;
+	}
+	
+	/**
+	 * Lua script that increases the usage amount for an account and sets the key expiration
+	 * for a new account in a single atomic operation.
+	 * @return <b>RedisScript</b> returning the new total amount of usage
+	 */
+	@Bean
+	public RedisScript<Long> increaseUsageScript() {
+		return loadScript("scripts/increase_usage.lua", Long.class);
+	}
+	
+	/**
+	 * Lua script that increases the usage amount for many accounts in a single round trip.
+	 * @return <b>RedisScript</b> returning the new total amount of usage for each account
+	 */
+	@Bean
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public RedisScript<List<Long>> increaseUsageBatchScript() {
+		return (RedisScript) loadScript("scripts/increase_usage_batch.lua", List.class);
+	}
+	
+	/**
+	 * Lua script that decreases the usage amount for an account, clamping the total at zero
+	 * and resetting the key expiration in a single atomic operation.
+	 * @return <b>RedisScript</b> returning the new total amount of usage
+	 */
+	@Bean
+	public RedisScript<Long> decreaseUsageScript() {
+		return loadScript("scripts/decrease_usage.lua", Long.class);
+	}
+	
+	/**
+	 * Lua script that reads the usage amount for an account and resolves its tier
+	 * in a single round trip.
+	 * @return <b>RedisScript</b> returning the usage amount, tier speed and tier threshold
+	 */
+	@Bean
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public RedisScript<List<String>> usageTierScript() {
+		return (RedisScript) loadScript("scripts/usage_tier.lua", List.class);
+	}
+	
+	/**
+	 * Lua script that moves accounts from string keys into the hashes of the HASH storage layout.
+	 * @return <b>RedisScript</b> returning the number of accounts moved
+	 */
+	@Bean
+	public RedisScript<Long> migrateUsageScript() {
+		return loadScript("scripts/migrate_usage.lua", Long.class);
+	}
+	
+	/**
+	 * Lua script that removes keys with UNLINK, used by UsageCycleSweeper.
+	 * @return <b>RedisScript</b> returning the number of keys removed
+	 */
+	@Bean
+	public RedisScript<Long> unlinkKeysScript() {
+		return loadScript("scripts/unlink_keys.lua", Long.class);
+	}
+	
+	/**
+	 * Lua script that releases a lock only if it is still held with the token it was taken with, used by UsageCycleSweeper.
+	 * @return <b>RedisScript</b> returning 1 if the lock was released
+	 */
+	@Bean
+	public RedisScript<Long> releaseLockScript() {
+		return loadScript("scripts/release_lock.lua", Long.class);
+	}
+	
+	/**
+	 * Lua script that extends a lock only if it is still held with the token it was taken with, used by UsageCycleSweeper.
+	 * @return <b>RedisScript</b> returning 1 if the lock was extended
+	 */
+	@Bean
+	public RedisScript<Long> extendLockScript() {
+		return loadScript("scripts/extend_lock.lua", Long.class);
+	}
+	
+	/**
+	 * Moves the usage totals from the KEY storage layout to the HASH layout, then exits. Run with
+	 * <code>--spring.profiles.active=migrate --usage.storage.layout=HASH --spring.main.web-environment=false</code>.
+	 * @param usageStorageMigration UsageStorageMigration
+	 * @param context ConfigurableApplicationContext
+	 * @return <b>CommandLineRunner</b>
+	 */
+	@Bean
+	@Profile("migrate")
+	public CommandLineRunner usageStorageMigrationRunner(UsageStorageMigration usageStorageMigration, ConfigurableApplicationContext context) {
+		return args -> {
+			usageStorageMigration.migrate();
+			System.exit(SpringApplication.exit(context));
+		};
+	}
+	
+	private static <T> RedisScript<T> loadScript(String path, Class<T> resultType) {
+		DefaultRedisScript<T> script = new DefaultRedisScript<T>();
+		script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+		script.setResultType(resultType);
+		return script;
+	}
+	
 }
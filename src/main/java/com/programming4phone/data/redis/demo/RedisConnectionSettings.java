@@ -0,0 +1,210 @@
+package com.programming4phone.data.redis.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Redis connection settings bound from the <i>redis.*</i> properties set in the application.properties file.
+ */
+@ConfigurationProperties(prefix="redis")
+public class RedisConnectionSettings {
+
+	/**
+	 * Redis client library used by the connection factory.
+	 */
+	public enum Client {
+		/**
+		 * Jedis, one pooled connection per concurrent request.
+		 */
+		JEDIS,
+		/**
+		 * Lettuce, commands from all threads are multiplexed over a single shared connection.
+		 */
+		LETTUCE;
+	}
+
+	/**
+	 * How the usage data is spread over Redis nodes.
+	 */
+	public enum Mode {
+		/**
+		 * A single Redis instance at <i>redis.host</i> and <i>redis.port</i>.
+		 */
+		STANDALONE,
+		/**
+		 * A Redis Cluster, discovered from the <i>redis.nodes</i> seed nodes. Accounts are routed to the 
+		 * node serving the hash slot of their keys.
+		 */
+		CLUSTER,
+		/**
+		 * Independent Redis instances listed in <i>redis.nodes</i>, accounts are spread over them by 
+		 * client side consistent hashing. The first node also holds the tiers.
+		 */
+		SHARDED;
+	}
+
+	/**
+	 * Where the read-only throttle endpoints read from.
+	 */
+	public enum ReadFrom {
+		/**
+		 * Every command is sent to the primary.
+		 */
+		PRIMARY,
+		/**
+		 * Account usage and tier listing reads are sent to the <i>redis.replicas</i> that are fresh enough, 
+		 * writes stay on the primary.
+		 */
+		REPLICA;
+	}
+
+	private Client client = Client.JEDIS;
+	private Mode mode = Mode.STANDALONE;
+	private List<String> nodes = new ArrayList<String>();
+	private int maxRedirects = 5;
+	private int shardThreads = 8;
+	private ReadFrom readFrom = ReadFrom.PRIMARY;
+	private List<String> replicas = new ArrayList<String>();
+	private long replicaMaxStalenessMillis = 0;
+	private long replicaCheckMillis = 1000;
+	private String host = "127.0.0.1";
+	private int port = 6379;
+	private int timeoutMillis = 2000;
+	private final Pool pool = new Pool();
+
+	public Client getClient() {
+		return client;
+	}
+	public void setClient(Client client) {
+		this.client = client;
+	}
+	public Mode getMode() {
+		return mode;
+	}
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+	/**
+	 * @return <b>List</b> of host:port, the seed nodes of a cluster or the shards of the SHARDED mode
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+	public void setNodes(List<String> nodes) {
+		this.nodes = nodes;
+	}
+	public int getMaxRedirects() {
+		return maxRedirects;
+	}
+	public void setMaxRedirects(int maxRedirects) {
+		this.maxRedirects = maxRedirects;
+	}
+	/**
+	 * @return <b>int</b> number of threads that send the commands of batch and bulk operations to the nodes in parallel
+	 */
+	public int getShardThreads() {
+		return shardThreads;
+	}
+	public void setShardThreads(int shardThreads) {
+		this.shardThreads = shardThreads;
+	}
+	public ReadFrom getReadFrom() {
+		return readFrom;
+	}
+	public void setReadFrom(ReadFrom readFrom) {
+		this.readFrom = readFrom;
+	}
+	/**
+	 * @return <b>List</b> of host:port, the replicas of the STANDALONE primary
+	 */
+	public List<String> getReplicas() {
+		return replicas;
+	}
+	public void setReplicas(List<String> replicas) {
+		this.replicas = replicas;
+	}
+	/**
+	 * @return <b>long</b> how far, in milliseconds, a replica may lag behind the primary and still be read from, 0 for no bound
+	 */
+	public long getReplicaMaxStalenessMillis() {
+		return replicaMaxStalenessMillis;
+	}
+	public void setReplicaMaxStalenessMillis(long replicaMaxStalenessMillis) {
+		this.replicaMaxStalenessMillis = replicaMaxStalenessMillis;
+	}
+	/**
+	 * @return <b>long</b> interval, in milliseconds, between measurements of the replica lag
+	 */
+	public long getReplicaCheckMillis() {
+		return replicaCheckMillis;
+	}
+	public void setReplicaCheckMillis(long replicaCheckMillis) {
+		this.replicaCheckMillis = replicaCheckMillis;
+	}
+	public String getHost() {
+		return host;
+	}
+	public void setHost(String host) {
+		this.host = host;
+	}
+	public int getPort() {
+		return port;
+	}
+	public void setPort(int port) {
+		this.port = port;
+	}
+	public int getTimeoutMillis() {
+		return timeoutMillis;
+	}
+	public void setTimeoutMillis(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+	public Pool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Jedis connection pool settings, not used by Lettuce.
+	 */
+	public static class Pool {
+
+		private int maxTotal = 8;
+		private int maxIdle = 8;
+		private int minIdle = 0;
+		private long maxWaitMillis = -1;
+		private boolean testOnBorrow = false;
+
+		public int getMaxTotal() {
+			return maxTotal;
+		}
+		public void setMaxTotal(int maxTotal) {
+			this.maxTotal = maxTotal;
+		}
+		public int getMaxIdle() {
+			return maxIdle;
+		}
+		public void setMaxIdle(int maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+		public int getMinIdle() {
+			return minIdle;
+		}
+		public void setMinIdle(int minIdle) {
+			this.minIdle = minIdle;
+		}
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+		public void setMaxWaitMillis(long maxWaitMillis) {
+			this.maxWaitMillis = maxWaitMillis;
+		}
+		public boolean isTestOnBorrow() {
+			return testOnBorrow;
+		}
+		public void setTestOnBorrow(boolean testOnBorrow) {
+			this.testOnBorrow = testOnBorrow;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.lambdaworks.redis.api.async.RedisAsyncCommands;
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
+
+/**
+ * Non-blocking counterpart of TierDao, active with the <i>async</i> profile. Commands are sent over the shared
+ * Lettuce connection and every method returns immediately with a CompletableFuture that is completed by the 
+ * Lettuce I/O thread when Redis replies. The local tier snapshot and its invalidation remain with TierDao.
+ */
+@Component
+@Profile("async")
+public class AsyncTierDao {
+
+	@Autowired
+	private StatefulRedisConnection<String, String> asyncRedisConnection;
+
+	@Autowired
+	private TierDao tierDao;
+
+	@Autowired
+	private RedisMetrics redisMetrics;
+
+	/**
+	 * Add a usage tier, as described for TierDao.addTier.
+	 * @param tier Tier
+	 * @return <b>CompletableFuture</b> completed once the tier is stored and the change published
+	 */
+	public CompletableFuture<Void> addTier(Tier tier) {
+		tierDao.validateTierSpeed(tier.getSpeed());
+		return redisMetrics.timeAsync(RedisOperation.ZADD, () -> 
+				commands().zadd(TierDao.TIERS, tier.getThreshhold().doubleValue(), tier.getSpeed()))
+				.thenCompose(added -> publishTiersChanged());
+	}
+
+	/**
+	 * Remove a usage tier, as described for TierDao.deleteTier.
+	 * @param tier Tier
+	 * @return <b>CompletableFuture</b> completed once the tier is removed and the change published
+	 */
+	public CompletableFuture<Void> deleteTier(Tier tier) {
+		tierDao.validateTierSpeed(tier.getSpeed());
+		return redisMetrics.timeAsync(RedisOperation.ZREM, () -> commands().zrem(TierDao.TIERS, tier.getSpeed()))
+				.thenCompose(removed -> publishTiersChanged());
+	}
+
+	/**
+	 * All tiers ordered by data usage threshold. If no tiers exist the future completes with a NoTiersFoundException.
+	 * @return <b>CompletableFuture</b> of a List of Tier objects
+	 */
+	public CompletableFuture<List<Tier>> getAllTiers() {
+		return readTiers().thenApply(tiers -> {
+			if(tiers.isEmpty()) throw new NoTiersFoundException();
+			return tiers;
+		});
+	}
+
+	/**
+	 * Return the tier index used to resolve many usage amounts at once, as described for TierDao.getTierTable.
+	 * With the LOCAL strategy the local snapshot is returned directly, and after an invalidation it is reloaded 
+	 * over the Lettuce connection, so the Lettuce I/O thread never waits on a blocking read.
+	 * @return <b>CompletableFuture</b> of the TierTable, completed with a NoTiersFoundException if no tiers exist
+	 */
+	CompletableFuture<TierTable> getTierTable() {
+		CompletableFuture<TierTable> tierTable;
+		if(tierDao.isResolvedOnServer()) {
+			tierTable = readTiers().thenApply(TierTable::of);
+		}
+		else {
+			TierTable snapshot = tierDao.peekTierSnapshot();
+			long generation = tierDao.tierGeneration();
+			tierTable = snapshot != null 
+					? CompletableFuture.completedFuture(snapshot) 
+					: readTiers().thenApply(tiers -> tierDao.keepTierSnapshot(tiers, generation));
+		}
+		return tierTable.thenApply(tiers -> {
+			if(tiers.isEmpty()) throw new NoTiersFoundException();
+			return tiers;
+		});
+	}
+
+	private CompletableFuture<List<Tier>> readTiers() {
+		return redisMetrics.timeAsync(RedisOperation.ZRANGE, () -> commands().zrangeWithScores(TierDao.TIERS, 0, -1))
+				.thenApply(tiers -> tiers.stream()
+						.map(t -> new Tier().setThreshhold((long) t.score).setSpeed(t.value))
+						.collect(Collectors.toList()));
+	}
+
+	private CompletableFuture<Void> publishTiersChanged() {
+		tierDao.invalidateTiers();
+		return redisMetrics.timeAsync(RedisOperation.PUBLISH, () -> commands().publish(TierDao.TIERS_CHANNEL, TierDao.TIERS))
+				.thenApply(receivers -> null);
+	}
+
+	private RedisAsyncCommands<String, String> commands() {
+		return asyncRedisConnection.async();
+	}
+}
@@ -0,0 +1,404 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import com.lambdaworks.redis.RedisCommandExecutionException;
+import com.lambdaworks.redis.ScriptOutputType;
+import com.lambdaworks.redis.SetArgs;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.lambdaworks.redis.api.async.RedisAsyncCommands;
+import com.programming4phone.data.redis.demo.entity.CustomerUsage;
+import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
+
+/**
+ * Non-blocking counterpart of UsageDao, active with the <i>async</i> profile. The same Lua scripts and keys are 
+ * used, but commands are sent over the shared Lettuce connection and every method returns immediately with a 
+ * CompletableFuture that is completed by the Lettuce I/O thread when Redis replies, so no thread waits on Redis.
+ * Usage amounts are validated before anything is sent, so an InvalidUsageAmountException is thrown directly.
+ */
+@Component
+@Profile("async")
+public class AsyncUsageDao {
+
+	private static final String NOSCRIPT = "NOSCRIPT";
+
+	@Autowired
+	private StatefulRedisConnection<String, String> asyncRedisConnection;
+
+	@Autowired
+	private TierDao tierDao;
+
+	@Autowired
+	private AsyncTierDao asyncTierDao;
+
+	@Autowired
+	private UsageWriteBehind usageWriteBehind;
+
+	@Autowired
+	private RedisMetrics redisMetrics;
+
+	@Autowired
+	private UsageRateWindow usageRateWindow;
+
+	@Autowired
+	private UsageStorage usageStorage;
+
+	@Autowired
+	@Qualifier("increaseUsageScript")
+	private RedisScript<Long> increaseUsageScript;
+
+	@Autowired
+	@Qualifier("decreaseUsageScript")
+	private RedisScript<Long> decreaseUsageScript;
+
+	@Autowired
+	@Qualifier("increaseUsageBatchScript")
+	private RedisScript<List<Long>> increaseUsageBatchScript;
+
+	@Autowired
+	@Qualifier("usageTierScript")
+	private RedisScript<List<String>> usageTierScript;
+
+	@Value("${tier.events.enabled}")
+	private boolean tierEventsEnabled;
+
+	@Autowired
+	private RedisShards redisShards;
+
+	/**
+	 * The shared connection reaches a single Redis instance, so the <i>async</i> profile cannot route accounts to several nodes.
+	 * @throws IllegalStateException unless <i>redis.mode</i> is STANDALONE
+	 */
+	@PostConstruct
+	public void checkMode() {
+		if(redisShards.isDistributed()) throw new IllegalStateException("The async profile requires the STANDALONE redis.mode");
+	}
+
+	/**
+	 * Removes the account key, and the usage rate key, from the Redis database.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> completed once the keys are deleted
+	 */
+	public CompletableFuture<Void> removeAccount(String accountNumber) {
+		usageWriteBehind.take(accountNumber);
+		if(usageStorage.isHashed()) {
+			return removeAccountField(accountNumber)
+					.thenCombine(redisMetrics.timeAsync(RedisOperation.DEL, () -> commands().del(usageStorage.rateKey(accountNumber))), 
+							(removed, deleted) -> null);
+		}
+		return redisMetrics.timeAsync(RedisOperation.DEL, () -> 
+				commands().del(usageStorage.key(accountNumber), usageStorage.rateKey(accountNumber)))
+				.thenApply(deleted -> null);
+	}
+
+	/**
+	 * Reset the data usage count for an account to zero and reset the key expiration, with a single SET.
+	 * With the HASH storage layout the account field is deleted, as described for UsageDao.resetAccount.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> completed once the account is reset
+	 */
+	public CompletableFuture<Void> resetAccount(String accountNumber) {
+		usageWriteBehind.take(accountNumber);
+		if(usageStorage.isHashed()) return removeAccountField(accountNumber);
+		String accountKey = usageStorage.key(accountNumber);
+		String expirySeconds = usageStorage.expirySeconds();
+		return redisMetrics.timeAsync(RedisOperation.SET, () -> expirySeconds.isEmpty() 
+				? commands().set(accountKey, "0") 
+				: commands().set(accountKey, "0", SetArgs.Builder.ex(Long.parseLong(expirySeconds))))
+				.thenApply(reply -> null);
+	}
+
+	private CompletableFuture<Void> removeAccountField(String accountNumber) {
+		return redisMetrics.timeAsync(RedisOperation.HDEL, () -> commands().hdel(usageStorage.key(accountNumber), accountNumber))
+				.thenApply(removed -> null);
+	}
+
+	/**
+	 * Increase the total amount of data usage for an account, as described for UsageDao.increaseAmountUsed.
+	 * @param accountNumber String
+	 * @param usageAmount Long containing amount to increase by
+	 * @return <b>CompletableFuture</b> of the new total amount of usage, or of null in write-behind mode
+	 */
+	public CompletableFuture<Long> increaseAmountUsed(String accountNumber, Long usageAmount) {
+		String amount = UsageDao.validateUsageAmount(usageAmount).toString();
+		if(usageWriteBehind.isEnabled()) {
+			usageWriteBehind.add(accountNumber, Long.parseLong(amount));
+			return CompletableFuture.completedFuture(null);
+		}
+		List<String> keyList = new ArrayList<String>(3);
+		keyList.add(usageStorage.key(accountNumber));
+		if(tierEventsEnabled) keyList.add(TierDao.TIERS);
+		if(usageRateWindow.isEnabled()) keyList.add(usageStorage.rateKey(accountNumber));
+		String[] keys = keyList.toArray(new String[keyList.size()]);
+		String[] args = usageRateWindow.scriptArgs(amount, usageStorage.expirySeconds(), tierChangesChannel(), usageStorage.field(accountNumber));
+		return redisMetrics.timeAsync(RedisOperation.INCRBY, () -> 
+				this.<Long>executeScript(increaseUsageScript, ScriptOutputType.INTEGER, keys, args));
+	}
+
+	/**
+	 * Increase the total amount of data usage for many accounts at once, as described for UsageDao.increaseAmountUsed.
+	 * @param customerUsages List of CustomerUsage objects, each containing an amount to increase by
+	 * @return <b>CompletableFuture</b> of a List of CustomerUsage objects, one per account
+	 */
+	public CompletableFuture<List<CustomerUsage>> increaseAmountUsed(List<CustomerUsage> customerUsages) {
+		Map<String, Long> usageAmounts = UsageDao.coalesceUsageAmounts(customerUsages);
+		return increaseAmountsUsed(usageAmounts).thenApply(totalAmountsUsed -> UsageDao.toCustomerUsages(usageAmounts, totalAmountsUsed));
+	}
+
+	/**
+	 * Increase the total amount of data usage for many accounts, one Lua script call per chunk of at most 
+	 * UsageDao.BATCH_SIZE accounts. The chunks are pipelined over the connection rather than sent one after another.
+	 * @param usageAmounts Map of account number to the (valid) amount to increase by
+	 * @return <b>CompletableFuture</b> of a Map of account number to the new total amount of usage
+	 */
+	public CompletableFuture<Map<String, Long>> increaseAmountsUsed(Map<String, Long> usageAmounts) {
+		List<String> accountNumbers = new ArrayList<String>(usageAmounts.keySet());
+		List<CompletableFuture<List<Long>>> chunks = new ArrayList<CompletableFuture<List<Long>>>();
+		for(int start=0; start<accountNumbers.size(); start+=UsageDao.BATCH_SIZE) {
+			List<String> chunk = accountNumbers.subList(start, Math.min(start+UsageDao.BATCH_SIZE, accountNumbers.size()));
+			int rateKeys = tierEventsEnabled ? chunk.size()+1 : chunk.size();
+			String[] keys = new String[usageRateWindow.isEnabled() ? rateKeys+chunk.size() : rateKeys];
+			String[] leadingArgs = usageRateWindow.scriptArgs(usageStorage.expirySeconds(), tierChangesChannel(), 
+					usageStorage.isHashed() ? "1" : "");
+			String[] args = Arrays.copyOf(leadingArgs, leadingArgs.length+(usageStorage.isHashed() ? chunk.size()*2 : chunk.size()));
+			if(tierEventsEnabled) keys[chunk.size()] = TierDao.TIERS;
+			for(int i=0; i<chunk.size(); i++) {
+				keys[i] = usageStorage.key(chunk.get(i));
+				if(usageRateWindow.isEnabled()) keys[rateKeys+i] = usageStorage.rateKey(chunk.get(i));
+				args[leadingArgs.length+i] = usageAmounts.get(chunk.get(i)).toString();
+				if(usageStorage.isHashed()) args[leadingArgs.length+chunk.size()+i] = chunk.get(i);
+			}
+			chunks.add(redisMetrics.timeAsync(RedisOperation.INCRBY_BATCH, () -> 
+				this.<List<Long>>executeScript(increaseUsageBatchScript, ScriptOutputType.MULTI, keys, args)));
+		}
+		return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).thenApply(done -> {
+			Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+			for(int c=0; c<chunks.size(); c++) {
+				List<Long> totals = chunks.get(c).join();
+				for(int i=0; i<totals.size(); i++) {
+					totalAmountsUsed.put(accountNumbers.get(c*UsageDao.BATCH_SIZE+i), totals.get(i));
+				}
+			}
+			return totalAmountsUsed;
+		});
+	}
+
+	/**
+	 * Decrease the total amount of data usage for an account, as described for UsageDao.decreaseAmountUsed.
+	 * @param accountNumber String
+	 * @param usageAmount Long containing amount to decrease by
+	 * @return <b>CompletableFuture</b> of the new total amount of usage
+	 */
+	public CompletableFuture<Long> decreaseAmountUsed(String accountNumber, Long usageAmount) {
+		String amount = UsageDao.validateUsageAmount(usageAmount).toString();
+		// write any pending write-behind increase first, so the decrease is clamped against the true total
+		long pendingAmount = usageWriteBehind.take(accountNumber);
+		CompletableFuture<Map<String, Long>> pendingWritten = pendingAmount == 0L 
+				? CompletableFuture.completedFuture(null)
+				: increaseAmountsUsed(Collections.singletonMap(accountNumber, pendingAmount));
+		return pendingWritten.thenCompose(written -> redisMetrics.timeAsync(RedisOperation.DECRBY, () -> 
+				this.<Long>executeScript(decreaseUsageScript, ScriptOutputType.INTEGER, new String[] {usageStorage.key(accountNumber)}, 
+						amount, usageStorage.expirySeconds(), usageStorage.field(accountNumber))));
+	}
+
+	/**
+	 * Get the total amount of data used for a specific account, including any amount pending write-behind.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> of the total amount of usage
+	 */
+	public CompletableFuture<Long> getCurrentAmountUsed(String accountNumber) {
+		CompletableFuture<String> amountUsed = usageStorage.isHashed()
+				? redisMetrics.timeAsync(RedisOperation.HGET, () -> commands().hget(usageStorage.key(accountNumber), accountNumber))
+				: redisMetrics.timeAsync(RedisOperation.GET, () -> commands().get(usageStorage.key(accountNumber)));
+		return amountUsed.thenApply(value -> (value == null ? 0L : Long.parseLong(value)) + usageWriteBehind.pending(accountNumber));
+	}
+
+	/**
+	 * Get the total amount of data used for many accounts at once, with one MGET per chunk of at most
+	 * UsageDao.BATCH_SIZE accounts (pipelined HGETs with the HASH storage layout). Accounts that do not 
+	 * exist have a total of zero.
+	 * @param accountNumbers List of account numbers
+	 * @return <b>CompletableFuture</b> of a Map of account number to total amount of usage
+	 */
+	public CompletableFuture<Map<String, Long>> getCurrentAmountsUsed(List<String> accountNumbers) {
+		List<String> uniqueAccountNumbers = new ArrayList<String>(new LinkedHashSet<String>(accountNumbers));
+		List<CompletableFuture<List<String>>> chunks = new ArrayList<CompletableFuture<List<String>>>();
+		for(int start=0; start<uniqueAccountNumbers.size(); start+=UsageDao.BATCH_SIZE) {
+			List<String> chunk = uniqueAccountNumbers.subList(start, Math.min(start+UsageDao.BATCH_SIZE, uniqueAccountNumbers.size()));
+			chunks.add(usageStorage.isHashed() ? getAccountFields(chunk) : getAccountKeys(chunk));
+		}
+		return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).thenApply(done -> {
+			Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+			for(int c=0; c<chunks.size(); c++) {
+				List<String> values = chunks.get(c).join();
+				for(int i=0; i<values.size(); i++) {
+					String value = values.get(i);
+					totalAmountsUsed.put(uniqueAccountNumbers.get(c*UsageDao.BATCH_SIZE+i), value == null ? 0L : Long.parseLong(value));
+				}
+			}
+			return totalAmountsUsed;
+		});
+	}
+
+	/**
+	 * Get the amount of data used by an account within the usage rate window, as described for 
+	 * UsageDao.getWindowedAmountUsed.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> of the usage within the window, or of null if <i>rate.enabled</i> is not set
+	 */
+	public CompletableFuture<Long> getWindowedAmountUsed(String accountNumber) {
+		if(!usageRateWindow.isEnabled()) return CompletableFuture.completedFuture(null);
+		return redisMetrics.timeAsync(RedisOperation.HGETALL, () -> commands().hgetall(usageStorage.rateKey(accountNumber)))
+				.thenApply(buckets -> usageRateWindow.sum(buckets) + usageWriteBehind.pending(accountNumber));
+	}
+
+	private CompletableFuture<List<String>> getAccountKeys(List<String> accountNumbers) {
+		String[] keys = accountNumbers.stream().map(usageStorage::key).toArray(String[]::new);
+		return redisMetrics.timeAsync(RedisOperation.MGET, () -> commands().mget(keys));
+	}
+
+	private CompletableFuture<List<String>> getAccountFields(List<String> accountNumbers) {
+		return redisMetrics.timeAsync(RedisOperation.HGET_PIPELINED, () -> {
+			List<CompletableFuture<String>> values = new ArrayList<CompletableFuture<String>>(accountNumbers.size());
+			accountNumbers.forEach(accountNumber -> values.add(commands().hget(usageStorage.key(accountNumber), accountNumber).toCompletableFuture()));
+			return CompletableFuture.allOf(values.toArray(new CompletableFuture<?>[values.size()]))
+					.thenApply(done -> values.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+		});
+	}
+
+	/**
+	 * Get the total amount of data used for many accounts at once, optionally including the tier usage speed,
+	 * as described for UsageDao.getCurrentUsages.
+	 * @param accountNumbers List of account numbers
+	 * @param includeSpeed boolean, true to include the tier usage speed
+	 * @return <b>CompletableFuture</b> of a List of CustomerUsage objects, one per account
+	 */
+	public CompletableFuture<List<CustomerUsage>> getCurrentUsages(List<String> accountNumbers, boolean includeSpeed) {
+		CompletableFuture<TierTable> tierTable = includeSpeed ? asyncTierDao.getTierTable() : CompletableFuture.completedFuture(null);
+		CompletableFuture<Map<String, Long>> windowAmountsUsed = includeSpeed && usageRateWindow.isBurstThrottled() 
+				? getWindowedAmountsUsed(new LinkedHashSet<String>(accountNumbers)) 
+				: CompletableFuture.completedFuture(Collections.<String, Long>emptyMap());
+		return getCurrentAmountsUsed(accountNumbers).thenCombine(tierTable.thenCombine(windowAmountsUsed, TierWindow::new), (totalAmountsUsed, tierWindow) -> {
+			List<CustomerUsage> customerUsages = new ArrayList<CustomerUsage>(totalAmountsUsed.size());
+			totalAmountsUsed.forEach((accountNumber, totalAmountUsed) -> {
+				String speed = null;
+				if(tierWindow.tiers != null) {
+					speed = tierWindow.tiers.resolveSpeedName(totalAmountUsed);
+					redisMetrics.tierResolved(speed);
+					speed = usageRateWindow.applyBurst(speed, tierWindow.windowAmountsUsed.getOrDefault(accountNumber, 0L));
+				}
+				customerUsages.add(new CustomerUsage()
+						.setAccountNumber(accountNumber)
+						.setTotalUsage(totalAmountUsed)
+						.setSpeed(speed));
+			});
+			return customerUsages;
+		});
+	}
+
+	/**
+	 * Get the total amount of data used for a specific account together with its tier usage speed, as described 
+	 * for UsageDao.getCurrentUsageAndTier. If no tiers exist the future completes with a NoTiersFoundException.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> of the CustomerUsage containing the total data usage and tier speed
+	 */
+	public CompletableFuture<CustomerUsage> getCurrentUsageAndTier(String accountNumber) {
+		CustomerUsage customerUsage = new CustomerUsage().setAccountNumber(accountNumber);
+		CompletableFuture<CustomerUsage> usageAndTier;
+		if(!tierDao.isResolvedOnServer()) {
+			// the tiers are reloaded over the Lettuce connection, never by a blocking read on its I/O thread
+			usageAndTier = getCurrentAmountUsed(accountNumber).thenCombine(asyncTierDao.getTierTable(), (totalAmountUsed, tierTable) -> {
+				String speed = tierTable.resolveSpeedName(totalAmountUsed);
+				redisMetrics.tierResolved(speed);
+				return customerUsage.setTotalUsage(totalAmountUsed).setSpeed(speed);
+			});
+		}
+		else {
+			usageAndTier = redisMetrics.timeAsync(RedisOperation.GET_TIER, () -> 
+					this.<List<String>>executeScript(usageTierScript, ScriptOutputType.MULTI, 
+							new String[] {usageStorage.key(accountNumber), TierDao.TIERS}, usageStorage.field(accountNumber)))
+					.thenApply(usageTier -> {
+						if(usageTier.size() < 2) throw new NoTiersFoundException();
+						redisMetrics.tierResolved(usageTier.get(1));
+						return customerUsage.setTotalUsage(Long.valueOf(usageTier.get(0))).setSpeed(usageTier.get(1));
+					});
+		}
+		if(!usageRateWindow.isBurstThrottled()) return usageAndTier;
+		return usageAndTier.thenCombine(getWindowedAmountUsed(accountNumber), (usage, windowAmountUsed) -> 
+				usage.setWindowUsage(windowAmountUsed).setSpeed(usageRateWindow.applyBurst(usage.getSpeed(), windowAmountUsed)));
+	}
+
+	/**
+	 * Read the usage rate window of many accounts, the HGETALLs are pipelined over the connection.
+	 */
+	private CompletableFuture<Map<String, Long>> getWindowedAmountsUsed(Collection<String> accountNumbers) {
+		Map<String, CompletableFuture<Map<String, String>>> buckets = new LinkedHashMap<String, CompletableFuture<Map<String, String>>>();
+		accountNumbers.forEach(accountNumber -> buckets.put(accountNumber, 
+				redisMetrics.timeAsync(RedisOperation.HGETALL, () -> commands().hgetall(usageStorage.rateKey(accountNumber)))));
+		return CompletableFuture.allOf(buckets.values().toArray(new CompletableFuture<?>[buckets.size()])).thenApply(done -> {
+			Map<String, Long> windowAmountsUsed = new HashMap<String, Long>();
+			buckets.forEach((accountNumber, bucket) -> windowAmountsUsed.put(accountNumber, usageRateWindow.sum(bucket.join())));
+			return windowAmountsUsed;
+		});
+	}
+
+	/**
+	 * Tier table and usage rate windows needed to resolve the speeds of many accounts.
+	 */
+	private static class TierWindow {
+		private final TierTable tiers;
+		private final Map<String, Long> windowAmountsUsed;
+
+		private TierWindow(TierTable tiers, Map<String, Long> windowAmountsUsed) {
+			this.tiers = tiers;
+			this.windowAmountsUsed = windowAmountsUsed;
+		}
+	}
+
+	/**
+	 * Run a Lua script with EVALSHA, resending it with EVAL if Redis replies NOSCRIPT 
+	 * (the script cache was flushed since UsageDao loaded the scripts at startup).
+	 */
+	private <T> CompletableFuture<T> executeScript(RedisScript<?> script, ScriptOutputType outputType, String[] keys, String... args) {
+		return commands().<T>evalsha(script.getSha1(), outputType, keys, args).toCompletableFuture()
+				.handle((result, throwable) -> {
+					if(throwable == null) return CompletableFuture.completedFuture(result);
+					Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+					if(cause instanceof RedisCommandExecutionException && String.valueOf(cause.getMessage()).startsWith(NOSCRIPT)) {
+						return commands().<T>eval(script.getScriptAsString(), outputType, keys, args).toCompletableFuture();
+					}
+					CompletableFuture<T> failed = new CompletableFuture<T>();
+					failed.completeExceptionally(cause);
+					return failed;
+				})
+				.thenCompose(result -> result);
+	}
+
+	private String tierChangesChannel() {
+		return tierEventsEnabled ? TierDao.TIER_CHANGES_CHANNEL : "";
+	}
+
+	private RedisAsyncCommands<String, String> commands() {
+		return asyncRedisConnection.async();
+	}
+}
@@ -0,0 +1,397 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded local cache with a time to live and a W-TinyLFU eviction policy, used as the near cache of the
+ * account totals (see UsageNearCache).
+ * <br><br>
+ * New entries enter a small LRU window (1% of the entries). An entry pushed out of the window is only admitted
+ * into the main area if it was requested more often than the entry the main area would evict for it, as estimated
+ * by a count-min sketch of recent requests, so a burst of one-off reads cannot flush out the hot entries. The main
+ * area is a segmented LRU: entries hit again while on probation move to the protected segment (80% of the main area).
+ * <br><br>
+ * Each entry belongs to a group, the Redis key it was read from, and invalidating a group removes its entries. An
+ * invalidation that happens while an entry of its group is being loaded prevents that entry from being cached, so a
+ * load racing with a change is never kept. Reads never block: when the lock guarding the eviction policy is busy
+ * a hit is returned without being recorded in the policy.
+ */
+final class NearCache<V> {
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int REMOVED = 3;
+	private static final int INVALIDATION_STRIPES = 1024;
+
+	private final ConcurrentHashMap<String, Node<V>> data = new ConcurrentHashMap<String, Node<V>>();
+	private final ConcurrentHashMap<String, Set<String>> keysByGroup = new ConcurrentHashMap<String, Set<String>>();
+	// sequence number of the last invalidation of the groups of each stripe
+	private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+	private final AtomicLong sequence = new AtomicLong();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// guarded by the lock
+	private final FrequencySketch sketch;
+	private final Node<V> window = new Node<V>(null, null, null, 0L);
+	private final Node<V> probation = new Node<V>(null, null, null, 0L);
+	private final Node<V> protectedSegment = new Node<V>(null, null, null, 0L);
+	private int windowSize;
+	private int mainSize;
+	private int protectedSize;
+
+	private final int windowMaximum;
+	private final int mainMaximum;
+	private final int protectedMaximum;
+	private final long ttlNanos;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder invalidationCount = new LongAdder();
+	private final LongAdder hitAgeNanos = new LongAdder();
+	private final AtomicLong maxHitAgeNanos = new AtomicLong();
+
+	/**
+	 * @param maximumSize int maximum number of entries, at least 2
+	 * @param ttlMillis long how long an entry is kept after it was loaded
+	 */
+	NearCache(int maximumSize, long ttlMillis) {
+		if(maximumSize < 2) throw new IllegalArgumentException("A near cache holds at least 2 entries");
+		this.windowMaximum = Math.max(1, maximumSize / 100);
+		this.mainMaximum = maximumSize - windowMaximum;
+		this.protectedMaximum = mainMaximum * 4 / 5;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.sketch = new FrequencySketch(maximumSize);
+		initHead(window);
+		initHead(probation);
+		initHead(protectedSegment);
+	}
+	
+	private static <V> void initHead(Node<V> head) {
+		head.prev = head;
+		head.next = head;
+	}
+
+	/**
+	 * @param key String
+	 * @return <b>V</b> the cached value, null if the key is not cached or its entry expired
+	 */
+	V get(String key) {
+		Node<V> node = data.get(key);
+		long nowNanos = System.nanoTime();
+		if(node == null || nowNanos - node.loadedNanos > ttlNanos) {
+			if(node != null) remove(node);
+			missCount.increment();
+			return null;
+		}
+		long ageNanos = nowNanos - node.loadedNanos;
+		hitCount.increment();
+		hitAgeNanos.add(ageNanos);
+		maxHitAgeNanos.accumulateAndGet(ageNanos, Math::max);
+		if(lock.tryLock()) {
+			try {
+				sketch.increment(key);
+				onHit(node);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * @return <b>long</b> sequence number to pass to put for a value about to be loaded
+	 */
+	long startLoad() {
+		return sequence.get();
+	}
+
+	/**
+	 * Cache a loaded value, unless its group was invalidated since the load started.
+	 * @param key String
+	 * @param group String Redis key the value was read from
+	 * @param value V
+	 * @param loadSequence long returned by startLoad before the value was loaded
+	 */
+	void put(String key, String group, V value, long loadSequence) {
+		lock.lock();
+		try {
+			// the group is registered before the invalidations are checked, see invalidate
+			Set<String> keys = keysByGroup.computeIfAbsent(group, g -> Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+			keys.add(key);
+			if(invalidations.get(stripe(group)) > loadSequence) {
+				Node<V> node = data.get(key);
+				if(node == null) removeGroupKey(group, key);
+				return;
+			}
+			sketch.increment(key);
+			Node<V> node = data.get(key);
+			if(node != null && node.group.equals(group)) {
+				node.value = value;
+				node.loadedNanos = System.nanoTime();
+				return;
+			}
+			// the key of an account moves to a new Redis key with each billing cycle
+			if(node != null) discard(node);
+			node = new Node<V>(key, group, value, System.nanoTime());
+			data.put(key, node);
+			link(window, node, WINDOW);
+			evict();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove every entry read from a Redis key, and prevent any load of it in progress from being cached.
+	 * @param group String Redis key
+	 */
+	void invalidate(String group) {
+		long invalidation = sequence.incrementAndGet();
+		invalidations.accumulateAndGet(stripe(group), invalidation, Math::max);
+		// a put registers its group before it checks the invalidations, so it either sees this invalidation or is seen here
+		if(!keysByGroup.containsKey(group)) return;
+		lock.lock();
+		try {
+			Set<String> keys = keysByGroup.remove(group);
+			if(keys == null) return;
+			for(String key : keys) {
+				Node<V> node = data.get(key);
+				if(node != null && node.group.equals(group)) {
+					unlink(node);
+					data.remove(key, node);
+					invalidationCount.increment();
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		return data.size();
+	}
+
+	long hits() {
+		return hitCount.sum();
+	}
+
+	long misses() {
+		return missCount.sum();
+	}
+
+	long evictions() {
+		return evictionCount.sum();
+	}
+
+	long invalidations() {
+		return invalidationCount.sum();
+	}
+
+	/**
+	 * @return <b>long</b> total age, since they were loaded from Redis, of the values returned by hits, in nanoseconds
+	 */
+	long hitAgeNanos() {
+		return hitAgeNanos.sum();
+	}
+
+	/**
+	 * @return <b>long</b> the age of the oldest value returned by a hit since the previous call, in nanoseconds
+	 */
+	long takeMaxHitAgeNanos() {
+		return maxHitAgeNanos.getAndSet(0L);
+	}
+
+	private void onHit(Node<V> node) {
+		switch(node.queue) {
+		case WINDOW:
+			unlink(node);
+			link(window, node, WINDOW);
+			break;
+		case PROBATION:
+			unlink(node);
+			link(protectedSegment, node, PROTECTED);
+			if(protectedSize > protectedMaximum) {
+				Node<V> demoted = protectedSegment.prev;
+				unlink(demoted);
+				link(probation, demoted, PROBATION);
+			}
+			break;
+		case PROTECTED:
+			unlink(node);
+			link(protectedSegment, node, PROTECTED);
+			break;
+		default:
+			// removed while the lock was not held
+		}
+	}
+
+	/**
+	 * Move the entries pushed out of the window to the main area, where each either replaces the main area's
+	 * least recently used entry, if it is requested more often, or is evicted itself.
+	 */
+	private void evict() {
+		while(windowSize > windowMaximum) {
+			Node<V> candidate = window.prev;
+			unlink(candidate);
+			if(mainSize < mainMaximum) {
+				link(probation, candidate, PROBATION);
+				continue;
+			}
+			Node<V> victim = probation.prev != probation ? probation.prev : protectedSegment.prev;
+			if(sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+				discard(victim);
+				link(probation, candidate, PROBATION);
+			}
+			else {
+				discard(candidate);
+			}
+			evictionCount.increment();
+		}
+	}
+
+	private void remove(Node<V> node) {
+		lock.lock();
+		try {
+			if(node.queue != REMOVED) discard(node);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void discard(Node<V> node) {
+		unlink(node);
+		data.remove(node.key, node);
+		removeGroupKey(node.group, node.key);
+	}
+
+	private void removeGroupKey(String group, String key) {
+		keysByGroup.computeIfPresent(group, (g, keys) -> {
+			keys.remove(key);
+			return keys.isEmpty() ? null : keys;
+		});
+	}
+
+	private void link(Node<V> head, Node<V> node, int queue) {
+		node.queue = queue;
+		node.prev = head;
+		node.next = head.next;
+		head.next.prev = node;
+		head.next = node;
+		if(queue == WINDOW) windowSize++;
+		else mainSize++;
+		if(queue == PROTECTED) protectedSize++;
+	}
+
+	private void unlink(Node<V> node) {
+		if(node.queue == REMOVED) return;
+		if(node.queue == WINDOW) windowSize--;
+		else mainSize--;
+		if(node.queue == PROTECTED) protectedSize--;
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+		node.queue = REMOVED;
+	}
+
+	private static int stripe(String group) {
+		return spread(group.hashCode()) & (INVALIDATION_STRIPES - 1);
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 17;
+		hash *= 0xed5ad4bb;
+		hash ^= hash >>> 11;
+		hash *= 0xac4c1b51;
+		return hash ^ (hash >>> 15);
+	}
+
+	private static final class Node<V> {
+		private final String key;
+		private final String group;
+		private volatile V value;
+		private volatile long loadedNanos;
+		// guarded by the lock
+		private int queue = REMOVED;
+		private Node<V> prev;
+		private Node<V> next;
+
+		private Node(String key, String group, V value, long loadedNanos) {
+			this.key = key;
+			this.group = group;
+			this.value = value;
+			this.loadedNanos = loadedNanos;
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters estimating how often each key was requested recently. The counters are
+	 * halved once the number of increments reaches ten times the size of the cache, so old popularity fades.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int tableMask;
+		private final int sampleSize;
+		private int additions;
+
+		private FrequencySketch(int maximumSize) {
+			int size = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+			this.table = new long[size];
+			this.tableMask = size - 1;
+			this.sampleSize = 10 * maximumSize;
+		}
+
+		private int frequency(String key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for(int i=0; i<4; i++) {
+				int offset = (start + i) << 2;
+				frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL));
+			}
+			return frequency;
+		}
+
+		private void increment(String key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for(int i=0; i<4; i++) {
+				int index = indexOf(hash, i);
+				int offset = (start + i) << 2;
+				if(((table[index] >>> offset) & 0xfL) != 0xfL) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if(added && ++additions >= sampleSize) reset();
+		}
+
+		private void reset() {
+			for(int i=0; i<table.length; i++) table[i] = (table[i] >>> 1) & RESET_MASK;
+			additions /= 2;
+		}
+
+		private int indexOf(int hash, int row) {
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return (int) h & tableMask;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.stereotype.Component;
+
+import com.lambdaworks.redis.RedisCommandExecutionException;
+import com.programming4phone.data.redis.demo.error.RedisUnavailableException;
+
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Circuit breaker around the Redis calls of UsageDao and TierDao, enabled by the <i>breaker.enabled</i> property.
+ * <br><br>
+ * A call fails when it throws a DataAccessException (a connection failure or a command timeout), and a call
+ * slower than <i>breaker.slow.millis</i> counts as a failure even though it succeeded. An error Redis answered
+ * with, such as a key of the wrong type, is not a failure, as Redis is healthy. After
+ * <i>breaker.failure.threshold</i> consecutive failures the breaker opens: calls are no longer sent to Redis
+ * but answered at once by their fallback, so a stalled Redis costs the request threads nothing. After
+ * <i>breaker.open.millis</i> a single call is let through as a probe (half open), closing the breaker again if
+ * it succeeds in time, or opening it for another period if it does not.
+ * <br><br>
+ * A read falls back whenever its call fails. A write only falls back when it cannot have reached Redis,
+ * so that a write Redis may have applied is not applied again from the fallback journal (see UsageFallback).
+ */
+@Component
+public class RedisCircuitBreaker implements PublicMetrics {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	/**
+	 * State of the breaker.
+	 */
+	public enum State {
+		/**
+		 * Calls are sent to Redis.
+		 */
+		CLOSED,
+		/**
+		 * Calls are answered by their fallback.
+		 */
+		OPEN,
+		/**
+		 * A single probe call is sent to Redis, the others are answered by their fallback.
+		 */
+		HALF_OPEN;
+	}
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long openedMillis;
+
+	private final LongAdder failureCount = new LongAdder();
+	private final LongAdder openCount = new LongAdder();
+	private final LongAdder shortCircuitCount = new LongAdder();
+
+	@Value("${breaker.enabled}")
+	private boolean enabled;
+
+	@Value("${breaker.failure.threshold}")
+	private int failureThreshold;
+
+	@Value("${breaker.slow.millis}")
+	private long slowMillis;
+
+	@Value("${breaker.open.millis}")
+	private long openMillis;
+
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * Call Redis, or the fallback when the breaker is open or the call fails.
+	 * @param call Supplier calling Redis
+	 * @param fallback Supplier answering without Redis
+	 * @return <b>T</b> result of the call or of the fallback
+	 */
+	public <T> T call(Supplier<T> call, Supplier<T> fallback) {
+		if(!enabled) return call.get();
+		if(!allowRequest()) {
+			shortCircuitCount.increment();
+			return fallback.get();
+		}
+		return execute(call, dae -> fallback.get());
+	}
+
+	/**
+	 * Call Redis for a write that must not be applied twice, or the fallback when the write cannot have reached
+	 * Redis: the breaker is open, or no connection to Redis could be made. Any other failure, such as a timeout
+	 * after the write was sent, is rethrown, as Redis may have applied the write.
+	 * @param call Supplier calling Redis
+	 * @param fallback Supplier answering without Redis
+	 * @return <b>T</b> result of the call or of the fallback
+	 */
+	public <T> T write(Supplier<T> call, Supplier<T> fallback) {
+		if(!enabled) return call.get();
+		if(!allowRequest()) {
+			shortCircuitCount.increment();
+			return fallback.get();
+		}
+		return execute(call, dae -> {
+			if(isConnectionFailure(dae)) return fallback.get();
+			throw dae;
+		});
+	}
+
+	/**
+	 * Call Redis for an operation without a fallback.
+	 * @param call Supplier calling Redis
+	 * @return <b>T</b> result of the call
+	 * @throws RedisUnavailableException if the breaker is open
+	 */
+	public <T> T call(Supplier<T> call) {
+		if(!enabled) return call.get();
+		if(!allowRequest()) {
+			shortCircuitCount.increment();
+			throw new RedisUnavailableException();
+		}
+		return execute(call, dae -> {
+			throw dae;
+		});
+	}
+
+	private <T> T execute(Supplier<T> call, Function<DataAccessException, T> onFailure) {
+		long startNanos = System.nanoTime();
+		T result;
+		try {
+			result = call.get();
+		}
+		catch(DataAccessException dae) {
+			if(isErrorReply(dae)) {
+				// Redis answered, with an error about this call only (e.g. a key of the wrong type)
+				recordSuccess(startNanos);
+				throw dae;
+			}
+			recordFailure();
+			return onFailure.apply(dae);
+		}
+		catch(RuntimeException re) {
+			// Redis answered, the failure is the caller's (e.g. no tiers)
+			recordSuccess(startNanos);
+			throw re;
+		}
+		recordSuccess(startNanos);
+		return result;
+	}
+
+	/**
+	 * @return <b>boolean</b> true if a command failed before it was sent, as no connection to Redis could be made
+	 * or taken from the pool. Jedis also reports a read timeout as a connection failure, but the command was sent.
+	 */
+	static boolean isConnectionFailure(DataAccessException dae) {
+		if(!(dae instanceof RedisConnectionFailureException)) return false;
+		for(Throwable cause = dae; cause != null; cause = cause.getCause()) {
+			if(cause instanceof SocketTimeoutException) return false;
+			if(cause.getCause() == cause) break;
+		}
+		return true;
+	}
+
+	/**
+	 * @return <b>boolean</b> true if a call failed because Redis answered it with an error reply
+	 */
+	static boolean isErrorReply(DataAccessException dae) {
+		for(Throwable cause = dae; cause != null; cause = cause.getCause()) {
+			if(cause instanceof JedisDataException) return true;
+			// Lettuce also wraps the failures of the connection, an error reply has no cause
+			if(cause instanceof RedisCommandExecutionException) return cause.getCause() == null;
+			if(cause.getCause() == cause) break;
+		}
+		return false;
+	}
+
+	/**
+	 * @return <b>boolean</b> true if a call failed because Redis could not answer: the breaker is open, no connection
+	 * could be made, or the command timed out. Unlike an error Redis answered with, the call may succeed later.
+	 */
+	static boolean isUnavailable(RuntimeException re) {
+		return re instanceof RedisUnavailableException || re instanceof RedisConnectionFailureException || re instanceof QueryTimeoutException;
+	}
+
+	private boolean allowRequest() {
+		State current = state.get();
+		if(current == State.CLOSED) return true;
+		if(current == State.OPEN && System.currentTimeMillis() - openedMillis >= openMillis) {
+			return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+		}
+		return false;
+	}
+
+	private void recordSuccess(long startNanos) {
+		if(System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(slowMillis)) {
+			recordFailure();
+			return;
+		}
+		consecutiveFailures.set(0);
+		if(state.compareAndSet(State.HALF_OPEN, State.CLOSED)) logger.info("Redis answered the probe in time, circuit breaker closed");
+	}
+
+	private void recordFailure() {
+		failureCount.increment();
+		if(state.get() == State.HALF_OPEN) {
+			open(State.HALF_OPEN);
+		}
+		else if(consecutiveFailures.incrementAndGet() >= failureThreshold) {
+			open(State.CLOSED);
+		}
+	}
+
+	private void open(State from) {
+		// a late failure of a call sent before the breaker opened does not extend the open period
+		if(state.get() != from) return;
+		openedMillis = System.currentTimeMillis();
+		if(state.compareAndSet(from, State.OPEN)) {
+			openCount.increment();
+			logger.warn("Redis is failing or slow, circuit breaker open for " + openMillis + " ms");
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(!enabled) return metrics;
+		metrics.add(new Metric<Integer>("redis.breaker.state", state.get().ordinal()));
+		metrics.add(new Metric<Long>("redis.breaker.failures", failureCount.sum()));
+		metrics.add(new Metric<Long>("redis.breaker.opened", openCount.sum()));
+		metrics.add(new Metric<Long>("redis.breaker.short.circuited", shortCircuitCount.sum()));
+		return metrics;
+	}
+}
@@ -0,0 +1,176 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Latency and throughput of every Redis operation performed by UsageDao and TierDao, and the outcome of
+ * tier resolutions, exposed by the actuator metrics endpoint. Enabled by the <i>metrics.redis.enabled</i> property.
+ * <br><br>
+ * Each operation has a count, an error count, the mean latency and latency percentiles in microseconds. 
+ * Latencies are recorded in an HdrHistogram Recorder, which is wait free for the recording threads, and the 
+ * percentiles cover the latencies recorded during the previous <i>metrics.redis.percentile.window.seconds</i>.
+ */
+@Component
+public class RedisMetrics implements PublicMetrics {
+
+	private static final double[] PERCENTILES = {50d, 90d, 99d, 99.9d};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+	private final OperationMetrics[] operationMetrics = new OperationMetrics[RedisOperation.values().length];
+	private final LongAdder tierHits = new LongAdder();
+	private final LongAdder tierUnknown = new LongAdder();
+	private final LongAdder tierSnapshotHits = new LongAdder();
+	private final LongAdder tierSnapshotMisses = new LongAdder();
+
+	@Value("${metrics.redis.enabled}")
+	private boolean enabled;
+
+	@Value("${metrics.redis.percentile.window.seconds}")
+	private long percentileWindowSeconds;
+
+	public RedisMetrics() {
+		for(RedisOperation operation : RedisOperation.values()) {
+			operationMetrics[operation.ordinal()] = new OperationMetrics();
+		}
+	}
+
+	/**
+	 * Execute a Redis operation, recording its latency and whether it failed.
+	 * @param operation RedisOperation
+	 * @param command Supplier performing the operation
+	 * @return <b>T</b> result of the operation
+	 */
+	<T> T time(RedisOperation operation, Supplier<T> command) {
+		if(!enabled) return command.get();
+		long startNanos = System.nanoTime();
+		boolean failed = true;
+		try {
+			T result = command.get();
+			failed = false;
+			return result;
+		}
+		finally {
+			operationMetrics[operation.ordinal()].record(System.nanoTime() - startNanos, failed);
+		}
+	}
+
+	/**
+	 * Execute a Redis operation without a result, recording its latency and whether it failed.
+	 * @param operation RedisOperation
+	 * @param command Runnable performing the operation
+	 */
+	void time(RedisOperation operation, Runnable command) {
+		time(operation, () -> {
+			command.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Start an asynchronous Redis operation, recording its latency and whether it failed when it completes.
+	 * @param operation RedisOperation
+	 * @param command Supplier starting the operation
+	 * @return <b>CompletableFuture</b> completed with the result of the operation
+	 */
+	<T> CompletableFuture<T> timeAsync(RedisOperation operation, Supplier<? extends CompletionStage<T>> command) {
+		if(!enabled) return command.get().toCompletableFuture();
+		long startNanos = System.nanoTime();
+		return command.get().toCompletableFuture().whenComplete((result, throwable) -> 
+			operationMetrics[operation.ordinal()].record(System.nanoTime() - startNanos, throwable != null));
+	}
+
+	/**
+	 * Count a tier resolution, either a matching tier or the UNKNOWN fallback when the usage
+	 * is below every tier threshold.
+	 * @param speed String, the resolved tier speed
+	 */
+	void tierResolved(String speed) {
+		if(!enabled) return;
+		if(TierTable.UNKNOWN_SPEED.equals(speed)) tierUnknown.increment();
+		else tierHits.increment();
+	}
+
+	/**
+	 * Count a lookup of the local tier snapshot.
+	 * @param hit boolean, false if the snapshot had been invalidated and was reloaded from Redis
+	 */
+	void tierSnapshotLookup(boolean hit) {
+		if(!enabled) return;
+		if(hit) tierSnapshotHits.increment();
+		else tierSnapshotMisses.increment();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(!enabled) return metrics;
+		long windowNanos = TimeUnit.SECONDS.toNanos(percentileWindowSeconds);
+		for(RedisOperation operation : RedisOperation.values()) {
+			OperationMetrics operationMetric = operationMetrics[operation.ordinal()];
+			long count = operationMetric.count.sum();
+			if(count == 0) continue;
+			String name = operation.getMetricName();
+			metrics.add(new Metric<Long>(name + ".count", count));
+			metrics.add(new Metric<Long>(name + ".errors", operationMetric.errors.sum()));
+			metrics.add(new Metric<Long>(name + ".mean.micros", TimeUnit.NANOSECONDS.toMicros(operationMetric.totalNanos.sum() / count)));
+			Histogram window = operationMetric.percentileWindow(windowNanos);
+			if(window.getTotalCount() == 0) continue;
+			for(int i=0; i<PERCENTILES.length; i++) {
+				metrics.add(new Metric<Long>(name + "." + PERCENTILE_NAMES[i] + ".micros", 
+						TimeUnit.NANOSECONDS.toMicros(window.getValueAtPercentile(PERCENTILES[i]))));
+			}
+			metrics.add(new Metric<Long>(name + ".max.micros", TimeUnit.NANOSECONDS.toMicros(window.getMaxValue())));
+		}
+		metrics.add(new Metric<Long>("tier.resolution.hits", tierHits.sum()));
+		metrics.add(new Metric<Long>("tier.resolution.unknown", tierUnknown.sum()));
+		metrics.add(new Metric<Long>("tier.snapshot.hits", tierSnapshotHits.sum()));
+		metrics.add(new Metric<Long>("tier.snapshot.misses", tierSnapshotMisses.sum()));
+		return metrics;
+	}
+
+	/**
+	 * Counters and latency histogram of a single operation.
+	 */
+	private static class OperationMetrics {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final Recorder recorder = new Recorder(3);
+		private Histogram window;
+		private long windowEndNanos;
+
+		void record(long nanos, boolean failed) {
+			count.increment();
+			totalNanos.add(nanos);
+			if(failed) errors.increment();
+			recorder.recordValue(nanos);
+		}
+
+		/**
+		 * Return the latencies of the previous window, starting a new window if the current one has ended.
+		 */
+		synchronized Histogram percentileWindow(long windowNanos) {
+			long nowNanos = System.nanoTime();
+			if(window == null || nowNanos - windowEndNanos >= 0) {
+				window = recorder.getIntervalHistogram();
+				windowEndNanos = nowNanos + windowNanos;
+			}
+			return window;
+		}
+	}
+}
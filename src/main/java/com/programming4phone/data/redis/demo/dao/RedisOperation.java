@@ -0,0 +1,64 @@
+package com.programming4phone.data.redis.demo.dao;
+
+/**
+ * Redis operations timed by RedisMetrics. Operations performed by a Lua script are named after the 
+ * main command of the script, since all of its commands are executed in a single round trip.
+ */
+enum RedisOperation {
+	/**
+	 * increase_usage.lua, INCRBY and EXPIRE of a new account key
+	 */
+	INCRBY("redis.usage.incrby"),
+	/**
+	 * increase_usage_batch.lua, INCRBY and EXPIRE of new account keys for a chunk of accounts
+	 */
+	INCRBY_BATCH("redis.usage.incrby.batch"),
+	/**
+	 * decrease_usage.lua, DECRBY and the reset to zero
+	 */
+	DECRBY("redis.usage.decrby"),
+	GET("redis.usage.get"),
+	MGET("redis.usage.mget"),
+	SET("redis.usage.set"),
+	DEL("redis.usage.del"),
+	/**
+	 * HGET of an account field, HASH storage layout
+	 */
+	HGET("redis.usage.hget"),
+	/**
+	 * Pipelined HGETs of many account fields, HASH storage layout
+	 */
+	HGET_PIPELINED("redis.usage.hget.pipelined"),
+	/**
+	 * Pipelined GETs of many account keys, in a cluster where MGET cannot span hash slots
+	 */
+	GET_PIPELINED("redis.usage.get.pipelined"),
+	/**
+	 * HDEL of an account field, HASH storage layout
+	 */
+	HDEL("redis.usage.hdel"),
+	/**
+	 * HGETALL of the usage rate window buckets
+	 */
+	HGETALL("redis.usage.rate.hgetall"),
+	/**
+	 * usage_tier.lua, GET of the account key and ZREVRANGEBYSCORE of the tiers
+	 */
+	GET_TIER("redis.usage.get.tier"),
+	ZRANGE("redis.tier.zrange"),
+	ZREVRANGEBYSCORE("redis.tier.zrevrangebyscore"),
+	ZCARD("redis.tier.zcard"),
+	ZADD("redis.tier.zadd"),
+	ZREM("redis.tier.zrem"),
+	PUBLISH("redis.tier.publish");
+
+	private final String metricName;
+
+	private RedisOperation(String metricName) {
+		this.metricName = metricName;
+	}
+
+	String getMetricName() {
+		return metricName;
+	}
+}
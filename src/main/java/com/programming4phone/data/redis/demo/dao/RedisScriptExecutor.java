@@ -0,0 +1,192 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConverters;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Runs the Lua scripts of UsageDao on the node holding their keys (see RedisShards), pipelining the calls
+ * made to the same node. Over Lettuce the calls are pipelined on the RedisConnection. Spring Data Redis does
+ * not pipeline scripts over Jedis, so when the native connection of the RedisConnection is a Jedis its pipeline
+ * is used instead; this class is the only one driving Jedis directly.
+ */
+@Component
+class RedisScriptExecutor {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	@Autowired
+	private RedisShards redisShards;
+
+	/**
+	 * Load scripts into the script cache of every node, so that each call is a single EVALSHA. Should the script
+	 * cache be flushed (or the load fail here) the script is resent with EVAL on the first NOSCRIPT reply.
+	 * @param scripts RedisScript to load
+	 */
+	void load(List<RedisScript<?>> scripts) {
+		for(StringRedisTemplate node : redisShards.nodes()) {
+			try {
+				node.execute((RedisCallback<Void>) connection -> {
+					for(RedisScript<?> script : scripts) {
+						connection.scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+					}
+					return null;
+				});
+			}
+			catch(DataAccessException dae) {
+				logger.warn("Unable to preload Lua scripts, falling back to EVAL on first use", dae);
+			}
+		}
+	}
+
+	/**
+	 * Run a Lua script once on the node holding the keys, see executeAll.
+	 * @param node StringRedisTemplate of the node holding the keys
+	 * @param script RedisScript
+	 * @param keys List of the keys of the script
+	 * @param args arguments of the script
+	 * @return <b>T</b> the result of the script
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T execute(StringRedisTemplate node, RedisScript<T> script, List<String> keys, Object... args) {
+		return (T) executeAll(node, script, Collections.singletonList(keys), Collections.<Object[]>singletonList(args)).get(0);
+	}
+
+	/**
+	 * Run a Lua script on one node once per list of keys. Over Lettuce a single call is a plain EVALSHA, several calls
+	 * are pipelined. Over Jedis every call is pipelined, even a single one: Jedis waits for the reply to a plain
+	 * EVALSHA without any socket timeout, so a hung Redis would block the caller for good, while a pipeline keeps
+	 * <i>redis.timeout-millis</i>. A pipelined call that failed, because the node did not have the script (NOSCRIPT) or no longer
+	 * serves the slot of the keys (MOVED), is sent again on its own, which falls back to EVAL and follows the
+	 * redirection. Calls that succeeded are never sent twice.
+	 * @param node StringRedisTemplate of the node holding the keys
+	 * @param script RedisScript
+	 * @param keys List of the keys of each call
+	 * @param args List of the arguments of each call
+	 * @return <b>List</b> of the result of each call
+	 */
+	List<Object> executeAll(StringRedisTemplate node, RedisScript<?> script, List<List<String>> keys, List<Object[]> args) {
+		List<Object> results = executePartially(node, script, keys, args);
+		for(Object result : results) {
+			if(result instanceof RuntimeException) throw (RuntimeException) result;
+		}
+		return results;
+	}
+
+	/**
+	 * Run a Lua script on one node once per list of keys, see executeAll. The result of a call that failed
+	 * is its RuntimeException, so the calls that succeeded can be told apart.
+	 * @param node StringRedisTemplate of the node holding the keys
+	 * @param script RedisScript
+	 * @param keys List of the keys of each call
+	 * @param args List of the arguments of each call
+	 * @return <b>List</b> of the result, or the RuntimeException, of each call
+	 */
+	List<Object> executePartially(StringRedisTemplate node, RedisScript<?> script, List<List<String>> keys, List<Object[]> args) {
+		if(keys.size() == 1 && !(node.getConnectionFactory() instanceof JedisConnectionFactory)) {
+			try {
+				return Collections.singletonList(redisShards.execute(keys.get(0).get(0), owner -> owner.execute(script, keys.get(0), args.get(0))));
+			}
+			catch(RuntimeException re) {
+				return Collections.singletonList(re);
+			}
+		}
+		List<Object> results = node.execute((RedisCallback<List<Object>>) connection -> pipeline(connection, script, keys, args));
+		for(int i=0; i<results.size(); i++) {
+			if(!(results.get(i) instanceof Exception)) continue;
+			List<String> callKeys = keys.get(i);
+			Object[] callArgs = args.get(i);
+			try {
+				results.set(i, redisShards.execute(callKeys.get(0), owner -> owner.execute(script, callKeys, callArgs)));
+			}
+			catch(RuntimeException re) {
+				results.set(i, re);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Send every call in a single pipeline. The result of a call that failed is its Exception.
+	 */
+	private List<Object> pipeline(RedisConnection connection, RedisScript<?> script, List<List<String>> keys, List<Object[]> args) {
+		if(connection.getNativeConnection() instanceof Jedis) return pipeline((Jedis) connection.getNativeConnection(), script, keys, args);
+		ReturnType returnType = ReturnType.fromJavaType(script.getResultType());
+		connection.openPipeline();
+		for(int i=0; i<keys.size(); i++) {
+			connection.evalSha(script.getSha1(), returnType, keys.get(i).size(), keysAndArgs(keys.get(i), args.get(i)));
+		}
+		try {
+			return connection.closePipeline();
+		}
+		catch(RedisPipelineException rpe) {
+			return new ArrayList<Object>(rpe.getPipelineResult());
+		}
+	}
+
+	private List<Object> pipeline(Jedis jedis, RedisScript<?> script, List<List<String>> keys, List<Object[]> args) {
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			byte[] sha1 = script.getSha1().getBytes(StandardCharsets.UTF_8);
+			for(int i=0; i<keys.size(); i++) pipeline.evalsha(sha1, keys.get(i).size(), keysAndArgs(keys.get(i), args.get(i)));
+			List<Object> replies = new ArrayList<Object>(pipeline.syncAndReturnAll());
+			replies.replaceAll(RedisScriptExecutor::toScriptResult);
+			return replies;
+		}
+		catch(JedisConnectionException jce) {
+			// drop the connection, so a reply still on its way is never read as the reply to a later command
+			disconnect(jedis);
+			throw JedisConverters.toDataAccessException(jce);
+		}
+	}
+
+	private static void disconnect(Jedis jedis) {
+		try {
+			jedis.disconnect();
+		}
+		catch(JedisException je) {
+			// the connection is already broken
+		}
+	}
+
+	/**
+	 * Convert the bulk replies in the reply of a script read from the Jedis pipeline to Strings, as the script executor does.
+	 */
+	private static Object toScriptResult(Object reply) {
+		if(reply instanceof byte[]) return new String((byte[]) reply, StandardCharsets.UTF_8);
+		if(reply instanceof List) {
+			List<Object> replies = new ArrayList<Object>((List<?>) reply);
+			replies.replaceAll(RedisScriptExecutor::toScriptResult);
+			return replies;
+		}
+		return reply;
+	}
+
+	private static byte[][] keysAndArgs(List<String> keys, Object[] args) {
+		byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+		int i = 0;
+		for(String key : keys) keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+		for(Object arg : args) keysAndArgs[i++] = arg.toString().getBytes(StandardCharsets.UTF_8);
+		return keysAndArgs;
+	}
+}
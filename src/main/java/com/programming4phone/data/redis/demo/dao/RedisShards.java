@@ -0,0 +1,399 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisConnectionUtils;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import com.programming4phone.data.redis.demo.RedisConnectionSettings.Mode;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Hashing;
+import redis.clients.util.JedisClusterCRC16;
+
+/**
+ * Routes the usage keys of an account to the Redis node that holds them, according to the <i>redis.mode</i> property.
+ * <br><br>
+ * In the STANDALONE mode every key is on the single Redis instance. In the CLUSTER mode a key is sent to the
+ * master serving its hash slot, read with CLUSTER SLOTS from the <i>redis.nodes</i> seed nodes and refreshed
+ * whenever a node answers with a MOVED redirection. An ASK redirection, sent while the slot is being migrated, 
+ * does not change the topology: the command is sent once to the node named in the reply, preceded by ASKING on
+ * the same connection. In the SHARDED mode the <i>redis.nodes</i> are
+ * independent instances placed on a consistent hash ring (MurmurHash, 160 points per node as in Jedis' own
+ * sharding), so adding or removing a node only moves the accounts of its part of the ring.
+ * <br><br>
+ * In both modes a key is routed by its hash tag (the part between braces) when it has one, so keys that share
+ * a tag are always on the same node and, in a cluster, in the same slot: a Lua script may use them together.
+ * Every node is reached through its own standalone StringRedisTemplate, which supports the Lua scripts, SCAN
+ * and pipelining that Spring Data Redis does not support on a cluster connection.
+ */
+public class RedisShards implements AutoCloseable {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	static final int SLOTS = 16384;
+	private static final int POINTS_PER_NODE = 160;
+	private static final Pattern MOVED = Pattern.compile("(?:^|\\s)MOVED \\d+ (\\S+)");
+	private static final Pattern ASK = Pattern.compile("(?:^|\\s)ASK \\d+ (\\S+)");
+
+	private final Mode mode;
+	private final List<String> nodes;
+	private final StringRedisTemplate primary;
+	private final Function<String, StringRedisTemplate> nodeTemplateFactory;
+	private final int maxRedirects;
+	private final int timeoutMillis;
+	private final Map<String, StringRedisTemplate> nodeTemplates = new ConcurrentHashMap<String, StringRedisTemplate>();
+	private final Map<String, StringRedisTemplate> askingTemplates = new ConcurrentHashMap<String, StringRedisTemplate>();
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private final ExecutorService executor;
+	private volatile String[] slotNodes;
+
+	/**
+	 * @param mode Mode
+	 * @param nodes List of host:port, the seed nodes of a cluster or the shards of the SHARDED mode
+	 * @param primary StringRedisTemplate of the STANDALONE mode
+	 * @param nodeTemplateFactory Function creating a StringRedisTemplate connected to a single host:port
+	 * @param threads int number of threads sending commands to the nodes in parallel
+	 * @param maxRedirects int number of times a command is retried after a cluster redirection
+	 * @param timeoutMillis int timeout of the connections reading the cluster topology
+	 */
+	public RedisShards(Mode mode, List<String> nodes, StringRedisTemplate primary, Function<String, StringRedisTemplate> nodeTemplateFactory,
+			int threads, int maxRedirects, int timeoutMillis) {
+		this.mode = mode;
+		this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+		this.primary = primary;
+		this.nodeTemplateFactory = nodeTemplateFactory;
+		this.maxRedirects = maxRedirects;
+		this.timeoutMillis = timeoutMillis;
+		if(mode != Mode.STANDALONE && nodes.isEmpty()) throw new IllegalArgumentException("redis.nodes must be set in the " + mode + " mode");
+		if(mode == Mode.SHARDED) {
+			for(String node : nodes) {
+				for(int point=0; point<POINTS_PER_NODE; point++) ring.put(Hashing.MURMUR_HASH.hash(node + "*" + point), node);
+			}
+		}
+		if(mode == Mode.CLUSTER) refreshTopology();
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "redis-shard-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return <b>boolean</b> true when the keys are spread over several nodes (CLUSTER or SHARDED mode)
+	 */
+	public boolean isDistributed() {
+		return mode != Mode.STANDALONE;
+	}
+
+	/**
+	 * @return <b>boolean</b> true in the CLUSTER mode, where the keys of a Lua script must all be in the same slot
+	 */
+	public boolean isCluster() {
+		return mode == Mode.CLUSTER;
+	}
+
+	/**
+	 * @param key String
+	 * @return <b>StringRedisTemplate</b> of the node holding the key
+	 */
+	public StringRedisTemplate forKey(String key) {
+		switch(mode) {
+		case CLUSTER:
+			return nodeTemplate(slotNodes[JedisClusterCRC16.getSlot(key)]);
+		case SHARDED:
+			Map.Entry<Long, String> point = ring.ceilingEntry(Hashing.MURMUR_HASH.hash(hashTag(key)));
+			return nodeTemplate((point == null ? ring.firstEntry() : point).getValue());
+		default:
+			return primary;
+		}
+	}
+
+	/**
+	 * @return <b>List of StringRedisTemplate</b>, one per node (per master of a cluster)
+	 */
+	public List<StringRedisTemplate> nodes() {
+		if(mode == Mode.STANDALONE) return Collections.singletonList(primary);
+		Set<String> addresses = new LinkedHashSet<String>(mode == Mode.CLUSTER ? Arrays.asList(slotNodes) : nodes);
+		List<StringRedisTemplate> templates = new ArrayList<StringRedisTemplate>(addresses.size());
+		addresses.forEach(address -> templates.add(nodeTemplate(address)));
+		return templates;
+	}
+
+	/**
+	 * Run an operation on the node holding a key. In a cluster the operation is retried, at most 
+	 * <i>redis.max-redirects</i> times, when the node no longer serves the slot of the key: after refreshing the
+	 * topology on a MOVED redirection, or on the node named in an ASK redirection, after sending it ASKING.
+	 * @param key String
+	 * @param operation Function of the StringRedisTemplate of the node
+	 * @return <b>T</b> the result of the operation
+	 */
+	public <T> T execute(String key, Function<StringRedisTemplate, T> operation) {
+		String askedNode = null;
+		for(int redirects=0; ; redirects++) {
+			try {
+				return askedNode == null ? operation.apply(forKey(key)) : executeAsking(askedNode, operation);
+			}
+			catch(DataAccessException dae) {
+				if(!isCluster() || redirects >= maxRedirects) throw dae;
+				askedNode = askedNode(dae);
+				if(askedNode != null) continue;
+				if(!isMoved(dae)) throw dae;
+				refreshTopology();
+			}
+		}
+	}
+
+	/**
+	 * Send ASKING and then the commands of an operation over a single connection to the node importing a slot.
+	 * The connection is bound to the thread for the operation, so the template methods it calls reuse it. ASKING
+	 * only applies to the next command, so an operation sending several commands is redirected again by the next.
+	 */
+	private <T> T executeAsking(String address, Function<StringRedisTemplate, T> operation) {
+		StringRedisTemplate node = askingTemplate(address);
+		RedisConnectionFactory factory = node.getConnectionFactory();
+		RedisConnection connection = RedisConnectionUtils.bindConnection(factory);
+		try {
+			connection.execute("ASKING");
+			return operation.apply(node);
+		}
+		finally {
+			RedisConnectionUtils.unbindConnection(factory);
+		}
+	}
+
+	/**
+	 * Run an operation that routes its own commands. In a cluster the whole operation is retried, at most
+	 * <i>redis.max-redirects</i> times, when a node no longer serves the slot of a key, so the operation must be safe 
+	 * to repeat. The topology is refreshed first on a MOVED redirection, not on an ASK, as the slot is still served
+	 * by the same node until its migration completes.
+	 * @param operation Supplier
+	 * @return <b>T</b> the result of the operation
+	 */
+	public <T> T retryOnRedirection(Supplier<T> operation) {
+		for(int redirects=0; ; redirects++) {
+			try {
+				return operation.get();
+			}
+			catch(DataAccessException dae) {
+				if(!isCluster() || redirects >= maxRedirects || !isRedirection(dae)) throw dae;
+				if(isMoved(dae)) refreshTopology();
+			}
+		}
+	}
+
+	/**
+	 * Group items by the node holding their key, keeping the order of the items within each node.
+	 * @param items Collection of items
+	 * @param key Function returning the key of an item
+	 * @return <b>Map</b> of the StringRedisTemplate of each node to its items
+	 */
+	public <K> Map<StringRedisTemplate, List<K>> groupByNode(Collection<K> items, Function<K, String> key) {
+		Map<StringRedisTemplate, List<K>> groups = new LinkedHashMap<StringRedisTemplate, List<K>>();
+		for(K item : items) {
+			groups.computeIfAbsent(forKey(key.apply(item)), node -> new ArrayList<K>()).add(item);
+		}
+		return groups;
+	}
+
+	/**
+	 * Split the items of one node into batches that a single Lua script call can update: at most maxSize items
+	 * and, in a cluster, only items whose keys are in the same hash slot.
+	 * @param items List of items
+	 * @param key Function returning the key of an item
+	 * @param maxSize int maximum number of items of a batch
+	 * @return <b>List</b> of batches
+	 */
+	public <K> List<List<K>> scriptBatches(List<K> items, Function<K, String> key, int maxSize) {
+		Collection<List<K>> groups = Collections.singletonList(items);
+		if(isCluster()) {
+			Map<Integer, List<K>> slots = new LinkedHashMap<Integer, List<K>>();
+			for(K item : items) {
+				slots.computeIfAbsent(JedisClusterCRC16.getSlot(key.apply(item)), slot -> new ArrayList<K>()).add(item);
+			}
+			groups = slots.values();
+		}
+		List<List<K>> batches = new ArrayList<List<K>>();
+		for(List<K> group : groups) {
+			for(int start=0; start<group.size(); start+=maxSize) batches.add(group.subList(start, Math.min(start+maxSize, group.size())));
+		}
+		return batches;
+	}
+
+	/**
+	 * Run tasks, one per node, in parallel and wait for all of them. A single task is run on the calling thread.
+	 * @param tasks List of Callable
+	 * @return <b>List</b> of the task results, in the order of the tasks
+	 */
+	public <T> List<T> inParallel(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if(tasks.size() == 1) {
+				results.add(tasks.get(0).call());
+				return results;
+			}
+			List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+			for(Callable<T> task : tasks) futures.add(executor.submit(task));
+			for(Future<T> future : futures) results.add(future.get());
+			return results;
+		}
+		catch(ExecutionException ee) {
+			if(ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+			throw new IllegalStateException(ee.getCause());
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(ie);
+		}
+		catch(RuntimeException re) {
+			throw re;
+		}
+		catch(Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Read the master serving each hash slot with CLUSTER SLOTS from the first seed node that answers.
+	 */
+	public synchronized void refreshTopology() {
+		Set<String> candidates = new LinkedHashSet<String>(nodes);
+		candidates.addAll(nodeTemplates.keySet());
+		for(String candidate : candidates) {
+			String[] hostAndPort = candidate.split(":");
+			try(Jedis jedis = new Jedis(hostAndPort[0], Integer.parseInt(hostAndPort[1]), timeoutMillis)) {
+				String[] topology = new String[SLOTS];
+				for(Object range : jedis.clusterSlots()) {
+					List<?> slotRange = (List<?>) range;
+					List<?> master = (List<?>) slotRange.get(2);
+					String host = new String((byte[]) master.get(0), StandardCharsets.UTF_8);
+					String address = (host.isEmpty() ? hostAndPort[0] : host) + ":" + master.get(1);
+					for(int slot=((Long) slotRange.get(0)).intValue(); slot<=((Long) slotRange.get(1)).intValue(); slot++) topology[slot] = address;
+				}
+				for(int slot=0; slot<SLOTS; slot++) {
+					if(topology[slot] == null) throw new IllegalStateException("Hash slot " + slot + " is not served by any node of the cluster");
+				}
+				slotNodes = topology;
+				logger.info("Read the cluster topology from " + candidate + ": " + new LinkedHashSet<String>(Arrays.asList(topology)));
+				return;
+			}
+			catch(JedisException je) {
+				logger.warn("Unable to read the cluster topology from " + candidate, je);
+			}
+		}
+		throw new RedisConnectionFailureException("Unable to read the cluster topology from any of " + candidates);
+	}
+
+	private StringRedisTemplate nodeTemplate(String address) {
+		return nodeTemplates.computeIfAbsent(address, nodeTemplateFactory);
+	}
+
+	/**
+	 * Templates of their own for ASK redirections, as the ASKING flag belongs to a connection:
+	 * a Lettuce connection shared by every thread must not be used.
+	 */
+	private StringRedisTemplate askingTemplate(String address) {
+		return askingTemplates.computeIfAbsent(address, a -> {
+			StringRedisTemplate template = nodeTemplateFactory.apply(a);
+			if(template.getConnectionFactory() instanceof LettuceConnectionFactory) {
+				((LettuceConnectionFactory) template.getConnectionFactory()).setShareNativeConnection(false);
+			}
+			return template;
+		});
+	}
+
+	/**
+	 * @return <b>boolean</b> true if a node redirected the command to another node (MOVED or ASK)
+	 */
+	static boolean isRedirection(Throwable throwable) {
+		return isMoved(throwable) || askedNode(throwable) != null;
+	}
+
+	/**
+	 * @return <b>boolean</b> true if a node answered that another node now serves the slot of the key (MOVED)
+	 */
+	static boolean isMoved(Throwable throwable) {
+		return redirection(throwable, MOVED) != null;
+	}
+
+	/**
+	 * @return <b>String</b> host:port of the node importing the slot of the key if a node answered ASK, null otherwise
+	 */
+	static String askedNode(Throwable throwable) {
+		return redirection(throwable, ASK);
+	}
+
+	/**
+	 * @return <b>String</b> host:port named by a redirection of the type given (MOVED slot host:port), null if there is none
+	 */
+	private static String redirection(Throwable throwable, Pattern type) {
+		for(Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+			String message = cause.getMessage();
+			if(message != null) {
+				Matcher matcher = type.matcher(message);
+				if(matcher.find()) return matcher.group(1);
+			}
+			if(cause.getCause() == cause) break;
+		}
+		return null;
+	}
+
+	/**
+	 * @return <b>String</b> the hash tag of a key, the part between the first braces, or the whole key if it has none
+	 */
+	static String hashTag(String key) {
+		int start = key.indexOf('{');
+		int end = start < 0 ? -1 : key.indexOf('}', start + 1);
+		return end > start + 1 ? key.substring(start + 1, end) : key;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+		List<StringRedisTemplate> templates = new ArrayList<StringRedisTemplate>(nodeTemplates.values());
+		templates.addAll(askingTemplates.values());
+		for(StringRedisTemplate template : templates) {
+			try {
+				((DisposableBean) template.getConnectionFactory()).destroy();
+			}
+			catch(Exception e) {
+				logger.warn("Unable to close the connections to a Redis node", e);
+			}
+		}
+	}
+}
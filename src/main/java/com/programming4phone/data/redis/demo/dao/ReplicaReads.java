@@ -0,0 +1,166 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Sends the reads of the read-only throttle endpoints to the replicas of the primary when <i>redis.read-from</i>
+ * is REPLICA, while every write stays on the primary.
+ * <br><br>
+ * The lag of each replica is measured with a heartbeat: every <i>redis.replica-check-millis</i> the current time
+ * is written to the HEARTBEAT_KEY on the primary and read back from every replica. Replication applies the writes
+ * in order, so a replica showing a heartbeat written at time t has every write made before t, and is at most
+ * (now - t) behind. With <i>redis.replica-max-staleness-millis</i> set, a replica is only read from while that
+ * bound holds, which takes a bound above twice the check interval. A replica that cannot be reached, or has not yet
+ * received any heartbeat, is not read from until the next check shows it is back.
+ * <br><br>
+ * When no replica is fresh enough the read goes to the primary, so reads never fail because of the replicas.
+ */
+public class ReplicaReads implements PublicMetrics, AutoCloseable {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	static final String HEARTBEAT_KEY = "REPLICA:HEARTBEAT";
+
+	private final StringRedisTemplate primary;
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final long maxStalenessMillis;
+	private final AtomicInteger next = new AtomicInteger();
+	private final LongAdder replicaReads = new LongAdder();
+	private final LongAdder primaryReads = new LongAdder();
+
+	/**
+	 * @param replicas List of host:port, empty to read everything from the primary
+	 * @param primary StringRedisTemplate of the primary
+	 * @param replicaTemplateFactory Function creating a StringRedisTemplate connected to a single host:port
+	 * @param maxStalenessMillis long how far a replica may lag behind the primary and still be read from, 0 for no bound
+	 */
+	public ReplicaReads(List<String> replicas, StringRedisTemplate primary, Function<String, StringRedisTemplate> replicaTemplateFactory,
+			long maxStalenessMillis) {
+		this.primary = primary;
+		this.maxStalenessMillis = maxStalenessMillis;
+		for(String address : replicas) this.replicas.add(new Replica(address, replicaTemplateFactory.apply(address)));
+	}
+
+	/**
+	 * @return <b>boolean</b> true when reads may be sent to replicas
+	 */
+	public boolean isEnabled() {
+		return !replicas.isEmpty();
+	}
+
+	/**
+	 * Run a read on a replica that is fresh enough, taking turns between them, or on the primary if there is none.
+	 * A read that fails on a replica is retried on the primary.
+	 * @param read Function of the StringRedisTemplate of the replica or the primary
+	 * @return <b>T</b> the result of the read
+	 */
+	public <T> T read(Function<StringRedisTemplate, T> read) {
+		Replica replica = freshReplica();
+		if(replica != null) {
+			try {
+				T result = read.apply(replica.template);
+				replicaReads.increment();
+				return result;
+			}
+			catch(DataAccessException dae) {
+				replica.heartbeatMillis = 0L;
+				logger.warn("Reading from the replica " + replica.address + " failed, reading from the primary until it is back", dae);
+			}
+		}
+		primaryReads.increment();
+		return read.apply(primary);
+	}
+
+	private Replica freshReplica() {
+		long nowMillis = System.currentTimeMillis();
+		int size = replicas.size();
+		int start = size == 0 ? 0 : Math.floorMod(next.getAndIncrement(), size);
+		for(int i=0; i<size; i++) {
+			Replica replica = replicas.get((start + i) % size);
+			if(replica.isFresh(nowMillis)) return replica;
+		}
+		return null;
+	}
+
+	/**
+	 * Write the heartbeat on the primary and read back the last heartbeat each replica received.
+	 */
+	@Scheduled(fixedDelayString="${redis.replica-check-millis}")
+	public void checkReplicas() {
+		if(replicas.isEmpty()) return;
+		try {
+			primary.opsForValue().set(HEARTBEAT_KEY, Long.toString(System.currentTimeMillis()));
+		}
+		catch(DataAccessException dae) {
+			logger.warn("Unable to write the replica heartbeat on the primary", dae);
+		}
+		for(Replica replica : replicas) {
+			try {
+				String heartbeat = replica.template.opsForValue().get(HEARTBEAT_KEY);
+				replica.heartbeatMillis = heartbeat == null ? 0L : Long.parseLong(heartbeat);
+			}
+			catch(DataAccessException dae) {
+				if(replica.heartbeatMillis != 0L) logger.warn("Unable to read the replica heartbeat from " + replica.address, dae);
+				replica.heartbeatMillis = 0L;
+			}
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(replicas.isEmpty()) return metrics;
+		long nowMillis = System.currentTimeMillis();
+		metrics.add(new Metric<Long>("redis.replica.reads", replicaReads.sum()));
+		metrics.add(new Metric<Long>("redis.replica.primary.reads", primaryReads.sum()));
+		for(int i=0; i<replicas.size(); i++) {
+			Replica replica = replicas.get(i);
+			metrics.add(new Metric<Long>("redis.replica." + i + ".staleness.millis",
+					replica.heartbeatMillis == 0L ? -1L : nowMillis - replica.heartbeatMillis));
+		}
+		return metrics;
+	}
+
+	@Override
+	public void close() {
+		for(Replica replica : replicas) {
+			try {
+				((DisposableBean) replica.template.getConnectionFactory()).destroy();
+			}
+			catch(Exception e) {
+				logger.warn("Unable to close the connections to the replica " + replica.address, e);
+			}
+		}
+	}
+
+	private class Replica {
+		private final String address;
+		private final StringRedisTemplate template;
+		// time of the last heartbeat the replica received, 0 when it is unknown or the replica cannot be reached
+		private volatile long heartbeatMillis;
+
+		private Replica(String address, StringRedisTemplate template) {
+			this.address = address;
+			this.template = template;
+		}
+
+		private boolean isFresh(long nowMillis) {
+			long heartbeat = heartbeatMillis;
+			return heartbeat != 0L && (maxStalenessMillis <= 0L || nowMillis - heartbeat <= maxStalenessMillis);
+		}
+	}
+}
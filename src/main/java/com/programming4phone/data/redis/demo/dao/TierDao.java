@@ -1,70 +1,122 @@
 package com.programming4phone.data.redis.demo.dao;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.RedisZSetCommands.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Tuple;
 import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.TierChange;
 import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
 import com.programming4phone.data.redis.demo.error.InvalidTierSpeedException;
 import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
 
 @Component
-public class TierDao {
+public class TierDao implements MessageListener {
 	
-	private static final String TIERS = "TIERS";
+	static final String TIERS = "TIERS";
+	
+	/**
+	 * Redis Pub/Sub channel used to notify every node that the tiers have changed.
+	 */
+	public static final String TIERS_CHANNEL = "TIERS:CHANGED";
+	
+	/**
+	 * Redis Pub/Sub channel the usage Lua scripts (or the UsageDao, see publishTierChange) publish a TierChange to, 
+	 * as JSON, whenever an increase moves an account into a tier with a different speed.
+	 */
+	public static final String TIER_CHANGES_CHANNEL = "TIERS:ACCOUNT:CHANGED";
+	
+	private static final byte[] TIERS_KEY = TIERS.getBytes(StandardCharsets.UTF_8);
 	
 	@Autowired
 	private StringRedisTemplate stringRedisTemplate;
 	
+	@Autowired
+	private RedisMetrics redisMetrics;
+	
+	@Autowired
+	private ReplicaReads replicaReads;
+	
+	@Autowired
+	private RedisCircuitBreaker redisCircuitBreaker;
+	
+	@Autowired
+	private ObjectMapper objectMapper;
+	
+	@Value("${tier.resolution.strategy}")
+	private TierResolutionStrategy tierResolutionStrategy;
+	
+	/*
+	 * Local immutable index of the tiers, null when it must be reloaded from Redis.
+	 * The generation is advanced on every invalidation so that a load which raced with
+	 * an invalidation is never kept.
+	 */
+	private final AtomicReference<TierTable> tierSnapshot = new AtomicReference<TierTable>();
+	private final AtomicLong tierGeneration = new AtomicLong();
+	
+	/*
+	 * The tiers last read from Redis, used while the Redis circuit breaker is open.
+	 */
+	private final AtomicReference<List<Tier>> lastTiers = new AtomicReference<List<Tier>>(Collections.<Tier>emptyList());
+	
 	/**
 	 * Add a usage tier. Each tier contains a data usage threshold and a bandwidth speed.
 	 * Tiers are stored in Redis within a Sorted Set. The data usage threshold is represented
-	 * by the score for each element within the set.
+	 * by the score for each element within the set. While the Redis circuit breaker is open a 
+	 * RedisUnavailableException is thrown.
 	 * @param tier Tier
+	 * @throws com.programming4phone.data.redis.demo.error.RedisUnavailableException
 	 */
 	public void addTier(Tier tier) {
 		validateTierSpeed(tier.getSpeed());
 		TypedTuple<String> tierTuple = new DefaultTypedTuple<String>(tier.getSpeed(), tier.getThreshhold().doubleValue());
 		Set<TypedTuple<String>> tiers = new HashSet<TypedTuple<String>>();
 		tiers.add(tierTuple);
-		stringRedisTemplate.boundZSetOps(TIERS).add(tiers);
+		redisCircuitBreaker.call(() -> redisMetrics.time(RedisOperation.ZADD, () -> stringRedisTemplate.boundZSetOps(TIERS).add(tiers)));
+		publishTiersChanged();
 	}
 	
 	/**
 	 * Remove a tier. The tier is deleted from the Redis Sorted Set and will no longer be used
-	 * to determine bandwidth speed.
+	 * to determine bandwidth speed. While the Redis circuit breaker is open a RedisUnavailableException is thrown.
 	 * @param tier Tier
+	 * @throws com.programming4phone.data.redis.demo.error.RedisUnavailableException
 	 */
 	public void deleteTier(Tier tier) {
 		validateTierSpeed(tier.getSpeed());
-		stringRedisTemplate.boundZSetOps(TIERS).remove(tier.getSpeed());
+		redisCircuitBreaker.call(() -> redisMetrics.time(RedisOperation.ZREM, () -> stringRedisTemplate.boundZSetOps(TIERS).remove(tier.getSpeed())));
+		publishTiersChanged();
 	}
 	
 	/**
 	 * All tiers stored in Redis are returned, ordered by data usage threshold (which is the score for each
-	 * element with the Sorted Set).
+	 * element with the Sorted Set). With <i>redis.read-from</i> set to REPLICA the tiers are read from a replica.
+	 * While the Redis circuit breaker is open the tiers last read are returned.
 	 * @return <b>List of Tier objects</b>
 	 */
 	public List<Tier> getAllTiers() {
-		// return all tiers from the Redis Sorted Set
-		Set<TypedTuple<String>> tiers = 
-				stringRedisTemplate
-					.boundZSetOps(TIERS)
-					.rangeWithScores(0, -1);
-		// convert internal Redis representation to Tier objects
-		List<Tier> allTiers = 
-				tiers.stream()
-					.map(t -> new Tier().setThreshhold(t.getScore().longValue()).setSpeed(t.getValue()))
-					.collect(Collectors.toList());
+		List<Tier> allTiers = redisCircuitBreaker.call(() -> replicaReads.read(this::readTiers), lastTiers::get);
 		if(allTiers.isEmpty()) throw new NoTiersFoundException();
 		return allTiers;
 	}
@@ -72,16 +124,215 @@ public class TierDao {
 	/**
 	 * Return the appropriate tier based on current usage. 
 	 * As data usage increases for a account holder, bandwidth speed is throttled downwards as the usage amount crosses each threshold.
+	 * Tiers are resolved according to the <i>tier.resolution.strategy</i> property set in the application.properties file.
 	 * @param currentUsage Long
 	 * @return Tier
+	 * @see com.programming4phone.data.redis.demo.dao.TierResolutionStrategy
 	 */
 	public Tier getCurrentUsageTier(Long currentUsage) {
-		List<Tier> allTiers = getAllTiers();
-		Optional<Tier> currentUsageTier = 
-				allTiers.stream()
-					.filter(t->currentUsage.compareTo(t.getThreshhold())>0)
-					.max((t1,t2)->t1.getThreshhold().compareTo(t2.getThreshhold()));
-		return currentUsageTier.orElse(new Tier().setThreshhold(0L).setSpeed("UNKNOWN"));
+		Tier tier = isResolvedOnServer() 
+				? resolveOnServer(currentUsage) 
+				: resolveLocally(currentUsage);
+		redisMetrics.tierResolved(tier.getSpeed());
+		return tier;
+	}
+	
+	/**
+	 * Whether tiers are resolved in Redis rather than against the local snapshot.
+	 * @return <b>boolean</b>
+	 */
+	public boolean isResolvedOnServer() {
+		return tierResolutionStrategy == TierResolutionStrategy.SERVER;
+	}
+	
+	/**
+	 * Return the tier index used to resolve many usage amounts at once. When tiers are resolved in Redis
+	 * the tiers are read once for the whole lookup, otherwise the local snapshot is returned.
+	 * @return <b>TierTable</b>
+	 * @throws com.programming4phone.data.redis.demo.error.NoTiersFoundException
+	 */
+	TierTable getTierTable() {
+		TierTable tierTable = isResolvedOnServer() 
+				? TierTable.of(redisCircuitBreaker.call(() -> readTiers(stringRedisTemplate), lastTiers::get)) 
+				: getTierSnapshot();
+		if(tierTable.isEmpty()) throw new NoTiersFoundException();
+		return tierTable;
+	}
+	
+	/**
+	 * Resolve the tier with a binary search of the local snapshot, so no Redis round trip is made 
+	 * unless the snapshot was invalidated. Nothing is allocated, the Tier returned is shared and immutable.
+	 * @param currentUsage long
+	 * @return Tier
+	 */
+	Tier resolveLocally(long currentUsage) {
+		TierTable tierTable = getTierSnapshot();
+		if(tierTable.isEmpty()) throw new NoTiersFoundException();
+		return tierTable.resolve(currentUsage);
+	}
+	
+	/**
+	 * Resolve the tier in Redis, returning only the tier with the highest threshold below the current usage 
+	 * (ZREVRANGEBYSCORE TIERS (currentUsage -inf WITHSCORES LIMIT 0 1) rather than the whole Sorted Set.
+	 * Only when no tier matches is a ZCARD issued, to tell an unknown tier apart from no tiers at all.
+	 * While the Redis circuit breaker is open the tier is resolved against the tiers last read.
+	 * @param currentUsage long
+	 * @return Tier
+	 */
+	Tier resolveOnServer(long currentUsage) {
+		return redisCircuitBreaker.call(() -> resolveInRedis(currentUsage), () -> {
+			TierTable tierTable = TierTable.of(lastTiers.get());
+			if(tierTable.isEmpty()) throw new NoTiersFoundException();
+			return tierTable.resolve(currentUsage);
+		});
+	}
+	
+	private Tier resolveInRedis(long currentUsage) {
+		Set<Tuple> tiers = redisMetrics.time(RedisOperation.ZREVRANGEBYSCORE, () -> 
+				stringRedisTemplate.execute((RedisCallback<Set<Tuple>>) connection -> 
+					connection.zRevRangeByScoreWithScores(TIERS_KEY, Range.range().lt(currentUsage), Limit.limit().count(1))));
+		if(tiers == null || tiers.isEmpty()) {
+			if(redisMetrics.time(RedisOperation.ZCARD, () -> stringRedisTemplate.boundZSetOps(TIERS).zCard()) == 0) throw new NoTiersFoundException();
+			return TierTable.UNKNOWN;
+		}
+		Tuple tier = tiers.iterator().next();
+		return new Tier().setThreshhold(tier.getScore().longValue()).setSpeed(new String(tier.getValue(), StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Invalidate the local tier snapshot when another node (or this one) publishes a change
+	 * on the tiers channel. The snapshot is reloaded from Redis on the next tier lookup.
+	 * @param message Message
+	 * @param pattern byte[]
+	 */
+	@Override
+	public void onMessage(Message message, byte[] pattern) {
+		invalidateTiers();
+	}
+	
+	/**
+	 * Periodic safety refresh of the local tier snapshot, in case an invalidation message 
+	 * was missed (e.g. tiers edited directly in Redis or a dropped subscription). 
+	 * The interval is set by the <i>tier.cache.refresh.millis</i> property set in the application.properties file.
+	 * While the Redis circuit breaker is open the snapshot is kept as it is.
+	 */
+	@Scheduled(fixedDelayString="${tier.cache.refresh.millis}")
+	public void refreshTiers() {
+		loadTierSnapshot();
+	}
+	
+	/**
+	 * Return the local tier snapshot, loading it from Redis if it has been invalidated.
+	 * @return <b>TierTable</b>, empty if no tiers exist
+	 */
+	private TierTable getTierSnapshot() {
+		TierTable snapshot = peekTierSnapshot();
+		return snapshot != null ? snapshot : loadTierSnapshot();
+	}
+	
+	private TierTable loadTierSnapshot() {
+		long generation = tierGeneration.get();
+		// always read from the primary, a replica could still hold the tiers the invalidation was sent for
+		List<Tier> tiers = redisCircuitBreaker.call(() -> readTiers(stringRedisTemplate), () -> null);
+		// Redis is unavailable, resolve against the tiers last read without keeping them as the snapshot
+		if(tiers == null) return TierTable.of(lastTiers.get());
+		return keepTierSnapshot(tiers, generation);
+	}
+	
+	/**
+	 * Return the local tier snapshot without loading it, for callers that reload it without blocking
+	 * (see AsyncTierDao.getTierTable).
+	 * @return <b>TierTable</b>, null if it was invalidated and must be reloaded
+	 */
+	TierTable peekTierSnapshot() {
+		TierTable snapshot = tierSnapshot.get();
+		redisMetrics.tierSnapshotLookup(snapshot != null);
+		return snapshot;
+	}
+	
+	/**
+	 * @return <b>long</b> generation of the local tier snapshot, to be passed to keepTierSnapshot
+	 */
+	long tierGeneration() {
+		return tierGeneration.get();
+	}
+	
+	/**
+	 * Keep tiers read from Redis as the local tier snapshot, unless the tiers were invalidated since 
+	 * the generation was taken.
+	 * @param tiers List of Tier objects read from Redis
+	 * @param generation long returned by tierGeneration before the tiers were read
+	 * @return <b>TierTable</b> of the tiers, empty if no tiers exist
+	 */
+	TierTable keepTierSnapshot(List<Tier> tiers, long generation) {
+		lastTiers.set(tiers);
+		TierTable snapshot = TierTable.of(tiers);
+		tierSnapshot.set(snapshot);
+		// discard the snapshot if the tiers were invalidated while it was being loaded
+		if(generation != tierGeneration.get()) tierSnapshot.compareAndSet(snapshot, null);
+		return snapshot;
+	}
+	
+	private List<Tier> readTiers(StringRedisTemplate node) {
+		// return all tiers from the Redis Sorted Set
+		Set<TypedTuple<String>> tiers = redisMetrics.time(RedisOperation.ZRANGE, () ->
+				node
+					.boundZSetOps(TIERS)
+					.rangeWithScores(0, -1));
+		// convert internal Redis representation to Tier objects
+		List<Tier> allTiers = tiers.stream()
+					.map(t -> new Tier().setThreshhold(t.getScore().longValue()).setSpeed(t.getValue()))
+					.collect(Collectors.toList());
+		lastTiers.set(allTiers);
+		return allTiers;
+	}
+	
+	/**
+	 * Discard the local tier snapshot, so it is reloaded from Redis on the next tier lookup.
+	 */
+	void invalidateTiers() {
+		tierGeneration.incrementAndGet();
+		tierSnapshot.set(null);
+	}
+	
+	/**
+	 * Publish a TierChange to TIER_CHANGES_CHANNEL if an increase from the previous to the total usage moved an 
+	 * account into a tier with a different speed, resolved against the local tier snapshot. Used when the usage 
+	 * scripts cannot read the tiers because the account keys and the tiers are on different Redis nodes.
+	 * @param accountNumber String
+	 * @param previousUsage long total usage before the increase
+	 * @param totalUsage long total usage after the increase
+	 */
+	void publishTierChange(String accountNumber, long previousUsage, long totalUsage) {
+		TierTable tierTable = getTierSnapshot();
+		if(tierTable.isEmpty() || previousUsage == totalUsage) return;
+		String previousSpeed = tierTable.resolveSpeedName(previousUsage);
+		String speed = tierTable.resolveSpeedName(totalUsage);
+		if(previousSpeed.equals(speed)) return;
+		String tierChange;
+		try {
+			tierChange = objectMapper.writeValueAsString(new TierChange()
+					.setAccountNumber(accountNumber)
+					.setPreviousSpeed(previousSpeed)
+					.setSpeed(speed)
+					.setTotalUsage(totalUsage));
+		}
+		catch(JsonProcessingException jpe) {
+			throw new IllegalStateException(jpe);
+		}
+		// a tier change is only a notification, it is not kept while the Redis circuit breaker is open
+		redisCircuitBreaker.call(() -> redisMetrics.time(RedisOperation.PUBLISH, () -> {
+			stringRedisTemplate.convertAndSend(TIER_CHANGES_CHANNEL, tierChange);
+			return null;
+		}), () -> null);
+	}
+	
+	private void publishTiersChanged() {
+		invalidateTiers();
+		redisCircuitBreaker.call(() -> redisMetrics.time(RedisOperation.PUBLISH, () -> {
+			stringRedisTemplate.convertAndSend(TIERS_CHANNEL, TIERS);
+			return null;
+		}));
 	}
 	
 	/**
@@ -91,7 +342,7 @@ public class TierDao {
 	 * @throws com.programming4phone.data.redis.demo.error.InvalidTierSpeedException
 	 * @see com.programming4phone.data.redis.demo.entity.UsageTierEnum
 	 */
-	private void validateTierSpeed(String speed) {
+	void validateTierSpeed(String speed) {
 		try {
 			UsageTierEnum.valueOf(speed);
 		}
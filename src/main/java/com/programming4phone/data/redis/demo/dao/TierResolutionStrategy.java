@@ -0,0 +1,18 @@
+package com.programming4phone.data.redis.demo.dao;
+
+/**
+ * How the tier for the current usage amount is resolved, selected by the 
+ * <i>tier.resolution.strategy</i> property set in the application.properties file.
+ */
+public enum TierResolutionStrategy {
+	/**
+	 * Resolve against the local tier snapshot, refreshed by Pub/Sub invalidation. 
+	 * No Redis round trip is made unless the snapshot was invalidated.
+	 */
+	LOCAL,
+	/**
+	 * Ask Redis for the single matching tier with ZREVRANGEBYSCORE ... LIMIT 0 1. 
+	 * For deployments where tiers are edited directly in Redis and no invalidation message is published.
+	 */
+	SERVER;
+}
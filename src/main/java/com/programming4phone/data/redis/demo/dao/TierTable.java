@@ -0,0 +1,147 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+
+/**
+ * Immutable index of the usage tiers. Thresholds are held in ascending order in a primitive array, in
+ * parallel with the tier speed and the Tier of each threshold, so that a tier is resolved with a binary
+ * search without allocating. The tiers returned are shared, so they are immutable copies whose setters throw
+ * an UnsupportedOperationException.
+ */
+final class TierTable {
+
+	/**
+	 * Speed of the tier returned when the current usage does not exceed any tier threshold.
+	 */
+	static final String UNKNOWN_SPEED = "UNKNOWN";
+
+	/**
+	 * Tier with the UNKNOWN_SPEED speed and a zero threshold, returned when the current usage does not exceed any tier threshold.
+	 */
+	static final Tier UNKNOWN = new ImmutableTier(UNKNOWN_SPEED, 0L);
+
+	static final TierTable EMPTY = new TierTable(new long[0], new UsageTierEnum[0], new Tier[0]);
+
+	private final long[] thresholds;
+	private final UsageTierEnum[] speeds;
+	private final Tier[] tiers;
+
+	private TierTable(long[] thresholds, UsageTierEnum[] speeds, Tier[] tiers) {
+		this.thresholds = thresholds;
+		this.speeds = speeds;
+		this.tiers = tiers;
+	}
+
+	/**
+	 * Build the index from tiers ordered by threshold, as returned from the Redis Sorted Set.
+	 * Tiers with a speed not contained in UsageTierEnum (e.g. edited directly in Redis) are ignored.
+	 * @param orderedTiers List of Tier objects in ascending threshold order
+	 * @return <b>TierTable</b>
+	 */
+	static TierTable of(List<Tier> orderedTiers) {
+		long[] thresholds = new long[orderedTiers.size()];
+		UsageTierEnum[] speeds = new UsageTierEnum[orderedTiers.size()];
+		Tier[] tiers = new Tier[orderedTiers.size()];
+		int size = 0;
+		for(Tier tier : orderedTiers) {
+			UsageTierEnum speed = toUsageTier(tier.getSpeed());
+			if(speed == null) continue;
+			thresholds[size] = tier.getThreshhold();
+			speeds[size] = speed;
+			tiers[size] = new ImmutableTier(tier.getSpeed(), tier.getThreshhold());
+			size++;
+		}
+		if(size == 0) return EMPTY;
+		return new TierTable(copyOf(thresholds, size), copyOf(speeds, size), copyOf(tiers, size));
+	}
+
+	boolean isEmpty() {
+		return thresholds.length == 0;
+	}
+
+	/**
+	 * Return the tier with the highest threshold that the current usage exceeds.
+	 * @param currentUsage long
+	 * @return <b>Tier</b>, immutable, or UNKNOWN if no threshold is exceeded
+	 */
+	Tier resolve(long currentUsage) {
+		int index = indexOf(currentUsage);
+		return index < 0 ? UNKNOWN : tiers[index];
+	}
+
+	/**
+	 * Return the speed of the tier with the highest threshold that the current usage exceeds.
+	 * @param currentUsage long
+	 * @return <b>UsageTierEnum</b>, or null if no threshold is exceeded
+	 */
+	UsageTierEnum resolveSpeed(long currentUsage) {
+		int index = indexOf(currentUsage);
+		return index < 0 ? null : speeds[index];
+	}
+
+	/**
+	 * Return the speed of the tier with the highest threshold that the current usage exceeds, as returned by
+	 * resolve(currentUsage).getSpeed().
+	 * @param currentUsage long
+	 * @return <b>String</b> name of the UsageTierEnum, or UNKNOWN_SPEED if no threshold is exceeded
+	 */
+	String resolveSpeedName(long currentUsage) {
+		int index = indexOf(currentUsage);
+		return index < 0 ? UNKNOWN_SPEED : speeds[index].name();
+	}
+
+	/*
+	 * Binary search for the first threshold greater than or equal to the current usage,
+	 * the tier before it is the one whose threshold is exceeded.
+	 */
+	private int indexOf(long currentUsage) {
+		int low = 0;
+		int high = thresholds.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(thresholds[mid] < currentUsage) low = mid + 1;
+			else high = mid;
+		}
+		return low - 1;
+	}
+
+	private static UsageTierEnum toUsageTier(String speed) {
+		for(UsageTierEnum usageTier : UsageTierEnum.values()) {
+			if(usageTier.name().equals(speed)) return usageTier;
+		}
+		return null;
+	}
+
+	private static long[] copyOf(long[] array, int size) {
+		return array.length == size ? array : Arrays.copyOf(array, size);
+	}
+
+	private static <T> T[] copyOf(T[] array, int size) {
+		return array.length == size ? array : Arrays.copyOf(array, size);
+	}
+
+	/**
+	 * Tier shared by every lookup, which cannot be changed.
+	 */
+	private static final class ImmutableTier extends Tier {
+
+		private ImmutableTier(String speed, Long threshhold) {
+			super.setSpeed(speed);
+			super.setThreshhold(threshhold);
+		}
+
+		@Override
+		public Tier setSpeed(String speed) {
+			throw new UnsupportedOperationException("A resolved tier cannot be changed");
+		}
+
+		@Override
+		public Tier setThreshhold(Long threshhold) {
+			throw new UnsupportedOperationException("A resolved tier cannot be changed");
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reclaims the usage keys of past billing cycles when the keys are namespaced by billing cycle
+ * (<i>usage.storage.cycle.enabled</i>, see UsageStorage). Every <i>usage.storage.cycle.sweep.millis</i> the
+ * keys of the cycles before the last <i>usage.storage.cycle.retained</i> ones are found with SCAN and removed
+ * with UNLINK, UsageDao.BATCH_SIZE keys at a time, so Redis frees their memory in a background thread. 
+ * The client libraries do not know UNLINK, so it is sent by a Lua script.
+ * At least the previous cycle is always retained, so a write still in flight at the cycle boundary cannot
+ * recreate a key that was already swept.
+ * <br><br>
+ * The oldest retained cycle is recorded in Redis once a sweep completes, so between cycle boundaries a sweep
+ * costs a single GET, and a lock key lets only one application node sweep at a time. The lock holds a random
+ * token and expires on its own should the node die while sweeping. It is extended while the keys are scanned,
+ * and is only extended or released by Lua scripts that first check the token, so a node whose lock expired
+ * can never release the lock of another node. A sweep that finds its lock lost stops. UNLINK requires Redis 4.
+ * <br><br>
+ * When the keys are spread over several Redis nodes (see RedisShards) every Redis node is scanned in turn, and
+ * in a cluster the keys of a batch are unlinked one hash slot at a time, as a Lua script requires.
+ */
+@Component
+public class UsageCycleSweeper implements PublicMetrics {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	static final String SWEPT_KEY = "CYCLES:SWEPT";
+	static final String LOCK_KEY = "CYCLES:SWEEPING";
+	private static final String CYCLE_KEYS_PATTERN = "ACCOUNT*@*";
+	private static final long MIN_LOCK_MILLIS = 60000L;
+	private static final List<String> LOCK_KEYS = Collections.singletonList(LOCK_KEY);
+
+	private final AtomicLong sweepCount = new AtomicLong();
+	private final AtomicLong sweptKeyCount = new AtomicLong();
+	private volatile long lastSweepMillis;
+
+	@Autowired
+	private RedisShards redisShards;
+
+	@Autowired
+	private UsageStorage usageStorage;
+
+	@Autowired
+	@Qualifier("unlinkKeysScript")
+	private RedisScript<Long> unlinkKeysScript;
+
+	@Autowired
+	@Qualifier("releaseLockScript")
+	private RedisScript<Long> releaseLockScript;
+
+	@Autowired
+	@Qualifier("extendLockScript")
+	private RedisScript<Long> extendLockScript;
+
+	@Value("${usage.storage.cycle.retained}")
+	private int retainedCycles;
+
+	@Value("${usage.storage.cycle.sweep.millis}")
+	private long sweepMillis;
+
+	@Scheduled(fixedDelayString="${usage.storage.cycle.sweep.millis}")
+	public void sweepPastCycles() {
+		if(!usageStorage.isCycled()) return;
+		try {
+			sweep(usageStorage.currentCycle());
+		}
+		catch(RuntimeException re) {
+			logger.warn("Unable to sweep the usage keys of past billing cycles", re);
+		}
+	}
+
+	/**
+	 * Remove the usage keys of the cycles that are no longer retained, unless that was already done.
+	 * @param currentCycle long current billing cycle
+	 * @return <b>long</b> number of keys removed, -1 if the sweep was skipped
+	 */
+	long sweep(long currentCycle) {
+		long oldestRetainedCycle = currentCycle - Math.max(1, retainedCycles);
+		String swept = redisShards.execute(SWEPT_KEY, node -> node.opsForValue().get(SWEPT_KEY));
+		if(swept != null && Long.parseLong(swept) >= oldestRetainedCycle) return -1L;
+		SweepLock lock = lock();
+		if(lock == null) return -1L;
+		try {
+			long startMillis = System.currentTimeMillis();
+			long removed = 0L;
+			for(StringRedisTemplate node : redisShards.nodes()) removed += unlinkBefore(node, oldestRetainedCycle, lock);
+			redisShards.execute(SWEPT_KEY, node -> {
+				node.opsForValue().set(SWEPT_KEY, Long.toString(oldestRetainedCycle));
+				return null;
+			});
+			lastSweepMillis = System.currentTimeMillis() - startMillis;
+			sweepCount.incrementAndGet();
+			sweptKeyCount.addAndGet(removed);
+			logger.info("Removed " + removed + " usage keys of the billing cycles before " + oldestRetainedCycle + " in " + lastSweepMillis + " ms");
+			return removed;
+		}
+		finally {
+			redisShards.execute(LOCK_KEY, node -> node.execute(releaseLockScript, LOCK_KEYS, lock.token));
+		}
+	}
+
+	/**
+	 * SET NX PX with a random token.
+	 * @return <b>SweepLock</b>, null if another node holds the lock
+	 */
+	private SweepLock lock() {
+		SweepLock lock = new SweepLock(UUID.randomUUID().toString(), Math.max(sweepMillis, MIN_LOCK_MILLIS));
+		Object reply = redisShards.execute(LOCK_KEY, node -> node.execute((RedisCallback<Object>) connection -> connection.execute("SET",
+				bytes(LOCK_KEY), bytes(lock.token), bytes("NX"), bytes("PX"), bytes(Long.toString(lock.millis)))));
+		return reply != null ? lock : null;
+	}
+
+	/**
+	 * Extend the lock once a third of its time to live has passed.
+	 * @throws IllegalStateException if the lock expired and was taken by another node
+	 */
+	private void extend(SweepLock lock) {
+		long nowMillis = System.currentTimeMillis();
+		if(nowMillis - lock.extendedMillis < lock.millis / 3) return;
+		Long extended = redisShards.execute(LOCK_KEY, node -> node.execute(extendLockScript, LOCK_KEYS, lock.token, Long.toString(lock.millis)));
+		if(extended == null || extended == 0L) throw new IllegalStateException("The lock " + LOCK_KEY + " expired while sweeping");
+		lock.extendedMillis = nowMillis;
+	}
+
+	private long unlinkBefore(StringRedisTemplate node, long oldestRetainedCycle, SweepLock lock) {
+		long removed = 0L;
+		List<String> keys = new ArrayList<String>(UsageDao.BATCH_SIZE);
+		// the cursor keeps using the connection it was opened on until the scan ends, and closes it when it is closed
+		RedisConnection connection = node.getConnectionFactory().getConnection();
+		Cursor<byte[]> cursor;
+		try {
+			cursor = connection.scan(ScanOptions.scanOptions().match(CYCLE_KEYS_PATTERN).count(UsageDao.BATCH_SIZE).build());
+		}
+		catch(RuntimeException re) {
+			connection.close();
+			throw re;
+		}
+		try(Cursor<byte[]> scanned = cursor) {
+			while(scanned.hasNext()) {
+				extend(lock);
+				String key = new String(scanned.next(), StandardCharsets.UTF_8);
+				long cycle = cycle(key);
+				if(cycle >= 0 && cycle < oldestRetainedCycle) keys.add(key);
+				if(keys.size() == UsageDao.BATCH_SIZE || (!scanned.hasNext() && !keys.isEmpty())) {
+					for(List<String> batch : redisShards.scriptBatches(keys, Function.identity(), UsageDao.BATCH_SIZE)) {
+						removed += node.execute(unlinkKeysScript, batch);
+					}
+					keys.clear();
+				}
+			}
+		}
+		catch(IOException ioe) {
+			logger.warn("Unable to close the SCAN cursor", ioe);
+		}
+		return removed;
+	}
+
+	/**
+	 * @param key String
+	 * @return <b>long</b> billing cycle of a usage key namespaced by billing cycle, -1 for any other key
+	 */
+	static long cycle(String key) {
+		String prefix = key.startsWith(UsageStorage.BUCKET_CYCLE_PREFIX) ? UsageStorage.BUCKET_CYCLE_PREFIX
+				: key.startsWith(UsageStorage.ACCOUNT_CYCLE_PREFIX) ? UsageStorage.ACCOUNT_CYCLE_PREFIX : null;
+		int end = key.indexOf(':');
+		if(prefix == null || end <= prefix.length()) return -1L;
+		try {
+			return Long.parseLong(key.substring(prefix.length(), end));
+		}
+		catch(NumberFormatException nfe) {
+			return -1L;
+		}
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Sweep lock taken by this node, with the time it was last taken or extended.
+	 */
+	private static class SweepLock {
+		private final String token;
+		private final long millis;
+		private long extendedMillis = System.currentTimeMillis();
+
+		private SweepLock(String token, long millis) {
+			this.token = token;
+			this.millis = millis;
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Long>("usage.cycle.sweep.count", sweepCount.get()));
+		metrics.add(new Metric<Long>("usage.cycle.sweep.keys", sweptKeyCount.get()));
+		metrics.add(new Metric<Long>("usage.cycle.sweep.last.millis", lastSweepMillis));
+		return metrics;
+	}
+}
@@ -1,108 +1,864 @@
 package com.programming4phone.data.redis.demo.dao;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import com.programming4phone.data.redis.demo.dao.UsageFallback.JournalEntry;
+import com.programming4phone.data.redis.demo.entity.CustomerUsage;
+import com.programming4phone.data.redis.demo.entity.Tier;
 import com.programming4phone.data.redis.demo.error.InvalidUsageAmountException;
+import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
+import com.programming4phone.data.redis.demo.error.RedisUnavailableException;
+import com.programming4phone.data.redis.demo.error.UsageQueueFullException;
+
 
 
 @Component
 public class UsageDao {
 
-	private static final String ACCOUNT_PREFIX = "ACCOUNT:";
+	static final String ACCOUNT_PREFIX = "ACCOUNT:";
+	static final int BATCH_SIZE = 1000;
 	private static final Long LONG_ZERO = Long.valueOf(0);
 	
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	
+	@Autowired
+	private TierDao tierDao;
+	
+	@Autowired
+	private UsageWriteBehind usageWriteBehind;
+	
+	@Autowired
+	private RedisMetrics redisMetrics;
+	
+	@Autowired
+	private UsageRateWindow usageRateWindow;
+	
+	@Autowired
+	private UsageStorage usageStorage;
+	
+	@Autowired
+	private RedisShards redisShards;
+	
+	@Autowired
+	private ReplicaReads replicaReads;
+	
+	@Autowired
+	private RedisCircuitBreaker redisCircuitBreaker;
+	
+	@Autowired
+	private UsageFallback usageFallback;
+	
+	@Autowired
+	private UsageNearCache usageNearCache;
+	
+	@Autowired
+	private UsageWriteQueue usageWriteQueue;
+	
 	@Autowired
-	private StringRedisTemplate stringRedisTemplate;
+	private RedisScriptExecutor redisScriptExecutor;
 	
-	@Value("${tier.expiry.seconds}")
-	private String tierExpirySeconds;
+	@Autowired
+	@Qualifier("increaseUsageScript")
+	private RedisScript<Long> increaseUsageScript;
+	
+	@Autowired
+	@Qualifier("decreaseUsageScript")
+	private RedisScript<Long> decreaseUsageScript;
+	
+	@Autowired
+	@Qualifier("increaseUsageBatchScript")
+	private RedisScript<List<Long>> increaseUsageBatchScript;
+	
+	@Autowired
+	@Qualifier("usageTierScript")
+	private RedisScript<List<String>> usageTierScript;
+	
+	@Value("${tier.events.enabled}")
+	private boolean tierEventsEnabled;
+	
+	/**
+	 * Load the Lua scripts into the Redis script cache at startup so that each usage
+	 * event is a single EVALSHA. Should the script cache be flushed (or the load fail here)
+	 * the script is resent with EVAL on the first NOSCRIPT reply. The scripts are loaded on every node
+	 * when the keys are spread over several nodes.
+	 */
+	@PostConstruct
+	public void loadScripts() {
+		redisScriptExecutor.load(Arrays.asList(increaseUsageScript, increaseUsageBatchScript, decreaseUsageScript, usageTierScript));
+	}
 	
 	/**
-	 * Removes the account key from the Redis database.
+	 * Start the write-behind flushes, if enabled by the <i>usage.writebehind.enabled</i> property. A flush only
+	 * hands back the accounts it could not write, so a node that fails does not make the others count twice.
+	 */
+	@PostConstruct
+	public void startWriteBehind() {
+		usageWriteBehind.start(this::tryIncreaseAmountsUsed);
+	}
+	
+	/**
+	 * Flush any pending write-behind amounts to Redis before the application shuts down.
+	 */
+	@PreDestroy
+	public void stopWriteBehind() {
+		usageWriteBehind.stop();
+	}
+	
+	/**
+	 * Start the writers of the usage events acknowledged before they are written (see UsageWriteQueue).
+	 * The queued events go through the Redis circuit breaker without its fallback: while Redis is unavailable
+	 * they stay queued and are retried, rather than journaled and estimated. Only the increases a batch did not
+	 * write are retried (see tryIncreaseAmountsUsed).
+	 */
+	@PostConstruct
+	public void startWriteQueue() {
+		usageWriteQueue.start(this::tryIncreaseAmountsUsed,
+				(accountNumber, usageAmount) -> {
+					writePendingIncrease(accountNumber);
+					redisCircuitBreaker.call(() -> seen(accountNumber, decreaseAmountUsedInRedis(accountNumber, usageAmount)));
+				});
+	}
+	
+	/**
+	 * Write the usage events still queued before the application shuts down.
+	 */
+	@PreDestroy
+	public void stopWriteQueue() {
+		usageWriteQueue.stop();
+	}
+	
+	/**
+	 * Removes the account key (or the account field of its hash, see UsageStorage), and the usage rate key, 
+	 * from the Redis database. While the Redis circuit breaker is open a RedisUnavailableException is thrown.
 	 * @param accountNumber String
+	 * @throws com.programming4phone.data.redis.demo.error.RedisUnavailableException
 	 */
 	public void removeAccount(String accountNumber) {
-		String accountKey = ACCOUNT_PREFIX+accountNumber;
-		stringRedisTemplate.delete(accountKey);
+		usageWriteBehind.take(accountNumber);
+		String rateKey = usageStorage.rateKey(accountNumber);
+		redisCircuitBreaker.call(() -> {
+			if(usageStorage.isHashed()) {
+				removeAccountField(accountNumber);
+				return redisMetrics.time(RedisOperation.DEL, () -> redisShards.execute(rateKey, node -> {
+					node.delete(rateKey);
+					return null;
+				}));
+			}
+			List<String> keys = Arrays.asList(usageStorage.key(accountNumber), rateKey);
+			return redisMetrics.time(RedisOperation.DEL, () -> redisShards.execute(rateKey, node -> {
+				node.delete(keys);
+				return null;
+			}));
+		});
+		written(accountNumber);
+		usageFallback.seen(accountNumber, LONG_ZERO);
 	}
 	
 	/**
 	 * Reset the account. This action resets the data usage count to zero and
 	 * resets the Redis account key expiration. Keys expire based on 
 	 * the <i>tier.expiry.seconds</i> property set in the application.properties file.
+	 * With the HASH storage layout the account field is deleted, which reads as zero, 
+	 * and the account keeps expiring at the end of the billing cycle. Keys namespaced by billing cycle
+	 * (<i>usage.storage.cycle.enabled</i>) are reset without an expiration.
+	 * While the Redis circuit breaker is open a RedisUnavailableException is thrown.
 	 * @param accountNumber String
+	 * @throws com.programming4phone.data.redis.demo.error.RedisUnavailableException
 	 */
 	public void resetAccount(String accountNumber) {
-		String accountKey = ACCOUNT_PREFIX+accountNumber;
-		stringRedisTemplate.opsForValue().set(accountKey, "0");
-		stringRedisTemplate.expire(accountKey, Long.parseLong(tierExpirySeconds), TimeUnit.SECONDS);
+		usageWriteBehind.take(accountNumber);
+		redisCircuitBreaker.call(() -> {
+			if(usageStorage.isHashed()) return removeAccountField(accountNumber);
+			String accountKey = usageStorage.key(accountNumber);
+			String expirySeconds = usageStorage.expirySeconds();
+			return redisMetrics.time(RedisOperation.SET, () -> redisShards.execute(accountKey, node -> {
+				if(expirySeconds.isEmpty()) node.opsForValue().set(accountKey, "0");
+				else node.opsForValue().set(accountKey, "0", Long.parseLong(expirySeconds), TimeUnit.SECONDS);
+				return null;
+			}));
+		});
+		written(accountNumber);
+		usageFallback.seen(accountNumber, LONG_ZERO);
+	}
+	
+	private Long removeAccountField(String accountNumber) {
+		String accountKey = usageStorage.key(accountNumber);
+		return redisMetrics.time(RedisOperation.HDEL, () -> 
+				redisShards.execute(accountKey, node -> node.opsForHash().delete(accountKey, accountNumber)));
 	}
 	
 	/**
 	 * Increase the total amount of data usage for an account. If the account does not exist in the 
 	 * Redis database then it is created and the account key expiration is set. Keys expire based on 
 	 * the <i>tier.expiry.seconds</i> property set in the application.properties file.
+	 * The increment and the key expiration are performed atomically by a Lua script in a single round trip,
+	 * which also adds the amount to the usage rate window when <i>rate.enabled</i> is set. When 
+	 * <i>tier.events.enabled</i> is set the script also publishes a TierChange to TierDao.TIER_CHANGES_CHANNEL
+	 * if the increase exceeds a tier threshold and so changes the tier speed of the account. When the keys are
+	 * spread over several nodes the tiers are not on the node of the account, so the tier change is detected
+	 * against the local tier snapshot and published by TierDao.publishTierChange instead.
+	 * <br><br>
+	 * In write-behind mode (the <i>usage.writebehind.enabled</i> property) the amount is only added to the
+	 * local write-behind accumulator and written to Redis by the next flush. The total returned is then an
+	 * estimate: the last total seen for the account plus the amounts pending write-behind for it, or, for an account
+	 * not seen recently, the total read as getCurrentAmountUsed does.
+	 * <br><br>
+	 * While the Redis circuit breaker is open, or when no connection to Redis can be made, the amount is journaled
+	 * to be replayed once Redis recovers (see UsageFallback) and the total returned is estimated from the last total
+	 * seen. Any other failure, such as a timeout, is rethrown, as Redis may have applied the increase. While the
+	 * account has journaled entries not yet replayed, its increases are journaled too, so that they are applied
+	 * after them.
 	 * @param accountNumber String
 	 * @param usageAmount Long containing amount to increase by
-	 * @return <b>Long</b> containing new total amount of usage
+	 * @return <b>Long</b> containing new total amount of usage, estimated in write-behind mode
 	 */
 	public Long increaseAmountUsed(String accountNumber, Long usageAmount) {
-		String accountKey = ACCOUNT_PREFIX+accountNumber;
-		Long newUsageAmount = stringRedisTemplate
-								.opsForValue()
-								.increment(accountKey, validateUsageAmount(usageAmount));
-		/*
-		 * If new usage amount EQ the amount to increase then it must be a new account
-		 * so reset the key expiration accordingly.
-		 */
-		if(newUsageAmount.compareTo(usageAmount)==0) {
-			stringRedisTemplate
-				.expire(accountKey, Long.parseLong(tierExpirySeconds), TimeUnit.SECONDS);
+		if(usageWriteBehind.isEnabled()) {
+			usageWriteBehind.add(accountNumber, validateUsageAmount(usageAmount));
+			Long totalAmountUsed = usageFallback.lastSeen(accountNumber);
+			return totalAmountUsed == null ? getCurrentAmountUsed(accountNumber) : totalAmountUsed + usageWriteBehind.pending(accountNumber);
 		}
-		return newUsageAmount;
+		Long amount = validateUsageAmount(usageAmount);
+		return write(accountNumber, () -> seen(accountNumber, increaseAmountUsedInRedis(accountNumber, amount)), 
+				() -> usageFallback.add(accountNumber, amount));
+	}
+	
+	private Long increaseAmountUsedInRedis(String accountNumber, Long amount) {
+		String accountKey = usageStorage.key(accountNumber);
+		String channel = tierChangesChannel();
+		List<String> keys = new ArrayList<String>(3);
+		keys.add(accountKey);
+		if(!channel.isEmpty()) keys.add(TierDao.TIERS);
+		if(usageRateWindow.isEnabled()) keys.add(usageStorage.rateKey(accountNumber));
+		Object[] args = usageRateWindow.scriptArgs(amount.toString(), usageStorage.expirySeconds(), channel, usageStorage.field(accountNumber));
+		Long totalAmountUsed = redisMetrics.time(RedisOperation.INCRBY, () -> 
+				redisShards.execute(accountKey, node -> redisScriptExecutor.execute(node, increaseUsageScript, keys, args)));
+		written(accountNumber);
+		if(tierEventsEnabled && redisShards.isDistributed()) tierDao.publishTierChange(accountNumber, totalAmountUsed - amount, totalAmountUsed);
+		return totalAmountUsed;
+	}
+	
+	/**
+	 * Increase the total amount of data usage for many accounts at once. Usage amounts for the same
+	 * account are coalesced first, then every account is increased (as described for a single account)
+	 * with a single Redis round trip per chunk of accounts. If any usage amount is negative an InvalidUsageAmountException is 
+	 * thrown before Redis is updated.
+	 * @param customerUsages List of CustomerUsage objects, each containing an amount to increase by
+	 * @return <b>List of CustomerUsage objects</b>, one per account, containing the coalesced amount 
+	 * increased by and the new total data usage
+	 */
+	public List<CustomerUsage> increaseAmountUsed(List<CustomerUsage> customerUsages) {
+		Map<String, Long> usageAmounts = coalesceUsageAmounts(customerUsages);
+		return toCustomerUsages(usageAmounts, increaseAmountsUsed(usageAmounts));
+	}
+	
+	/**
+	 * Validate the usage amounts and add together the amounts for the same account.
+	 * @param customerUsages List of CustomerUsage objects, each containing an amount to increase by
+	 * @return <b>Map</b> of account number to the coalesced amount, in the order accounts first appear
+	 * @throws com.programming4phone.data.redis.demo.error.InvalidUsageAmountException
+	 */
+	static Map<String, Long> coalesceUsageAmounts(List<CustomerUsage> customerUsages) {
+		Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+		for(CustomerUsage customerUsage : customerUsages) {
+			usageAmounts.merge(customerUsage.getAccountNumber(), validateUsageAmount(customerUsage.getCurrentUsage()), Long::sum);
+		}
+		return usageAmounts;
+	}
+	
+	/**
+	 * @param usageAmounts Map of account number to the amount increased by
+	 * @param totalAmountsUsed Map of account number to the new total amount of usage
+	 * @return <b>List of CustomerUsage objects</b>, one per account
+	 */
+	static List<CustomerUsage> toCustomerUsages(Map<String, Long> usageAmounts, Map<String, Long> totalAmountsUsed) {
+		List<CustomerUsage> totalUsages = new ArrayList<CustomerUsage>(usageAmounts.size());
+		usageAmounts.forEach((accountNumber, usageAmount) -> 
+			totalUsages.add(new CustomerUsage()
+					.setAccountNumber(accountNumber)
+					.setCurrentUsage(usageAmount)
+					.setTotalUsage(totalAmountsUsed.get(accountNumber))));
+		return totalUsages;
+	}
+	
+	/**
+	 * Increase the total amount of data usage for many accounts. The accounts are grouped by the Redis node 
+	 * holding them (see RedisShards) and the nodes are written in parallel. On each node the accounts are increased 
+	 * in chunks of at most BATCH_SIZE by a single Lua script call each (in a cluster one call per hash slot and chunk), 
+	 * and the calls are pipelined, so a batch costs one round trip per node without blocking Redis for too long 
+	 * on very large batches. While the Redis circuit breaker is open, or when no connection to Redis can be made,
+	 * the amounts are journaled and the totals estimated, as for a single account. The accounts with journaled
+	 * entries not yet replayed are journaled, the others written to Redis.
+	 * @param usageAmounts Map of account number to the (valid) amount to increase by
+	 * @return <b>Map</b> of account number to the new total amount of usage
+	 */
+	public Map<String, Long> increaseAmountsUsed(Map<String, Long> usageAmounts) {
+		if(!usageFallback.hasJournal()) {
+			return redisCircuitBreaker.write(() -> seen(increaseAmountsUsedInRedis(usageAmounts)), () -> usageFallback.add(usageAmounts));
+		}
+		Map<String, Long> journaledAmounts = new LinkedHashMap<String, Long>();
+		Map<String, Long> writtenAmounts = new LinkedHashMap<String, Long>();
+		usageAmounts.forEach((accountNumber, usageAmount) -> 
+			(usageFallback.hasJournal(accountNumber) ? journaledAmounts : writtenAmounts).put(accountNumber, usageAmount));
+		Map<String, Long> nodeTotalAmountsUsed = new HashMap<String, Long>(usageFallback.add(journaledAmounts));
+		if(!writtenAmounts.isEmpty()) {
+			nodeTotalAmountsUsed.putAll(redisCircuitBreaker.write(() -> seen(increaseAmountsUsedInRedis(writtenAmounts)), () -> usageFallback.add(writtenAmounts)));
+		}
+		Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+		usageAmounts.keySet().forEach(accountNumber -> totalAmountsUsed.put(accountNumber, nodeTotalAmountsUsed.get(accountNumber)));
+		return totalAmountsUsed;
+	}
+	
+	/**
+	 * Increase the usage of many accounts for a caller that retries what could not be written, such as the
+	 * ingestion listener. The accounts are increased as by increaseAmountsUsed, through the Redis circuit breaker
+	 * but without its fallback, and a node or a script call that fails only fails its own accounts: they are
+	 * returned to be retried, while the accounts written are not written again. A call that timed out may still
+	 * have been applied by Redis, so its accounts may be increased twice.
+	 * @param usageAmounts Map of account number to the (valid) amount to increase by
+	 * @return <b>Map</b> of account number to the amount that was not written, empty when every account was written
+	 * @throws com.programming4phone.data.redis.demo.error.RedisUnavailableException if the circuit breaker is open
+	 */
+	public Map<String, Long> tryIncreaseAmountsUsed(Map<String, Long> usageAmounts) {
+		return redisCircuitBreaker.call(() -> {
+			Queue<RuntimeException> failures = new ConcurrentLinkedQueue<RuntimeException>();
+			Map<String, Long> totalAmountsUsed = seen(increaseAmountsUsedInRedis(usageAmounts, failures));
+			if(failures.isEmpty()) return Collections.<String, Long>emptyMap();
+			// nothing was written, the failure counts for the circuit breaker
+			if(totalAmountsUsed.isEmpty()) throw failures.peek();
+			logger.warn("Unable to increase " + (usageAmounts.size() - totalAmountsUsed.size()) + " of " + usageAmounts.size() + " accounts", failures.peek());
+			Map<String, Long> unwrittenAmounts = new LinkedHashMap<String, Long>(usageAmounts);
+			unwrittenAmounts.keySet().removeAll(totalAmountsUsed.keySet());
+			return unwrittenAmounts;
+		});
+	}
+	
+	private Map<String, Long> increaseAmountsUsedInRedis(Map<String, Long> usageAmounts) {
+		Queue<RuntimeException> failures = new ConcurrentLinkedQueue<RuntimeException>();
+		Map<String, Long> totalAmountsUsed = increaseAmountsUsedInRedis(usageAmounts, failures);
+		if(!failures.isEmpty()) throw failures.peek();
+		return totalAmountsUsed;
+	}
+	
+	/**
+	 * Increase the accounts of every node, see increaseAmountsUsed. A node, or a script call on a node, that fails
+	 * only leaves its own accounts out of the totals returned, and its failure is added to failures.
+	 */
+	private Map<String, Long> increaseAmountsUsedInRedis(Map<String, Long> usageAmounts, Queue<RuntimeException> failures) {
+		List<Callable<Map<String, Long>>> nodeIncreases = new ArrayList<Callable<Map<String, Long>>>();
+		redisShards.groupByNode(usageAmounts.keySet(), usageStorage::key).forEach((node, accountNumbers) -> 
+				nodeIncreases.add(() -> {
+					Map<String, Long> nodeTotalAmountsUsed = new HashMap<String, Long>(accountNumbers.size() * 2);
+					try {
+						increaseAmountsUsed(node, accountNumbers, usageAmounts, nodeTotalAmountsUsed, failures);
+					}
+					catch(RuntimeException re) {
+						failures.add(re);
+					}
+					return nodeTotalAmountsUsed;
+				}));
+		Map<String, Long> nodeTotalAmountsUsed = new HashMap<String, Long>();
+		redisShards.inParallel(nodeIncreases).forEach(nodeTotalAmountsUsed::putAll);
+		Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+		usageAmounts.forEach((accountNumber, usageAmount) -> {
+			Long totalAmountUsed = nodeTotalAmountsUsed.get(accountNumber);
+			if(totalAmountUsed == null) return;
+			totalAmountsUsed.put(accountNumber, totalAmountUsed);
+			written(accountNumber);
+			if(tierEventsEnabled && redisShards.isDistributed()) tierDao.publishTierChange(accountNumber, totalAmountUsed - usageAmount, totalAmountUsed);
+		});
+		return totalAmountsUsed;
+	}
+	
+	/**
+	 * Increase the accounts of one node, putting the new total of each account in totalAmountsUsed. A script call
+	 * that fails leaves its accounts out, and its failure is added to failures.
+	 */
+	@SuppressWarnings("unchecked")
+	private void increaseAmountsUsed(StringRedisTemplate node, List<String> accountNumbers, Map<String, Long> usageAmounts, 
+			Map<String, Long> totalAmountsUsed, Queue<RuntimeException> failures) {
+		List<List<String>> batches = redisShards.scriptBatches(accountNumbers, usageStorage::key, BATCH_SIZE);
+		List<List<String>> keys = new ArrayList<List<String>>(batches.size());
+		List<Object[]> args = new ArrayList<Object[]>(batches.size());
+		String channel = tierChangesChannel();
+		for(List<String> batch : batches) {
+			List<String> batchKeys = new ArrayList<String>(batch.size()*2+1);
+			List<String> batchArgs = new ArrayList<String>(batch.size()*2+7);
+			batchArgs.addAll(Arrays.asList(usageRateWindow.scriptArgs(usageStorage.expirySeconds(), channel, 
+					usageStorage.isHashed() ? "1" : "")));
+			batch.forEach(accountNumber -> {
+				batchKeys.add(usageStorage.key(accountNumber));
+				batchArgs.add(usageAmounts.get(accountNumber).toString());
+			});
+			if(!channel.isEmpty()) batchKeys.add(TierDao.TIERS);
+			if(usageRateWindow.isEnabled()) batch.forEach(accountNumber -> batchKeys.add(usageStorage.rateKey(accountNumber)));
+			if(usageStorage.isHashed()) batchArgs.addAll(batch);
+			keys.add(batchKeys);
+			args.add(batchArgs.toArray());
+		}
+		List<Object> totals = redisMetrics.time(RedisOperation.INCRBY_BATCH, () -> redisScriptExecutor.executePartially(node, increaseUsageBatchScript, keys, args));
+		for(int b=0; b<batches.size(); b++) {
+			if(totals.get(b) instanceof RuntimeException) {
+				failures.add((RuntimeException) totals.get(b));
+				continue;
+			}
+			List<Long> batchTotals = (List<Long>) totals.get(b);
+			for(int i=0; i<batches.get(b).size(); i++) {
+				totalAmountsUsed.put(batches.get(b).get(i), batchTotals.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * Run a read-only operation on a replica when <i>redis.read-from</i> is REPLICA (see ReplicaReads), 
+	 * otherwise on the node holding the key.
+	 */
+	private <T> T read(String key, Function<StringRedisTemplate, T> read) {
+		return replicaReads.isEnabled() ? replicaReads.read(read) : redisShards.execute(key, read);
+	}
+	
+	/**
+	 * Queue an increase of the total amount of data usage for an account, to be written to Redis by the 
+	 * write queue (see UsageWriteQueue). The amount is validated before it is queued. If the queue is full
+	 * a UsageQueueFullException is thrown, ultimately resulting in an HTTP status code 429 (TOO_MANY_REQUESTS).
+	 * @param accountNumber String
+	 * @param usageAmount Long containing amount to increase by
+	 * @throws com.programming4phone.data.redis.demo.error.UsageQueueFullException
+	 */
+	public void queueIncreaseAmountUsed(String accountNumber, Long usageAmount) {
+		if(!usageWriteQueue.offer(accountNumber, validateUsageAmount(usageAmount))) throw new UsageQueueFullException();
+	}
+	
+	/**
+	 * Queue a decrease of the total amount of data usage for an account, as for an increase. The decrease is 
+	 * written after every increase of the account queued before it.
+	 * @param accountNumber String
+	 * @param usageAmount Long containing amount to decrease by
+	 * @throws com.programming4phone.data.redis.demo.error.UsageQueueFullException
+	 */
+	public void queueDecreaseAmountUsed(String accountNumber, Long usageAmount) {
+		if(!usageWriteQueue.offer(accountNumber, -validateUsageAmount(usageAmount))) throw new UsageQueueFullException();
 	}
 	
 	/**
 	 * Decrease the total amount of data usage for an account. If the total data usage becomes 
 	 * negative (less than zero), the amount is reset to zero and the account key expiration is reset. 
 	 * Keys expire based on the <i>tier.expiry.seconds</i> property set in the application.properties file.
+	 * The decrement and the clamp at zero are performed atomically by a Lua script, so a concurrent 
+	 * increase can never be overwritten. While the Redis circuit breaker is open the decrease is journaled
+	 * like an increase, and so is any decrease of an account with journaled entries not yet replayed. An amount pending 
+	 * write-behind for the account is written first; if that write fails the amount is returned to 
+	 * write-behind and the exception is rethrown without decreasing.
 	 * @param accountNumber
 	 * @param usageAmount
 	 * @return <b>Long</b> containing new total amount of usage
 	 */
 	public Long decreaseAmountUsed(String accountNumber, Long usageAmount) {
-		String accountKey = ACCOUNT_PREFIX+accountNumber;
-		Long newUsageAmount = 	stringRedisTemplate
-								.opsForValue()
-								.increment(accountKey, validateUsageAmount(usageAmount)*-1L);
-		if(newUsageAmount.compareTo(LONG_ZERO)<=0) {
-			stringRedisTemplate
-				.opsForValue()
-				.set(accountKey, "0");
-			stringRedisTemplate
-				.expire(accountKey, Long.parseLong(tierExpirySeconds), TimeUnit.SECONDS);
-			newUsageAmount = LONG_ZERO;
+		writePendingIncrease(accountNumber);
+		Long amount = validateUsageAmount(usageAmount);
+		return write(accountNumber, () -> seen(accountNumber, decreaseAmountUsedInRedis(accountNumber, amount)), 
+				() -> usageFallback.add(accountNumber, -amount));
+	}
+	
+	/**
+	 * Write any amount pending write-behind for an account, so that a decrease is clamped against the true total.
+	 * If the write fails the amount is returned to write-behind and the exception is rethrown.
+	 */
+	private void writePendingIncrease(String accountNumber) {
+		long pendingAmount = usageWriteBehind.take(accountNumber);
+		if(pendingAmount == 0L) return;
+		try {
+			increaseAmountsUsed(Collections.singletonMap(accountNumber, pendingAmount));
+		}
+		catch(RuntimeException re) {
+			// the increase was not written, hand it back to the next flush
+			usageWriteBehind.add(accountNumber, pendingAmount);
+			throw re;
 		}
-		return newUsageAmount;
+	}
+	
+	private Long decreaseAmountUsedInRedis(String accountNumber, Long usageAmount) {
+		String accountKey = usageStorage.key(accountNumber);
+		List<String> keys = Collections.singletonList(accountKey);
+		String amount = usageAmount.toString();
+		Long totalAmountUsed = redisMetrics.time(RedisOperation.DECRBY, () -> redisShards.execute(accountKey, node -> 
+				redisScriptExecutor.execute(node, decreaseUsageScript, keys, amount, usageStorage.expirySeconds(), usageStorage.field(accountNumber))));
+		written(accountNumber);
+		return totalAmountUsed;
 	}
 	
 	/**
-	 * Get the total amount of data used for a specific account.
+	 * Get the total amount of data used for a specific account. In write-behind mode any amount
+	 * pending on this node is included. With <i>redis.read-from</i> set to REPLICA the amount is read
+	 * from a replica, and may lag behind the primary by up to <i>redis.replica-max-staleness-millis</i>.
+	 * While the Redis circuit breaker is open the last total seen is returned, zero for an account not seen recently.
+	 * With <i>usage.nearcache.enabled</i> set the total is served from the near cache when it holds the account
+	 * (see UsageNearCache).
 	 * @param accountNumber
 	 * @return <b>Long</b> containing total amount of usage 
 	 */
 	public Long getCurrentAmountUsed(String accountNumber) {
-		return Long.valueOf(
-					Optional.ofNullable(
-						stringRedisTemplate
-						.opsForValue()
-						.get(ACCOUNT_PREFIX+accountNumber)).orElse("0"));
+		Long totalAmountUsed = usageNearCache.get(accountNumber);
+		if(totalAmountUsed == null) {
+			totalAmountUsed = redisCircuitBreaker.call(() -> seen(accountNumber, usageNearCache.load(accountNumber, usageStorage.key(accountNumber), 
+					() -> getCurrentAmountUsedInRedis(accountNumber))), () -> usageFallback.getAmountUsed(accountNumber));
+		}
+		return totalAmountUsed + usageWriteBehind.pending(accountNumber);
+	}
+	
+	private Long getCurrentAmountUsedInRedis(String accountNumber) {
+		String accountKey = usageStorage.key(accountNumber);
+		String value = usageStorage.isHashed()
+				? redisMetrics.time(RedisOperation.HGET, () -> read(accountKey, node -> 
+					node
+					.<String, String>opsForHash()
+					.get(accountKey, accountNumber)))
+				: redisMetrics.time(RedisOperation.GET, () -> read(accountKey, node -> 
+					node
+					.opsForValue()
+					.get(accountKey)));
+		return Long.valueOf(Optional.ofNullable(value).orElse("0"));
+	}
+	
+	private List<String> getAccountKeys(StringRedisTemplate node, List<String> accountNumbers) {
+		List<String> keys = new ArrayList<String>(accountNumbers.size());
+		accountNumbers.forEach(accountNumber -> keys.add(usageStorage.key(accountNumber)));
+		return redisMetrics.time(RedisOperation.MGET, () -> node.opsForValue().multiGet(keys));
+	}
+	
+	/**
+	 * Pipelined HGETs of the account fields (HASH storage layout), or GETs of the account keys in a cluster,
+	 * where an MGET cannot span hash slots.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<String> getAccountValues(StringRedisTemplate node, List<String> accountNumbers) {
+		boolean hashed = usageStorage.isHashed();
+		List<Object> values = redisMetrics.time(hashed ? RedisOperation.HGET_PIPELINED : RedisOperation.GET_PIPELINED, () -> 
+				node.executePipelined((RedisCallback<Object>) connection -> {
+					for(String accountNumber : accountNumbers) {
+						byte[] accountKey = usageStorage.key(accountNumber).getBytes(StandardCharsets.UTF_8);
+						if(hashed) connection.hGet(accountKey, accountNumber.getBytes(StandardCharsets.UTF_8));
+						else connection.get(accountKey);
+					}
+					return null;
+				}));
+		return (List) values;
+	}
+	
+	/**
+	 * Get the amount of data used by an account within the usage rate window (the last <i>rate.window.seconds</i>),
+	 * including any amount pending write-behind on this node. While the Redis circuit breaker is open the 
+	 * window is not known and reads as empty.
+	 * @param accountNumber String
+	 * @return <b>Long</b> containing the usage within the window, or null if <i>rate.enabled</i> is not set
+	 */
+	public Long getWindowedAmountUsed(String accountNumber) {
+		if(!usageRateWindow.isEnabled()) return null;
+		String rateKey = usageStorage.rateKey(accountNumber);
+		Long windowAmountUsed = redisCircuitBreaker.call(() -> {
+			Map<Object, Object> buckets = redisMetrics.time(RedisOperation.HGETALL, () -> 
+					read(rateKey, node -> node.opsForHash().entries(rateKey)));
+			return usageRateWindow.sum(toStringMap(buckets));
+		}, () -> LONG_ZERO);
+		return windowAmountUsed + usageWriteBehind.pending(accountNumber);
+	}
+	
+	/**
+	 * Get the total amount of data used for many accounts at once. Accounts are read with a single
+	 * MGET per chunk of at most BATCH_SIZE accounts (pipelined HGETs with the HASH storage layout, pipelined
+	 * GETs in a cluster). When the accounts are spread over several nodes every node is read in parallel.
+	 * Accounts that do not exist have a total of zero. While the Redis circuit breaker is open the last totals 
+	 * seen are returned.
+	 * @param accountNumbers List of account numbers
+	 * @return <b>Map</b> of account number to total amount of usage
+	 */
+	public Map<String, Long> getCurrentAmountsUsed(List<String> accountNumbers) {
+		List<String> uniqueAccountNumbers = new ArrayList<String>(new LinkedHashSet<String>(accountNumbers));
+		return redisCircuitBreaker.call(() -> seen(getCurrentAmountsUsedInRedis(uniqueAccountNumbers)), () -> {
+			Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+			uniqueAccountNumbers.forEach(accountNumber -> totalAmountsUsed.put(accountNumber, usageFallback.getAmountUsed(accountNumber)));
+			return totalAmountsUsed;
+		});
+	}
+	
+	private Map<String, Long> getCurrentAmountsUsedInRedis(List<String> uniqueAccountNumbers) {
+		Map<String, Long> nodeTotalAmountsUsed = new HashMap<String, Long>();
+		redisShards.retryOnRedirection(() -> {
+			List<Callable<Map<String, Long>>> nodeReads = new ArrayList<Callable<Map<String, Long>>>();
+			redisShards.groupByNode(uniqueAccountNumbers, usageStorage::key).forEach((node, nodeAccountNumbers) -> 
+					nodeReads.add(() -> getCurrentAmountsUsed(node, nodeAccountNumbers)));
+			redisShards.inParallel(nodeReads).forEach(nodeTotalAmountsUsed::putAll);
+			return null;
+		});
+		Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+		uniqueAccountNumbers.forEach(accountNumber -> totalAmountsUsed.put(accountNumber, nodeTotalAmountsUsed.get(accountNumber)));
+		return totalAmountsUsed;
+	}
+	
+	private Map<String, Long> getCurrentAmountsUsed(StringRedisTemplate node, List<String> accountNumbers) {
+		Map<String, Long> totalAmountsUsed = new HashMap<String, Long>(accountNumbers.size() * 2);
+		for(int start=0; start<accountNumbers.size(); start+=BATCH_SIZE) {
+			List<String> chunk = accountNumbers.subList(start, Math.min(start+BATCH_SIZE, accountNumbers.size()));
+			List<String> values = usageStorage.isHashed() || redisShards.isCluster() ? getAccountValues(node, chunk) : getAccountKeys(node, chunk);
+			for(int i=0; i<chunk.size(); i++) {
+				String value = values.get(i);
+				totalAmountsUsed.put(chunk.get(i), value == null ? LONG_ZERO : Long.valueOf(value));
+			}
+		}
+		return totalAmountsUsed;
+	}
+	
+	/**
+	 * Get the total amount of data used for many accounts at once, optionally including the tier usage
+	 * speed for each account. Tiers are resolved against a single tier index for the whole lookup.
+	 * If the speed is requested and no tiers exist a NoTiersFoundException is thrown.
+	 * @param accountNumbers List of account numbers
+	 * @param includeSpeed boolean, true to include the tier usage speed
+	 * @return <b>List of CustomerUsage objects</b>, one per account, containing the total data usage
+	 * @throws com.programming4phone.data.redis.demo.error.NoTiersFoundException
+	 */
+	public List<CustomerUsage> getCurrentUsages(List<String> accountNumbers, boolean includeSpeed) {
+		Map<String, Long> totalAmountsUsed = getCurrentAmountsUsed(accountNumbers);
+		TierTable tierTable = includeSpeed ? tierDao.getTierTable() : null;
+		Map<String, Long> windowAmountsUsed = includeSpeed && usageRateWindow.isBurstThrottled() 
+				? getWindowedAmountsUsed(totalAmountsUsed.keySet()) : Collections.<String, Long>emptyMap();
+		List<CustomerUsage> customerUsages = new ArrayList<CustomerUsage>(totalAmountsUsed.size());
+		totalAmountsUsed.forEach((accountNumber, totalAmountUsed) -> {
+			String speed = null;
+			if(tierTable != null) {
+				speed = tierTable.resolveSpeedName(totalAmountUsed);
+				redisMetrics.tierResolved(speed);
+				speed = usageRateWindow.applyBurst(speed, windowAmountsUsed.getOrDefault(accountNumber, 0L));
+			}
+			customerUsages.add(new CustomerUsage()
+					.setAccountNumber(accountNumber)
+					.setTotalUsage(totalAmountUsed)
+					.setSpeed(speed));
+		});
+		return customerUsages;
+	}
+	
+	/**
+	 * Get the total amount of data used for a specific account together with its tier usage speed.
+	 * When tiers are resolved in Redis the usage amount is read and the tier resolved by a Lua script
+	 * in a single round trip, otherwise the tier is resolved against the local tier snapshot. When the keys
+	 * are spread over several nodes the tiers and the account are on different nodes, so the usage amount 
+	 * and the tier are read separately.
+	 * When burst throttling is configured (<i>rate.burst.threshold</i>) the usage within the rate window is 
+	 * also read, and a bursting account gets at least the <i>rate.burst.speed</i>.
+	 * While the Redis circuit breaker is open the last total seen is resolved against the last tiers read.
+	 * If no tiers exist a NoTiersFoundException is thrown, ultimately resulting in an HTTP status code 404 (NOT_FOUND).
+	 * @param accountNumber String
+	 * @return <b>CustomerUsage</b> containing the total data usage and tier speed
+	 * @throws com.programming4phone.data.redis.demo.error.NoTiersFoundException
+	 */
+	public CustomerUsage getCurrentUsageAndTier(String accountNumber) {
+		CustomerUsage customerUsage = new CustomerUsage().setAccountNumber(accountNumber);
+		List<String> usageTier = tierDao.isResolvedOnServer() && !redisShards.isDistributed()
+				? redisCircuitBreaker.call(() -> getUsageTierInRedis(accountNumber), () -> null) : null;
+		if(usageTier == null) {
+			Long totalAmountUsed = getCurrentAmountUsed(accountNumber);
+			Tier tier = tierDao.getCurrentUsageTier(totalAmountUsed);
+			customerUsage.setTotalUsage(totalAmountUsed).setSpeed(tier.getSpeed());
+		}
+		else {
+			if(usageTier.size() < 2) throw new NoTiersFoundException();
+			redisMetrics.tierResolved(usageTier.get(1));
+			customerUsage.setTotalUsage(seen(accountNumber, Long.valueOf(usageTier.get(0)))).setSpeed(usageTier.get(1));
+		}
+		if(usageRateWindow.isBurstThrottled()) {
+			Long windowAmountUsed = getWindowedAmountUsed(accountNumber);
+			customerUsage.setWindowUsage(windowAmountUsed).setSpeed(usageRateWindow.applyBurst(customerUsage.getSpeed(), windowAmountUsed));
+		}
+		return customerUsage;
+	}
+	
+	private List<String> getUsageTierInRedis(String accountNumber) {
+		String accountKey = usageStorage.key(accountNumber);
+		return redisMetrics.time(RedisOperation.GET_TIER, () -> read(accountKey, node -> 
+				redisScriptExecutor.execute(node, usageTierScript, Arrays.asList(accountKey, TierDao.TIERS), usageStorage.field(accountNumber))));
+	}
+	
+	/**
+	 * Read the usage rate window of many accounts with a single pipelined round trip per node, the nodes in parallel.
+	 * While the Redis circuit breaker is open every window reads as empty.
+	 */
+	private Map<String, Long> getWindowedAmountsUsed(Collection<String> accountNumbers) {
+		return redisCircuitBreaker.call(() -> {
+			Map<String, Long> windowAmountsUsed = new HashMap<String, Long>();
+			redisShards.retryOnRedirection(() -> {
+				List<Callable<Map<String, Long>>> nodeReads = new ArrayList<Callable<Map<String, Long>>>();
+				redisShards.groupByNode(accountNumbers, usageStorage::rateKey).forEach((node, nodeAccountNumbers) -> 
+						nodeReads.add(() -> getWindowedAmountsUsed(node, nodeAccountNumbers)));
+				redisShards.inParallel(nodeReads).forEach(windowAmountsUsed::putAll);
+				return null;
+			});
+			return windowAmountsUsed;
+		}, Collections::<String, Long>emptyMap);
+	}
+	
+	private Map<String, Long> getWindowedAmountsUsed(StringRedisTemplate node, List<String> accountNumbers) {
+		List<Object> bucketMaps = redisMetrics.time(RedisOperation.HGETALL, () -> 
+				node.executePipelined((RedisCallback<Object>) connection -> {
+					for(String accountNumber : accountNumbers) {
+						connection.hGetAll(usageStorage.rateKey(accountNumber).getBytes(StandardCharsets.UTF_8));
+					}
+					return null;
+				}));
+		Map<String, Long> windowAmountsUsed = new HashMap<String, Long>();
+		for(int i=0; i<accountNumbers.size(); i++) {
+			@SuppressWarnings("unchecked")
+			Map<Object, Object> buckets = (Map<Object, Object>) bucketMaps.get(i);
+			windowAmountsUsed.put(accountNumbers.get(i), usageRateWindow.sum(toStringMap(buckets)));
+		}
+		return windowAmountsUsed;
+	}
+	
+	/**
+	 * Replay the increases and decreases journaled while Redis was unavailable (see UsageFallback). The entries
+	 * are grouped by the Redis node holding their account and replayed in order for each node, consecutive
+	 * increases as a single batch, so a failing node only holds back its own entries. Entries are only removed
+	 * once Redis applied them. The replay stops while the Redis circuit breaker is open, and is retried every 
+	 * <i>fallback.replay.millis</i>. An entry whose call failed after Redis applied it is applied again, so 
+	 * entries are applied at least once.
+	 */
+	@Scheduled(fixedDelayString="${fallback.replay.millis}")
+	public void replayJournal() {
+		Set<StringRedisTemplate> failedNodes = new HashSet<StringRedisTemplate>();
+		try {
+			for(List<JournalEntry> entries = peekJournal(failedNodes); !entries.isEmpty(); entries = peekJournal(failedNodes)) {
+				redisShards.groupByNode(entries, entry -> usageStorage.key(entry.accountNumber)).forEach((node, nodeEntries) -> {
+					if(!replayJournal(nodeEntries)) failedNodes.add(node);
+				});
+				usageFallback.removeReplayed();
+			}
+		}
+		catch(RedisUnavailableException rue) {
+			logger.debug("Replay of the usage journal stopped, the Redis circuit breaker is open", rue);
+		}
+		finally {
+			usageFallback.removeReplayed();
+		}
+	}
+
+	private List<JournalEntry> peekJournal(Set<StringRedisTemplate> failedNodes) {
+		return usageFallback.peekJournal(BATCH_SIZE, entry -> !failedNodes.isEmpty() && failedNodes.contains(redisShards.forKey(usageStorage.key(entry.accountNumber))));
+	}
+
+	/**
+	 * Replay, in order, the journal entries of a single node. An entry whose replay failed before is replayed
+	 * alone, so that an entry Redis keeps failing does not take the other entries of a batch with it.
+	 * @param entries List of JournalEntry, all on the same node
+	 * @return <b>boolean</b> true if every entry was replayed, false if the node failed
+	 */
+	private boolean replayJournal(List<JournalEntry> entries) {
+		int replayed = 0;
+		while(replayed < entries.size()) {
+			int end = replayed + 1;
+			if(entries.get(replayed).amount >= 0L && entries.get(replayed).attempts == 0) {
+				while(end < entries.size() && entries.get(end).amount >= 0L && entries.get(end).attempts == 0) end++;
+			}
+			List<JournalEntry> batch = entries.subList(replayed, end);
+			try {
+				replay(batch);
+			}
+			catch(DataAccessException dae) {
+				logger.debug("Replay of the usage journal failed on a Redis node", dae);
+				if(!RedisCircuitBreaker.isUnavailable(dae)) batch.forEach(usageFallback::failed);
+				return false;
+			}
+			batch.forEach(usageFallback::replayed);
+			replayed = end;
+		}
+		return true;
+	}
+
+	/**
+	 * Replay a single decrease, or a batch of increases.
+	 */
+	private void replay(List<JournalEntry> batch) {
+		JournalEntry first = batch.get(0);
+		if(first.amount < 0L) {
+			redisCircuitBreaker.call(() -> seen(first.accountNumber, decreaseAmountUsedInRedis(first.accountNumber, -first.amount)));
+			return;
+		}
+		Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+		batch.forEach(entry -> usageAmounts.merge(entry.accountNumber, entry.amount, Long::sum));
+		redisCircuitBreaker.call(() -> seen(increaseAmountsUsedInRedis(usageAmounts)));
+	}
+
+	/**
+	 * Write an account to Redis through the circuit breaker, journaling the write when it cannot reach Redis (see
+	 * UsageFallback). While the account has journaled entries not yet replayed the write is journaled behind them,
+	 * so that the writes of an account are applied in order.
+	 */
+	private <T> T write(String accountNumber, Supplier<T> call, Supplier<T> journal) {
+		if(usageFallback.hasJournal(accountNumber)) return journal.get();
+		return redisCircuitBreaker.write(call, journal);
+	}
+	
+	/**
+	 * Drop the near cached total of an account this instance just wrote, without waiting for its keyspace notification.
+	 */
+	private void written(String accountNumber) {
+		if(usageNearCache.isEnabled()) usageNearCache.invalidate(usageStorage.key(accountNumber));
+	}
+	
+	private Long seen(String accountNumber, Long totalAmountUsed) {
+		usageFallback.seen(accountNumber, totalAmountUsed);
+		return totalAmountUsed;
+	}
+	
+	private Map<String, Long> seen(Map<String, Long> totalAmountsUsed) {
+		usageFallback.seen(totalAmountsUsed);
+		return totalAmountsUsed;
+	}
+	
+	/**
+	 * @return <b>String</b> channel the increase scripts publish tier changes to, empty when <i>tier.events.enabled</i> is not set
+	 * or when the tiers are not on the node of the accounts
+	 */
+	private String tierChangesChannel() {
+		return tierEventsEnabled && !redisShards.isDistributed() ? TierDao.TIER_CHANGES_CHANNEL : "";
+	}
+	
+	private static Map<String, String> toStringMap(Map<Object, Object> map) {
+		Map<String, String> stringMap = new HashMap<String, String>();
+		map.forEach((key, value) -> stringMap.put((String) key, (String) value));
+		return stringMap;
 	}
 	
 	/**
@@ -113,7 +869,7 @@ public class UsageDao {
 	 * @return <b>Long</b> containing a valid usage amount
 	 * @throws com.programming4phone.data.redis.demo.error.InvalidUsageAmountException
 	 */
-	private Long validateUsageAmount(Long iUsageAmount) {
+	static Long validateUsageAmount(Long iUsageAmount) {
 		Long usageAmount = Optional.ofNullable(iUsageAmount).orElse(LONG_ZERO);
 		if(usageAmount.compareTo(LONG_ZERO)<0) throw new InvalidUsageAmountException();
 		return usageAmount;
@@ -0,0 +1,275 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.function.Predicate;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * What UsageDao answers with while Redis is unavailable (see RedisCircuitBreaker).
+ * <br><br>
+ * Every account total read from or written to Redis is remembered in a bounded LRU cache of
+ * <i>fallback.cache.accounts</i> accounts, so the accounts seen recently keep their total, and so their
+ * throttling, during an outage. Accounts that were not seen recently read as zero: throttling fails open.
+ * <br><br>
+ * Increases and decreases that cannot reach Redis are added to the cached totals and appended to a journal of at
+ * most <i>fallback.journal.max.entries</i> entries, which UsageDao replays once Redis answers again, in order for
+ * each Redis node. While an account has entries not yet replayed its later writes are journaled behind them, so the
+ * writes of an account stay in order, while the other accounts are written to Redis as usual. Entries beyond that
+ * bound are dropped and counted. An entry Redis keeps failing is dropped and
+ * counted after <i>fallback.journal.max.attempts</i> attempts, so it does not hold back the entries of its node
+ * forever. Entries are applied at least once: an entry whose replay failed after Redis applied it is applied again.
+ * The journal is kept in memory only, so it is lost if the process stops during the outage.
+ */
+@Component
+public class UsageFallback implements PublicMetrics {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	/*
+	 * The cache is split into segments, each an access ordered LinkedHashMap guarded by its own lock, so threads
+	 * updating different accounts rarely contend.
+	 */
+	private static final int SEGMENTS = 16;
+	private static final Long ZERO = Long.valueOf(0);
+
+	private final List<Map<String, Long>> segments = new ArrayList<Map<String, Long>>(SEGMENTS);
+	private final ConcurrentLinkedQueue<JournalEntry> journal = new ConcurrentLinkedQueue<JournalEntry>();
+	private final AtomicInteger journalSize = new AtomicInteger();
+	// number of entries not yet replayed or dropped per account
+	private final ConcurrentHashMap<String, Integer> pendingEntries = new ConcurrentHashMap<String, Integer>();
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder journaledCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private final LongAdder replayedCount = new LongAdder();
+	private final LongAdder poisonedCount = new LongAdder();
+
+	@Value("${fallback.cache.accounts}")
+	private int cacheAccounts;
+
+	@Value("${fallback.journal.max.entries}")
+	private int maxJournalEntries;
+
+	@Value("${fallback.journal.max.attempts}")
+	private int maxAttempts;
+
+	@PostConstruct
+	public void createSegments() {
+		int segmentAccounts = Math.max(1, cacheAccounts / SEGMENTS);
+		for(int i=0; i<SEGMENTS; i++) {
+			segments.add(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+					return size() > segmentAccounts;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Remember the total of an account read from or written to Redis.
+	 * @param accountNumber String
+	 * @param totalAmountUsed Long, ignored when null
+	 */
+	void seen(String accountNumber, Long totalAmountUsed) {
+		if(totalAmountUsed == null) return;
+		Map<String, Long> segment = segment(accountNumber);
+		synchronized(segment) {
+			segment.put(accountNumber, totalAmountUsed);
+		}
+	}
+
+	/**
+	 * Remember the totals of many accounts read from or written to Redis.
+	 * @param totalAmountsUsed Map of account number to total amount of usage
+	 */
+	void seen(Map<String, Long> totalAmountsUsed) {
+		totalAmountsUsed.forEach(this::seen);
+	}
+
+	/**
+	 * @param accountNumber String
+	 * @return <b>Long</b> last known total of the account, zero if it was not seen recently
+	 */
+	Long getAmountUsed(String accountNumber) {
+		Map<String, Long> segment = segment(accountNumber);
+		Long totalAmountUsed;
+		synchronized(segment) {
+			totalAmountUsed = segment.get(accountNumber);
+		}
+		if(totalAmountUsed == null) {
+			missCount.increment();
+			return ZERO;
+		}
+		hitCount.increment();
+		return totalAmountUsed;
+	}
+
+	/**
+	 * Return the last known total of an account without counting a hit or a miss, as the total is not being
+	 * read for an outage.
+	 * @param accountNumber String
+	 * @return <b>Long</b> last known total of the account, null if it was not seen recently
+	 */
+	Long lastSeen(String accountNumber) {
+		Map<String, Long> segment = segment(accountNumber);
+		synchronized(segment) {
+			return segment.get(accountNumber);
+		}
+	}
+
+	/**
+	 * Add an increase (or, when negative, a decrease) made while Redis is unavailable to the cached total
+	 * and to the journal. A decrease clamps the cached total at zero, as the decrease script does.
+	 * @param accountNumber String
+	 * @param amount long amount increased by, negative for a decrease
+	 * @return <b>Long</b> the estimated new total of the account
+	 */
+	Long add(String accountNumber, long amount) {
+		if(journalSize.incrementAndGet() > maxJournalEntries) {
+			journalSize.decrementAndGet();
+			droppedCount.increment();
+		}
+		else {
+			pendingEntries.merge(accountNumber, 1, Integer::sum);
+			journal.add(new JournalEntry(accountNumber, amount));
+			journaledCount.increment();
+		}
+		Map<String, Long> segment = segment(accountNumber);
+		synchronized(segment) {
+			return segment.merge(accountNumber, Math.max(0L, amount), (total, added) -> Math.max(0L, total + amount));
+		}
+	}
+
+	/**
+	 * Add the increases of many accounts made while Redis is unavailable, see add.
+	 * @param usageAmounts Map of account number to the amount increased by
+	 * @return <b>Map</b> of account number to the estimated new total
+	 */
+	Map<String, Long> add(Map<String, Long> usageAmounts) {
+		Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+		usageAmounts.forEach((accountNumber, usageAmount) -> totalAmountsUsed.put(accountNumber, add(accountNumber, usageAmount)));
+		return totalAmountsUsed;
+	}
+
+	/**
+	 * @param maxEntries int
+	 * @param skip Predicate of the entries not to return, e.g. those of a node that is failing
+	 * @return <b>List</b> of at most maxEntries of the oldest journal entries not yet replayed, left in the journal
+	 */
+	List<JournalEntry> peekJournal(int maxEntries, Predicate<JournalEntry> skip) {
+		List<JournalEntry> entries = new ArrayList<JournalEntry>(Math.min(maxEntries, journalSize.get()));
+		Iterator<JournalEntry> iterator = journal.iterator();
+		while(iterator.hasNext() && entries.size() < maxEntries) {
+			JournalEntry entry = iterator.next();
+			if(!entry.done && !skip.test(entry)) entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Mark a journal entry as replayed. Entries are removed once every older entry was replayed too
+	 * (see removeReplayed). Only the replaying thread marks entries.
+	 * @param entry JournalEntry
+	 */
+	void replayed(JournalEntry entry) {
+		done(entry);
+		replayedCount.increment();
+	}
+
+	/**
+	 * Count a failed replay of a journal entry, dropping the entry once it failed <i>fallback.journal.max.attempts</i> times.
+	 * A replay failing because no connection to Redis could be made is not counted.
+	 * @param entry JournalEntry
+	 */
+	void failed(JournalEntry entry) {
+		if(++entry.attempts < maxAttempts) return;
+		done(entry);
+		poisonedCount.increment();
+		logger.error("Dropping the journaled usage " + entry.amount + " of account " + entry.accountNumber + " after " + entry.attempts + " failed replays");
+	}
+
+	/**
+	 * Remove the oldest journal entries that were replayed or dropped.
+	 */
+	void removeReplayed() {
+		for(JournalEntry entry = journal.peek(); entry != null && entry.done; entry = journal.peek()) {
+			journal.poll();
+			journalSize.decrementAndGet();
+		}
+	}
+
+	private void done(JournalEntry entry) {
+		entry.done = true;
+		pendingEntries.computeIfPresent(entry.accountNumber, (accountNumber, pending) -> pending == 1 ? null : pending - 1);
+	}
+
+	/**
+	 * @return <b>boolean</b> true if the journal holds entries of any account not yet replayed or dropped
+	 */
+	boolean hasJournal() {
+		return !pendingEntries.isEmpty();
+	}
+
+	/**
+	 * @param accountNumber String
+	 * @return <b>boolean</b> true if the journal holds entries of the account not yet replayed or dropped
+	 */
+	boolean hasJournal(String accountNumber) {
+		return pendingEntries.containsKey(accountNumber);
+	}
+
+	private Map<String, Long> segment(String accountNumber) {
+		return segments.get(Math.floorMod(accountNumber.hashCode(), SEGMENTS));
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Long>("usage.fallback.hits", hitCount.sum()));
+		metrics.add(new Metric<Long>("usage.fallback.misses", missCount.sum()));
+		metrics.add(new Metric<Integer>("usage.journal.size", journalSize.get()));
+		metrics.add(new Metric<Long>("usage.journal.entries", journaledCount.sum()));
+		metrics.add(new Metric<Long>("usage.journal.dropped", droppedCount.sum()));
+		metrics.add(new Metric<Long>("usage.journal.replayed", replayedCount.sum()));
+		metrics.add(new Metric<Long>("usage.journal.poisoned", poisonedCount.sum()));
+		return metrics;
+	}
+
+	/**
+	 * An increase, or a decrease when the amount is negative, made while Redis was unavailable.
+	 */
+	static class JournalEntry {
+		final String accountNumber;
+		final long amount;
+		// failed replays, only used by the replaying thread
+		int attempts;
+		volatile boolean done;
+
+		JournalEntry(String accountNumber, long amount) {
+			this.accountNumber = accountNumber;
+			this.amount = amount;
+		}
+	}
+}
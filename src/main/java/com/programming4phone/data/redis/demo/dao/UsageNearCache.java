@@ -0,0 +1,176 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+/**
+ * Near cache of the account totals read by UsageDao.getCurrentAmountUsed, enabled by the
+ * <i>usage.nearcache.enabled</i> property. It keeps up to <i>usage.nearcache.max.accounts</i> totals for at most
+ * <i>usage.nearcache.ttl.millis</i> (see NearCache for the eviction policy), so the few heavy accounts that get
+ * most of the reads are answered without a Redis round trip.
+ * <br><br>
+ * A cached total is dropped as soon as its usage key changes on any node: every node publishes a keyspace
+ * notification for each change to a usage key (an increase, a decrease or reset, a delete, an expiry or an
+ * eviction), and this cache subscribes to them on every node. With <i>usage.nearcache.configure.notifications</i>
+ * set the notifications are turned on at startup with CONFIG SET notify-keyspace-events, otherwise they must be
+ * configured on the Redis servers. Notifications are not delivered while the subscription is down, and FLUSHDB
+ * does not send any, so the time to live bounds how stale a total can be in those cases.
+ */
+@Component
+public class UsageNearCache implements MessageListener, PublicMetrics {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// keyspace notifications of the usage keys of every layout (ACCOUNT:, ACCOUNTS:, ACCOUNT@ and ACCOUNTS@)
+	private static final String KEYSPACE_PATTERN = "__keyspace@*__:ACCOUNT*";
+	private static final String KEYSPACE_SEPARATOR = "__:";
+	// keyspace events (K) of string ($), hash (h) and generic (g) commands, expired (x) and evicted (e) keys
+	private static final String NOTIFY_KEYSPACE_EVENTS = "K$hgxe";
+	private static final String NOTIFY_KEYSPACE_EVENTS_CONFIG = "notify-keyspace-events";
+
+	@Autowired
+	private RedisShards redisShards;
+
+	@Value("${usage.nearcache.enabled}")
+	private boolean enabled;
+
+	@Value("${usage.nearcache.max.accounts}")
+	private int maxAccounts;
+
+	@Value("${usage.nearcache.ttl.millis}")
+	private long ttlMillis;
+
+	@Value("${usage.nearcache.configure.notifications}")
+	private boolean configureNotifications;
+
+	private NearCache<Long> cache;
+	private final List<RedisMessageListenerContainer> containers = new ArrayList<RedisMessageListenerContainer>();
+
+	/**
+	 * Subscribe to the keyspace notifications of the usage keys on every node.
+	 */
+	@PostConstruct
+	public void start() {
+		if(!enabled) return;
+		cache = new NearCache<Long>(maxAccounts, ttlMillis);
+		for(StringRedisTemplate node : redisShards.nodes()) {
+			if(configureNotifications) enableNotifications(node);
+			RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+			container.setConnectionFactory(node.getConnectionFactory());
+			container.addMessageListener(this, new PatternTopic(KEYSPACE_PATTERN));
+			container.afterPropertiesSet();
+			container.start();
+			containers.add(container);
+		}
+	}
+
+	@PreDestroy
+	public void stop() throws Exception {
+		for(RedisMessageListenerContainer container : containers) container.destroy();
+	}
+
+	/**
+	 * Add the keyspace events the near cache needs to those the node already notifies.
+	 */
+	private void enableNotifications(StringRedisTemplate node) {
+		try {
+			node.execute((RedisCallback<Void>) connection -> {
+				List<String> config = connection.getConfig(NOTIFY_KEYSPACE_EVENTS_CONFIG);
+				String events = config.size() > 1 ? config.get(1) : "";
+				StringBuilder required = new StringBuilder(events);
+				for(char event : NOTIFY_KEYSPACE_EVENTS.toCharArray()) {
+					// A is the alias of every event class, but not of the keyspace (K) or keyevent (E) channels
+					boolean notified = events.indexOf(event) >= 0 || (event != 'K' && events.indexOf('A') >= 0);
+					if(!notified) required.append(event);
+				}
+				if(required.length() > events.length()) connection.setConfig(NOTIFY_KEYSPACE_EVENTS_CONFIG, required.toString());
+				return null;
+			});
+		}
+		catch(DataAccessException dae) {
+			logger.warn("Unable to enable the keyspace notifications of the near cache, set notify-keyspace-events "
+					+ NOTIFY_KEYSPACE_EVENTS + " on the Redis servers", dae);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param accountNumber String
+	 * @return <b>Long</b> cached total of the account, null if it is not cached
+	 */
+	Long get(String accountNumber) {
+		return enabled ? cache.get(accountNumber) : null;
+	}
+
+	/**
+	 * Load the total of an account from Redis and cache it, unless its key changed while it was being loaded.
+	 * @param accountNumber String
+	 * @param key String Redis key the total is read from
+	 * @param load Supplier reading the total from Redis
+	 * @return <b>Long</b> the total read
+	 */
+	Long load(String accountNumber, String key, Supplier<Long> load) {
+		if(!enabled) return load.get();
+		long loadSequence = cache.startLoad();
+		Long totalAmountUsed = load.get();
+		cache.put(accountNumber, key, totalAmountUsed, loadSequence);
+		return totalAmountUsed;
+	}
+
+	/**
+	 * Drop the cached totals read from a Redis key, at once after a write of this instance rather than
+	 * when its keyspace notification arrives.
+	 * @param key String
+	 */
+	void invalidate(String key) {
+		if(enabled) cache.invalidate(key);
+	}
+
+	@Override
+	public void onMessage(Message message, byte[] pattern) {
+		String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+		cache.invalidate(channel.substring(channel.indexOf(KEYSPACE_SEPARATOR) + KEYSPACE_SEPARATOR.length()));
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(!enabled) return metrics;
+		long hits = cache.hits();
+		long misses = cache.misses();
+		metrics.add(new Metric<Integer>("usage.nearcache.size", cache.size()));
+		metrics.add(new Metric<Long>("usage.nearcache.hits", hits));
+		metrics.add(new Metric<Long>("usage.nearcache.misses", misses));
+		metrics.add(new Metric<Double>("usage.nearcache.hit.ratio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)));
+		metrics.add(new Metric<Long>("usage.nearcache.evictions", cache.evictions()));
+		metrics.add(new Metric<Long>("usage.nearcache.invalidations", cache.invalidations()));
+		metrics.add(new Metric<Long>("usage.nearcache.staleness.mean.millis", hits == 0 ? 0L : TimeUnit.NANOSECONDS.toMillis(cache.hitAgeNanos() / hits)));
+		metrics.add(new Metric<Long>("usage.nearcache.staleness.max.millis", TimeUnit.NANOSECONDS.toMillis(cache.takeMaxHitAgeNanos())));
+		return metrics;
+	}
+}
@@ -0,0 +1,116 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+
+/**
+ * Sliding window of recent data usage per account, enabled by the <i>rate.enabled</i> property. 
+ * <br><br>
+ * Usage is counted in a Redis hash per account (RATE:accountNumber) holding one field per time bucket of 
+ * <i>rate.bucket.seconds</i>, keyed by the bucket number since the epoch. The usage Lua scripts add every 
+ * increase to the current bucket with HINCRBY and refresh the key expiration, in the same round trip as the 
+ * increase itself. Buckets older than the <i>rate.window.seconds</i> window are ignored when the window is 
+ * summed and only deleted once the hash holds twice as many buckets as the window, so an increase costs O(1) 
+ * amortized. The window slides in steps of one bucket.
+ * <br><br>
+ * Accounts whose windowed usage exceeds <i>rate.burst.threshold</i> bytes are throttled to at least 
+ * <i>rate.burst.speed</i>, whatever tier their cumulative usage is in. Buckets are numbered using the 
+ * clock of the node recording the usage, so nodes must keep their clocks synchronized.
+ */
+@Component
+public class UsageRateWindow {
+
+	private static final String RATE_PREFIX = "RATE:";
+
+	@Value("${rate.enabled}")
+	private boolean enabled;
+
+	@Value("${rate.window.seconds}")
+	private long windowSeconds;
+
+	@Value("${rate.bucket.seconds}")
+	private long bucketSeconds;
+
+	@Value("${rate.burst.threshold}")
+	private long burstThreshold;
+
+	@Value("${rate.burst.speed}")
+	private UsageTierEnum burstSpeed;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Whether the windowed usage is needed to resolve the tier speed of an account.
+	 * @return <b>boolean</b>
+	 */
+	boolean isBurstThrottled() {
+		return enabled && burstThreshold > 0;
+	}
+
+	/**
+	 * @param accountNumber String
+	 * @return <b>String</b> key of the hash holding the usage buckets of the account
+	 */
+	static String key(String accountNumber) {
+		return RATE_PREFIX + accountNumber;
+	}
+
+	/**
+	 * Arguments of the usage Lua scripts: the given leading arguments followed by the arguments needed to record 
+	 * usage in the window, which are the current bucket, the key expiration in seconds, the number of buckets that 
+	 * triggers pruning and the number of buckets in the window.
+	 * @param leadingArgs String arguments before the window arguments
+	 * @return <b>String[]</b>
+	 */
+	String[] scriptArgs(String... leadingArgs) {
+		long buckets = windowBuckets();
+		String[] args = Arrays.copyOf(leadingArgs, leadingArgs.length + 4);
+		args[leadingArgs.length] = Long.toString(currentBucket());
+		args[leadingArgs.length + 1] = Long.toString(windowSeconds + bucketSeconds);
+		args[leadingArgs.length + 2] = Long.toString(buckets * 2);
+		args[leadingArgs.length + 3] = Long.toString(buckets);
+		return args;
+	}
+
+	/**
+	 * Add together the buckets of an account that are within the window.
+	 * @param buckets Map of bucket number to usage amount, as returned by HGETALL
+	 * @return <b>long</b> usage within the window
+	 */
+	long sum(Map<String, String> buckets) {
+		long oldestBucket = currentBucket() - windowBuckets() + 1;
+		long windowUsage = 0L;
+		for(Map.Entry<String, String> bucket : buckets.entrySet()) {
+			if(Long.parseLong(bucket.getKey()) >= oldestBucket) windowUsage += Long.parseLong(bucket.getValue());
+		}
+		return windowUsage;
+	}
+
+	/**
+	 * Apply burst throttling to the tier speed resolved from the cumulative usage. Speeds are ordered
+	 * from fastest to slowest by their declaration order in UsageTierEnum.
+	 * @param speed String resolved tier speed, possibly UNKNOWN
+	 * @param windowUsage long usage within the window
+	 * @return <b>String</b> the burst speed if the account is bursting and the burst speed is slower, otherwise speed
+	 */
+	String applyBurst(String speed, long windowUsage) {
+		if(!isBurstThrottled() || windowUsage <= burstThreshold) return speed;
+		UsageTierEnum usageTier = TierTable.UNKNOWN_SPEED.equals(speed) ? null : UsageTierEnum.valueOf(speed);
+		return usageTier == null || usageTier.compareTo(burstSpeed) < 0 ? burstSpeed.name() : speed;
+	}
+
+	private long windowBuckets() {
+		return (windowSeconds + bucketSeconds - 1) / bucketSeconds;
+	}
+
+	private long currentBucket() {
+		return System.currentTimeMillis() / 1000L / bucketSeconds;
+	}
+}
@@ -0,0 +1,164 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Where the usage total of each account is stored in Redis, chosen by the <i>usage.storage.layout</i> property.
+ * <br><br>
+ * The KEY layout stores every account as its own string key (ACCOUNT:accountNumber) that expires
+ * <i>tier.expiry.seconds</i> after the account was created. Each key costs a dictionary entry, a key object
+ * and an expiry entry, which dominates Redis memory at tens of millions of accounts.
+ * <br><br>
+ * The HASH layout stores the accounts as fields of <i>usage.storage.hash.buckets</i> hashes (ACCOUNTS:bucket),
+ * by default one per ACCOUNTS_PER_BUCKET of <i>usage.storage.expected.accounts</i>. With at most <i>hash-max-ziplist-entries</i> (128 by default, <i>hash-max-listpack-entries</i> from Redis 7)
+ * fields per hash Redis keeps each hash in the compact ziplist/listpack encoding, so an account costs little
+ * more than its account number and total. Fields cannot expire on their own, so usage expires per billing
+ * cycle instead of per account: the billing cycles are consecutive periods of <i>tier.expiry.seconds</i>
+ * since the epoch, and every hash expires at the end of the cycle it was created in.
+ * <br><br>
+ * With <i>usage.storage.cycle.enabled</i> set (either layout) the keys are namespaced by billing cycle instead 
+ * (ACCOUNT@cycle:accountNumber and ACCOUNTS@cycle:bucket) and are written without any expiration. A new billing 
+ * cycle starts from zero simply because its keys do not exist yet, so no key is written at the cycle boundary 
+ * and no write has to set or check a TTL. The keys of past cycles are reclaimed in bulk by UsageCycleSweeper.
+ * <br><br>
+ * When the keys are spread over several Redis nodes (the CLUSTER and SHARDED <i>redis.mode</i>, see RedisShards)
+ * every usage key carries a hash tag after its prefix, e.g. ACCOUNT:{tag}:accountNumber and RATE:{tag}:accountNumber.
+ * The tag is derived from the bucket of the account, one of <i>usage.storage.hash.tags</i>, so the keys of an account,
+ * and all the accounts of a HASH layout hash, are in the same slot and can be updated by a single Lua script.
+ * Accounts sharing a tag are also increased together by one script call in a batch.
+ */
+@Component
+public class UsageStorage {
+
+	/**
+	 * Storage layout of the usage totals.
+	 */
+	public enum Layout {
+		/**
+		 * One string key per account, expiring per account.
+		 */
+		KEY,
+		/**
+		 * Accounts bucketed into small hashes, expiring per billing cycle.
+		 */
+		HASH;
+	}
+
+	static final String BUCKET_PREFIX = "ACCOUNTS:";
+	static final String ACCOUNT_CYCLE_PREFIX = "ACCOUNT@";
+	static final String BUCKET_CYCLE_PREFIX = "ACCOUNTS@";
+
+	/*
+	 * Half of the default hash-max-ziplist-entries, so that the fullest buckets of an uneven
+	 * spread of accounts still keep the compact encoding.
+	 */
+	static final int ACCOUNTS_PER_BUCKET = 64;
+
+	@Value("${usage.storage.layout}")
+	private Layout layout;
+
+	@Value("${usage.storage.hash.buckets}")
+	private int hashBuckets;
+
+	@Value("${usage.storage.expected.accounts}")
+	private long expectedAccounts;
+
+	@Value("${usage.storage.hash.tags}")
+	private int hashTags;
+
+	@Value("${usage.storage.cycle.enabled}")
+	private boolean cycleEnabled;
+
+	@Value("${tier.expiry.seconds}")
+	private long tierExpirySeconds;
+
+	@Autowired
+	private RedisShards redisShards;
+
+	/**
+	 * Size the HASH layout for the expected number of accounts, unless <i>usage.storage.hash.buckets</i> is set.
+	 * Changing the number of buckets moves accounts to other hashes, so it must not change once totals are stored.
+	 */
+	@PostConstruct
+	public void sizeBuckets() {
+		if(hashBuckets > 0) return;
+		hashBuckets = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, (expectedAccounts + ACCOUNTS_PER_BUCKET - 1) / ACCOUNTS_PER_BUCKET));
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	boolean isHashed() {
+		return layout == Layout.HASH;
+	}
+
+	boolean isCycled() {
+		return cycleEnabled;
+	}
+
+	/**
+	 * @return <b>long</b> number of the current billing cycle, consecutive periods of <i>tier.expiry.seconds</i> since the epoch
+	 */
+	long currentCycle() {
+		return System.currentTimeMillis() / 1000L / tierExpirySeconds;
+	}
+
+	/**
+	 * @param accountNumber String
+	 * @return <b>String</b> key holding the usage total of the account
+	 */
+	String key(String accountNumber) {
+		String prefix;
+		if(cycleEnabled) prefix = (isHashed() ? BUCKET_CYCLE_PREFIX : ACCOUNT_CYCLE_PREFIX) + currentCycle() + ":";
+		else prefix = isHashed() ? BUCKET_PREFIX : UsageDao.ACCOUNT_PREFIX;
+		return prefix + tag(accountNumber) + (isHashed() ? Integer.toString(bucket(accountNumber)) : accountNumber);
+	}
+
+	/**
+	 * @param accountNumber String
+	 * @return <b>String</b> key of the usage rate window of the account, in the same slot as its usage key
+	 */
+	String rateKey(String accountNumber) {
+		return UsageRateWindow.key(tag(accountNumber) + accountNumber);
+	}
+
+	/**
+	 * @return <b>String</b> hash tag of the keys of an account followed by a colon, empty when the keys are on a single node
+	 */
+	private String tag(String accountNumber) {
+		return redisShards.isDistributed() ? "{" + bucket(accountNumber) % hashTags + "}:" : "";
+	}
+
+	/**
+	 * @param accountNumber String
+	 * @return <b>String</b> hash field holding the usage total of the account, empty for the KEY layout
+	 */
+	String field(String accountNumber) {
+		return isHashed() ? accountNumber : "";
+	}
+
+	/**
+	 * Expiration of a new usage key: <i>tier.expiry.seconds</i> for the KEY layout, the seconds left
+	 * in the current billing cycle for the HASH layout. Keys namespaced by billing cycle do not expire.
+	 * @return <b>String</b> expiration in seconds, empty when the key must not expire
+	 */
+	String expirySeconds() {
+		if(cycleEnabled) return "";
+		if(!isHashed()) return Long.toString(tierExpirySeconds);
+		long nowSeconds = System.currentTimeMillis() / 1000L;
+		return Long.toString(tierExpirySeconds - nowSeconds % tierExpirySeconds);
+	}
+
+	/**
+	 * The bucket depends only on the account number (String.hashCode is specified), so every node
+	 * maps an account to the same hash.
+	 */
+	private int bucket(String accountNumber) {
+		return Math.floorMod(accountNumber.hashCode(), hashBuckets);
+	}
+}
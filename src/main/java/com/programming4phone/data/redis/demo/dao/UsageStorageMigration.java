@@ -0,0 +1,97 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves the usage totals stored with the KEY storage layout (ACCOUNT:accountNumber string keys) into the 
+ * hashes of the HASH layout (see UsageStorage). The account keys are found with SCAN, so Redis is never 
+ * blocked by a KEYS, and are moved UsageDao.BATCH_SIZE at a time by a Lua script that adds each total to 
+ * the hash field of the account and deletes the key atomically.
+ * <br><br>
+ * The migration can run while the nodes are serving requests with the HASH layout: increases already 
+ * written to the hashes are kept, and running it again only moves the keys that are left. Accounts take 
+ * the expiration of their hash, the end of the current billing cycle.
+ */
+@Component
+public class UsageStorageMigration {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final int LOG_INTERVAL = 100000;
+
+	@Autowired
+	private StringRedisTemplate stringRedisTemplate;
+
+	@Autowired
+	private UsageStorage usageStorage;
+
+	@Autowired
+	private RedisShards redisShards;
+
+	@Autowired
+	@Qualifier("migrateUsageScript")
+	private RedisScript<Long> migrateUsageScript;
+
+	/**
+	 * Move every account key into the hashes of the HASH storage layout.
+	 * @return <b>long</b> number of accounts moved
+	 * @throws IllegalStateException if <i>usage.storage.layout</i> is not HASH, or <i>redis.mode</i> is not STANDALONE
+	 */
+	public long migrate() {
+		if(!usageStorage.isHashed()) throw new IllegalStateException("usage.storage.layout must be HASH to migrate the account keys");
+		if(redisShards.isDistributed()) throw new IllegalStateException("The account keys can only be migrated in the STANDALONE redis.mode");
+		long startMillis = System.currentTimeMillis();
+		long moved = 0L;
+		List<String> accountNumbers = new ArrayList<String>(UsageDao.BATCH_SIZE);
+		// the cursor keeps using the connection it was opened on until the scan ends, and closes it when it is closed
+		RedisConnection connection = stringRedisTemplate.getConnectionFactory().getConnection();
+		Cursor<byte[]> cursor;
+		try {
+			cursor = connection.scan(ScanOptions.scanOptions().match(UsageDao.ACCOUNT_PREFIX + "*").count(UsageDao.BATCH_SIZE).build());
+		}
+		catch(RuntimeException re) {
+			connection.close();
+			throw re;
+		}
+		try(Cursor<byte[]> keys = cursor) {
+			while(keys.hasNext()) {
+				accountNumbers.add(new String(keys.next(), StandardCharsets.UTF_8).substring(UsageDao.ACCOUNT_PREFIX.length()));
+				if(accountNumbers.size() == UsageDao.BATCH_SIZE || !keys.hasNext()) {
+					long batchMoved = moveAccounts(accountNumbers);
+					if((moved + batchMoved) / LOG_INTERVAL > moved / LOG_INTERVAL) logger.info("Moved " + (moved + batchMoved) + " accounts");
+					moved += batchMoved;
+					accountNumbers.clear();
+				}
+			}
+		}
+		catch(IOException ioe) {
+			logger.warn("Unable to close the SCAN cursor", ioe);
+		}
+		logger.info("Moved " + moved + " accounts to the HASH storage layout in " + (System.currentTimeMillis() - startMillis) + " ms");
+		return moved;
+	}
+
+	private long moveAccounts(List<String> accountNumbers) {
+		List<String> keys = new ArrayList<String>(accountNumbers.size() * 2);
+		accountNumbers.forEach(accountNumber -> keys.add(UsageDao.ACCOUNT_PREFIX + accountNumber));
+		accountNumbers.forEach(accountNumber -> keys.add(usageStorage.key(accountNumber)));
+		List<String> args = new ArrayList<String>(accountNumbers.size() + 1);
+		args.add(usageStorage.expirySeconds());
+		args.addAll(accountNumbers);
+		return stringRedisTemplate.execute(migrateUsageScript, keys, args.toArray());
+	}
+}
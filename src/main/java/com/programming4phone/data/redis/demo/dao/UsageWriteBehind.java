@@ -0,0 +1,193 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Write-behind accumulator for data usage increases. When enabled by the <i>usage.writebehind.enabled</i>
+ * property, usage increases are added to an in-process map keyed by account and the merged amounts are
+ * flushed to Redis every <i>usage.writebehind.flush.millis</i>, or as soon as <i>usage.writebehind.max.accounts</i>
+ * accounts have pending amounts. Many small increases per account collapse into a single Redis write.
+ * <br><br>
+ * Pending amounts are lost if the process dies before a flush, so this mode is only suitable for
+ * loss tolerant traffic.
+ */
+@Component
+public class UsageWriteBehind implements PublicMetrics {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	/*
+	 * ConcurrentHashMap.merge and remove lock a single bin, so concurrent increases for different accounts
+	 * rarely contend, and an amount removed for a flush can never have an increase added to it afterwards.
+	 */
+	private final Map<String, Long> pendingAmounts = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong firstPendingNanos = new AtomicLong();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final Object flushLock = new Object();
+
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong flushFailureCount = new AtomicLong();
+	private final AtomicLong flushedAccountCount = new AtomicLong();
+	private volatile long lastFlushBatchSize;
+	private volatile long lastFlushLagMillis;
+	private volatile long maxFlushLagMillis;
+
+	@Value("${usage.writebehind.enabled}")
+	private boolean enabled;
+
+	@Value("${usage.writebehind.flush.millis}")
+	private long flushMillis;
+
+	@Value("${usage.writebehind.max.accounts}")
+	private int maxAccounts;
+
+	private ScheduledExecutorService scheduler;
+	private Function<Map<String, Long>, Map<String, Long>> flusher;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start flushing pending amounts on a schedule.
+	 * @param flusher Function that writes a Map of account number to amount to increase by to Redis, and returns 
+	 * the Map of the amounts it did not write
+	 */
+	synchronized void start(Function<Map<String, Long>, Map<String, Long>> flusher) {
+		if(!enabled || scheduler != null) return;
+		this.flusher = flusher;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "usage-write-behind");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the scheduled flushes and flush any amounts still pending.
+	 */
+	synchronized void stop() {
+		if(scheduler == null) return;
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(flushMillis * 10, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		scheduler = null;
+	}
+
+	/**
+	 * Add an amount to the pending increase for an account.
+	 * @param accountNumber String
+	 * @param usageAmount long
+	 */
+	void add(String accountNumber, long usageAmount) {
+		firstPendingNanos.compareAndSet(0L, System.nanoTime());
+		pendingAmounts.merge(accountNumber, usageAmount, Long::sum);
+		if(pendingAmounts.size() >= maxAccounts && flushRequested.compareAndSet(false, true)) {
+			ScheduledExecutorService flushScheduler = scheduler;
+			if(flushScheduler != null) flushScheduler.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Return the amount pending for an account, without removing it.
+	 * @param accountNumber String
+	 * @return <b>long</b> pending amount, zero if none
+	 */
+	long pending(String accountNumber) {
+		return pendingAmounts.getOrDefault(accountNumber, 0L);
+	}
+
+	/**
+	 * Remove and return the amount pending for an account, so that it can be written to Redis immediately.
+	 * @param accountNumber String
+	 * @return <b>long</b> pending amount, zero if none
+	 */
+	long take(String accountNumber) {
+		Long usageAmount = pendingAmounts.remove(accountNumber);
+		return usageAmount == null ? 0L : usageAmount;
+	}
+
+	/**
+	 * Flush every pending amount to Redis. The amounts the flush did not write, or every amount if it failed,
+	 * are merged back so they are retried by the next flush. The amounts written are never written twice.
+	 */
+	void flush() {
+		synchronized(flushLock) {
+			flushPending();
+		}
+	}
+
+	private void flushPending() {
+		flushRequested.set(false);
+		long firstPending = firstPendingNanos.getAndSet(0L);
+		if(pendingAmounts.isEmpty()) return;
+		Map<String, Long> usageAmounts = new HashMap<String, Long>();
+		for(String accountNumber : pendingAmounts.keySet()) {
+			Long usageAmount = pendingAmounts.remove(accountNumber);
+			if(usageAmount != null) usageAmounts.put(accountNumber, usageAmount);
+		}
+		Map<String, Long> unwrittenAmounts;
+		try {
+			unwrittenAmounts = flusher.apply(usageAmounts);
+		}
+		catch(RuntimeException re) {
+			unwrittenAmounts = usageAmounts;
+			logger.warn("Unable to flush " + usageAmounts.size() + " pending usage amounts, retrying on next flush", re);
+		}
+		if(!unwrittenAmounts.isEmpty()) {
+			flushFailureCount.incrementAndGet();
+			flushedAccountCount.addAndGet(usageAmounts.size() - unwrittenAmounts.size());
+			unwrittenAmounts.forEach((accountNumber, usageAmount) -> pendingAmounts.merge(accountNumber, usageAmount, Long::sum));
+			firstPendingNanos.compareAndSet(0L, firstPending);
+			return;
+		}
+		long lagMillis = firstPending == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstPending);
+		flushCount.incrementAndGet();
+		flushedAccountCount.addAndGet(usageAmounts.size());
+		lastFlushBatchSize = usageAmounts.size();
+		lastFlushLagMillis = lagMillis;
+		maxFlushLagMillis = Math.max(maxFlushLagMillis, lagMillis);
+	}
+
+	/**
+	 * Write-behind metrics exposed by the actuator metrics endpoint. The flush lag is the time from the
+	 * first amount added after a flush until the next flush wrote it to Redis.
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(!enabled) return metrics;
+		metrics.add(new Metric<Integer>("usage.writebehind.pending.accounts", pendingAmounts.size()));
+		metrics.add(new Metric<Long>("usage.writebehind.flush.count", flushCount.get()));
+		metrics.add(new Metric<Long>("usage.writebehind.flush.failures", flushFailureCount.get()));
+		metrics.add(new Metric<Long>("usage.writebehind.flush.accounts", flushedAccountCount.get()));
+		metrics.add(new Metric<Long>("usage.writebehind.flush.batch.size", lastFlushBatchSize));
+		metrics.add(new Metric<Long>("usage.writebehind.flush.lag.millis", lastFlushLagMillis));
+		metrics.add(new Metric<Long>("usage.writebehind.flush.lag.max.millis", maxFlushLagMillis));
+		return metrics;
+	}
+}
@@ -0,0 +1,292 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded in-process queue of usage increases and decreases, for the endpoints that acknowledge a usage event
+ * as soon as it is queued instead of waiting for Redis (<i>ack=async</i>). The queue holds at most
+ * <i>usage.ack.queue.capacity</i> events, split evenly between <i>usage.ack.writers</i> writer threads. Each
+ * writer takes up to <i>usage.ack.batch.size</i> events at a time, coalesces the increases per account and
+ * writes them with a single pipelined batch per node (see UsageDao.tryIncreaseAmountsUsed). Only the accounts a
+ * batch did not write are retried, so the accounts already written on the nodes that answered are never written twice.
+ * <br><br>
+ * Events are routed to a writer by account, so the events of an account are written in the order they were
+ * queued, and a decrease is always clamped against every increase queued before it. When the queue of a writer
+ * is full the event is refused, and the caller should retry later. A write that fails because Redis is unavailable
+ * (see RedisCircuitBreaker.isUnavailable) is retried every <i>usage.ack.retry.millis</i>, so while Redis is down
+ * the queue fills and further events are refused. A write Redis answers with an error is retried at most
+ * <i>usage.ack.max.attempts</i> times, the increases Redis rejected then being written one account at a time, after
+ * which the events of the account are dropped and counted as poisoned.
+ * <br><br>
+ * The queue is not durable: it is only held in the memory of this instance, and acknowledging an event does not
+ * persist it. Events still queued are written at shutdown, but are lost if the process dies, so callers that
+ * cannot lose an event must not use <i>ack=async</i>.
+ */
+@Component
+public class UsageWriteQueue implements PublicMetrics {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	@Value("${usage.ack.queue.capacity}")
+	private int capacity;
+
+	@Value("${usage.ack.writers}")
+	private int writerCount;
+
+	@Value("${usage.ack.batch.size}")
+	private int batchSize;
+
+	@Value("${usage.ack.retry.millis}")
+	private long retryMillis;
+
+	@Value("${usage.ack.max.attempts}")
+	private int maxAttempts;
+
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong poisonedCount = new AtomicLong();
+	private volatile long lastBatchSize;
+
+	private List<BlockingQueue<UsageEvent>> queues;
+	private List<Thread> writers;
+	private volatile boolean running;
+	private Function<Map<String, Long>, Map<String, Long>> increaser;
+	private BiConsumer<String, Long> decreaser;
+
+	/**
+	 * Start the writer threads.
+	 * @param increaser Function that writes a Map of account number to amount to increase by to Redis, and returns
+	 * the Map of the amounts it did not write
+	 * @param decreaser BiConsumer that decreases the usage of an account in Redis
+	 */
+	synchronized void start(Function<Map<String, Long>, Map<String, Long>> increaser, BiConsumer<String, Long> decreaser) {
+		if(writers != null) return;
+		this.increaser = increaser;
+		this.decreaser = decreaser;
+		int writerCapacity = Math.max(1, capacity / writerCount);
+		queues = new ArrayList<BlockingQueue<UsageEvent>>(writerCount);
+		writers = new ArrayList<Thread>(writerCount);
+		running = true;
+		for(int i=0; i<writerCount; i++) {
+			BlockingQueue<UsageEvent> queue = new ArrayBlockingQueue<UsageEvent>(writerCapacity);
+			Thread writer = new Thread(() -> write(queue), "usage-write-queue-" + i);
+			writer.setDaemon(true);
+			queues.add(queue);
+			writers.add(writer);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Stop the writer threads once they have written the events still queued.
+	 */
+	synchronized void stop() {
+		if(writers == null) return;
+		running = false;
+		for(Thread writer : writers) {
+			try {
+				writer.join(retryMillis * 10 + TimeUnit.SECONDS.toMillis(10));
+			}
+			catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		writers = null;
+	}
+
+	/**
+	 * Queue an increase (a positive amount) or a decrease (a negative amount) of the usage of an account.
+	 * @param accountNumber String
+	 * @param signedAmount long
+	 * @return <b>boolean</b> true if the event was queued, false if the queue is full
+	 */
+	boolean offer(String accountNumber, long signedAmount) {
+		List<BlockingQueue<UsageEvent>> writerQueues = queues;
+		boolean accepted = running
+				&& writerQueues.get((accountNumber.hashCode() & 0x7fffffff) % writerQueues.size()).offer(new UsageEvent(accountNumber, signedAmount));
+		(accepted ? acceptedCount : rejectedCount).incrementAndGet();
+		return accepted;
+	}
+
+	/**
+	 * @return <b>int</b> number of events queued and not yet taken by a writer
+	 */
+	int depth() {
+		int depth = 0;
+		if(queues != null) for(BlockingQueue<UsageEvent> queue : queues) depth += queue.size();
+		return depth;
+	}
+
+	private void write(BlockingQueue<UsageEvent> queue) {
+		List<UsageEvent> batch = new ArrayList<UsageEvent>(batchSize);
+		while(running || !queue.isEmpty()) {
+			try {
+				UsageEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null) continue;
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				lastBatchSize = batch.size();
+				writeBatch(batch);
+			}
+			catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write a batch in order: increases are coalesced per account, and the increases of an account
+	 * are written before a decrease of that account.
+	 */
+	private void writeBatch(List<UsageEvent> batch) throws InterruptedException {
+		Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+		Map<String, Integer> events = new LinkedHashMap<String, Integer>();
+		for(UsageEvent event : batch) {
+			if(event.signedAmount >= 0L) {
+				usageAmounts.merge(event.accountNumber, event.signedAmount, Long::sum);
+				events.merge(event.accountNumber, 1, Integer::sum);
+				continue;
+			}
+			if(usageAmounts.containsKey(event.accountNumber)) {
+				writeIncreases(new LinkedHashMap<String, Long>(usageAmounts), new LinkedHashMap<String, Integer>(events));
+				usageAmounts.clear();
+				events.clear();
+			}
+			writeWithRetry(() -> decreaser.accept(event.accountNumber, -event.signedAmount), 1);
+		}
+		if(!usageAmounts.isEmpty()) writeIncreases(usageAmounts, events);
+	}
+
+	/**
+	 * Write the coalesced increases of several accounts, retrying only the accounts not written. If Redis answers
+	 * every account left of several with an error, which fails the whole script call, they are written one account
+	 * at a time, so only the events of the account Redis rejects are dropped.
+	 */
+	private void writeIncreases(Map<String, Long> usageAmounts, Map<String, Integer> events) throws InterruptedException {
+		int rejections = 0;
+		while(true) {
+			RuntimeException failure = null;
+			Map<String, Long> unwrittenAmounts;
+			try {
+				unwrittenAmounts = increaser.apply(usageAmounts);
+			}
+			catch(RuntimeException re) {
+				failure = re;
+				unwrittenAmounts = usageAmounts;
+			}
+			writtenCount.addAndGet(events(usageAmounts, events) - events(unwrittenAmounts, events));
+			if(unwrittenAmounts.isEmpty()) return;
+			usageAmounts = unwrittenAmounts;
+			failureCount.incrementAndGet();
+			int eventCount = events(usageAmounts, events);
+			if(!running) {
+				droppedCount.addAndGet(eventCount);
+				logger.error("Unable to write " + eventCount + " queued usage events at shutdown, dropping them", failure);
+				return;
+			}
+			if(failure != null && !RedisCircuitBreaker.isUnavailable(failure)) {
+				if(usageAmounts.size() > 1) {
+					for(Map.Entry<String, Long> usageAmount : usageAmounts.entrySet()) {
+						writeIncreases(Collections.singletonMap(usageAmount.getKey(), usageAmount.getValue()), events);
+					}
+					return;
+				}
+				if(++rejections >= maxAttempts) {
+					poisonedCount.addAndGet(eventCount);
+					logger.error("Redis rejected " + eventCount + " queued usage events " + rejections + " times, dropping them", failure);
+					return;
+				}
+			}
+			logger.warn("Unable to write " + eventCount + " queued usage events, retrying in " + retryMillis + " ms", failure);
+			Thread.sleep(retryMillis);
+		}
+	}
+
+	private static int events(Map<String, Long> usageAmounts, Map<String, Integer> events) {
+		int eventCount = 0;
+		for(String accountNumber : usageAmounts.keySet()) eventCount += events.get(accountNumber);
+		return eventCount;
+	}
+
+	private void writeWithRetry(Runnable write, int events) throws InterruptedException {
+		int rejections = 0;
+		while(true) {
+			try {
+				write.run();
+				writtenCount.addAndGet(events);
+				return;
+			}
+			catch(RuntimeException re) {
+				failureCount.incrementAndGet();
+				if(!running) {
+					droppedCount.addAndGet(events);
+					logger.error("Unable to write " + events + " queued usage events at shutdown, dropping them", re);
+					return;
+				}
+				if(!RedisCircuitBreaker.isUnavailable(re) && ++rejections >= maxAttempts) {
+					poisonedCount.addAndGet(events);
+					logger.error("Redis rejected " + events + " queued usage events " + rejections + " times, dropping them", re);
+					return;
+				}
+				logger.warn("Unable to write " + events + " queued usage events, retrying in " + retryMillis + " ms", re);
+				Thread.sleep(retryMillis);
+			}
+		}
+	}
+
+	/**
+	 * Write queue metrics exposed by the actuator metrics endpoint.
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		int maxDepth = 0;
+		if(queues != null) for(BlockingQueue<UsageEvent> queue : queues) maxDepth = Math.max(maxDepth, queue.size());
+		metrics.add(new Metric<Integer>("usage.ack.queue.depth", depth()));
+		metrics.add(new Metric<Integer>("usage.ack.queue.depth.max", maxDepth));
+		metrics.add(new Metric<Integer>("usage.ack.queue.capacity", capacity));
+		metrics.add(new Metric<Long>("usage.ack.accepted", acceptedCount.get()));
+		metrics.add(new Metric<Long>("usage.ack.rejected", rejectedCount.get()));
+		metrics.add(new Metric<Long>("usage.ack.written", writtenCount.get()));
+		metrics.add(new Metric<Long>("usage.ack.failures", failureCount.get()));
+		metrics.add(new Metric<Long>("usage.ack.dropped", droppedCount.get()));
+		metrics.add(new Metric<Long>("usage.ack.poisoned", poisonedCount.get()));
+		metrics.add(new Metric<Long>("usage.ack.batch.size", lastBatchSize));
+		return metrics;
+	}
+
+	private static final class UsageEvent {
+		private final String accountNumber;
+		private final long signedAmount;
+
+		private UsageEvent(String accountNumber, long signedAmount) {
+			this.accountNumber = accountNumber;
+			this.signedAmount = signedAmount;
+		}
+	}
+}
@@ -1,11 +1,17 @@
 package com.programming4phone.data.redis.demo.entity;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 public class CustomerUsage {
 
 	private String accountNumber;
 	private Long currentUsage;
 	private Long totalUsage;
 	private String speed;
+	// only set when the usage rate window is enabled, so it is left out of the JSON otherwise
+	@JsonInclude(Include.NON_NULL)
+	private Long windowUsage;
 	
 	public String getAccountNumber() {
 		return accountNumber;
@@ -36,10 +42,18 @@ public class CustomerUsage {
 		return this;
 	}
 	
+	public Long getWindowUsage() {
+		return windowUsage;
+	}
+	public CustomerUsage setWindowUsage(Long windowUsage) {
+		this.windowUsage = windowUsage;
+		return this;
+	}
+	
 	@Override
 	public String toString() {
 		return "CustomerUsage [accountNumber=" + accountNumber + ", currentUsage=" + currentUsage + ", totalUsage="
-				+ totalUsage + ", speed=" + speed + "]";
+				+ totalUsage + ", speed=" + speed + ", windowUsage=" + windowUsage + "]";
 	}
 	
 }
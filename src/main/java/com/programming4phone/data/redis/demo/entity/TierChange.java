@@ -0,0 +1,44 @@
+package com.programming4phone.data.redis.demo.entity;
+
+public class TierChange {
+
+	private String accountNumber;
+	private String previousSpeed;
+	private String speed;
+	private Long totalUsage;
+	
+	public String getAccountNumber() {
+		return accountNumber;
+	}
+	public TierChange setAccountNumber(String accountNumber) {
+		this.accountNumber = accountNumber;
+		return this;
+	}
+	public String getPreviousSpeed() {
+		return previousSpeed;
+	}
+	public TierChange setPreviousSpeed(String previousSpeed) {
+		this.previousSpeed = previousSpeed;
+		return this;
+	}
+	public String getSpeed() {
+		return speed;
+	}
+	public TierChange setSpeed(String speed) {
+		this.speed = speed;
+		return this;
+	}
+	public Long getTotalUsage() {
+		return totalUsage;
+	}
+	public TierChange setTotalUsage(Long totalUsage) {
+		this.totalUsage = totalUsage;
+		return this;
+	}
+	
+	@Override
+	public String toString() {
+		return "TierChange [accountNumber=" + accountNumber + ", previousSpeed=" + previousSpeed + ", speed=" + speed
+				+ ", totalUsage=" + totalUsage + "]";
+	}
+}
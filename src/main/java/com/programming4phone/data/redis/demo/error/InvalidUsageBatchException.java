@@ -0,0 +1,8 @@
+package com.programming4phone.data.redis.demo.error;
+
+/**
+ * Thrown for a usage batch in the binary format that is truncated or holds an amount too large.
+ */
+public class InvalidUsageBatchException extends RuntimeException{
+	private static final long serialVersionUID = 6809243186570418832L;
+}
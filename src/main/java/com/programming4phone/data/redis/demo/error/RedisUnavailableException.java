@@ -0,0 +1,8 @@
+package com.programming4phone.data.redis.demo.error;
+
+/**
+ * Thrown for an operation that has no local fallback while the Redis circuit breaker is open.
+ */
+public class RedisUnavailableException extends RuntimeException{
+	private static final long serialVersionUID = -2293154407702683651L;
+}
@@ -0,0 +1,8 @@
+package com.programming4phone.data.redis.demo.error;
+
+/**
+ * Thrown when a usage event cannot be queued because the write queue is full.
+ */
+public class UsageQueueFullException extends RuntimeException{
+	private static final long serialVersionUID = 4127019386657324711L;
+}
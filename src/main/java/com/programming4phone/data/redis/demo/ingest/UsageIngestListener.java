@@ -0,0 +1,534 @@
+package com.programming4phone.data.redis.demo.ingest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.programming4phone.data.redis.demo.dao.UsageDao;
+import com.programming4phone.data.redis.demo.error.InvalidUsageBatchException;
+import com.programming4phone.data.redis.demo.rest.UsageBatchCodec;
+
+/**
+ * Socket listener ingesting a continuous stream of usage increases, enabled by the <i>ingest.enabled</i> property,
+ * for network elements that stream usage and would otherwise wrap every record in an HTTP request. The records
+ * are those of the binary usage batches (see UsageBatchCodec): a TCP connection on <i>ingest.tcp.port</i> streams
+ * records back to back, and each UDP datagram on <i>ingest.udp.port</i> holds whole records. Nothing is sent back.
+ * <br><br>
+ * Connections are spread over <i>ingest.workers</i> worker threads, each with its own selector. A worker reads each
+ * connection into a direct buffer of <i>ingest.buffer.bytes</i> and decodes the records straight from it, adding the
+ * amounts per account. Every <i>ingest.flush.millis</i>, or as soon as <i>ingest.batch.max.accounts</i> accounts have
+ * amounts, the worker writes them with UsageDao.tryIncreaseAmountsUsed, one pipelined batch per node. Only the
+ * accounts that were not written are retried, so a node that fails does not make the others count their amounts
+ * twice, and the amounts are never journaled by the Redis circuit breaker.
+ * <br><br>
+ * Flow control is per connection: once a connection has sent <i>ingest.connection.max.records</i> records that are
+ * not written yet, the worker stops reading it until the next batch is written. Its socket buffers then fill and
+ * TCP slows the sender down, without holding back the other connections. A worker also stops reading while it
+ * writes, retrying a failed write every <i>ingest.retry.millis</i>, so every connection of the worker is slowed down
+ * while Redis is down. After <i>ingest.max.attempts</i> attempts the amounts still not written are dropped and counted
+ * in the usage.ingest.dropped metrics, and the worker resumes reading. A write that timed out may still have been
+ * applied by Redis, so its retry may count the amounts twice. UDP has no flow control: datagrams are dropped by the
+ * kernel when the socket buffer is full.
+ * <br><br>
+ * A connection sending a malformed record, or failing in any other way, is closed. A worker that stops unexpectedly
+ * is replaced by a new one, which takes over the connections still waiting to be registered, and the amounts it had
+ * read are written or counted as dropped; the connections it was reading are closed and their senders reconnect.
+ * If it cannot be replaced it is taken out of rotation. Records not yet written are lost if the process dies.
+ */
+@Component
+public class UsageIngestListener implements PublicMetrics {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	@Autowired
+	private UsageDao usageDao;
+
+	@Value("${ingest.enabled}")
+	private boolean enabled;
+
+	@Value("${ingest.tcp.port}")
+	private int tcpPort;
+
+	@Value("${ingest.udp.port}")
+	private int udpPort;
+
+	@Value("${ingest.workers}")
+	private int workerCount;
+
+	@Value("${ingest.buffer.bytes}")
+	private int bufferBytes;
+
+	@Value("${ingest.batch.max.accounts}")
+	private int batchMaxAccounts;
+
+	@Value("${ingest.flush.millis}")
+	private long flushMillis;
+
+	@Value("${ingest.connection.max.records}")
+	private int connectionMaxRecords;
+
+	@Value("${ingest.retry.millis}")
+	private long retryMillis;
+
+	@Value("${ingest.max.attempts}")
+	private int maxAttempts;
+
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicLong recordCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final AtomicLong datagramCount = new AtomicLong();
+	private final AtomicLong malformedCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong writeFailureCount = new AtomicLong();
+	private final AtomicLong pausedCount = new AtomicLong();
+	private final AtomicLong connectionErrorCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong droppedUsage = new AtomicLong();
+	private final AtomicLong restartCount = new AtomicLong();
+
+	private ServerSocketChannel serverChannel;
+	private DatagramChannel datagramChannel;
+	private final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+	private volatile boolean running;
+
+	/**
+	 * Bind the TCP and UDP ports and start the acceptor and worker threads.
+	 * @throws IOException if a port cannot be bound
+	 */
+	@PostConstruct
+	public void start() throws IOException {
+		if(!enabled) return;
+		running = true;
+		for(int i=0; i<workerCount; i++) {
+			Worker worker = new Worker(i);
+			workers.add(worker);
+			worker.start();
+		}
+		if(tcpPort >= 0) {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(tcpPort));
+			Thread acceptor = new Thread(this::accept, "usage-ingest-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			logger.info("Ingesting usage on TCP port " + getTcpPort());
+		}
+		if(udpPort >= 0) {
+			datagramChannel = DatagramChannel.open();
+			datagramChannel.bind(new InetSocketAddress(udpPort));
+			datagramChannel.configureBlocking(false);
+			workers.get(0).register(datagramChannel);
+			logger.info("Ingesting usage on UDP port " + getUdpPort());
+		}
+	}
+
+	/**
+	 * Close the ports and stop the workers once they have written the amounts already read.
+	 */
+	@PreDestroy
+	public void stop() throws IOException, InterruptedException {
+		if(!running) return;
+		running = false;
+		if(serverChannel != null) serverChannel.close();
+		if(datagramChannel != null) datagramChannel.close();
+		for(Worker worker : workers) {
+			worker.selector.wakeup();
+			worker.join(retryMillis * maxAttempts + TimeUnit.SECONDS.toMillis(10));
+		}
+	}
+
+	/**
+	 * @return <b>int</b> local TCP port, useful when <i>ingest.tcp.port</i> is zero (any free port), -1 if not listening
+	 */
+	public int getTcpPort() {
+		try {
+			return serverChannel == null ? -1 : ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+		}
+		catch(IOException ioe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return <b>int</b> local UDP port, useful when <i>ingest.udp.port</i> is zero (any free port), -1 if not listening
+	 */
+	public int getUdpPort() {
+		try {
+			return datagramChannel == null ? -1 : ((InetSocketAddress) datagramChannel.getLocalAddress()).getPort();
+		}
+		catch(IOException ioe) {
+			return -1;
+		}
+	}
+
+	private void accept() {
+		int next = 0;
+		while(running) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				Worker worker = nextWorker(next++);
+				if(worker != null) worker.register(channel);
+				else {
+					logger.warn("No usage ingestion worker is running, closing connection " + channel);
+					channel.close();
+				}
+			}
+			catch(ClosedChannelException cce) {
+				return;
+			}
+			catch(IOException ioe) {
+				logger.warn("Unable to accept a usage ingestion connection", ioe);
+			}
+		}
+	}
+
+	/**
+	 * @return <b>Worker</b> the next running worker in rotation from next, null if none is running
+	 */
+	private Worker nextWorker(int next) {
+		for(int i=0; i<workers.size(); i++) {
+			Worker worker = workers.get(Math.floorMod(next + i, workers.size()));
+			if(!worker.stopped) return worker;
+		}
+		return null;
+	}
+
+	/**
+	 * Replace a worker that stopped unexpectedly, handing its pending registrations (the UDP channel included for
+	 * the first worker) over to the new one. If the new worker cannot be started, the stopped one stays in place
+	 * and out of rotation.
+	 */
+	private void replace(Worker worker) {
+		try {
+			Worker replacement = new Worker(worker.index);
+			workers.set(worker.index, replacement);
+			replacement.start();
+			restartCount.incrementAndGet();
+			if(worker.index == 0 && datagramChannel != null && datagramChannel.isOpen()) replacement.register(datagramChannel);
+		}
+		catch(IOException ioe) {
+			logger.error("Unable to restart usage ingestion worker " + worker.index + ", taking it out of rotation", ioe);
+		}
+		worker.handOver();
+	}
+
+	/**
+	 * Read state of a TCP connection.
+	 */
+	private static final class Connection {
+		private final ByteBuffer buffer;
+		private int pendingRecords;
+
+		private Connection(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	private final class Worker extends Thread {
+
+		private final int index;
+		private final Selector selector;
+		private final Queue<SelectableChannel> registrations = new ConcurrentLinkedQueue<SelectableChannel>();
+		private final UsageBatchCodec.Accumulator accumulator = new UsageBatchCodec.Accumulator();
+		private final ByteBuffer datagramBuffer;
+		private final List<SelectionKey> pausedKeys = new ArrayList<SelectionKey>();
+		private long firstPendingNanos;
+		private volatile boolean stopped;
+
+		private Worker(int index) throws IOException {
+			super("usage-ingest-worker-" + index);
+			setDaemon(true);
+			this.index = index;
+			selector = Selector.open();
+			// a datagram is at most 64 KB
+			datagramBuffer = index == 0 ? ByteBuffer.allocateDirect(65536) : null;
+		}
+
+		private void register(SelectableChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+			// the worker may have stopped since it was picked
+			if(stopped) handOver();
+		}
+
+		/**
+		 * Register the channels still waiting for this stopped worker with the worker now in its place, or close
+		 * them if there is none.
+		 */
+		private void handOver() {
+			Worker replacement = workers.get(index);
+			for(SelectableChannel channel; (channel = registrations.poll()) != null; ) {
+				if(replacement != this && !replacement.stopped) replacement.register(channel);
+				else if(channel instanceof SocketChannel) {
+					try {
+						channel.close();
+					}
+					catch(IOException ioe) {
+						// closing anyway
+					}
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(running) {
+					registerNew();
+					long waitMillis = accumulator.size() == 0 ? 0L
+							: Math.max(1L, flushMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstPendingNanos));
+					selector.select(waitMillis);
+					Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+					while(selectedKeys.hasNext()) {
+						SelectionKey key = selectedKeys.next();
+						selectedKeys.remove();
+						try {
+							if(key.isValid() && key.isReadable()) read(key);
+						}
+						catch(RuntimeException re) {
+							connectionErrorCount.incrementAndGet();
+							logger.warn("Unexpected error reading usage ingestion channel " + key.channel(), re);
+							// the UDP channel is shared by every sender, only a TCP connection is closed
+							if(key.channel() instanceof SocketChannel) close(key);
+						}
+					}
+					if(accumulator.size() > 0 && (accumulator.size() >= batchMaxAccounts
+							|| System.nanoTime() - firstPendingNanos >= TimeUnit.MILLISECONDS.toNanos(flushMillis))) {
+						flush();
+					}
+				}
+				flush();
+			}
+			catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			catch(IOException | RuntimeException e) {
+				stopped = true;
+				if(running) {
+					logger.error("Usage ingestion worker " + index + " stopped unexpectedly, replacing it", e);
+					replace(this);
+					salvage();
+				}
+			}
+			finally {
+				stopped = true;
+				// the UDP channel outlives the worker, closing the selector deregisters it
+				if(selector.isOpen()) {
+					for(SelectionKey key : selector.keys()) {
+						if(key.channel() instanceof SocketChannel) close(key);
+					}
+				}
+				try {
+					selector.close();
+				}
+				catch(IOException ioe) {
+					// closing anyway
+				}
+			}
+		}
+
+		private void registerNew() {
+			for(SelectableChannel channel; (channel = registrations.poll()) != null; ) {
+				try {
+					if(channel instanceof SocketChannel) {
+						channel.register(selector, SelectionKey.OP_READ, new Connection(ByteBuffer.allocateDirect(bufferBytes)));
+						connectionCount.incrementAndGet();
+					}
+					else channel.register(selector, SelectionKey.OP_READ);
+				}
+				catch(ClosedChannelException cce) {
+					// closed by the sender or the listener before it could be registered
+				}
+			}
+		}
+
+		private void read(SelectionKey key) {
+			if(key.channel() instanceof DatagramChannel) {
+				receive((DatagramChannel) key.channel());
+				return;
+			}
+			Connection connection = (Connection) key.attachment();
+			ByteBuffer buffer = connection.buffer;
+			try {
+				int read = ((SocketChannel) key.channel()).read(buffer);
+				if(read < 0) {
+					// the amounts already decoded are written by the next flush
+					close(key);
+					return;
+				}
+				byteCount.addAndGet(read);
+				buffer.flip();
+				int records = decode(buffer);
+				buffer.compact();
+				// a record larger than the buffer could never be decoded
+				if(!buffer.hasRemaining()) throw new InvalidUsageBatchException();
+				connection.pendingRecords += records;
+				if(connection.pendingRecords >= connectionMaxRecords) {
+					key.interestOps(0);
+					pausedKeys.add(key);
+					pausedCount.incrementAndGet();
+				}
+			}
+			catch(InvalidUsageBatchException iube) {
+				malformedCount.incrementAndGet();
+				logger.warn("Closing usage ingestion connection " + key.channel() + " after a malformed record");
+				close(key);
+			}
+			catch(IOException ioe) {
+				close(key);
+			}
+		}
+
+		private void receive(DatagramChannel channel) {
+			try {
+				while(true) {
+					datagramBuffer.clear();
+					if(channel.receive(datagramBuffer) == null) return;
+					datagramBuffer.flip();
+					datagramCount.incrementAndGet();
+					byteCount.addAndGet(datagramBuffer.remaining());
+					try {
+						decode(datagramBuffer);
+						// a datagram holds whole records
+						if(datagramBuffer.hasRemaining()) malformedCount.incrementAndGet();
+					}
+					catch(InvalidUsageBatchException iube) {
+						malformedCount.incrementAndGet();
+					}
+					if(accumulator.size() >= batchMaxAccounts) return;
+				}
+			}
+			catch(IOException ioe) {
+				logger.warn("Unable to receive a usage ingestion datagram", ioe);
+			}
+		}
+
+		private int decode(ByteBuffer buffer) {
+			if(accumulator.size() == 0) firstPendingNanos = System.nanoTime();
+			int records = UsageBatchCodec.decode(buffer, accumulator);
+			recordCount.addAndGet(records);
+			return records;
+		}
+
+		/**
+		 * Write the amounts read since the last flush, then resume reading the connections that were paused.
+		 */
+		private void flush() throws InterruptedException {
+			if(accumulator.size() > 0) write(accumulator.drain());
+			for(SelectionKey key : selector.keys()) {
+				if(key.attachment() instanceof Connection) ((Connection) key.attachment()).pendingRecords = 0;
+			}
+			for(SelectionKey key : pausedKeys) {
+				if(key.isValid()) key.interestOps(SelectionKey.OP_READ);
+			}
+			pausedKeys.clear();
+		}
+
+		/**
+		 * Write amounts, retrying the accounts not written every retryMillis, for at most maxAttempts attempts
+		 * or a single one once the listener stops. The accounts still not written are dropped and counted.
+		 */
+		private void write(Map<String, Long> usageAmounts) throws InterruptedException {
+			for(int attempts=1; ; attempts++) {
+				RuntimeException failure = null;
+				try {
+					usageAmounts = usageDao.tryIncreaseAmountsUsed(usageAmounts);
+				}
+				catch(RuntimeException re) {
+					failure = re;
+				}
+				if(usageAmounts.isEmpty()) {
+					batchCount.incrementAndGet();
+					return;
+				}
+				writeFailureCount.incrementAndGet();
+				if(!running || attempts >= maxAttempts) {
+					long usage = usageAmounts.values().stream().mapToLong(Long::longValue).sum();
+					droppedCount.addAndGet(usageAmounts.size());
+					droppedUsage.addAndGet(usage);
+					logger.error("Unable to write " + usageAmounts.size() + " ingested usage amounts (" + usage + " in total) after " + attempts + " attempts, dropping them", failure);
+					return;
+				}
+				logger.warn("Unable to write " + usageAmounts.size() + " ingested usage amounts, retrying in " + retryMillis + " ms", failure);
+				Thread.sleep(retryMillis);
+			}
+		}
+
+		/**
+		 * Write whatever this stopped worker had read, as long as its accumulator can still be drained.
+		 */
+		private void salvage() {
+			try {
+				if(accumulator.size() > 0) write(accumulator.drain());
+			}
+			catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			catch(RuntimeException re) {
+				logger.error("Unable to recover the usage amounts read by usage ingestion worker " + index, re);
+			}
+		}
+
+		private void close(SelectionKey key) {
+			if(key.attachment() instanceof Connection && key.isValid()) connectionCount.decrementAndGet();
+			key.cancel();
+			try {
+				key.channel().close();
+			}
+			catch(IOException ioe) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Ingestion metrics exposed by the actuator metrics endpoint.
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(!enabled) return metrics;
+		metrics.add(new Metric<Integer>("usage.ingest.connections", connectionCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.records", recordCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.bytes", byteCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.datagrams", datagramCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.malformed", malformedCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.batches", batchCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.write.failures", writeFailureCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.paused", pausedCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.connection.errors", connectionErrorCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.dropped", droppedCount.get()));
+		metrics.add(new Metric<Long>("usage.ingest.dropped.usage", droppedUsage.get()));
+		metrics.add(new Metric<Long>("usage.ingest.worker.restarts", restartCount.get()));
+		return metrics;
+	}
+}
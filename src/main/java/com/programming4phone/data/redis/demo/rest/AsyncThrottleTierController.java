@@ -0,0 +1,90 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.programming4phone.data.redis.demo.dao.AsyncTierDao;
+import com.programming4phone.data.redis.demo.dao.AsyncUsageDao;
+import com.programming4phone.data.redis.demo.entity.CustomerUsage;
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.error.InvalidTierSpeedException;
+import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
+
+/**
+ * Non-blocking variant of ThrottleTierController, active with the <i>async</i> profile. Same paths and JSON, 
+ * with each method returning a CompletableFuture.
+ */
+@CrossOrigin
+@RestController
+@Profile("async")
+@RequestMapping("/throttle/tier")
+public class AsyncThrottleTierController {
+	
+	@Autowired
+	private AsyncTierDao asyncTierDao;
+	
+	@Autowired
+	private AsyncUsageDao asyncUsageDao;
+	
+	/**
+	 * Retrieve the total data usage amount for a specific account including the tier usage speed.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> of the CustomerUsage
+	 */
+	@RequestMapping(value="/{accountNumber}", method=RequestMethod.GET, produces="application/json")
+	public CompletableFuture<CustomerUsage> getUsageAmount(@PathVariable String accountNumber) {
+		return asyncUsageDao.getCurrentUsageAndTier(accountNumber);
+	}
+	
+	/**
+	 * Retrieve all Tier objects currently stored in the Redis database, or HTTP status 404 (NOT_FOUND) if none exist.
+	 * @return <b>CompletableFuture</b> of a List of Tier objects
+	 */
+	@RequestMapping(method=RequestMethod.GET, produces="application/json")
+	public CompletableFuture<List<Tier>> getAllTiers() {
+		return asyncTierDao.getAllTiers();
+	}
+	
+	/**
+	 * Add a Tier object to the Redis database, or HTTP status 400 (BAD_REQUEST) if its speed is invalid.
+	 * @param tier Tier
+	 * @return <b>CompletableFuture</b> completed once the tier is stored
+	 */
+	@RequestMapping(method=RequestMethod.PUT, consumes="application/json")
+	@ResponseStatus(HttpStatus.CREATED)
+	public CompletableFuture<Void> addTier(@RequestBody Tier tier) {
+		return asyncTierDao.addTier(tier);
+	}
+	
+	/**
+	 * Remove a Tier object from the Redis database, or HTTP status 400 (BAD_REQUEST) if the speed is invalid.
+	 * @param speed String
+	 * @return <b>CompletableFuture</b> completed once the tier is removed
+	 */
+	@RequestMapping(value="/delete/{speed}", method=RequestMethod.DELETE)
+	public CompletableFuture<Void> deleteTier(@PathVariable String speed) {
+		return asyncTierDao.deleteTier(new Tier().setSpeed(speed));
+	}
+	
+	@ExceptionHandler(InvalidTierSpeedException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public void invalidTierSpeed() {
+	}
+	
+	@ExceptionHandler(NoTiersFoundException.class)
+	@ResponseStatus(HttpStatus.NOT_FOUND)
+	public void noTiersFound() {
+	}
+}
@@ -0,0 +1,185 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.programming4phone.data.redis.demo.dao.AsyncUsageDao;
+import com.programming4phone.data.redis.demo.dao.UsageDao;
+import com.programming4phone.data.redis.demo.entity.CustomerUsage;
+import com.programming4phone.data.redis.demo.error.InvalidUsageAmountException;
+import com.programming4phone.data.redis.demo.error.InvalidUsageBatchException;
+import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
+import com.programming4phone.data.redis.demo.error.UsageQueueFullException;
+
+/**
+ * Non-blocking variant of ThrottleUsageController, active with the <i>async</i> profile. Same paths and JSON, 
+ * but each method returns a CompletableFuture so the Tomcat thread is released while Redis is working and the
+ * response is written when the future completes (Servlet 3 asynchronous request processing). The queued
+ * increases and decreases (<i>ack=async</i>) never wait for Redis, so they are the same as in ThrottleUsageController.
+ */
+@CrossOrigin
+@RestController
+@Profile("async")
+@RequestMapping("/throttle/usage")
+public class AsyncThrottleUsageController {
+	
+	@Autowired
+	private AsyncUsageDao asyncUsageDao;
+	
+	@Autowired
+	private UsageDao usageDao;
+	
+	/**
+	 * Increase the data usage amount for an account.
+	 * @param customerUsage CustomerUsage containing the amount to increase by
+	 * @return <b>CompletableFuture</b> of the CustomerUsage containing the updated total data usage
+	 */
+	@RequestMapping(value="/increase",method=RequestMethod.POST, consumes="application/json", produces="application/json")
+	public CompletableFuture<CustomerUsage> increaseUsageAmount(@RequestBody CustomerUsage customerUsage) {
+		return asyncUsageDao.increaseAmountUsed(customerUsage.getAccountNumber(), customerUsage.getCurrentUsage())
+				.thenApply(customerUsage::setTotalUsage);
+	}
+	
+	/**
+	 * Queue an increase of the data usage amount for an account (<i>ack=async</i>), see ThrottleUsageController.
+	 * @param customerUsage CustomerUsage containing the amount to increase by
+	 */
+	@RequestMapping(value="/increase",method=RequestMethod.POST, params="ack=async", consumes="application/json")
+	@ResponseStatus(HttpStatus.ACCEPTED)
+	public void queueUsageIncrease(@RequestBody CustomerUsage customerUsage) {
+		usageDao.queueIncreaseAmountUsed(customerUsage.getAccountNumber(), customerUsage.getCurrentUsage());
+	}
+	
+	/**
+	 * Increase the data usage amount for many accounts in a single request.
+	 * @param customerUsages List of CustomerUsage objects, each containing the amount to increase by
+	 * @return <b>CompletableFuture</b> of a List of CustomerUsage objects, one per account
+	 */
+	@RequestMapping(value="/increase/batch",method=RequestMethod.POST, consumes="application/json", produces="application/json")
+	public CompletableFuture<List<CustomerUsage>> increaseUsageAmounts(@RequestBody List<CustomerUsage> customerUsages) {
+		return asyncUsageDao.increaseAmountUsed(customerUsages);
+	}
+	
+	/**
+	 * Increase the data usage amount for many accounts in a single request, in the compact binary format of
+	 * UsageBatchCodec (<i>application/x-usage-batch</i>), see ThrottleUsageController.
+	 * @param batch byte array of records of account number and amount to increase by
+	 * @return <b>CompletableFuture</b> of the records of account number and updated total data usage
+	 */
+	@RequestMapping(value="/increase/batch",method=RequestMethod.POST, consumes=UsageBatchCodec.MEDIA_TYPE, produces=UsageBatchCodec.MEDIA_TYPE)
+	public CompletableFuture<byte[]> increaseUsageAmounts(@RequestBody byte[] batch) {
+		Map<String, Long> usageAmounts = UsageBatchCodec.decode(batch);
+		return asyncUsageDao.increaseAmountsUsed(usageAmounts).thenApply(UsageBatchCodec::encode);
+	}
+	
+	/**
+	 * Decrease the data usage amount for an account. If the total data usage becomes 
+	 * negative (less than zero), the amount is reset to zero.
+	 * @param customerUsage CustomerUsage containing the amount to decrease by
+	 * @return <b>CompletableFuture</b> of the CustomerUsage containing the updated total data usage
+	 */
+	@RequestMapping(value="/decrease",method=RequestMethod.POST, consumes="application/json", produces="application/json")
+	public CompletableFuture<CustomerUsage> decreaseUsageAmount(@RequestBody CustomerUsage customerUsage) {
+		return asyncUsageDao.decreaseAmountUsed(customerUsage.getAccountNumber(), customerUsage.getCurrentUsage())
+				.thenApply(customerUsage::setTotalUsage);
+	}
+
+	/**
+	 * Queue a decrease of the data usage amount for an account (<i>ack=async</i>), see ThrottleUsageController.
+	 * @param customerUsage CustomerUsage containing the amount to decrease by
+	 */
+	@RequestMapping(value="/decrease",method=RequestMethod.POST, params="ack=async", consumes="application/json")
+	@ResponseStatus(HttpStatus.ACCEPTED)
+	public void queueUsageDecrease(@RequestBody CustomerUsage customerUsage) {
+		usageDao.queueDecreaseAmountUsed(customerUsage.getAccountNumber(), customerUsage.getCurrentUsage());
+	}
+
+	/**
+	 * Removes the account from the Redis database.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> completed once the account is removed
+	 */
+	@RequestMapping(value="/remove/{accountNumber}",method=RequestMethod.DELETE)
+	public CompletableFuture<Void> removeAccount(@PathVariable String accountNumber) {
+		return asyncUsageDao.removeAccount(accountNumber);
+	}
+	
+	/**
+	 * Reset the data usage count for an account to zero.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> completed once the account is reset
+	 */
+	@RequestMapping(value="/reset/{accountNumber}",method=RequestMethod.DELETE)
+	public CompletableFuture<Void> resetAccount(@PathVariable String accountNumber) {
+		return asyncUsageDao.resetAccount(accountNumber);
+	}
+
+	/**
+	 * Get the total amount of data used for a specific account.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> of the CustomerUsage containing the total data usage
+	 */
+	@RequestMapping(value="/{accountNumber}", method=RequestMethod.GET, produces="application/json")
+	public CompletableFuture<CustomerUsage> getCurrentAmountUsed(@PathVariable String accountNumber) {
+		return asyncUsageDao.getCurrentAmountUsed(accountNumber)
+				.thenApply(totalAmountUsed -> new CustomerUsage().setAccountNumber(accountNumber).setTotalUsage(totalAmountUsed));
+	}
+	
+	/**
+	 * Get the amount of data used by a specific account within the usage rate window.
+	 * @param accountNumber String
+	 * @return <b>CompletableFuture</b> of the CustomerUsage containing the window usage
+	 */
+	@RequestMapping(value="/{accountNumber}/rate", method=RequestMethod.GET, produces="application/json")
+	public CompletableFuture<CustomerUsage> getWindowedAmountUsed(@PathVariable String accountNumber) {
+		return asyncUsageDao.getWindowedAmountUsed(accountNumber)
+				.thenApply(windowAmountUsed -> new CustomerUsage().setAccountNumber(accountNumber).setWindowUsage(windowAmountUsed));
+	}
+	
+	/**
+	 * Get the total amount of data used for many accounts in a single request. If the tier usage speed 
+	 * is requested and no tiers exist, an HTTP status 404 (NOT_FOUND) is returned.
+	 * @param accountNumbers List of account numbers
+	 * @param speed boolean, true to include the tier usage speed for each account
+	 * @return <b>CompletableFuture</b> of a List of CustomerUsage objects, one per account
+	 */
+	@RequestMapping(value="/bulk", method=RequestMethod.POST, consumes="application/json", produces="application/json")
+	public CompletableFuture<List<CustomerUsage>> getCurrentAmountsUsed(@RequestBody List<String> accountNumbers, 
+			@RequestParam(value="speed", defaultValue="false") boolean speed) {
+		return asyncUsageDao.getCurrentUsages(accountNumbers, speed);
+	}
+	
+	@ExceptionHandler(InvalidUsageAmountException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public void invalidUsageAmount() {
+	}
+	
+	@ExceptionHandler(InvalidUsageBatchException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public void invalidUsageBatch() {
+	}
+	
+	@ExceptionHandler(NoTiersFoundException.class)
+	@ResponseStatus(HttpStatus.NOT_FOUND)
+	public void noTiersFound() {
+	}
+	
+	@ExceptionHandler(UsageQueueFullException.class)
+	@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+	public void usageQueueFull() {
+	}
+}
@@ -0,0 +1,40 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.MetricsEndpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Exports the actuator metrics, including the Redis operation metrics, in the Prometheus text format. 
+ * Enabled by the <i>metrics.prometheus.enabled</i> property.
+ */
+@RestController
+@ConditionalOnProperty(name="metrics.prometheus.enabled", havingValue="true")
+public class PrometheusController {
+
+	@Autowired
+	private MetricsEndpoint metricsEndpoint;
+
+	/**
+	 * Return every actuator metric as an untyped Prometheus sample, with the characters that are not 
+	 * allowed in Prometheus metric names replaced by underscores, e.g. <i>redis_usage_incrby_p99_micros</i>.
+	 * @return <b>String</b> in the Prometheus text exposition format
+	 */
+	@RequestMapping(value="/prometheus", method=RequestMethod.GET, produces="text/plain; version=0.0.4; charset=utf-8")
+	public String getMetrics() {
+		StringBuilder text = new StringBuilder();
+		for(Map.Entry<String, Object> metric : metricsEndpoint.invoke().entrySet()) {
+			if(!(metric.getValue() instanceof Number)) continue;
+			String name = metric.getKey().replaceAll("[^a-zA-Z0-9_:]", "_");
+			if(Character.isDigit(name.charAt(0))) name = "_" + name;
+			text.append("# TYPE ").append(name).append(" untyped\n")
+				.append(name).append(' ').append(metric.getValue()).append('\n');
+		}
+		return text.toString();
+	}
+}
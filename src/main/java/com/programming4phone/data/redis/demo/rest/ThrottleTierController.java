@@ -3,6 +3,7 @@ package com.programming4phone.data.redis.demo.rest;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -19,9 +20,11 @@ import com.programming4phone.data.redis.demo.entity.CustomerUsage;
 import com.programming4phone.data.redis.demo.entity.Tier;
 import com.programming4phone.data.redis.demo.error.InvalidTierSpeedException;
 import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
+import com.programming4phone.data.redis.demo.error.RedisUnavailableException;
 
 @CrossOrigin
 @RestController
+@Profile("!async")
 @RequestMapping("/throttle/tier")
 public class ThrottleTierController {
 	
@@ -34,15 +37,13 @@ public class ThrottleTierController {
 	/**
 	 * Retrieve the total data usage amount for a specific account including the tier usage speed.
 	 * If the account does not exist in the Redis database, the total usage amount retruned will
-	 * be zero.
+	 * be zero. The usage amount and tier are read with a single Redis round trip.
 	 * @param accountNumber String
 	 * @return <b>CustomerUsage</b>
 	 */
 	@RequestMapping(value="/{accountNumber}", method=RequestMethod.GET, produces="application/json")
 	public CustomerUsage getUsageAmount(@PathVariable String accountNumber) {
-		Long totalAmountUsed = usageDao.getCurrentAmountUsed(accountNumber);
-		Tier usageTier = tierDao.getCurrentUsageTier(totalAmountUsed);
-		return new CustomerUsage().setAccountNumber(accountNumber).setTotalUsage(totalAmountUsed).setSpeed(usageTier.getSpeed());
+		return usageDao.getCurrentUsageAndTier(accountNumber);
 	}
 	
 	/**
@@ -91,4 +92,9 @@ public class ThrottleTierController {
 	@ResponseStatus(HttpStatus.NOT_FOUND)
 	public void noTiersFound() {
 	}
+	
+	@ExceptionHandler(RedisUnavailableException.class)
+	@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+	public void redisUnavailable() {
+	}
 }
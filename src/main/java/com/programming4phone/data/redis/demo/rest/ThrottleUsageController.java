@@ -1,6 +1,10 @@
 package com.programming4phone.data.redis.demo.rest;
 
+import java.util.List;
+import java.util.Map;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -8,15 +12,21 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.programming4phone.data.redis.demo.dao.UsageDao;
 import com.programming4phone.data.redis.demo.entity.CustomerUsage;
 import com.programming4phone.data.redis.demo.error.InvalidUsageAmountException;
+import com.programming4phone.data.redis.demo.error.InvalidUsageBatchException;
+import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
+import com.programming4phone.data.redis.demo.error.RedisUnavailableException;
+import com.programming4phone.data.redis.demo.error.UsageQueueFullException;
 
 @CrossOrigin
 @RestController
+@Profile("!async")
 @RequestMapping("/throttle/usage")
 public class ThrottleUsageController {
 	
@@ -26,7 +36,7 @@ public class ThrottleUsageController {
 	/**
 	 * Increase the data usage amount for an account.
 	 * @param customerUsage CustomerUsage containing the amount to increase by
-	 * @return <b>CustomerUsage</b> containing the updated total data usage
+	 * @return <b>CustomerUsage</b> containing the updated total data usage, estimated in write-behind mode
 	 */
 	@RequestMapping(value="/increase",method=RequestMethod.POST, consumes="application/json", produces="application/json")
 	public CustomerUsage increaseUsageAmount(@RequestBody CustomerUsage customerUsage) {
@@ -35,6 +45,45 @@ public class ThrottleUsageController {
 		return customerUsage;
 	}
 	
+	/**
+	 * Increase the data usage amount for an account without waiting for Redis (<i>ack=async</i>). The increase is
+	 * queued and written shortly after, and HTTP status 202 (ACCEPTED) is returned as soon as it is queued. When the
+	 * write queue is full HTTP status 429 (TOO_MANY_REQUESTS) is returned and the increase should be retried later.
+	 * The queue is held in memory only, so an acknowledged increase is lost if the process dies before writing it.
+	 * @param customerUsage CustomerUsage containing the amount to increase by
+	 */
+	@RequestMapping(value="/increase",method=RequestMethod.POST, params="ack=async", consumes="application/json")
+	@ResponseStatus(HttpStatus.ACCEPTED)
+	public void queueUsageIncrease(@RequestBody CustomerUsage customerUsage) {
+		usageDao.queueIncreaseAmountUsed(customerUsage.getAccountNumber(), customerUsage.getCurrentUsage());
+	}
+	
+	/**
+	 * Increase the data usage amount for many accounts in a single request. Usage amounts for the
+	 * same account are coalesced and accounts are updated with a single Redis round trip per chunk of accounts.
+	 * @param customerUsages List of CustomerUsage objects, each containing the amount to increase by
+	 * @return <b>List</b> of CustomerUsage objects, one per account, containing the coalesced amount 
+	 * increased by and the updated total data usage
+	 */
+	@RequestMapping(value="/increase/batch",method=RequestMethod.POST, consumes="application/json", produces="application/json")
+	public List<CustomerUsage> increaseUsageAmounts(@RequestBody List<CustomerUsage> customerUsages) {
+		return usageDao.increaseAmountUsed(customerUsages);
+	}
+	
+	/**
+	 * Increase the data usage amount for many accounts in a single request, in the compact binary format of
+	 * UsageBatchCodec (<i>application/x-usage-batch</i>) rather than JSON. The batch is decoded straight into the
+	 * coalesced amounts per account and written as for a JSON batch. If the batch is malformed HTTP status 400
+	 * (BAD_REQUEST) is returned.
+	 * @param batch byte array of records of account number and amount to increase by
+	 * @return <b>byte[]</b> of records of account number and updated total data usage, one per account
+	 */
+	@RequestMapping(value="/increase/batch",method=RequestMethod.POST, consumes=UsageBatchCodec.MEDIA_TYPE, produces=UsageBatchCodec.MEDIA_TYPE)
+	public byte[] increaseUsageAmounts(@RequestBody byte[] batch) {
+		Map<String, Long> usageAmounts = UsageBatchCodec.decode(batch);
+		return UsageBatchCodec.encode(usageDao.increaseAmountsUsed(usageAmounts));
+	}
+	
 	/**
 	 * Decrease the data usage amount for an account. If the total data usage becomes 
 	 * negative (less than zero), the amount is reset to zero.
@@ -48,6 +97,17 @@ public class ThrottleUsageController {
 		return customerUsage;
 	}
 
+	/**
+	 * Decrease the data usage amount for an account without waiting for Redis (<i>ack=async</i>), as for an 
+	 * increase. The decrease is written after every increase of the account queued before it.
+	 * @param customerUsage CustomerUsage containing the amount to decrease by
+	 */
+	@RequestMapping(value="/decrease",method=RequestMethod.POST, params="ack=async", consumes="application/json")
+	@ResponseStatus(HttpStatus.ACCEPTED)
+	public void queueUsageDecrease(@RequestBody CustomerUsage customerUsage) {
+		usageDao.queueDecreaseAmountUsed(customerUsage.getAccountNumber(), customerUsage.getCurrentUsage());
+	}
+
 	/**
 	 * Removes the account from the Redis database.
 	 * @param accountNumber String
@@ -77,8 +137,55 @@ public class ThrottleUsageController {
 		return new CustomerUsage().setAccountNumber(accountNumber).setTotalUsage(totalAmountUsed);
 	}
 	
+	/**
+	 * Get the amount of data used by a specific account within the usage rate window (the last 
+	 * <i>rate.window.seconds</i>). The window usage is null if <i>rate.enabled</i> is not set.
+	 * @param accountNumber String
+	 * @return <b>CustomerUsage</b> containing the window usage
+	 */
+	@RequestMapping(value="/{accountNumber}/rate", method=RequestMethod.GET, produces="application/json")
+	public CustomerUsage getWindowedAmountUsed(@PathVariable String accountNumber) {
+		Long windowAmountUsed = usageDao.getWindowedAmountUsed(accountNumber);
+		return new CustomerUsage().setAccountNumber(accountNumber).setWindowUsage(windowAmountUsed);
+	}
+	
+	/**
+	 * Get the total amount of data used for many accounts in a single request. Accounts are read from
+	 * Redis with MGET, so hundreds of accounts cost a single round trip. If the tier usage speed is
+	 * requested and no tiers exist, the data layer will throw a NoTiersFoundException which will 
+	 * ultimately result in an HTTP status 404 (NOT_FOUND) being returned by the web service.
+	 * @param accountNumbers List of account numbers
+	 * @param speed boolean, true to include the tier usage speed for each account
+	 * @return <b>List</b> of CustomerUsage objects, one per account, containing the total data usage
+	 */
+	@RequestMapping(value="/bulk", method=RequestMethod.POST, consumes="application/json", produces="application/json")
+	public List<CustomerUsage> getCurrentAmountsUsed(@RequestBody List<String> accountNumbers, 
+			@RequestParam(value="speed", defaultValue="false") boolean speed) {
+		return usageDao.getCurrentUsages(accountNumbers, speed);
+	}
+	
 	@ExceptionHandler(InvalidUsageAmountException.class)
 	@ResponseStatus(HttpStatus.BAD_REQUEST)
 	public void invalidUsageAmount() {
 	}
+	
+	@ExceptionHandler(InvalidUsageBatchException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public void invalidUsageBatch() {
+	}
+	
+	@ExceptionHandler(NoTiersFoundException.class)
+	@ResponseStatus(HttpStatus.NOT_FOUND)
+	public void noTiersFound() {
+	}
+	
+	@ExceptionHandler(RedisUnavailableException.class)
+	@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+	public void redisUnavailable() {
+	}
+	
+	@ExceptionHandler(UsageQueueFullException.class)
+	@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+	public void usageQueueFull() {
+	}
 }
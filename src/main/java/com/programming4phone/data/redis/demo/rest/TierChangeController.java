@@ -0,0 +1,207 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.programming4phone.data.redis.demo.dao.TierDao;
+import com.programming4phone.data.redis.demo.entity.TierChange;
+
+/**
+ * Server-sent events stream of tier changes, so that enforcement points are told when the speed of an 
+ * account changes instead of polling for it. Enabled by the <i>tier.events.enabled</i> property. The usage 
+ * Lua scripts publish a TierChange to the TierDao.TIER_CHANGES_CHANNEL whenever an increase moves an account 
+ * into a tier with a different speed, and every node forwards the changes to its own subscribers.
+ * <br><br>
+ * Only increases are detected. A decrease, a reset or a removal of an account sends no TierChange. When the
+ * tiers themselves are added or removed a <i>tiers-changed</i> event is sent to every subscriber instead, as
+ * the speed of any account may have changed, and the subscriber should read the speeds it needs again.
+ * Redis Pub/Sub does not keep messages, so a subscriber only receives the changes made while it is connected
+ * and should also read the current speed of its accounts after (re)connecting.
+ * <br><br>
+ * Events are sent by <i>tier.events.senders</i> threads rather than the Redis listener thread, in order for 
+ * each subscriber. A subscriber with more than <i>tier.events.subscriber.capacity</i> events not yet sent is 
+ * too slow to keep up, its stream is completed and it has to reconnect.
+ */
+@CrossOrigin
+@RestController
+@RequestMapping("/throttle/tier")
+@ConditionalOnProperty(name="tier.events.enabled", havingValue="true")
+public class TierChangeController implements MessageListener, PublicMetrics {
+	
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	
+	private static final String TIER_CHANGE_EVENT = "tier-change";
+	private static final String TIERS_CHANGED_EVENT = "tiers-changed";
+	
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong droppedSubscriberCount = new AtomicLong();
+	
+	@Autowired
+	private ObjectMapper objectMapper;
+	
+	@Value("${tier.events.timeout.millis}")
+	private long timeoutMillis;
+	
+	@Value("${tier.events.senders}")
+	private int senderCount;
+	
+	@Value("${tier.events.subscriber.capacity}")
+	private int subscriberCapacity;
+	
+	private ExecutorService senders;
+	
+	@PostConstruct
+	public void startSenders() {
+		senders = Executors.newFixedThreadPool(senderCount, r -> {
+			Thread thread = new Thread(r, "tier-events-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	@PreDestroy
+	public void stopSenders() {
+		senders.shutdownNow();
+	}
+	
+	/**
+	 * Subscribe to tier changes. Each change is sent as a <i>tier-change</i> event whose data is the 
+	 * TierChange as JSON. The stream is closed after <i>tier.events.timeout.millis</i> (0 for never).
+	 * @param accountNumbers Set of account numbers to receive the changes of, all accounts if not given
+	 * @return <b>SseEmitter</b>
+	 */
+	@RequestMapping(value="/events", method=RequestMethod.GET, produces="text/event-stream")
+	public SseEmitter subscribe(@RequestParam(value="accountNumber", required=false) Set<String> accountNumbers) {
+		SseEmitter emitter = new SseEmitter(timeoutMillis);
+		Subscriber subscriber = new Subscriber(emitter, accountNumbers, subscriberCapacity);
+		emitter.onCompletion(() -> subscribers.remove(subscriber));
+		emitter.onTimeout(() -> subscribers.remove(subscriber));
+		subscribers.add(subscriber);
+		return emitter;
+	}
+	
+	/**
+	 * Queue a tier change published by a usage Lua script for the subscribers of the account, 
+	 * or a change of the tiers for every subscriber.
+	 */
+	@Override
+	public void onMessage(Message message, byte[] pattern) {
+		if(TierDao.TIERS_CHANNEL.equals(new String(message.getChannel(), StandardCharsets.UTF_8))) {
+			String tiers = new String(message.getBody(), StandardCharsets.UTF_8);
+			Supplier<SseEventBuilder> event = () -> SseEmitter.event().name(TIERS_CHANGED_EVENT).data(tiers);
+			subscribers.forEach(subscriber -> queue(subscriber, event));
+			return;
+		}
+		TierChange tierChange;
+		try {
+			tierChange = objectMapper.readValue(message.getBody(), TierChange.class);
+		}
+		catch(IOException ioe) {
+			logger.warn("Ignoring malformed tier change " + message, ioe);
+			return;
+		}
+		// an event is built for each send, as building it appends to it
+		Supplier<SseEventBuilder> event = () -> SseEmitter.event().name(TIER_CHANGE_EVENT).data(tierChange, MediaType.APPLICATION_JSON);
+		for(Subscriber subscriber : subscribers) {
+			if(subscriber.accountNumbers != null && !subscriber.accountNumbers.contains(tierChange.getAccountNumber())) continue;
+			queue(subscriber, event);
+		}
+	}
+	
+	private void queue(Subscriber subscriber, Supplier<SseEventBuilder> event) {
+		if(!subscriber.events.offer(event)) {
+			// the subscriber does not keep up, let it reconnect rather than hold ever more events
+			if(subscribers.remove(subscriber)) {
+				droppedSubscriberCount.incrementAndGet();
+				subscriber.emitter.complete();
+			}
+			return;
+		}
+		if(subscriber.sending.compareAndSet(false, true)) senders.execute(() -> send(subscriber));
+	}
+	
+	/**
+	 * Send the events queued for a subscriber, only one sender at a time so they are sent in order.
+	 */
+	private void send(Subscriber subscriber) {
+		try {
+			Supplier<SseEventBuilder> event;
+			while((event = subscriber.events.poll()) != null) {
+				subscriber.emitter.send(event.get());
+				sentCount.incrementAndGet();
+			}
+		}
+		catch(IOException | IllegalStateException e) {
+			// the client went away (the emitter completes itself with the error), or the stream already completed
+			subscribers.remove(subscriber);
+			subscriber.events.clear();
+		}
+		finally {
+			subscriber.sending.set(false);
+		}
+		// an event queued after the last poll but before sending was cleared would otherwise wait for the next one
+		if(!subscriber.events.isEmpty() && subscribers.contains(subscriber) && subscriber.sending.compareAndSet(false, true)) {
+			senders.execute(() -> send(subscriber));
+		}
+	}
+	
+	/**
+	 * Tier event metrics exposed by the actuator metrics endpoint.
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Integer>("tier.events.subscribers", subscribers.size()));
+		metrics.add(new Metric<Long>("tier.events.sent", sentCount.get()));
+		metrics.add(new Metric<Long>("tier.events.subscribers.dropped", droppedSubscriberCount.get()));
+		return metrics;
+	}
+	
+	private static class Subscriber {
+		private final SseEmitter emitter;
+		private final Set<String> accountNumbers;
+		private final BlockingQueue<Supplier<SseEventBuilder>> events;
+		private final AtomicBoolean sending = new AtomicBoolean();
+		
+		private Subscriber(SseEmitter emitter, Set<String> accountNumbers, int capacity) {
+			this.emitter = emitter;
+			this.accountNumbers = accountNumbers;
+			this.events = new ArrayBlockingQueue<Supplier<SseEventBuilder>>(capacity);
+		}
+	}
+}
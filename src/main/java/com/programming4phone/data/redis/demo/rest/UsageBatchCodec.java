@@ -0,0 +1,259 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.programming4phone.data.redis.demo.error.InvalidUsageBatchException;
+
+/**
+ * Compact binary format of a usage batch, the <i>application/x-usage-batch</i> content type. A batch is a
+ * sequence of records with no header, each record being:
+ * <ul>
+ * <li>the length of the account number, as an unsigned varint, at most MAX_ACCOUNT_BYTES</li>
+ * <li>the account number, in US-ASCII</li>
+ * <li>the usage amount, as an unsigned varint</li>
+ * </ul>
+ * Varints are little endian base 128 (LEB128, as in protobuf): 7 bits per byte, the high bit set on every byte
+ * but the last. An amount below 128 takes a single byte, so a record of a 10 digit account is typically 13 to
+ * 15 bytes, against about 50 bytes of JSON. The response has the same layout, with the new total of each
+ * account in place of the amount. The same records are streamed to the socket listener (see UsageIngestListener).
+ * <br><br>
+ * Records are decoded straight from the request bytes (or a direct buffer) without creating an object per record.
+ * The amounts of the same account are added together in an Accumulator, and a String and a Long are only created
+ * for each distinct account, as the batch path to Redis needs them.
+ */
+public final class UsageBatchCodec {
+
+	public static final String MEDIA_TYPE = "application/x-usage-batch";
+	public static final int MAX_ACCOUNT_BYTES = 255;
+
+	private static final int MAX_VARINT_BYTES = 9;
+	private static final long INCOMPLETE = -1L;
+
+	private UsageBatchCodec() {
+	}
+
+	/**
+	 * Decode a usage batch, adding together the amounts of the same account. If the batch is truncated, or an
+	 * amount or a total does not fit in a long, an InvalidUsageBatchException is thrown, ultimately resulting in
+	 * an HTTP status code 400 (BAD_REQUEST).
+	 * @param batch byte array in the application/x-usage-batch format
+	 * @return <b>Map</b> of account number to the coalesced amount, in the order accounts first appear
+	 * @throws com.programming4phone.data.redis.demo.error.InvalidUsageBatchException
+	 */
+	public static Map<String, Long> decode(byte[] batch) {
+		Accumulator accumulator = new Accumulator();
+		ByteBuffer buffer = ByteBuffer.wrap(batch);
+		decode(buffer, accumulator);
+		if(buffer.hasRemaining()) throw new InvalidUsageBatchException();
+		return accumulator.drain();
+	}
+
+	/**
+	 * Decode the complete records between the position and the limit of a buffer into an accumulator. The
+	 * position is left at the start of the first incomplete record, if any, so that decoding can resume once
+	 * more of a stream has been read into the buffer. If a record is malformed, or a total does not fit in a long,
+	 * an InvalidUsageBatchException is thrown.
+	 * @param buffer ByteBuffer holding records in the application/x-usage-batch format
+	 * @param accumulator Accumulator to add the amounts to
+	 * @return <b>int</b> number of records decoded
+	 * @throws com.programming4phone.data.redis.demo.error.InvalidUsageBatchException
+	 */
+	public static int decode(ByteBuffer buffer, Accumulator accumulator) {
+		int records = 0;
+		int limit = buffer.limit();
+		int position = buffer.position();
+		while(position < limit) {
+			long length = readVarint(buffer, position, limit);
+			if(length == INCOMPLETE) break;
+			if(length == 0L || length > MAX_ACCOUNT_BYTES) throw new InvalidUsageBatchException();
+			int amountPosition = nextPosition(buffer, position) + (int) length;
+			if(amountPosition >= limit) break;
+			long amount = readVarint(buffer, amountPosition, limit);
+			if(amount == INCOMPLETE) break;
+			accumulator.add(buffer, amountPosition - (int) length, (int) length, amount);
+			position = nextPosition(buffer, amountPosition);
+			records++;
+		}
+		buffer.position(position);
+		return records;
+	}
+
+	/**
+	 * Encode the totals of a usage batch. A missing total is encoded as zero.
+	 * @param totalAmountsUsed Map of account number to the new total amount of usage
+	 * @return <b>byte[]</b> in the application/x-usage-batch format
+	 */
+	public static byte[] encode(Map<String, Long> totalAmountsUsed) {
+		int size = 0;
+		for(Map.Entry<String, Long> entry : totalAmountsUsed.entrySet()) {
+			int length = entry.getKey().length();
+			size += varintSize(length) + length + varintSize(total(entry.getValue()));
+		}
+		byte[] batch = new byte[size];
+		int position = 0;
+		for(Map.Entry<String, Long> entry : totalAmountsUsed.entrySet()) {
+			String accountNumber = entry.getKey();
+			position = writeVarint(batch, position, accountNumber.length());
+			for(int i=0; i<accountNumber.length(); i++) batch[position++] = (byte) accountNumber.charAt(i);
+			position = writeVarint(batch, position, total(entry.getValue()));
+		}
+		return batch;
+	}
+
+	private static long total(Long totalAmountUsed) {
+		return totalAmountUsed == null ? 0L : totalAmountUsed;
+	}
+
+	/**
+	 * @return <b>long</b> the varint starting at position, INCOMPLETE if the buffer ends before it does
+	 * @throws com.programming4phone.data.redis.demo.error.InvalidUsageBatchException if it does not fit in 63 bits
+	 */
+	private static long readVarint(ByteBuffer buffer, int position, int limit) {
+		long value = 0L;
+		for(int shift=0, i=position; i<limit; shift+=7, i++) {
+			byte b = buffer.get(i);
+			// nine bytes hold 63 bits, a tenth could only hold the sign bit
+			if(shift == 7 * MAX_VARINT_BYTES) throw new InvalidUsageBatchException();
+			value |= (long) (b & 0x7f) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+		return INCOMPLETE;
+	}
+
+	private static int nextPosition(ByteBuffer buffer, int position) {
+		while((buffer.get(position) & 0x80) != 0) position++;
+		return position + 1;
+	}
+
+	private static int writeVarint(byte[] batch, int position, long value) {
+		while((value & ~0x7fL) != 0L) {
+			batch[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		batch[position++] = (byte) value;
+		return position;
+	}
+
+	private static int varintSize(long value) {
+		int size = 1;
+		while((value & ~0x7fL) != 0L) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Adds together the amounts of the same account, keyed by the bytes of the account number, in an open
+	 * addressing table. The account numbers are copied into a single byte array the first time they are seen.
+	 * Slot i holds the account at offsets[i] of that array (of length lengths[i], zero for an empty slot) and
+	 * its amount, and order lists the slots in the order the accounts first appear. Not thread safe.
+	 */
+	public static final class Accumulator {
+
+		private static final int INITIAL_CAPACITY = 256;
+
+		private byte[] accountBytes = new byte[INITIAL_CAPACITY * 16];
+		private int accountBytesSize;
+		private int[] offsets = new int[INITIAL_CAPACITY];
+		private int[] lengths = new int[INITIAL_CAPACITY];
+		private long[] amounts = new long[INITIAL_CAPACITY];
+		private int[] order = new int[INITIAL_CAPACITY / 2];
+		private int accounts;
+
+		/**
+		 * @return <b>int</b> number of distinct accounts
+		 */
+		public int size() {
+			return accounts;
+		}
+
+		/**
+		 * Add the amount of the account number at offset (of length bytes) in buffer.
+		 * @throws com.programming4phone.data.redis.demo.error.InvalidUsageBatchException if the total does not fit in a long
+		 */
+		private void add(ByteBuffer buffer, int offset, int length, long amount) {
+			int mask = lengths.length - 1;
+			int slot = hash(buffer, offset, length) & mask;
+			while(lengths[slot] != 0 && !equal(buffer, offset, length, slot)) slot = (slot + 1) & mask;
+			if(lengths[slot] == 0) {
+				// a new account, its number is copied after the known ones
+				if(accounts == order.length) {
+					resize();
+					add(buffer, offset, length, amount);
+					return;
+				}
+				if(accountBytesSize + length > accountBytes.length) accountBytes = Arrays.copyOf(accountBytes, Math.max(accountBytes.length * 2, accountBytesSize + length));
+				for(int i=0; i<length; i++) accountBytes[accountBytesSize + i] = buffer.get(offset + i);
+				offsets[slot] = accountBytesSize;
+				lengths[slot] = length;
+				order[accounts++] = slot;
+				accountBytesSize += length;
+			}
+			else if(amounts[slot] > Long.MAX_VALUE - amount) throw new InvalidUsageBatchException();
+			amounts[slot] += amount;
+		}
+
+		/**
+		 * Remove every account.
+		 * @return <b>Map</b> of account number to the total amount added, in the order accounts first appear
+		 */
+		public Map<String, Long> drain() {
+			Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>(accounts * 2);
+			for(int i=0; i<accounts; i++) {
+				int slot = order[i];
+				usageAmounts.put(new String(accountBytes, offsets[slot], lengths[slot], StandardCharsets.US_ASCII), amounts[slot]);
+				lengths[slot] = 0;
+				amounts[slot] = 0L;
+			}
+			accounts = 0;
+			accountBytesSize = 0;
+			return usageAmounts;
+		}
+
+		/**
+		 * Double the table, keeping it at most half full.
+		 */
+		private void resize() {
+			int[] oldOffsets = offsets;
+			int[] oldLengths = lengths;
+			long[] oldAmounts = amounts;
+			int[] oldOrder = order;
+			offsets = new int[oldOffsets.length * 2];
+			lengths = new int[oldLengths.length * 2];
+			amounts = new long[oldAmounts.length * 2];
+			order = new int[oldOrder.length * 2];
+			ByteBuffer accountBuffer = ByteBuffer.wrap(accountBytes);
+			int mask = lengths.length - 1;
+			for(int i=0; i<accounts; i++) {
+				int oldSlot = oldOrder[i];
+				// the accounts are distinct, so the first empty slot is theirs
+				int slot = hash(accountBuffer, oldOffsets[oldSlot], oldLengths[oldSlot]) & mask;
+				while(lengths[slot] != 0) slot = (slot + 1) & mask;
+				offsets[slot] = oldOffsets[oldSlot];
+				lengths[slot] = oldLengths[oldSlot];
+				amounts[slot] = oldAmounts[oldSlot];
+				order[i] = slot;
+			}
+		}
+
+		// FNV-1a
+		private static int hash(ByteBuffer buffer, int offset, int length) {
+			int hash = 0x811c9dc5;
+			for(int i=offset; i<offset+length; i++) hash = (hash ^ buffer.get(i)) * 0x01000193;
+			return hash ^ (hash >>> 16);
+		}
+
+		private boolean equal(ByteBuffer buffer, int offset, int length, int slot) {
+			if(lengths[slot] != length) return false;
+			for(int i=0, accountOffset=offsets[slot]; i<length; i++) {
+				if(accountBytes[accountOffset + i] != buffer.get(offset + i)) return false;
+			}
+			return true;
+		}
+	}
+}
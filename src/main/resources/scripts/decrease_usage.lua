@@ -0,0 +1,30 @@
+-- Decrease the data usage amount for an account.
+-- KEYS[1] account key, ARGV[1] amount to decrease by, ARGV[2] key expiration in seconds.
+-- When the total would become zero or negative it is clamped to zero and the key
+-- expiration is reset, all within the same atomic operation.
+-- ARGV[3] hash field of the account when KEYS[1] is a hash of accounts (empty for a string key),
+-- the total is then clamped without resetting the expiration of the hash, which is only set when it has none.
+-- An empty ARGV[2] means the key does not expire (keys namespaced by billing cycle).
+local expiry = ARGV[2]
+local field = ARGV[3]
+if field ~= nil and field ~= '' then
+	local total = redis.call('HINCRBY', KEYS[1], field, -tonumber(ARGV[1]))
+	if expiry ~= '' and redis.call('TTL', KEYS[1]) < 0 then
+		redis.call('EXPIRE', KEYS[1], expiry)
+	end
+	if total <= 0 then
+		redis.call('HSET', KEYS[1], field, '0')
+		return 0
+	end
+	return total
+end
+local total = redis.call('DECRBY', KEYS[1], ARGV[1])
+if total <= 0 then
+	if expiry == '' then
+		redis.call('SET', KEYS[1], '0')
+	else
+		redis.call('SET', KEYS[1], '0', 'EX', expiry)
+	end
+	return 0
+end
+return total
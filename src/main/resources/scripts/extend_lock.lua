@@ -0,0 +1,9 @@
+-- Extend a lock only if it is still held with the token it was taken with.
+-- KEYS[1] lock key
+-- ARGV[1] token the lock was taken with
+-- ARGV[2] new time to live of the lock in milliseconds
+-- Returns 1 if the lock was extended, 0 if it is no longer held with the token.
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+	return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 0
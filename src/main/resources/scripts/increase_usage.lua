@@ -0,0 +1,51 @@
+-- Increase the data usage amount for an account.
+-- KEYS[1] account key, ARGV[1] amount to increase by, ARGV[2] key expiration in seconds.
+-- A new account (total equal to the increase amount) has its key expiration set
+-- within the same atomic operation, so the key can never exist without a TTL.
+-- An empty ARGV[2] means the key does not expire (keys namespaced by billing cycle), no TTL is then set or checked.
+-- ARGV[4] hash field of the account when KEYS[1] is a hash of accounts (empty for a string key),
+-- the expiration is then only set when the hash has none.
+-- ARGV[3] tier change channel, KEYS[2] tiers Sorted Set only when the channel is not empty. When the
+-- increase exceeds a tier threshold, a tier change event is published if the tier speed changed.
+-- When the usage rate hash is given (the key after the tiers) the amount is also added to the current bucket,
+-- ARGV[5] bucket, ARGV[6] rate key expiration, ARGV[7] buckets that trigger pruning, ARGV[8] window buckets.
+local tiers = ARGV[3] ~= '' and KEYS[2] or nil
+local rateKey = KEYS[tiers and 3 or 2]
+local function speed(usage)
+	return redis.call('ZREVRANGEBYSCORE', tiers, '(' .. usage, '-inf', 'LIMIT', 0, 1)[1] or 'UNKNOWN'
+end
+local amount = tonumber(ARGV[1])
+local field = ARGV[4]
+local total
+if field == '' then
+	total = redis.call('INCRBY', KEYS[1], ARGV[1])
+else
+	total = redis.call('HINCRBY', KEYS[1], field, ARGV[1])
+end
+if ARGV[2] ~= '' and total == amount and (field == '' or redis.call('TTL', KEYS[1]) < 0) then
+	redis.call('EXPIRE', KEYS[1], ARGV[2])
+end
+if tiers and amount > 0 then
+	local previous = total - amount
+	if #redis.call('ZRANGEBYSCORE', tiers, previous, '(' .. total, 'LIMIT', 0, 1) > 0 then
+		local previousSpeed, newSpeed = speed(previous), speed(total)
+		if previousSpeed ~= newSpeed then
+			local accountNumber = field ~= '' and field or string.match(KEYS[1], ':(.*)$')
+			redis.call('PUBLISH', ARGV[3], cjson.encode({accountNumber = accountNumber,
+				previousSpeed = previousSpeed, speed = newSpeed, totalUsage = total}))
+		end
+	end
+end
+if rateKey then
+	redis.call('HINCRBY', rateKey, ARGV[5], ARGV[1])
+	redis.call('EXPIRE', rateKey, ARGV[6])
+	if redis.call('HLEN', rateKey) > tonumber(ARGV[7]) then
+		local oldest = tonumber(ARGV[5]) - tonumber(ARGV[8]) + 1
+		for _, bucket in ipairs(redis.call('HKEYS', rateKey)) do
+			if tonumber(bucket) < oldest then
+				redis.call('HDEL', rateKey, bucket)
+			end
+		end
+	end
+end
+return total
@@ -0,0 +1,69 @@
+-- Increase the data usage amount for many accounts.
+-- ARGV[1] key expiration in seconds (empty for keys that do not expire), ARGV[2] tier change channel, ARGV[3] '1' when the account keys
+-- are hashes of accounts (empty for string keys), ARGV[4..7] usage rate arguments as in increase_usage.lua,
+-- ARGV[8..n+7] amount to increase each account by, followed for hashes by ARGV[n+8..2n+7] the hash field of each account.
+-- KEYS[1..n] account keys, KEYS[n+1] tiers Sorted Set only when the tier change channel is not empty,
+-- optionally followed by the usage rate hash of each account.
+-- Each account is increased as in increase_usage.lua and the new totals are returned in KEYS order.
+-- Every account is checked before any is increased, so that a total Redis cannot increase fails the whole batch
+-- and the batch can be retried account by account without increasing the other accounts twice.
+local hashed = ARGV[3] == '1'
+local accounts = hashed and (#ARGV - 7) / 2 or #ARGV - 7
+local tiers = ARGV[2] ~= '' and KEYS[accounts + 1] or nil
+local rateKeys = tiers and accounts + 1 or accounts
+local rate = #KEYS == rateKeys + accounts
+local function speed(usage)
+	return redis.call('ZREVRANGEBYSCORE', tiers, '(' .. usage, '-inf', 'LIMIT', 0, 1)[1] or 'UNKNOWN'
+end
+for i = 1, accounts do
+	local total
+	if hashed then
+		total = redis.call('HGET', KEYS[i], ARGV[accounts + i + 7])
+	else
+		total = redis.call('GET', KEYS[i])
+	end
+	if total and not tonumber(total) then
+		return redis.error_reply('ERR the usage total of ' .. KEYS[i] .. ' is not an integer')
+	end
+end
+local totals = {}
+for i = 1, accounts do
+	local key = KEYS[i]
+	local amount = tonumber(ARGV[i + 7])
+	local field = hashed and ARGV[accounts + i + 7] or ''
+	local total
+	if hashed then
+		total = redis.call('HINCRBY', key, field, ARGV[i + 7])
+	else
+		total = redis.call('INCRBY', key, ARGV[i + 7])
+	end
+	if ARGV[1] ~= '' and total == amount and (not hashed or redis.call('TTL', key) < 0) then
+		redis.call('EXPIRE', key, ARGV[1])
+	end
+	if tiers and amount > 0 then
+		local previous = total - amount
+		if #redis.call('ZRANGEBYSCORE', tiers, previous, '(' .. total, 'LIMIT', 0, 1) > 0 then
+			local previousSpeed, newSpeed = speed(previous), speed(total)
+			if previousSpeed ~= newSpeed then
+				local accountNumber = hashed and field or string.match(key, ':(.*)$')
+				redis.call('PUBLISH', ARGV[2], cjson.encode({accountNumber = accountNumber,
+					previousSpeed = previousSpeed, speed = newSpeed, totalUsage = total}))
+			end
+		end
+	end
+	if rate then
+		local rateKey = KEYS[rateKeys + i]
+		redis.call('HINCRBY', rateKey, ARGV[4], ARGV[i + 7])
+		redis.call('EXPIRE', rateKey, ARGV[5])
+		if redis.call('HLEN', rateKey) > tonumber(ARGV[6]) then
+			local oldest = tonumber(ARGV[4]) - tonumber(ARGV[7]) + 1
+			for _, bucket in ipairs(redis.call('HKEYS', rateKey)) do
+				if tonumber(bucket) < oldest then
+					redis.call('HDEL', rateKey, bucket)
+				end
+			end
+		end
+	end
+	totals[i] = total
+end
+return totals
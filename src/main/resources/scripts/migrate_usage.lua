@@ -0,0 +1,20 @@
+-- Move accounts from string keys into the hashes of the HASH storage layout.
+-- KEYS[1..n] account keys, KEYS[n+1..2n] the hash of each account,
+-- ARGV[1] expiration in seconds of a new hash (empty for hashes that do not expire), ARGV[2..n+1] the hash field (account number) of each account.
+-- The total of each account is added to its hash field, so increases already written to the hash
+-- are kept, and the account key is deleted. Returns the number of accounts moved.
+local accounts = #KEYS / 2
+local moved = 0
+for i = 1, accounts do
+	local total = redis.call('GET', KEYS[i])
+	if total then
+		local hash = KEYS[accounts + i]
+		redis.call('HINCRBY', hash, ARGV[i + 1], total)
+		if ARGV[1] ~= '' and redis.call('TTL', hash) < 0 then
+			redis.call('EXPIRE', hash, ARGV[1])
+		end
+		redis.call('DEL', KEYS[i])
+		moved = moved + 1
+	end
+end
+return moved
@@ -0,0 +1,9 @@
+-- Release a lock only if it is still held with the token it was taken with, so a lock that expired
+-- and was taken by another node is never released by mistake.
+-- KEYS[1] lock key
+-- ARGV[1] token the lock was taken with
+-- Returns 1 if the lock was released, 0 if it is no longer held with the token.
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+	return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,4 @@
+-- Remove keys with UNLINK, Redis frees their memory in a background thread.
+-- KEYS[1..n] keys to remove (at most a few thousand, as unpack is bounded by the Lua stack).
+-- Returns the number of keys removed.
+return redis.call('UNLINK', unpack(KEYS))
@@ -0,0 +1,19 @@
+-- Read the data usage amount for an account and resolve its tier in a single round trip.
+-- KEYS[1] account key, KEYS[2] tiers Sorted Set, 
+-- ARGV[1] hash field of the account when KEYS[1] is a hash of accounts (empty or absent for a string key).
+-- Returns {usage, speed, threshold}, {usage, 'UNKNOWN', '0'} when no tier threshold is exceeded,
+-- or {usage} when no tiers exist.
+local usage
+if ARGV[1] ~= nil and ARGV[1] ~= '' then
+	usage = redis.call('HGET', KEYS[1], ARGV[1]) or '0'
+else
+	usage = redis.call('GET', KEYS[1]) or '0'
+end
+local tier = redis.call('ZREVRANGEBYSCORE', KEYS[2], '(' .. usage, '-inf', 'WITHSCORES', 'LIMIT', 0, 1)
+if #tier == 0 then
+	if redis.call('ZCARD', KEYS[2]) == 0 then
+		return {usage}
+	end
+	return {usage, 'UNKNOWN', '0'}
+end
+return {usage, tier[1], tier[2]}
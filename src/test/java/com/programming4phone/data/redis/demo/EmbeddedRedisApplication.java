@@ -0,0 +1,81 @@
+package com.programming4phone.data.redis.demo;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.freePort;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import redis.embedded.RedisServer;
+
+/**
+ * Starts an embedded Redis server on a free port together with the application context 
+ * connected to it, so tests, benchmarks and load tests run without any external service.
+ */
+public class EmbeddedRedisApplication implements AutoCloseable {
+
+	private final int redisPort;
+	private final RedisServer redisServer;
+	private final ConfigurableApplicationContext context;
+
+	/**
+	 * Start the application context without the web server.
+	 * @param properties additional application properties, e.g. <code>tier.resolution.strategy=SERVER</code>
+	 * @throws IOException if the embedded Redis server cannot be started
+	 */
+	public EmbeddedRedisApplication(String... properties) throws IOException {
+		this(false, properties);
+	}
+
+	/**
+	 * @param web boolean, true to also start the web server on a free port
+	 * @param properties additional application properties, e.g. <code>tier.resolution.strategy=SERVER</code>
+	 * @throws IOException if the embedded Redis server cannot be started
+	 */
+	public EmbeddedRedisApplication(boolean web, String... properties) throws IOException {
+		redisPort = freePort();
+		redisServer = new RedisServer(redisPort);
+		redisServer.start();
+		// passed as command line arguments so they take precedence over application.properties
+		List<String> args = new ArrayList<String>();
+		for(String property : properties) args.add("--" + property);
+		args.add("--redis.port=" + redisPort);
+		if(web) args.add("--server.port=" + freePort());
+		try {
+			context = new SpringApplicationBuilder(Application.class)
+					.web(web)
+					.run(args.toArray(new String[args.size()]));
+		}
+		catch(RuntimeException re) {
+			redisServer.stop();
+			throw re;
+		}
+	}
+
+	/**
+	 * @return <b>int</b> port of the embedded Redis server, for another client to connect to it
+	 */
+	public int getRedisPort() {
+		return redisPort;
+	}
+
+	public <T> T getBean(Class<T> type) {
+		return context.getBean(type);
+	}
+
+	/**
+	 * @return <b>String</b> base URL of the web server, e.g. <code>http://127.0.0.1:8080</code>
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port");
+	}
+
+	@Override
+	public void close() throws IOException {
+		context.close();
+		redisServer.stop();
+	}
+}
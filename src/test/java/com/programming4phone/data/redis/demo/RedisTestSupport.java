@@ -0,0 +1,58 @@
+package com.programming4phone.data.redis.demo;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.function.BooleanSupplier;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Helpers shared by the tests that run against embedded Redis servers.
+ */
+public final class RedisTestSupport {
+
+	public static final long WAIT_MILLIS = 10000;
+
+	private RedisTestSupport() {
+	}
+
+	/**
+	 * @return <b>int</b> a local port that was free when checked
+	 * @throws IOException if no port can be opened
+	 */
+	public static int freePort() throws IOException {
+		try(ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Wait for a condition to hold, checking it every 20 ms for at most WAIT_MILLIS.
+	 * @param failure String message of the AssertionError thrown if the condition still does not hold
+	 * @param condition BooleanSupplier
+	 * @throws InterruptedException
+	 */
+	public static void await(String failure, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while(!condition.getAsBoolean()) {
+			if(System.currentTimeMillis() > deadline) throw new AssertionError(failure);
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * @param publicMetrics PublicMetrics of a component
+	 * @param name String name of one of its metrics
+	 * @return <b>long</b> the current value of the metric
+	 * @throws AssertionError if the component has no such metric
+	 */
+	public static long metric(PublicMetrics publicMetrics, String name) {
+		return publicMetrics.metrics().stream()
+				.filter(m -> m.getName().equals(name))
+				.map(Metric::getValue)
+				.findFirst()
+				.orElseThrow(() -> new AssertionError("No metric " + name))
+				.longValue();
+	}
+}
@@ -0,0 +1,84 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.util.Random;
+
+/**
+ * Chooses which of a fixed number of accounts the next request is for.
+ */
+public abstract class AccountDistribution {
+
+	protected final int accounts;
+
+	protected AccountDistribution(int accounts) {
+		if(accounts < 1) throw new IllegalArgumentException("accounts must be positive");
+		this.accounts = accounts;
+	}
+
+	/**
+	 * @param random Random, a ThreadLocalRandom when called from many threads
+	 * @return <b>int</b> account index between 0 (inclusive) and the number of accounts (exclusive)
+	 */
+	public abstract int next(Random random);
+
+	/**
+	 * Every account is equally likely.
+	 * @param accounts int number of accounts
+	 * @return <b>AccountDistribution</b>
+	 */
+	public static AccountDistribution uniform(int accounts) {
+		return new AccountDistribution(accounts) {
+			@Override
+			public int next(Random random) {
+				return random.nextInt(this.accounts);
+			}
+		};
+	}
+
+	/**
+	 * Zipfian distribution, the account with index <i>k</i> is chosen with probability proportional to
+	 * 1/(k+1)^exponent, so a few hot accounts receive most of the requests. With an exponent of 0.99
+	 * and 10,000 accounts the hottest 1% of the accounts receive about half of the requests.
+	 * @param accounts int number of accounts
+	 * @param exponent double between 0 and 1 (exclusive), higher is more skewed
+	 * @return <b>AccountDistribution</b>
+	 */
+	public static AccountDistribution zipfian(int accounts, double exponent) {
+		return new Zipfian(accounts, exponent);
+	}
+
+	/**
+	 * Zipfian generator from Gray et al, "Quickly Generating Billion-Record Synthetic Databases",
+	 * which draws each value in constant time after computing the zeta constant once.
+	 */
+	private static class Zipfian extends AccountDistribution {
+
+		private final double exponent;
+		private final double zetaN;
+		private final double alpha;
+		private final double eta;
+
+		Zipfian(int accounts, double exponent) {
+			super(accounts);
+			if(exponent <= 0d || exponent >= 1d) throw new IllegalArgumentException("exponent must be between 0 and 1");
+			this.exponent = exponent;
+			zetaN = zeta(accounts, exponent);
+			alpha = 1d / (1d - exponent);
+			eta = (1d - Math.pow(2d / accounts, 1d - exponent)) / (1d - zeta(2, exponent) / zetaN);
+		}
+
+		@Override
+		public int next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetaN;
+			if(uz < 1d) return 0;
+			if(uz < 1d + Math.pow(0.5d, exponent)) return Math.min(1, accounts - 1);
+			return Math.min((int) (accounts * Math.pow(eta * u - eta + 1d, alpha)), accounts - 1);
+		}
+
+		private static double zeta(int n, double exponent) {
+			double sum = 0d;
+			for(int i=1; i<=n; i++) sum += 1d / Math.pow(i, exponent);
+			return sum;
+		}
+	}
+}
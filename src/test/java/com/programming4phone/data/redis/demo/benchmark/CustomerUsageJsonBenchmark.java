@@ -0,0 +1,60 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.programming4phone.data.redis.demo.entity.CustomerUsage;
+
+/**
+ * Throughput and allocation of the CustomerUsage JSON (de)serialization done for every usage request,
+ * using an ObjectMapper configured the same way as the one Spring MVC uses.
+ * Run with <code>mvn -Pbenchmark test -Dbenchmark.include=CustomerUsageJsonBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CustomerUsageJsonBenchmark {
+
+	private ObjectReader reader;
+	private ObjectWriter writer;
+	private byte[] request;
+	private CustomerUsage response;
+
+	@Setup
+	public void setUp() throws IOException {
+		ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+		reader = objectMapper.readerFor(CustomerUsage.class);
+		writer = objectMapper.writerFor(CustomerUsage.class);
+		request = writer.writeValueAsBytes(new CustomerUsage().setAccountNumber("123456").setCurrentUsage(1048576L));
+		response = new CustomerUsage().setAccountNumber("123456").setCurrentUsage(1048576L)
+				.setTotalUsage(3221225472L).setSpeed("MEDIUM");
+	}
+
+	@Benchmark
+	public CustomerUsage deserialize() throws IOException {
+		return reader.readValue(request);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return writer.writeValueAsBytes(response);
+	}
+}
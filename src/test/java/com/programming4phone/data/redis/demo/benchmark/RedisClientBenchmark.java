@@ -0,0 +1,62 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import com.programming4phone.data.redis.demo.EmbeddedRedisApplication;
+
+/**
+ * Throughput of INCRBY through the Jedis (pooled) and Lettuce (shared connection) connection factories
+ * under concurrent load, against an embedded Redis. The pool holds a connection per benchmark thread.
+ * Run with <code>mvn -Pbenchmark test -Dbenchmark.include=RedisClientBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class RedisClientBenchmark {
+
+	private static final String KEY_PREFIX = "BENCHMARK:";
+
+	@Param({"JEDIS", "LETTUCE"})
+	public String client;
+
+	private EmbeddedRedisApplication application;
+	private StringRedisTemplate stringRedisTemplate;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		application = new EmbeddedRedisApplication("redis.client=" + client, "redis.pool.max-total=32", "redis.pool.max-idle=32");
+		stringRedisTemplate = application.getBean(StringRedisTemplate.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		application.close();
+	}
+
+	@Benchmark
+	public Long increment() {
+		return stringRedisTemplate.opsForValue().increment(KEY_PREFIX + ThreadLocalRandom.current().nextInt(1000), 1L);
+	}
+}
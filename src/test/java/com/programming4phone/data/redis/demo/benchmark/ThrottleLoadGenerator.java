@@ -0,0 +1,345 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.HdrHistogram.Histogram;
+
+import com.programming4phone.data.redis.demo.EmbeddedRedisApplication;
+
+/**
+ * Closed-loop HTTP load generator for the throttle endpoints. Each worker thread sends one request at a time
+ * on a fixed schedule (<i>load.rate</i> requests per second spread over <i>load.threads</i> workers), so the
+ * target rate must be below what the service can sustain. When a response is late the worker falls
+ * behind and sends the following requests immediately, until it is back on schedule.
+ * <br><br>
+ * To correct for coordinated omission, the response time of each request is measured from when it was
+ * scheduled to be sent rather than when it was actually sent, so a stall is counted against every request
+ * that would have been sent during it. The service time, measured from when the request was actually sent,
+ * is reported as well. Latencies are recorded in HdrHistograms, summarized on the console and written as
+ * percentile distributions (in milliseconds) to <i>load.report.dir</i>.
+ * <br><br>
+ * Unless <i>load.url</i> is set, the application and an embedded Redis server are started locally and the
+ * default tiers are created. Run with <code>mvn -Pload test -Dload.rate=2000 -Dload.distribution=zipfian</code>.
+ * <br><br>
+ * System properties:
+ * <ul>
+ * <li><i>load.url</i> base URL of a running service, e.g. <code>http://127.0.0.1:8080</code></li>
+ * <li><i>load.threads</i> number of concurrent connections (default 16)</li>
+ * <li><i>load.rate</i> total requests per second (default 1000)</li>
+ * <li><i>load.accounts</i> number of distinct accounts (default 10000)</li>
+ * <li><i>load.distribution</i> <code>uniform</code> or <code>zipfian</code> (default uniform)</li>
+ * <li><i>load.zipfian.exponent</i> skew of the zipfian distribution (default 0.99)</li>
+ * <li><i>load.mix.increase</i>, <i>load.mix.usage</i>, <i>load.mix.tier</i> relative weights of the
+ * increase, usage and tier requests (default 60, 30, 10)</li>
+ * <li><i>load.warmup.seconds</i> duration of the warmup, not reported (default 5)</li>
+ * <li><i>load.duration.seconds</i> duration of the measurement (default 30)</li>
+ * <li><i>load.report.dir</i> directory of the percentile distribution files (default target/load)</li>
+ * <li><i>load.profile</i> Spring profile of the locally started application, e.g. <code>async</code> for the 
+ * non-blocking controllers</li>
+ * </ul>
+ */
+public class ThrottleLoadGenerator {
+
+	private static final String ACCOUNT_PREFIX = "LOAD";
+	private static final int RESPONSE_TIME = 0;
+	private static final int SERVICE_TIME = 1;
+
+	/**
+	 * Throttle endpoints driven by the load generator.
+	 */
+	enum Endpoint {
+		INCREASE, USAGE, TIER;
+	}
+
+	private final String baseUrl;
+	private final int threads;
+	private final int rate;
+	private final AccountDistribution accountDistribution;
+	private final int[] mix;
+	private final long warmupNanos;
+	private final long durationNanos;
+
+	ThrottleLoadGenerator(String baseUrl, int threads, int rate, AccountDistribution accountDistribution, 
+			int[] mix, long warmupSeconds, long durationSeconds) {
+		if(threads < 1 || rate < 1) throw new IllegalArgumentException("load.threads and load.rate must be positive");
+		this.baseUrl = baseUrl;
+		this.threads = threads;
+		this.rate = rate;
+		this.accountDistribution = accountDistribution;
+		this.mix = mix;
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int accounts = Integer.getInteger("load.accounts", 10000);
+		AccountDistribution accountDistribution = "zipfian".equalsIgnoreCase(System.getProperty("load.distribution", "uniform"))
+				? AccountDistribution.zipfian(accounts, Double.parseDouble(System.getProperty("load.zipfian.exponent", "0.99")))
+				: AccountDistribution.uniform(accounts);
+		int[] mix = {
+				Integer.getInteger("load.mix.increase", 60),
+				Integer.getInteger("load.mix.usage", 30),
+				Integer.getInteger("load.mix.tier", 10)};
+		int threads = Integer.getInteger("load.threads", 16);
+		String url = System.getProperty("load.url");
+
+		String profile = System.getProperty("load.profile");
+		EmbeddedRedisApplication application = url != null ? null : profile == null 
+				? new EmbeddedRedisApplication(true) 
+				: new EmbeddedRedisApplication(true, "spring.profiles.active=" + profile);
+		try(CloseableHttpClient httpClient = HttpClients.custom().setMaxConnTotal(threads).setMaxConnPerRoute(threads).build()) {
+			String baseUrl = url == null ? application.getBaseUrl() : url;
+			if(application != null) addDefaultTiers(httpClient, baseUrl);
+			ThrottleLoadGenerator loadGenerator = new ThrottleLoadGenerator(baseUrl, threads, Integer.getInteger("load.rate", 1000),
+					accountDistribution, mix, Long.getLong("load.warmup.seconds", 5L), Long.getLong("load.duration.seconds", 30L));
+			loadGenerator.run(httpClient).report(System.out, new File(System.getProperty("load.report.dir", "target/load")));
+			if(application != null) reportServerResources(System.out);
+		}
+		finally {
+			if(application != null) application.close();
+		}
+	}
+
+	/**
+	 * Run the warmup and the measurement.
+	 * @param httpClient CloseableHttpClient with at least as many connections as worker threads
+	 * @return <b>Result</b> containing the latencies of the requests scheduled after the warmup
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	Result run(CloseableHttpClient httpClient) throws InterruptedException {
+		long intervalNanos = TimeUnit.SECONDS.toNanos(threads) / rate;
+		long startNanos = System.nanoTime();
+		long measurementStartNanos = startNanos + warmupNanos;
+		long endNanos = measurementStartNanos + durationNanos;
+		List<Worker> workers = new ArrayList<Worker>();
+		for(int t=0; t<threads; t++) {
+			// stagger the workers so the requests are spread evenly over each interval
+			Worker worker = new Worker(httpClient, startNanos + intervalNanos * t / threads, intervalNanos, measurementStartNanos, endNanos);
+			worker.setName("load-worker-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		Result result = new Result(measurementStartNanos, durationNanos, rate);
+		for(Worker worker : workers) {
+			worker.join();
+			result.add(worker);
+		}
+		return result;
+	}
+
+	private Endpoint nextEndpoint(ThreadLocalRandom random) {
+		int choice = random.nextInt(mix[0] + mix[1] + mix[2]);
+		if(choice < mix[0]) return Endpoint.INCREASE;
+		if(choice < mix[0] + mix[1]) return Endpoint.USAGE;
+		return Endpoint.TIER;
+	}
+
+	private HttpUriRequest request(Endpoint endpoint, String accountNumber) {
+		switch(endpoint) {
+		case INCREASE:
+			HttpPost post = new HttpPost(baseUrl + "/throttle/usage/increase");
+			post.setEntity(new StringEntity("{\"accountNumber\":\"" + accountNumber + "\",\"currentUsage\":1048576}", ContentType.APPLICATION_JSON));
+			return post;
+		case USAGE:
+			return new HttpGet(baseUrl + "/throttle/usage/" + accountNumber);
+		default:
+			return new HttpGet(baseUrl + "/throttle/tier/" + accountNumber);
+		}
+	}
+
+	private static boolean send(CloseableHttpClient httpClient, HttpUriRequest request) {
+		try(CloseableHttpResponse response = httpClient.execute(request)) {
+			EntityUtils.consume(response.getEntity());
+			return response.getStatusLine().getStatusCode() < 300;
+		}
+		catch(IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Print the resources used by the locally started application, which runs in this JVM: the Tomcat 
+	 * request threads (each pins a stack for as long as a request waits on Redis when requests are blocking),
+	 * the peak number of live threads and the heap in use after a full GC.
+	 */
+	private static void reportServerResources(PrintStream out) {
+		long requestThreads = Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> thread.getName().startsWith("http-nio-") && thread.getName().contains("-exec-"))
+				.count();
+		System.gc();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		out.println(String.format(Locale.ROOT, "Tomcat request threads %d, peak live threads %d (including load workers), heap used %d MB",
+				requestThreads, ManagementFactory.getThreadMXBean().getPeakThreadCount(), 
+				memory.getHeapMemoryUsage().getUsed() / (1024 * 1024)));
+	}
+
+	private static void addDefaultTiers(CloseableHttpClient httpClient, String baseUrl) {
+		String[] tiers = {
+				"{\"speed\":\"FAST\",\"threshhold\":-1}",
+				"{\"speed\":\"MEDIUM\",\"threshhold\":3221225472}",
+				"{\"speed\":\"SLOW\",\"threshhold\":5368709120}"};
+		for(String tier : tiers) {
+			HttpPut put = new HttpPut(baseUrl + "/throttle/tier");
+			put.setEntity(new StringEntity(tier, ContentType.APPLICATION_JSON));
+			if(!send(httpClient, put)) throw new IllegalStateException("Unable to create tier " + tier);
+		}
+	}
+
+	/**
+	 * Sends requests on its own schedule and records the latencies of the requests scheduled after the warmup
+	 * in its own histograms, so recording never contends with the other workers.
+	 */
+	private class Worker extends Thread {
+
+		private final CloseableHttpClient httpClient;
+		private final long firstNanos;
+		private final long intervalNanos;
+		private final long measurementStartNanos;
+		private final long endNanos;
+		private final Histogram[][] histograms = new Histogram[Endpoint.values().length][2];
+		private final long[] errors = new long[Endpoint.values().length];
+		private long lastDoneNanos;
+
+		Worker(CloseableHttpClient httpClient, long firstNanos, long intervalNanos, long measurementStartNanos, long endNanos) {
+			this.httpClient = httpClient;
+			this.firstNanos = firstNanos;
+			this.intervalNanos = intervalNanos;
+			this.measurementStartNanos = measurementStartNanos;
+			this.endNanos = endNanos;
+			for(Histogram[] endpointHistograms : histograms) {
+				endpointHistograms[RESPONSE_TIME] = new Histogram(3);
+				endpointHistograms[SERVICE_TIME] = new Histogram(3);
+			}
+		}
+
+		@Override
+		public void run() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for(long scheduledNanos = firstNanos; scheduledNanos < endNanos; scheduledNanos += intervalNanos) {
+				long waitNanos = scheduledNanos - System.nanoTime();
+				if(waitNanos > 0) LockSupport.parkNanos(waitNanos);
+				Endpoint endpoint = nextEndpoint(random);
+				HttpUriRequest request = request(endpoint, ACCOUNT_PREFIX + accountDistribution.next(random));
+				long sentNanos = System.nanoTime();
+				boolean success = send(httpClient, request);
+				long doneNanos = System.nanoTime();
+				lastDoneNanos = doneNanos;
+				if(scheduledNanos < measurementStartNanos) continue;
+				histograms[endpoint.ordinal()][RESPONSE_TIME].recordValue(TimeUnit.NANOSECONDS.toMicros(doneNanos - scheduledNanos));
+				histograms[endpoint.ordinal()][SERVICE_TIME].recordValue(TimeUnit.NANOSECONDS.toMicros(doneNanos - sentNanos));
+				if(!success) errors[endpoint.ordinal()]++;
+			}
+		}
+	}
+
+	/**
+	 * Latencies, in microseconds, of the requests scheduled during the measurement, merged from every worker.
+	 */
+	static class Result {
+
+		private final long measurementStartNanos;
+		private long durationNanos;
+		private final int targetRate;
+		private final Histogram[][] histograms = new Histogram[Endpoint.values().length][2];
+		private final long[] errors = new long[Endpoint.values().length];
+
+		Result(long measurementStartNanos, long durationNanos, int targetRate) {
+			this.measurementStartNanos = measurementStartNanos;
+			this.durationNanos = durationNanos;
+			this.targetRate = targetRate;
+			for(Histogram[] endpointHistograms : histograms) {
+				endpointHistograms[RESPONSE_TIME] = new Histogram(3);
+				endpointHistograms[SERVICE_TIME] = new Histogram(3);
+			}
+		}
+
+		private void add(Worker worker) {
+			for(Endpoint endpoint : Endpoint.values()) {
+				histograms[endpoint.ordinal()][RESPONSE_TIME].add(worker.histograms[endpoint.ordinal()][RESPONSE_TIME]);
+				histograms[endpoint.ordinal()][SERVICE_TIME].add(worker.histograms[endpoint.ordinal()][SERVICE_TIME]);
+				errors[endpoint.ordinal()] += worker.errors[endpoint.ordinal()];
+			}
+			// a worker that fell behind keeps sending after the scheduled end of the measurement
+			durationNanos = Math.max(durationNanos, worker.lastDoneNanos - measurementStartNanos);
+		}
+
+		/**
+		 * @param endpoint Endpoint
+		 * @return <b>Histogram</b> of the response times, corrected for coordinated omission
+		 */
+		Histogram getResponseTimes(Endpoint endpoint) {
+			return histograms[endpoint.ordinal()][RESPONSE_TIME];
+		}
+
+		/**
+		 * @param endpoint Endpoint
+		 * @return <b>Histogram</b> of the service times, not corrected for coordinated omission
+		 */
+		Histogram getServiceTimes(Endpoint endpoint) {
+			return histograms[endpoint.ordinal()][SERVICE_TIME];
+		}
+
+		long getErrors(Endpoint endpoint) {
+			return errors[endpoint.ordinal()];
+		}
+
+		/**
+		 * Print a summary and write the percentile distribution of each endpoint to <i>reportDir</i>.
+		 * @param out PrintStream for the summary
+		 * @param reportDir File directory for the <i>.hgrm</i> files, which can be plotted with the HdrHistogram plotter
+		 * @throws FileNotFoundException if a report file cannot be created
+		 */
+		void report(PrintStream out, File reportDir) throws FileNotFoundException {
+			reportDir.mkdirs();
+			long requests = 0;
+			out.println(String.format(Locale.ROOT, "%-9s %-8s %9s %7s %9s %9s %9s %9s %9s %9s", 
+					"endpoint", "latency", "requests", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "p99.99 ms", "max ms"));
+			for(Endpoint endpoint : Endpoint.values()) {
+				requests += getResponseTimes(endpoint).getTotalCount();
+				summarize(out, endpoint, "response", getResponseTimes(endpoint));
+				summarize(out, endpoint, "service", getServiceTimes(endpoint));
+				for(int latency=RESPONSE_TIME; latency<=SERVICE_TIME; latency++) {
+					String name = endpoint.name().toLowerCase(Locale.ROOT) + (latency == RESPONSE_TIME ? "-response" : "-service") + ".hgrm";
+					try(PrintStream file = new PrintStream(new File(reportDir, name))) {
+						histograms[endpoint.ordinal()][latency].outputPercentileDistribution(file, 1000d);
+					}
+				}
+			}
+			double achievedRate = requests * 1e9d / durationNanos;
+			out.println(String.format(Locale.ROOT, "target %d requests/s, achieved %.0f requests/s", targetRate, achievedRate));
+			if(achievedRate < targetRate * 0.95d) {
+				out.println("The service could not sustain the target rate, the response times reflect the growing backlog");
+			}
+			out.println("Percentile distributions written to " + reportDir.getAbsolutePath());
+		}
+
+		private void summarize(PrintStream out, Endpoint endpoint, String latency, Histogram histogram) {
+			out.println(String.format(Locale.ROOT, "%-9s %-8s %9d %7d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f", 
+					endpoint, latency, histogram.getTotalCount(), getErrors(endpoint),
+					histogram.getValueAtPercentile(50d) / 1000d, histogram.getValueAtPercentile(90d) / 1000d,
+					histogram.getValueAtPercentile(99d) / 1000d, histogram.getValueAtPercentile(99.9d) / 1000d,
+					histogram.getValueAtPercentile(99.99d) / 1000d, histogram.getMaxValue() / 1000d));
+		}
+	}
+}
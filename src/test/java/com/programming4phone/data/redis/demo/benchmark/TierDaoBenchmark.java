@@ -0,0 +1,155 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.programming4phone.data.redis.demo.EmbeddedRedisApplication;
+import com.programming4phone.data.redis.demo.dao.TierDao;
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+
+/**
+ * Throughput of TierDao.getCurrentUsageTier against an embedded Redis, for both tier resolution strategies,
+ * and of resolving the tier from the whole Sorted Set (ZRANGE WITHSCORES, filtered in Java) as a baseline
+ * for the SERVER strategy (ZREVRANGEBYSCORE ... LIMIT 0 1). The baseline does not depend on the strategy,
+ * so it runs once, and its setup prints the size in bytes of the Redis reply of each approach.
+ * Run with <code>mvn -Pbenchmark test -Dbenchmark.include=TierDaoBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@Threads(4)
+public class TierDaoBenchmark {
+
+	private static final long CURRENT_USAGE = 4000000000L;
+
+	@State(Scope.Benchmark)
+	public static class ResolutionState {
+
+		@Param({"LOCAL", "SERVER"})
+		public String tierResolutionStrategy;
+
+		EmbeddedRedisApplication application;
+		TierDao tierDao;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			application = new EmbeddedRedisApplication("tier.resolution.strategy=" + tierResolutionStrategy);
+			tierDao = addTiers(application);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			application.close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class AllTiersState {
+
+		EmbeddedRedisApplication application;
+		TierDao tierDao;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			application = new EmbeddedRedisApplication();
+			tierDao = addTiers(application);
+			System.out.println("Reply bytes, ZRANGE TIERS 0 -1 WITHSCORES: " 
+					+ replyBytes(application.getRedisPort(), "ZRANGE", "TIERS", "0", "-1", "WITHSCORES"));
+			System.out.println("Reply bytes, ZREVRANGEBYSCORE TIERS (" + CURRENT_USAGE + " -inf WITHSCORES LIMIT 0 1: " 
+					+ replyBytes(application.getRedisPort(), "ZREVRANGEBYSCORE", "TIERS", "(" + CURRENT_USAGE, "-inf", "WITHSCORES", "LIMIT", "0", "1"));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			application.close();
+		}
+	}
+
+	@Benchmark
+	public Tier getCurrentUsageTier(ResolutionState state) {
+		return state.tierDao.getCurrentUsageTier(CURRENT_USAGE);
+	}
+
+	@Benchmark
+	public Optional<Tier> resolveFromAllTiers(AllTiersState state) {
+		return state.tierDao.getAllTiers().stream()
+				.filter(t->t.getThreshhold()<CURRENT_USAGE)
+				.max((t1,t2)->t1.getThreshhold().compareTo(t2.getThreshhold()));
+	}
+
+	private static TierDao addTiers(EmbeddedRedisApplication application) {
+		TierDao tierDao = application.getBean(TierDao.class);
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.name()).setThreshhold(-1L));
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.MEDIUM.name()).setThreshhold(3221225472L));
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.SLOW.name()).setThreshhold(5368709120L));
+		return tierDao;
+	}
+
+	/**
+	 * Send a command over a plain socket and count the bytes of its reply as sent by Redis (RESP).
+	 */
+	private static int replyBytes(int redisPort, String... command) throws IOException {
+		try(Socket socket = new Socket("127.0.0.1", redisPort)) {
+			StringBuilder request = new StringBuilder("*").append(command.length).append("\r\n");
+			for(String argument : command) {
+				request.append('$').append(argument.getBytes(StandardCharsets.UTF_8).length).append("\r\n").append(argument).append("\r\n");
+			}
+			OutputStream out = socket.getOutputStream();
+			out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return replyBytes(new BufferedInputStream(socket.getInputStream()));
+		}
+	}
+
+	private static int replyBytes(InputStream in) throws IOException {
+		String line = readLine(in);
+		int bytes = line.length() + 2;
+		switch(line.charAt(0)) {
+		case '*':
+			for(int i=Integer.parseInt(line.substring(1)); i>0; i--) bytes += replyBytes(in);
+			return bytes;
+		case '$':
+			int length = Integer.parseInt(line.substring(1));
+			if(length < 0) return bytes;
+			for(int i=0; i<length+2; i++) if(in.read() < 0) throw new IOException("Reply truncated");
+			return bytes + length + 2;
+		default:
+			return bytes;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while((c = in.read()) != '\r') {
+			if(c < 0) throw new IOException("Reply truncated");
+			line.append((char) c);
+		}
+		in.read(); // \n
+		return line.toString();
+	}
+}
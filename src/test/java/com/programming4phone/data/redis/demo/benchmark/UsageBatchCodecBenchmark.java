@@ -0,0 +1,107 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.programming4phone.data.redis.demo.entity.CustomerUsage;
+import com.programming4phone.data.redis.demo.rest.UsageBatchCodec;
+
+/**
+ * Throughput and allocation of decoding a usage batch into the coalesced amounts per account, and encoding the
+ * totals returned, in JSON (as done by POST /throttle/usage/increase/batch with application/json) and in the
+ * binary format of UsageBatchCodec. Each batch holds <i>records</i> usage events spread over a tenth as many accounts.
+ * Run with <code>mvn -Pbenchmark test -Dbenchmark.include=UsageBatchCodecBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UsageBatchCodecBenchmark {
+
+	@Param({"1000"})
+	private int records;
+
+	private ObjectReader jsonReader;
+	private ObjectWriter jsonWriter;
+	private byte[] jsonRequest;
+	private byte[] binaryRequest;
+	private Map<String, Long> totalAmountsUsed;
+
+	@Setup
+	public void setUp() throws IOException {
+		ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+		jsonReader = objectMapper.readerFor(new TypeReference<List<CustomerUsage>>() {});
+		jsonWriter = objectMapper.writerFor(new TypeReference<List<CustomerUsage>>() {});
+		List<CustomerUsage> customerUsages = new ArrayList<CustomerUsage>(records);
+		byte[][] binaryRecords = new byte[records][];
+		int binaryLength = 0;
+		for(int i=0; i<records; i++) {
+			String accountNumber = Long.toString(5550000000L + i % (records / 10));
+			long usageAmount = 1 + (i * 31) % 4096;
+			customerUsages.add(new CustomerUsage().setAccountNumber(accountNumber).setCurrentUsage(usageAmount));
+			Map<String, Long> record = new LinkedHashMap<String, Long>();
+			record.put(accountNumber, usageAmount);
+			binaryRecords[i] = UsageBatchCodec.encode(record);
+			binaryLength += binaryRecords[i].length;
+		}
+		jsonRequest = objectMapper.writeValueAsBytes(customerUsages);
+		binaryRequest = new byte[binaryLength];
+		int position = 0;
+		for(byte[] binaryRecord : binaryRecords) {
+			System.arraycopy(binaryRecord, 0, binaryRequest, position, binaryRecord.length);
+			position += binaryRecord.length;
+		}
+		totalAmountsUsed = UsageBatchCodec.decode(binaryRequest);
+	}
+
+	@Benchmark
+	public Map<String, Long> decodeJson() throws IOException {
+		List<CustomerUsage> customerUsages = jsonReader.readValue(jsonRequest);
+		Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+		for(CustomerUsage customerUsage : customerUsages) {
+			usageAmounts.merge(customerUsage.getAccountNumber(), customerUsage.getCurrentUsage(), Long::sum);
+		}
+		return usageAmounts;
+	}
+
+	@Benchmark
+	public Map<String, Long> decodeBinary() {
+		return UsageBatchCodec.decode(binaryRequest);
+	}
+
+	@Benchmark
+	public byte[] encodeJson() throws IOException {
+		List<CustomerUsage> totalUsages = new ArrayList<CustomerUsage>(totalAmountsUsed.size());
+		totalAmountsUsed.forEach((accountNumber, totalAmountUsed) ->
+			totalUsages.add(new CustomerUsage().setAccountNumber(accountNumber).setTotalUsage(totalAmountUsed)));
+		return jsonWriter.writeValueAsBytes(totalUsages);
+	}
+
+	@Benchmark
+	public byte[] encodeBinary() {
+		return UsageBatchCodec.encode(totalAmountsUsed);
+	}
+}
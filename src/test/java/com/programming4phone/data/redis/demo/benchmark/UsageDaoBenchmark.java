@@ -0,0 +1,87 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.programming4phone.data.redis.demo.EmbeddedRedisApplication;
+import com.programming4phone.data.redis.demo.dao.UsageDao;
+
+/**
+ * Throughput of the UsageDao hot paths against an embedded Redis.
+ * Run with <code>mvn -Pbenchmark test -Dbenchmark.include=UsageDaoBenchmark</code>; the gc profiler
+ * reports the allocation rate per operation (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@Threads(4)
+public class UsageDaoBenchmark {
+
+	private static final int ACCOUNTS = 10000;
+
+	@State(Scope.Benchmark)
+	public static class RedisState {
+
+		EmbeddedRedisApplication application;
+		UsageDao usageDao;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			application = new EmbeddedRedisApplication("tier.expiry.seconds=2592000");
+			usageDao = application.getBean(UsageDao.class);
+			for(int i=0; i<ACCOUNTS; i++) {
+				usageDao.increaseAmountUsed(accountNumber(i), 1000000L);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			application.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AccountState {
+		private int next;
+
+		String nextAccountNumber() {
+			next = (next + 7919) % ACCOUNTS;
+			return accountNumber(next);
+		}
+	}
+
+	@Benchmark
+	public Long increaseAmountUsed(RedisState redis, AccountState account) {
+		return redis.usageDao.increaseAmountUsed(account.nextAccountNumber(), 1024L);
+	}
+
+	@Benchmark
+	public Long decreaseAmountUsed(RedisState redis, AccountState account) {
+		return redis.usageDao.decreaseAmountUsed(account.nextAccountNumber(), 1L);
+	}
+
+	@Benchmark
+	public Long getCurrentAmountUsed(RedisState redis, AccountState account) {
+		return redis.usageDao.getCurrentAmountUsed(account.nextAccountNumber());
+	}
+
+	private static String accountNumber(int i) {
+		return "BENCH" + i;
+	}
+}
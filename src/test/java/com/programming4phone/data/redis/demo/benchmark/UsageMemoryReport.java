@@ -0,0 +1,84 @@
+package com.programming4phone.data.redis.demo.benchmark;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import com.programming4phone.data.redis.demo.EmbeddedRedisApplication;
+import com.programming4phone.data.redis.demo.dao.UsageDao;
+import com.programming4phone.data.redis.demo.dao.UsageStorage;
+
+/**
+ * Compares the Redis memory used per account by the KEY and HASH storage layouts (see UsageStorage).
+ * For each layout the application and a fresh embedded Redis server are started, <i>memory.accounts</i>
+ * accounts are written through UsageDao and the growth of <i>used_memory</i> is divided by the number
+ * of accounts. The encoding of one of the keys is reported as well, a HASH layout hash should be a
+ * ziplist (listpack from Redis 7) rather than a hashtable.
+ * <br><br>
+ * Run with <code>mvn -Pmemory test -Dmemory.accounts=1000000</code>.
+ * <br><br>
+ * System properties:
+ * <ul>
+ * <li><i>memory.accounts</i> number of accounts written (default 1000000)</li>
+ * <li><i>memory.buckets</i> number of hashes of the HASH layout (default derived from memory.accounts, one per 64 accounts)</li>
+ * </ul>
+ */
+public class UsageMemoryReport {
+
+	private static final long FIRST_ACCOUNT_NUMBER = 5550000000L;
+	private static final long SETTLE_MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int accounts = Integer.getInteger("memory.accounts", 1000000);
+		int buckets = Integer.getInteger("memory.buckets", 0);
+		PrintStream out = System.out;
+		out.println(String.format(Locale.ROOT, "%-8s %10s %10s %14s %14s  %s",
+				"layout", "accounts", "keys", "used memory", "bytes/account", "encoding"));
+		for(UsageStorage.Layout layout : UsageStorage.Layout.values()) {
+			try(EmbeddedRedisApplication application = new EmbeddedRedisApplication(
+					"usage.storage.layout=" + layout, "usage.storage.hash.buckets=" + buckets, "usage.storage.expected.accounts=" + accounts,
+					"tier.expiry.seconds=2592000", "rate.enabled=false", "tier.events.enabled=false", 
+					"usage.writebehind.enabled=false")) {
+				StringRedisTemplate stringRedisTemplate = application.getBean(StringRedisTemplate.class);
+				UsageDao usageDao = application.getBean(UsageDao.class);
+				long usedMemoryBefore = usedMemory(stringRedisTemplate);
+				Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+				for(int i=0; i<accounts; i++) {
+					usageAmounts.put(Long.toString(FIRST_ACCOUNT_NUMBER + i), Long.valueOf(1 + i % 5000000));
+					if(usageAmounts.size() == 10000 || i == accounts - 1) {
+						usageDao.increaseAmountsUsed(usageAmounts);
+						usageAmounts.clear();
+					}
+				}
+				long usedMemory = usedMemory(stringRedisTemplate) - usedMemoryBefore;
+				String sampleKey = stringRedisTemplate.execute((RedisCallback<String>) connection ->
+						new String(connection.randomKey(), StandardCharsets.UTF_8));
+				out.println(String.format(Locale.ROOT, "%-8s %10d %10d %12.1fMB %14.1f  %s",
+						layout, accounts, stringRedisTemplate.execute(RedisConnection::dbSize), usedMemory / 1048576d,
+						usedMemory / (double) accounts, encoding(stringRedisTemplate, sampleKey)));
+			}
+		}
+	}
+
+	/**
+	 * Read <i>used_memory</i> once Redis has settled, so buffers of the commands just sent are not counted.
+	 */
+	private static long usedMemory(StringRedisTemplate stringRedisTemplate) throws InterruptedException {
+		Thread.sleep(SETTLE_MILLIS);
+		Properties info = stringRedisTemplate.execute((RedisCallback<Properties>) connection -> connection.info("memory"));
+		return Long.parseLong(info.getProperty("used_memory"));
+	}
+
+	private static String encoding(StringRedisTemplate stringRedisTemplate, String key) {
+		Object encoding = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+				connection.execute("OBJECT", "ENCODING".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8)));
+		return new String((byte[]) encoding, StandardCharsets.UTF_8);
+	}
+}
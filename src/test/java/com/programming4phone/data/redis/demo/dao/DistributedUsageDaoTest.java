@@ -0,0 +1,307 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.await;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.freePort;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.metric;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.programming4phone.data.redis.demo.Application;
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.JedisClusterCRC16;
+import redis.embedded.Redis;
+import redis.embedded.RedisServer;
+
+/**
+ * Runs UsageDao against three embedded Redis instances, independent shards and a Redis Cluster of three masters,
+ * the write queue against shards one of which is stopped, and RedisShards against a cluster with a slot being migrated.
+ * The async profile, which only talks to a single node, must refuse to start against shards.
+ */
+public class DistributedUsageDaoTest {
+
+	private static final int ACCOUNTS = 300;
+	private static final long CLUSTER_READY_MILLIS = 30000;
+
+	@Test
+	public void testSharded() throws IOException {
+		List<Redis> servers = new ArrayList<Redis>();
+		List<String> nodes = new ArrayList<String>();
+		try {
+			for(int i=0; i<3; i++) {
+				int port = freePort();
+				RedisServer server = new RedisServer(port);
+				server.start();
+				servers.add(server);
+				nodes.add("127.0.0.1:" + port);
+			}
+			run("SHARDED", nodes);
+		}
+		finally {
+			for(Redis server : servers) server.stop();
+		}
+	}
+
+	@Test
+	public void testAsyncProfileRequiresStandalone() throws IOException {
+		List<Redis> servers = new ArrayList<Redis>();
+		List<String> nodes = new ArrayList<String>();
+		try {
+			for(int i=0; i<2; i++) {
+				int port = freePort();
+				RedisServer server = new RedisServer(port);
+				server.start();
+				servers.add(server);
+				nodes.add("127.0.0.1:" + port);
+			}
+			try(ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+					"--spring.profiles.active=async", "--redis.mode=SHARDED", "--redis.nodes=" + String.join(",", nodes))) {
+				fail("The async profile started in the SHARDED redis.mode");
+			}
+			catch(BeanCreationException bce) {
+				assertThat(bce.getMostSpecificCause(),instanceOf(IllegalStateException.class));
+			}
+		}
+		finally {
+			for(Redis server : servers) server.stop();
+		}
+	}
+
+	@Test
+	public void testWriteQueueWithFailingShard() throws IOException, InterruptedException {
+		List<RedisServer> servers = new ArrayList<RedisServer>();
+		List<String> nodes = new ArrayList<String>();
+		try {
+			for(int i=0; i<3; i++) {
+				int port = freePort();
+				RedisServer server = new RedisServer(port);
+				server.start();
+				servers.add(server);
+				nodes.add("127.0.0.1:" + port);
+			}
+			try(ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+					"--redis.mode=SHARDED", "--redis.nodes=" + String.join(",", nodes), "--tier.expiry.seconds=600")) {
+				UsageDao usageDao = context.getBean(UsageDao.class);
+				List<String> accountNumbers = new ArrayList<String>();
+				for(int i=0; i<30; i++) accountNumbers.add(Long.toString(5550000000L + i));
+				for(String accountNumber : accountNumbers) usageDao.removeAccount(accountNumber);
+
+				// the first batch holds back the writer until every event is queued, so the events form a single batch
+				UsageWriteQueue usageWriteQueue = new UsageWriteQueue();
+				ReflectionTestUtils.setField(usageWriteQueue, "capacity", 100);
+				ReflectionTestUtils.setField(usageWriteQueue, "writerCount", 1);
+				ReflectionTestUtils.setField(usageWriteQueue, "batchSize", 100);
+				ReflectionTestUtils.setField(usageWriteQueue, "retryMillis", 20L);
+				ReflectionTestUtils.setField(usageWriteQueue, "maxAttempts", 3);
+				CountDownLatch queued = new CountDownLatch(1);
+				usageWriteQueue.start(usageAmounts -> {
+					if(!usageAmounts.containsKey("HOLD")) return usageDao.tryIncreaseAmountsUsed(usageAmounts);
+					try {
+						queued.await();
+					}
+					catch(InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+					return Collections.emptyMap();
+				}, (accountNumber, usageAmount) -> {});
+				try {
+					usageWriteQueue.offer("HOLD", 1L);
+					RedisServer failingServer = servers.get(2);
+					failingServer.stop();
+					for(int i=0; i<accountNumbers.size(); i++) usageWriteQueue.offer(accountNumbers.get(i), i + 1);
+					queued.countDown();
+
+					// the accounts of the other shards are written while those of the stopped one are retried
+					await("The queued events were not retried", () -> metric(usageWriteQueue, "usage.ack.failures") >= 3L);
+					failingServer.start();
+					await("The queued events were not written", () -> metric(usageWriteQueue, "usage.ack.written") == accountNumbers.size() + 1);
+				}
+				finally {
+					usageWriteQueue.stop();
+				}
+				// every account was increased exactly once
+				Map<String, Long> currentAmountsUsed = usageDao.getCurrentAmountsUsed(accountNumbers);
+				for(int i=0; i<accountNumbers.size(); i++) {
+					assertThat(currentAmountsUsed.get(accountNumbers.get(i)), equalTo(Long.valueOf(i + 1)));
+				}
+			}
+		}
+		finally {
+			for(Redis server : servers) server.stop();
+		}
+	}
+
+	@Test
+	public void testCluster() throws IOException, InterruptedException {
+		List<Redis> servers = new ArrayList<Redis>();
+		List<String> nodes = new ArrayList<String>();
+		try {
+			startCluster(servers, nodes);
+			run("CLUSTER", nodes);
+		}
+		finally {
+			for(Redis server : servers) server.stop();
+		}
+	}
+
+	@Test
+	public void testClusterAskRedirection() throws IOException, InterruptedException {
+		List<Redis> servers = new ArrayList<Redis>();
+		List<String> nodes = new ArrayList<String>();
+		try {
+			startCluster(servers, nodes);
+			for(String client : Arrays.asList("JEDIS", "LETTUCE")) {
+				try(ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+						"--redis.mode=CLUSTER", "--redis.nodes=" + String.join(",", nodes), "--redis.client=" + client)) {
+					RedisShards redisShards = context.getBean(RedisShards.class);
+					String key = "ask:" + client;
+					redisShards.execute(key, node -> node.opsForValue().increment(key, 10L));
+
+					// move the key to the next node while its slot is migrating, so that the node serving the slot answers ASK
+					int slot = JedisClusterCRC16.getSlot(key);
+					String source = nodes.get(slot / slotsPerNode(nodes));
+					String target = nodes.get((nodes.indexOf(source) + 1) % nodes.size());
+					try(Jedis sourceJedis = jedis(source); Jedis targetJedis = jedis(target)) {
+						String targetId = nodeId(targetJedis);
+						targetJedis.clusterSetSlotImporting(slot, nodeId(sourceJedis));
+						sourceJedis.clusterSetSlotMigrating(slot, targetId);
+						sourceJedis.migrate("127.0.0.1", port(target), key, 0, 5000);
+
+						assertThat(redisShards.execute(key, node -> node.opsForValue().increment(key, 5L)), equalTo(15L));
+						assertThat(redisShards.execute(key, node -> node.opsForValue().get(key)), equalTo("15"));
+
+						// once the migration completes the node serving the slot answers MOVED
+						for(String node : nodes) {
+							try(Jedis jedis = jedis(node)) {
+								jedis.clusterSetSlotNode(slot, targetId);
+							}
+						}
+						assertThat(redisShards.execute(key, node -> node.opsForValue().get(key)), equalTo("15"));
+						assertThat(targetJedis.get(key), equalTo("15"));
+					}
+				}
+			}
+		}
+		finally {
+			for(Redis server : servers) server.stop();
+		}
+	}
+
+	/**
+	 * Start three embedded Redis instances with cluster support and join them into a cluster.
+	 */
+	private static void startCluster(List<Redis> servers, List<String> nodes) throws IOException, InterruptedException {
+		Path configDirectory = Files.createTempDirectory("redis-cluster");
+		for(int i=0; i<3; i++) {
+			int port = freePort();
+			RedisServer server = RedisServer.newRedisServer().port(port)
+					.setting("cluster-enabled yes")
+					.setting("cluster-config-file " + configDirectory.resolve("nodes-" + port + ".conf"))
+					.build();
+			server.start();
+			servers.add(server);
+			nodes.add("127.0.0.1:" + port);
+		}
+		createCluster(nodes);
+	}
+
+	/**
+	 * Join the nodes into a cluster of masters, each serving an equal range of hash slots.
+	 */
+	private static void createCluster(List<String> nodes) throws InterruptedException {
+		int slotsPerNode = slotsPerNode(nodes);
+		for(int n=0; n<nodes.size(); n++) {
+			try(Jedis jedis = jedis(nodes.get(n))) {
+				if(n > 0) jedis.clusterMeet("127.0.0.1", port(nodes.get(0)));
+				int[] slots = IntStream.range(n * slotsPerNode, Math.min((n + 1) * slotsPerNode, RedisShards.SLOTS)).toArray();
+				jedis.clusterAddSlots(slots);
+			}
+		}
+		long deadline = System.currentTimeMillis() + CLUSTER_READY_MILLIS;
+		for(String node : nodes) {
+			try(Jedis jedis = jedis(node)) {
+				while(!jedis.clusterInfo().contains("cluster_state:ok") || jedis.clusterNodes().split("\n").length < nodes.size()) {
+					if(System.currentTimeMillis() > deadline) throw new IllegalStateException("The cluster did not form: " + jedis.clusterInfo());
+					Thread.sleep(100);
+				}
+			}
+		}
+	}
+
+	private static int slotsPerNode(List<String> nodes) {
+		return (RedisShards.SLOTS + nodes.size() - 1) / nodes.size();
+	}
+
+	private static String nodeId(Jedis jedis) {
+		for(String line : jedis.clusterNodes().split("\n")) {
+			if(line.contains("myself")) return line.split(" ")[0];
+		}
+		throw new IllegalStateException("No node id in " + jedis.clusterNodes());
+	}
+
+	private static int port(String node) {
+		return Integer.parseInt(node.split(":")[1]);
+	}
+
+	private static Jedis jedis(String node) {
+		return new Jedis("127.0.0.1", port(node));
+	}
+
+	private void run(String mode, List<String> nodes) {
+		try(ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+				"--redis.mode=" + mode, "--redis.nodes=" + String.join(",", nodes), "--tier.expiry.seconds=600", "--rate.enabled=true")) {
+			UsageDao usageDao = context.getBean(UsageDao.class);
+			TierDao tierDao = context.getBean(TierDao.class);
+			RedisShards redisShards = context.getBean(RedisShards.class);
+			tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.toString()).setThreshhold(0L));
+			tierDao.addTier(new Tier().setSpeed(UsageTierEnum.SLOW.toString()).setThreshhold(1000L));
+
+			assertThat(usageDao.increaseAmountUsed("5550000000", Long.valueOf(40)), equalTo(Long.valueOf(40)));
+			assertThat(usageDao.decreaseAmountUsed("5550000000", Long.valueOf(10)), equalTo(Long.valueOf(30)));
+			assertThat(usageDao.getCurrentAmountUsed("5550000000"), equalTo(Long.valueOf(30)));
+			assertThat(usageDao.getWindowedAmountUsed("5550000000"), equalTo(Long.valueOf(40)));
+			assertThat(usageDao.getCurrentUsageAndTier("5550000000").getSpeed(), equalTo(UsageTierEnum.FAST.toString()));
+
+			Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+			for(int i=0; i<ACCOUNTS; i++) usageAmounts.put(Long.toString(5550000000L + i), Long.valueOf(i + 1));
+			Map<String, Long> totalAmountsUsed = usageDao.increaseAmountsUsed(usageAmounts);
+			assertThat(new ArrayList<String>(totalAmountsUsed.keySet()), equalTo(new ArrayList<String>(usageAmounts.keySet())));
+			assertThat(totalAmountsUsed.get("5550000000"), equalTo(Long.valueOf(31)));
+			assertThat(totalAmountsUsed.get("5550000299"), equalTo(Long.valueOf(300)));
+
+			List<String> accountNumbers = new ArrayList<String>(usageAmounts.keySet());
+			Map<String, Long> currentAmountsUsed = usageDao.getCurrentAmountsUsed(accountNumbers);
+			assertThat(currentAmountsUsed, equalTo(totalAmountsUsed));
+
+			// the accounts are spread over every node
+			for(StringRedisTemplate node : redisShards.nodes()) {
+				assertThat(node.execute(RedisConnection::dbSize), greaterThan(0L));
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+
+	@Test
+	public void testGetAndExpire() throws InterruptedException {
+		NearCache<Long> nearCache = new NearCache<Long>(100, 50L);
+		assertThat(nearCache.get("5550001234"), nullValue());
+		nearCache.put("5550001234", "ACCOUNT:5550001234", 25L, nearCache.startLoad());
+		assertThat(nearCache.get("5550001234"), equalTo(25L));
+		assertThat(nearCache.hits(), equalTo(1L));
+		assertThat(nearCache.misses(), equalTo(1L));
+		Thread.sleep(100L);
+		assertThat(nearCache.get("5550001234"), nullValue());
+		assertThat(nearCache.size(), equalTo(0));
+	}
+
+	@Test
+	public void testInvalidate() {
+		NearCache<Long> nearCache = new NearCache<Long>(100, 60000L);
+		// two accounts in the same hash of the HASH storage layout
+		nearCache.put("5550001234", "ACCOUNTS:17", 25L, nearCache.startLoad());
+		nearCache.put("5550004321", "ACCOUNTS:17", 30L, nearCache.startLoad());
+		nearCache.put("5550009999", "ACCOUNTS:18", 35L, nearCache.startLoad());
+		nearCache.invalidate("ACCOUNTS:17");
+		assertThat(nearCache.get("5550001234"), nullValue());
+		assertThat(nearCache.get("5550004321"), nullValue());
+		assertThat(nearCache.get("5550009999"), equalTo(35L));
+		assertThat(nearCache.invalidations(), equalTo(2L));
+
+		// a value loaded before its key changed is not cached
+		long loadSequence = nearCache.startLoad();
+		nearCache.invalidate("ACCOUNTS:17");
+		nearCache.put("5550001234", "ACCOUNTS:17", 25L, loadSequence);
+		assertThat(nearCache.get("5550001234"), nullValue());
+		nearCache.put("5550001234", "ACCOUNTS:17", 40L, nearCache.startLoad());
+		assertThat(nearCache.get("5550001234"), equalTo(40L));
+	}
+
+	@Test
+	public void testFrequentKeysSurviveScan() {
+		NearCache<Long> nearCache = new NearCache<Long>(100, 60000L);
+		for(int round=0; round<10; round++) {
+			for(int i=0; i<50; i++) {
+				String key = "HOT" + i;
+				if(nearCache.get(key) == null) nearCache.put(key, key, Long.valueOf(i), nearCache.startLoad());
+			}
+		}
+		// a scan of many keys read once does not flush out the keys read often
+		for(int i=0; i<1000; i++) {
+			String key = "COLD" + i;
+			if(nearCache.get(key) == null) nearCache.put(key, key, Long.valueOf(i), nearCache.startLoad());
+		}
+		assertThat(nearCache.size(), lessThanOrEqualTo(100));
+		assertThat(nearCache.evictions(), greaterThan(0L));
+		int hotKeys = 0;
+		for(int i=0; i<50; i++) {
+			if(nearCache.get("HOT" + i) != null) hotKeys++;
+		}
+		assertThat(hotKeys, equalTo(50));
+	}
+}
@@ -0,0 +1,294 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.await;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.freePort;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.metric;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.isOneOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.dao.DataAccessException;
+
+import com.programming4phone.data.redis.demo.Application;
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+import com.programming4phone.data.redis.demo.error.RedisUnavailableException;
+
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+
+/**
+ * Runs UsageDao through a proxy in front of an embedded Redis, which stops answering for a while as a hung
+ * Redis would, and checks the latency of the requests made during the outage, and that every increase journaled
+ * during the outage reaches Redis once it recovers, except those Redis keeps failing, which only hold back the
+ * writes of their own account.
+ */
+public class RedisCircuitBreakerTest {
+
+	private static final String[] ACCOUNT_NUMBERS = { "5550008000", "5550008001", "5550008002", "5550008003", "5550008004" };
+	private static final int TIMEOUT_MILLIS = 200;
+	private static final int OUTAGE_OPERATIONS = 1000;
+
+	@Test
+	public void testRedisOutage() throws IOException, InterruptedException {
+		int redisPort = freePort();
+		RedisServer redisServer = new RedisServer(redisPort);
+		redisServer.start();
+		try(StallingProxy proxy = new StallingProxy(redisPort);
+				ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+					"--redis.port=" + proxy.getPort(), "--redis.timeout-millis=" + TIMEOUT_MILLIS, "--redis.pool.max-wait-millis=" + TIMEOUT_MILLIS,
+					"--breaker.enabled=true", "--breaker.failure.threshold=3", "--breaker.slow.millis=100", "--breaker.open.millis=1000",
+					"--fallback.replay.millis=100", "--tier.expiry.seconds=600")) {
+			UsageDao usageDao = context.getBean(UsageDao.class);
+			TierDao tierDao = context.getBean(TierDao.class);
+			RedisCircuitBreaker redisCircuitBreaker = context.getBean(RedisCircuitBreaker.class);
+			UsageFallback usageFallback = context.getBean(UsageFallback.class);
+			tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.toString()).setThreshhold(0L));
+			tierDao.addTier(new Tier().setSpeed(UsageTierEnum.SLOW.toString()).setThreshhold(1000L));
+			for(String accountNumber : ACCOUNT_NUMBERS) {
+				usageDao.increaseAmountUsed(accountNumber, Long.valueOf(950));
+				assertThat(usageDao.getCurrentUsageAndTier(accountNumber).getSpeed(), equalTo(UsageTierEnum.FAST.toString()));
+			}
+
+			proxy.setStalled(true);
+			Histogram latencies = new Histogram(TimeUnit.SECONDS.toNanos(10), 3);
+			long[] increases = new long[ACCOUNT_NUMBERS.length];
+			int failedIncreases = 0;
+			for(int i=0; i<OUTAGE_OPERATIONS; i++) {
+				String accountNumber = ACCOUNT_NUMBERS[i % ACCOUNT_NUMBERS.length];
+				long startNanos = System.nanoTime();
+				if(i % 2 == 0) {
+					try {
+						usageDao.increaseAmountUsed(accountNumber, Long.valueOf(1));
+						increases[i % ACCOUNT_NUMBERS.length]++;
+					}
+					catch(DataAccessException dae) {
+						// the increase timed out after it was sent, it is not journaled
+						failedIncreases++;
+					}
+				}
+				else usageDao.getCurrentUsageAndTier(accountNumber);
+				latencies.recordValue(System.nanoTime() - startNanos);
+				Thread.sleep(2);
+			}
+			// only the calls that opened the breaker and the probes wait for the timeout, the journal replay may be probing
+			assertThat(redisCircuitBreaker.getState(), isOneOf(RedisCircuitBreaker.State.OPEN, RedisCircuitBreaker.State.HALF_OPEN));
+			assertThat(latencies.getValueAtPercentile(99), lessThan(TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS)));
+			assertThat(latencies.getMaxValue(), lessThan(TimeUnit.MILLISECONDS.toNanos(5 * TIMEOUT_MILLIS)));
+
+			// only the increases sent before the breaker opened, and the probes, failed
+			assertThat(failedIncreases, greaterThan(0));
+			assertThat(failedIncreases, lessThan(OUTAGE_OPERATIONS / 20));
+
+			// reads are served from the last totals seen, including the journaled increases
+			assertThat(usageDao.getCurrentAmountUsed(ACCOUNT_NUMBERS[0]), equalTo(Long.valueOf(950 + increases[0])));
+			assertThat(usageDao.getCurrentUsageAndTier(ACCOUNT_NUMBERS[0]).getSpeed(), equalTo(UsageTierEnum.SLOW.toString()));
+			assertThat(metric(usageFallback, "usage.journal.size"), greaterThan(0L));
+			try {
+				usageDao.removeAccount(ACCOUNT_NUMBERS[0]);
+				fail("An account cannot be removed while Redis is unavailable");
+			}
+			catch(RedisUnavailableException rue) {
+			}
+
+			// once Redis answers again the journal is replayed and every journaled increase is in Redis exactly once
+			proxy.setStalled(false);
+			await("The usage journal was not replayed", () -> metric(usageFallback, "usage.journal.size") == 0L);
+			assertThat(redisCircuitBreaker.getState(), equalTo(RedisCircuitBreaker.State.CLOSED));
+			assertThat(metric(usageFallback, "usage.journal.dropped"), equalTo(0L));
+			try(Jedis jedis = new Jedis("127.0.0.1", redisPort)) {
+				for(int i=0; i<ACCOUNT_NUMBERS.length; i++) {
+					assertThat(jedis.get(UsageDao.ACCOUNT_PREFIX + ACCOUNT_NUMBERS[i]), equalTo(Long.toString(950 + increases[i])));
+				}
+			}
+		}
+		finally {
+			redisServer.stop();
+		}
+	}
+
+	@Test
+	public void testPoisonedJournalEntry() throws IOException, InterruptedException {
+		int redisPort = freePort();
+		RedisServer redisServer = new RedisServer(redisPort);
+		redisServer.start();
+		try(StallingProxy proxy = new StallingProxy(redisPort);
+				ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+					"--redis.port=" + proxy.getPort(), "--redis.timeout-millis=" + TIMEOUT_MILLIS, "--redis.pool.max-wait-millis=" + TIMEOUT_MILLIS,
+					"--breaker.enabled=true", "--breaker.failure.threshold=3", "--breaker.slow.millis=100", "--breaker.open.millis=1000",
+					"--fallback.replay.millis=100", "--fallback.journal.max.attempts=2", "--tier.expiry.seconds=600");
+				Jedis jedis = new Jedis("127.0.0.1", redisPort)) {
+			UsageDao usageDao = context.getBean(UsageDao.class);
+			RedisCircuitBreaker redisCircuitBreaker = context.getBean(RedisCircuitBreaker.class);
+			UsageFallback usageFallback = context.getBean(UsageFallback.class);
+			String poisonedAccountNumber = ACCOUNT_NUMBERS[0];
+			String accountNumber = ACCOUNT_NUMBERS[1];
+			jedis.del(UsageDao.ACCOUNT_PREFIX + poisonedAccountNumber, UsageDao.ACCOUNT_PREFIX + accountNumber);
+
+			proxy.setStalled(true);
+			while(redisCircuitBreaker.getState() != RedisCircuitBreaker.State.OPEN) usageDao.getCurrentAmountUsed(accountNumber);
+			for(int i=0; i<2; i++) {
+				usageDao.increaseAmountUsed(poisonedAccountNumber, Long.valueOf(1));
+				usageDao.increaseAmountUsed(accountNumber, Long.valueOf(1));
+			}
+			// Redis can no longer increase the first account
+			jedis.lpush(UsageDao.ACCOUNT_PREFIX + poisonedAccountNumber, "not a total");
+
+			// its increases are dropped after two attempts, and the increases journaled after them are replayed
+			proxy.setStalled(false);
+			await("The usage journal was not replayed", () -> metric(usageFallback, "usage.journal.size") == 0L);
+			assertThat(metric(usageFallback, "usage.journal.poisoned"), equalTo(2L));
+			assertThat(jedis.get(UsageDao.ACCOUNT_PREFIX + accountNumber), equalTo("2"));
+
+			// with the journal empty, increases go to Redis again
+			assertThat(usageDao.increaseAmountUsed(accountNumber, Long.valueOf(1)), equalTo(Long.valueOf(3)));
+			assertThat(metric(usageFallback, "usage.journal.entries"), equalTo(4L));
+		}
+		finally {
+			redisServer.stop();
+		}
+	}
+
+	@Test
+	public void testJournalOnlyHoldsBackItsAccounts() throws IOException, InterruptedException {
+		int redisPort = freePort();
+		RedisServer redisServer = new RedisServer(redisPort);
+		redisServer.start();
+		try(StallingProxy proxy = new StallingProxy(redisPort);
+				ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+					"--redis.port=" + proxy.getPort(), "--redis.timeout-millis=" + TIMEOUT_MILLIS, "--redis.pool.max-wait-millis=" + TIMEOUT_MILLIS,
+					"--breaker.enabled=true", "--breaker.failure.threshold=3", "--breaker.slow.millis=100", "--breaker.open.millis=1000",
+					"--fallback.replay.millis=100", "--fallback.journal.max.attempts=1000", "--tier.expiry.seconds=600");
+				Jedis jedis = new Jedis("127.0.0.1", redisPort)) {
+			UsageDao usageDao = context.getBean(UsageDao.class);
+			RedisCircuitBreaker redisCircuitBreaker = context.getBean(RedisCircuitBreaker.class);
+			UsageFallback usageFallback = context.getBean(UsageFallback.class);
+			String journaledAccountNumber = ACCOUNT_NUMBERS[2];
+			String accountNumber = ACCOUNT_NUMBERS[3];
+			jedis.del(UsageDao.ACCOUNT_PREFIX + journaledAccountNumber, UsageDao.ACCOUNT_PREFIX + accountNumber);
+			usageDao.increaseAmountUsed(accountNumber, Long.valueOf(5));
+
+			proxy.setStalled(true);
+			while(redisCircuitBreaker.getState() != RedisCircuitBreaker.State.OPEN) usageDao.getCurrentAmountUsed(accountNumber);
+			usageDao.increaseAmountUsed(journaledAccountNumber, Long.valueOf(1));
+			// Redis can no longer increase the journaled account, its entry keeps failing once Redis is back
+			jedis.lpush(UsageDao.ACCOUNT_PREFIX + journaledAccountNumber, "not a total");
+			proxy.setStalled(false);
+			await("The circuit breaker did not close", () -> redisCircuitBreaker.getState() == RedisCircuitBreaker.State.CLOSED);
+
+			// the writes of the other account go to Redis, those of the journaled account are journaled behind its entry
+			assertThat(usageDao.increaseAmountUsed(accountNumber, Long.valueOf(1)), equalTo(Long.valueOf(6)));
+			Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+			usageAmounts.put(journaledAccountNumber, Long.valueOf(1));
+			usageAmounts.put(accountNumber, Long.valueOf(1));
+			assertThat(usageDao.increaseAmountsUsed(usageAmounts).get(accountNumber), equalTo(Long.valueOf(7)));
+			assertThat(jedis.get(UsageDao.ACCOUNT_PREFIX + accountNumber), equalTo("7"));
+			assertThat(metric(usageFallback, "usage.journal.size"), equalTo(2L));
+			assertThat(redisCircuitBreaker.getState(), equalTo(RedisCircuitBreaker.State.CLOSED));
+
+			// once Redis can increase the account again its entries are replayed, and its writes go to Redis again
+			jedis.del(UsageDao.ACCOUNT_PREFIX + journaledAccountNumber);
+			await("The usage journal was not replayed", () -> metric(usageFallback, "usage.journal.size") == 0L);
+			assertThat(jedis.get(UsageDao.ACCOUNT_PREFIX + journaledAccountNumber), equalTo("2"));
+			assertThat(usageDao.increaseAmountUsed(journaledAccountNumber, Long.valueOf(1)), equalTo(Long.valueOf(3)));
+			assertThat(metric(usageFallback, "usage.journal.poisoned"), equalTo(0L));
+		}
+		finally {
+			redisServer.stop();
+		}
+	}
+
+	/**
+	 * TCP proxy to a local Redis. While stalled it accepts connections but discards everything sent in either
+	 * direction, so the clients wait for replies that never come until their timeout, as with a hung Redis.
+	 * Discarded commands are never executed, so no command that timed out is applied later.
+	 */
+	private static class StallingProxy implements AutoCloseable {
+
+		private final ServerSocket serverSocket;
+		private final int redisPort;
+		private volatile boolean stalled;
+
+		private StallingProxy(int redisPort) throws IOException {
+			this.serverSocket = new ServerSocket(0);
+			this.redisPort = redisPort;
+			Thread acceptor = new Thread(this::accept, "stalling-proxy");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		private int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		private void setStalled(boolean stalled) {
+			this.stalled = stalled;
+		}
+
+		private void accept() {
+			while(!serverSocket.isClosed()) {
+				try {
+					Socket client = serverSocket.accept();
+					Socket redis = new Socket("127.0.0.1", redisPort);
+					pump(client, redis);
+					pump(redis, client);
+				}
+				catch(IOException ioe) {
+					// the proxy was closed
+				}
+			}
+		}
+
+		private void pump(Socket from, Socket to) {
+			Thread pump = new Thread(() -> {
+				byte[] buffer = new byte[8192];
+				try(InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+					for(int read; (read = in.read(buffer)) != -1; ) {
+						if(stalled) continue;
+						out.write(buffer, 0, read);
+						out.flush();
+					}
+				}
+				catch(IOException ioe) {
+					// one side closed the connection
+				}
+				finally {
+					close(from);
+					close(to);
+				}
+			}, "stalling-proxy-pump");
+			pump.setDaemon(true);
+			pump.start();
+		}
+
+		private static void close(Socket socket) {
+			try {
+				socket.close();
+			}
+			catch(IOException ioe) {
+				// already closed
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class RedisMetricsTest {
+
+	private RedisMetrics redisMetrics;
+
+	@Before
+	public void setUp() {
+		redisMetrics = new RedisMetrics();
+		ReflectionTestUtils.setField(redisMetrics, "enabled", true);
+		ReflectionTestUtils.setField(redisMetrics, "percentileWindowSeconds", 60L);
+	}
+
+	@Test
+	public void testOperationTimer() throws InterruptedException {
+		assertThat(redisMetrics.time(RedisOperation.GET, () -> "1"), equalTo("1"));
+		redisMetrics.time(RedisOperation.GET, () -> sleep(2));
+		try {
+			redisMetrics.time(RedisOperation.GET, () -> {
+				throw new IllegalStateException("Redis is down");
+			});
+			fail("exception not rethrown");
+		}
+		catch(IllegalStateException ise) {
+		}
+		assertThat(metric("redis.usage.get.count"), equalTo(Optional.of(3L)));
+		assertThat(metric("redis.usage.get.errors"), equalTo(Optional.of(1L)));
+		assertThat(metric("redis.usage.get.max.micros").get(), greaterThanOrEqualTo(2000L));
+		assertThat(metric("redis.usage.mget.count"), equalTo(Optional.empty()));
+	}
+
+	@Test
+	public void testTierCounters() {
+		redisMetrics.tierResolved("FAST");
+		redisMetrics.tierResolved(TierTable.UNKNOWN_SPEED);
+		redisMetrics.tierSnapshotLookup(true);
+		redisMetrics.tierSnapshotLookup(true);
+		redisMetrics.tierSnapshotLookup(false);
+		assertThat(metric("tier.resolution.hits"), equalTo(Optional.of(1L)));
+		assertThat(metric("tier.resolution.unknown"), equalTo(Optional.of(1L)));
+		assertThat(metric("tier.snapshot.hits"), equalTo(Optional.of(2L)));
+		assertThat(metric("tier.snapshot.misses"), equalTo(Optional.of(1L)));
+	}
+
+	@Test
+	public void testDisabled() {
+		ReflectionTestUtils.setField(redisMetrics, "enabled", false);
+		assertThat(redisMetrics.time(RedisOperation.GET, () -> "1"), equalTo("1"));
+		redisMetrics.tierResolved("FAST");
+		assertThat(redisMetrics.metrics(), empty());
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Optional<Long> metric(String name) {
+		return redisMetrics.metrics().stream()
+				.filter(m -> m.getName().equals(name))
+				.map(Metric::getValue)
+				.map(Number::longValue)
+				.findFirst();
+	}
+}
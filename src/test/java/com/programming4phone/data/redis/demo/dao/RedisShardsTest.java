@@ -0,0 +1,94 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import com.programming4phone.data.redis.demo.RedisConnectionSettings.Mode;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+
+public class RedisShardsTest {
+
+	private static final List<String> NODES = Arrays.asList("127.0.0.1:7000", "127.0.0.1:7001", "127.0.0.1:7002");
+
+	@Test
+	public void testHashTag() {
+		assertThat(RedisShards.hashTag("ACCOUNT:{17}:5550001234"), equalTo("17"));
+		assertThat(RedisShards.hashTag("RATE:{17}:5550001234"), equalTo("17"));
+		assertThat(RedisShards.hashTag("ACCOUNT:5550001234"), equalTo("ACCOUNT:5550001234"));
+		assertThat(RedisShards.hashTag("ACCOUNT:{}:5550001234"), equalTo("ACCOUNT:{}:5550001234"));
+	}
+
+	@Test
+	public void testShardedRouting() {
+		try(RedisShards redisShards = shards(NODES)) {
+			assertThat(redisShards.forKey("ACCOUNT:{17}:5550001234"), equalTo(redisShards.forKey("RATE:{17}:5550009999")));
+			Map<StringRedisTemplate, Integer> keysPerNode = new HashMap<StringRedisTemplate, Integer>();
+			for(int i=0; i<3000; i++) keysPerNode.merge(redisShards.forKey("ACCOUNT:{" + i + "}:" + i), 1, Integer::sum);
+			assertThat(keysPerNode.size(), equalTo(3));
+			keysPerNode.values().forEach(keys -> assertThat(keys, greaterThan(500)));
+		}
+	}
+
+	@Test
+	public void testShardedRingStability() {
+		List<String> grownNodes = new ArrayList<String>(NODES);
+		grownNodes.add("127.0.0.1:7003");
+		try(RedisShards redisShards = shards(NODES); RedisShards grownShards = shards(grownNodes)) {
+			int moved = 0;
+			for(int i=0; i<4000; i++) {
+				String key = "ACCOUNT:{" + i + "}:" + i;
+				StringRedisTemplate node = redisShards.forKey(key);
+				StringRedisTemplate grownNode = grownShards.forKey(key);
+				if(redisShards.nodes().indexOf(node) != grownShards.nodes().indexOf(grownNode)) moved++;
+			}
+			// only the keys taken over by the new node move, about a quarter of them
+			assertThat(moved, greaterThan(500));
+			assertThat(moved, lessThan(1500));
+		}
+	}
+
+	@Test
+	public void testScriptBatches() {
+		List<Integer> items = new ArrayList<Integer>();
+		for(int i=0; i<25; i++) items.add(i);
+		try(RedisShards redisShards = shards(NODES)) {
+			List<List<Integer>> batches = redisShards.scriptBatches(items, item -> "ACCOUNT:" + item, 10);
+			assertThat(batches.size(), equalTo(3));
+			assertThat(batches.get(2), equalTo(items.subList(20, 25)));
+		}
+	}
+
+	@Test
+	public void testIsRedirection() {
+		assertTrue(RedisShards.isRedirection(new RedisSystemException("MOVED 3999 127.0.0.1:7001",
+				new JedisMovedDataException("MOVED 3999 127.0.0.1:7001", new HostAndPort("127.0.0.1", 7001), 3999))));
+		assertTrue(RedisShards.isRedirection(new RedisSystemException("Error in execution", new RuntimeException("ASK 3999 127.0.0.1:7001"))));
+		assertFalse(RedisShards.isRedirection(new RedisSystemException("NOSCRIPT No matching script", null)));
+		assertTrue(RedisShards.isMoved(new RedisSystemException("MOVED 3999 127.0.0.1:7001", null)));
+		assertFalse(RedisShards.isMoved(new RedisSystemException("Error in execution", new RuntimeException("ASK 3999 127.0.0.1:7001"))));
+		assertThat(RedisShards.askedNode(new RedisSystemException("Error in execution", new RuntimeException("ASK 3999 127.0.0.1:7001"))), equalTo("127.0.0.1:7001"));
+		assertThat(RedisShards.askedNode(new RedisSystemException("MOVED 3999 127.0.0.1:7001", null)), nullValue());
+	}
+
+	private static RedisShards shards(List<String> nodes) {
+		// the node templates are never connected, routing only compares them
+		return new RedisShards(Mode.SHARDED, nodes, null, node -> new StringRedisTemplate(), 2, 5, 2000);
+	}
+}
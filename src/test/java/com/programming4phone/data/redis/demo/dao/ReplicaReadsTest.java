@@ -0,0 +1,73 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.await;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.freePort;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.metric;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.programming4phone.data.redis.demo.Application;
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+
+/**
+ * Runs the read-only DAO methods against an embedded primary and an embedded replica of it.
+ */
+public class ReplicaReadsTest {
+
+	private static final String TEST_ACCOUNT_NUMBER = "5550007777";
+	private static final long MAX_STALENESS_MILLIS = 1000;
+
+	@Test
+	public void testReplicaReads() throws IOException, InterruptedException {
+		int primaryPort = freePort();
+		int replicaPort = freePort();
+		RedisServer primary = new RedisServer(primaryPort);
+		RedisServer replica = RedisServer.newRedisServer().port(replicaPort).slaveOf("127.0.0.1", primaryPort).build();
+		primary.start();
+		replica.start();
+		try(ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).web(false).run(
+				"--redis.port=" + primaryPort, "--redis.read-from=REPLICA", "--redis.replicas=127.0.0.1:" + replicaPort,
+				"--redis.replica-max-staleness-millis=" + MAX_STALENESS_MILLIS, "--redis.replica-check-millis=100",
+				"--tier.expiry.seconds=600")) {
+			UsageDao usageDao = context.getBean(UsageDao.class);
+			TierDao tierDao = context.getBean(TierDao.class);
+			ReplicaReads replicaReads = context.getBean(ReplicaReads.class);
+			tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.toString()).setThreshhold(0L));
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(25));
+
+			// once replicated, the reads are served by the replica
+			await("The replica did not catch up with the primary",
+					() -> Long.valueOf(25).equals(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER)) && metric(replicaReads, "redis.replica.reads") > 0);
+			assertThat(tierDao.getAllTiers().size(), equalTo(1));
+			long replicaReadCount = metric(replicaReads, "redis.replica.reads");
+			assertThat(replicaReadCount, greaterThan(0L));
+
+			// the replica stops following the primary and diverges, it must no longer be read once it is too stale
+			try(Jedis jedis = new Jedis("127.0.0.1", replicaPort)) {
+				jedis.slaveofNoOne();
+				jedis.set(UsageDao.ACCOUNT_PREFIX + TEST_ACCOUNT_NUMBER, "999");
+			}
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(5));
+			Thread.sleep(MAX_STALENESS_MILLIS + 200);
+			long primaryReadCount = metric(replicaReads, "redis.replica.primary.reads");
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(30)));
+			assertThat(metric(replicaReads, "redis.replica.primary.reads"), equalTo(primaryReadCount + 1));
+			assertThat(metric(replicaReads, "redis.replica.reads"), equalTo(replicaReadCount));
+		}
+		finally {
+			replica.stop();
+			primary.stop();
+		}
+	}
+}
@@ -13,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import com.programming4phone.data.redis.demo.entity.Tier;
@@ -29,6 +30,9 @@ public class TierDaoTest {
 	@Autowired
 	private TierDao tierDao;
 	
+	@Autowired
+	private StringRedisTemplate stringRedisTemplate;
+	
 	@Test
 	public void testCreateTiers() {
 		List<Tier> tiers;
@@ -59,6 +63,48 @@ public class TierDaoTest {
 		deleteTestTiers();
 	}
 	
+	@Test
+	public void testTierSnapshotInvalidation() throws InterruptedException {
+		createTestTiers();
+		assertThat(tierDao.getCurrentUsageTier(10L).getSpeed(),equalTo(UsageTierEnum.FAST.name()));
+		
+		/*
+		 * Simulate another node changing the tiers directly in Redis and publishing the change.
+		 */
+		stringRedisTemplate.boundZSetOps("TIERS").add(UsageTierEnum.FAST.name(), 100d);
+		stringRedisTemplate.convertAndSend(TierDao.TIERS_CHANNEL, "TIERS");
+		
+		String speed = null;
+		for(int i=0; i<50; i++) {
+			speed = tierDao.getCurrentUsageTier(10L).getSpeed();
+			if("UNKNOWN".equals(speed)) break;
+			Thread.sleep(100);
+		}
+		assertThat(speed,equalTo("UNKNOWN"));
+		
+		deleteTestTiers();
+	}
+	
+	@Test
+	public void testServerResolution() {
+		createTestTiers();
+		long[] usages = {-5L, -1L, 0L, 10L, 3221225472L, 3221225473L, 5368709120L, 5368709121L, Long.MAX_VALUE};
+		for(long usage : usages) {
+			assertThat(tierDao.resolveOnServer(usage).getSpeed(),equalTo(tierDao.resolveLocally(usage).getSpeed()));
+		}
+		assertThat(tierDao.resolveOnServer(-5L).getSpeed(),equalTo("UNKNOWN"));
+		assertThat(tierDao.resolveOnServer(3221225473L).getSpeed(),equalTo(UsageTierEnum.MEDIUM.name()));
+		
+		deleteTestTiers();
+		try {
+			tierDao.resolveOnServer(10L);
+			fail("Expected an NoTiersFoundException to be thrown");
+		}
+		catch(NoTiersFoundException ntfe) {
+			assertNotNull(ntfe);
+		}
+	}
+	
 	private void createTestTiers() {
 		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.name()).setThreshhold(-1L));
 		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.MEDIUM.name()).setThreshhold(3221225472L));
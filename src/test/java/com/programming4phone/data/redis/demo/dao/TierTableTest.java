@@ -0,0 +1,66 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+
+public class TierTableTest {
+
+	private final TierTable tierTable = TierTable.of(Arrays.asList(
+			new Tier().setSpeed(UsageTierEnum.FAST.name()).setThreshhold(-1L),
+			new Tier().setSpeed("BLAZING").setThreshhold(50L),
+			new Tier().setSpeed(UsageTierEnum.MEDIUM.name()).setThreshhold(100L),
+			new Tier().setSpeed(UsageTierEnum.SLOW.name()).setThreshhold(200L)));
+
+	@Test
+	public void testResolve() {
+		assertThat(tierTable.resolve(0L).getSpeed(),equalTo(UsageTierEnum.FAST.name()));
+		assertThat(tierTable.resolve(100L).getSpeed(),equalTo(UsageTierEnum.FAST.name())); // threshold must be exceeded
+		assertThat(tierTable.resolve(101L).getSpeed(),equalTo(UsageTierEnum.MEDIUM.name()));
+		assertThat(tierTable.resolve(200L).getSpeed(),equalTo(UsageTierEnum.MEDIUM.name()));
+		assertThat(tierTable.resolve(Long.MAX_VALUE).getSpeed(),equalTo(UsageTierEnum.SLOW.name()));
+		assertThat(tierTable.resolveSpeed(150L),equalTo(UsageTierEnum.MEDIUM));
+	}
+
+	@Test
+	public void testUnknown() {
+		assertThat(tierTable.resolve(-1L).getSpeed(),equalTo(TierTable.UNKNOWN_SPEED));
+		assertThat(tierTable.resolveSpeed(-1L),nullValue());
+		assertTrue(TierTable.of(Collections.<Tier>emptyList()).isEmpty());
+		assertThat(TierTable.EMPTY.resolve(10L).getSpeed(),equalTo(TierTable.UNKNOWN_SPEED));
+	}
+
+	@Test
+	public void testResolveSpeedName() {
+		assertThat(tierTable.resolveSpeedName(150L),equalTo(UsageTierEnum.MEDIUM.name()));
+		assertThat(tierTable.resolveSpeedName(-1L),equalTo(TierTable.UNKNOWN_SPEED));
+		assertThat(TierTable.EMPTY.resolveSpeedName(10L),equalTo(TierTable.UNKNOWN_SPEED));
+	}
+
+	@Test
+	public void testResolvedTiersAreShared() {
+		assertThat(tierTable.resolve(-1L),sameInstance(TierTable.UNKNOWN));
+		assertThat(tierTable.resolve(150L),sameInstance(tierTable.resolve(120L)));
+		assertThat(tierTable.resolve(150L).getThreshhold(),equalTo(100L));
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void testUnknownTierCannotChange() {
+		tierTable.resolve(-1L).setSpeed(UsageTierEnum.SLOW.name());
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void testResolvedTiersCannotChange() {
+		tierTable.resolve(150L).setThreshhold(0L);
+	}
+}
@@ -0,0 +1,124 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {"usage.storage.cycle.enabled=true", "tier.expiry.seconds=86400"})
+public class UsageCycleSweeperTest {
+
+	@Autowired
+	private UsageCycleSweeper usageCycleSweeper;
+	
+	@Autowired
+	private UsageStorage usageStorage;
+	
+	@Autowired
+	private UsageDao usageDao;
+	
+	@Autowired
+	private StringRedisTemplate stringRedisTemplate;
+	
+	@Test
+	public void testCycleKeys() {
+		String TEST_ACCOUNT_NUMBER = "5550001234";
+		String accountKey = UsageStorage.ACCOUNT_CYCLE_PREFIX + usageStorage.currentCycle() + ":" + TEST_ACCOUNT_NUMBER;
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		try {
+			assertThat(usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(5)), equalTo(Long.valueOf(5)));
+			assertThat(stringRedisTemplate.opsForValue().get(accountKey), equalTo("5"));
+			assertThat(stringRedisTemplate.getExpire(accountKey), equalTo(-1L));
+			
+			assertThat(usageDao.decreaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(9)), equalTo(Long.valueOf(0)));
+			usageDao.resetAccount(TEST_ACCOUNT_NUMBER);
+			assertThat(stringRedisTemplate.getExpire(accountKey), equalTo(-1L));
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(0)));
+		}
+		finally {
+			usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		}
+	}
+	
+	@Test
+	public void testSweep() {
+		long cycle = usageStorage.currentCycle();
+		String currentKey = UsageStorage.ACCOUNT_CYCLE_PREFIX + cycle + ":5550001234";
+		String previousKey = UsageStorage.ACCOUNT_CYCLE_PREFIX + (cycle - 1) + ":5550001234";
+		String pastKey = UsageStorage.ACCOUNT_CYCLE_PREFIX + (cycle - 2) + ":5550001234";
+		String pastBucket = UsageStorage.BUCKET_CYCLE_PREFIX + (cycle - 2) + ":17";
+		List<String> keys = Arrays.asList(currentKey, previousKey, pastKey, pastBucket);
+		
+		stringRedisTemplate.delete(UsageCycleSweeper.SWEPT_KEY);
+		try {
+			stringRedisTemplate.opsForValue().set(currentKey, "3");
+			stringRedisTemplate.opsForValue().set(previousKey, "2");
+			stringRedisTemplate.opsForValue().set(pastKey, "1");
+			stringRedisTemplate.opsForHash().put(pastBucket, "5550001234", "1");
+			
+			assertThat(usageCycleSweeper.sweep(cycle), equalTo(2L));
+			assertFalse(stringRedisTemplate.hasKey(pastKey));
+			assertFalse(stringRedisTemplate.hasKey(pastBucket));
+			assertTrue(stringRedisTemplate.hasKey(previousKey)); // the previous cycle is retained
+			assertTrue(stringRedisTemplate.hasKey(currentKey));
+			
+			assertThat(usageCycleSweeper.sweep(cycle), equalTo(-1L)); // already swept until the next cycle
+			
+			assertThat(usageCycleSweeper.sweep(cycle + 1), equalTo(1L));
+			assertFalse(stringRedisTemplate.hasKey(previousKey));
+			assertTrue(stringRedisTemplate.hasKey(currentKey));
+		}
+		finally {
+			stringRedisTemplate.delete(keys);
+			stringRedisTemplate.delete(UsageCycleSweeper.SWEPT_KEY);
+		}
+	}
+	
+	@Test
+	public void testSweepLock() {
+		long cycle = usageStorage.currentCycle();
+		String pastKey = UsageStorage.ACCOUNT_CYCLE_PREFIX + (cycle - 2) + ":5550001234";
+		
+		stringRedisTemplate.delete(UsageCycleSweeper.SWEPT_KEY);
+		try {
+			stringRedisTemplate.opsForValue().set(pastKey, "1");
+			
+			/*
+			 * A lock held by another node is neither swept through nor released.
+			 */
+			stringRedisTemplate.opsForValue().set(UsageCycleSweeper.LOCK_KEY, "OTHER NODE");
+			assertThat(usageCycleSweeper.sweep(cycle), equalTo(-1L));
+			assertTrue(stringRedisTemplate.hasKey(pastKey));
+			assertThat(stringRedisTemplate.opsForValue().get(UsageCycleSweeper.LOCK_KEY), equalTo("OTHER NODE"));
+			
+			stringRedisTemplate.delete(UsageCycleSweeper.LOCK_KEY);
+			assertThat(usageCycleSweeper.sweep(cycle), equalTo(1L));
+			assertFalse(stringRedisTemplate.hasKey(UsageCycleSweeper.LOCK_KEY));
+		}
+		finally {
+			stringRedisTemplate.delete(Arrays.asList(pastKey, UsageCycleSweeper.LOCK_KEY, UsageCycleSweeper.SWEPT_KEY));
+		}
+	}
+	
+	@Test
+	public void testCycleOfKey() {
+		assertThat(UsageCycleSweeper.cycle("ACCOUNT@20345:5550001234"), equalTo(20345L));
+		assertThat(UsageCycleSweeper.cycle("ACCOUNTS@20345:17"), equalTo(20345L));
+		assertThat(UsageCycleSweeper.cycle("ACCOUNT:5550001234"), equalTo(-1L));
+		assertThat(UsageCycleSweeper.cycle("ACCOUNT:user@example.com"), equalTo(-1L));
+	}
+}
@@ -1,13 +1,40 @@
 package com.programming4phone.data.redis.demo.dao;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.programming4phone.data.redis.demo.entity.CustomerUsage;
+import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.UsageTierEnum;
+import com.programming4phone.data.redis.demo.error.NoTiersFoundException;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -16,6 +43,21 @@ public class UsageDaoTest {
 	@Autowired
 	private UsageDao usageDao;
 	
+	@Autowired
+	private TierDao tierDao;
+	
+	@Autowired
+	private StringRedisTemplate stringRedisTemplate;
+	
+	@Autowired
+	private UsageRateWindow usageRateWindow;
+	
+	@Autowired
+	private UsageWriteBehind usageWriteBehind;
+	
+	@Autowired
+	private RedisMessageListenerContainer redisMessageListenerContainer;
+	
 	@Test
 	public void testExpire() throws InterruptedException {
 		String TEST_ACCOUNT_NUMBER = "123456";
@@ -85,4 +127,266 @@ public class UsageDaoTest {
 		usageAmount = usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER);
 		assertThat(usageAmount,equalTo(Long.valueOf(0)));
 	}
+
+	@Test
+	public void testConcurrentIncreaseDecrease() throws Exception {
+		String TEST_ACCOUNT_NUMBER = "777777";
+		int THREADS = 16;
+		int ITERATIONS = 250;
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(100000));
+		
+		/*
+		 * Every thread increases by 3 and decreases by 1 on each iteration. The total never
+		 * drops to zero so no clamping occurs and the final amount must be exact.
+		 */
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for(int t=0; t<THREADS; t++) {
+			futures.add(executor.submit(() -> {
+				start.await();
+				for(int i=0; i<ITERATIONS; i++) {
+					usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(3));
+					usageDao.decreaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(1));
+				}
+				return null;
+			}));
+		}
+		start.countDown();
+		for(Future<?> future : futures) future.get();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		
+		Long usageAmount = usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER);
+		assertThat(usageAmount,equalTo(Long.valueOf(100000 + THREADS*ITERATIONS*2)));
+		
+		/*
+		 * Concurrent decreases well past zero must clamp the total at exactly zero.
+		 */
+		executor = Executors.newFixedThreadPool(THREADS);
+		futures.clear();
+		for(int t=0; t<THREADS; t++) {
+			futures.add(executor.submit(() -> usageDao.decreaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(10000))));
+		}
+		for(Future<?> future : futures) future.get();
+		executor.shutdown();
+		
+		usageAmount = usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER);
+		assertThat(usageAmount,equalTo(Long.valueOf(0)));
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+	}
+
+	@Test
+	public void testCurrentUsageAndTier() {
+		String TEST_ACCOUNT_NUMBER = "246810";
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.name()).setThreshhold(-1L));
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.MEDIUM.name()).setThreshhold(100L));
+		
+		try {
+			for(TierResolutionStrategy strategy : TierResolutionStrategy.values()) {
+				ReflectionTestUtils.setField(tierDao, "tierResolutionStrategy", strategy);
+				usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+				
+				CustomerUsage customerUsage = usageDao.getCurrentUsageAndTier(TEST_ACCOUNT_NUMBER); // does not yet exist in Redis
+				assertThat(customerUsage.getAccountNumber(),equalTo(TEST_ACCOUNT_NUMBER));
+				assertThat(customerUsage.getTotalUsage(),equalTo(Long.valueOf(0)));
+				assertThat(customerUsage.getSpeed(),equalTo(UsageTierEnum.FAST.name()));
+				
+				usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(100));
+				customerUsage = usageDao.getCurrentUsageAndTier(TEST_ACCOUNT_NUMBER);
+				assertThat(customerUsage.getTotalUsage(),equalTo(Long.valueOf(100)));
+				assertThat(customerUsage.getSpeed(),equalTo(UsageTierEnum.FAST.name()));
+				
+				usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(1));
+				customerUsage = usageDao.getCurrentUsageAndTier(TEST_ACCOUNT_NUMBER);
+				assertThat(customerUsage.getTotalUsage(),equalTo(Long.valueOf(101)));
+				assertThat(customerUsage.getSpeed(),equalTo(UsageTierEnum.MEDIUM.name()));
+			}
+			
+			tierDao.deleteTier(new Tier().setSpeed(UsageTierEnum.MEDIUM.name()));
+			tierDao.deleteTier(new Tier().setSpeed(UsageTierEnum.FAST.name()));
+			try {
+				usageDao.getCurrentUsageAndTier(TEST_ACCOUNT_NUMBER);
+				fail("Expected an NoTiersFoundException to be thrown");
+			}
+			catch(NoTiersFoundException ntfe) {
+				assertNotNull(ntfe);
+			}
+		}
+		finally {
+			ReflectionTestUtils.setField(tierDao, "tierResolutionStrategy", TierResolutionStrategy.LOCAL);
+			usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		}
+	}
+
+	@Test
+	public void testBatchIncrease() {
+		String TEST_ACCOUNT_NUMBER_1 = "135791";
+		String TEST_ACCOUNT_NUMBER_2 = "135792";
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER_1);
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER_2);
+		usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER_2, Long.valueOf(1000));
+		
+		List<CustomerUsage> totalUsages = usageDao.increaseAmountUsed(Arrays.asList(
+				new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER_1).setCurrentUsage(10L),
+				new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER_2).setCurrentUsage(20L),
+				new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER_1).setCurrentUsage(30L)));
+		assertThat(totalUsages.size(),equalTo(2));
+		assertThat(totalUsages.get(0).getAccountNumber(),equalTo(TEST_ACCOUNT_NUMBER_1));
+		assertThat(totalUsages.get(0).getCurrentUsage(),equalTo(Long.valueOf(40)));
+		assertThat(totalUsages.get(0).getTotalUsage(),equalTo(Long.valueOf(40)));
+		assertThat(totalUsages.get(1).getAccountNumber(),equalTo(TEST_ACCOUNT_NUMBER_2));
+		assertThat(totalUsages.get(1).getTotalUsage(),equalTo(Long.valueOf(1020)));
+		assertTrue(stringRedisTemplate.getExpire("ACCOUNT:"+TEST_ACCOUNT_NUMBER_1) > 0);
+		
+		/*
+		 * The batch must recover when the Redis script cache has been flushed.
+		 */
+		stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+			connection.scriptFlush();
+			return null;
+		});
+		totalUsages = usageDao.increaseAmountUsed(Arrays.asList(
+				new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER_1).setCurrentUsage(5L)));
+		assertThat(totalUsages.get(0).getTotalUsage(),equalTo(Long.valueOf(45)));
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER_1);
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER_2);
+		
+		/*
+		 * Batches larger than a single script call are split into chunks.
+		 */
+		List<CustomerUsage> customerUsages = new ArrayList<>();
+		for(int i=0; i<2500; i++) {
+			customerUsages.add(new CustomerUsage().setAccountNumber("BATCH"+i).setCurrentUsage(Long.valueOf(i)));
+		}
+		totalUsages = usageDao.increaseAmountUsed(customerUsages);
+		assertThat(totalUsages.size(),equalTo(2500));
+		for(int i=0; i<2500; i++) {
+			assertThat(totalUsages.get(i).getTotalUsage(),equalTo(Long.valueOf(i)));
+			usageDao.removeAccount("BATCH"+i);
+		}
+	}
+
+	@Test
+	public void testWriteBehindIncreaseReturnsEstimatedTotal() {
+		String TEST_ACCOUNT_NUMBER = "864200";
+		String UNSEEN_ACCOUNT_NUMBER = "864201";
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(100));
+		// written behind the back of UsageDao, so its total was never seen
+		stringRedisTemplate.opsForValue().set("ACCOUNT:"+UNSEEN_ACCOUNT_NUMBER, "40");
+		ReflectionTestUtils.setField(usageWriteBehind, "enabled", true);
+		
+		try {
+			/*
+			 * The flusher is not started, so the increases stay pending and the totals are estimated.
+			 */
+			assertThat(usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(5)),equalTo(Long.valueOf(105)));
+			assertThat(usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(7)),equalTo(Long.valueOf(112)));
+			assertThat(usageDao.increaseAmountUsed(UNSEEN_ACCOUNT_NUMBER, Long.valueOf(2)),equalTo(Long.valueOf(42)));
+			assertThat(stringRedisTemplate.opsForValue().get("ACCOUNT:"+TEST_ACCOUNT_NUMBER),equalTo("100"));
+		}
+		finally {
+			ReflectionTestUtils.setField(usageWriteBehind, "enabled", false);
+			usageWriteBehind.take(TEST_ACCOUNT_NUMBER);
+			usageWriteBehind.take(UNSEEN_ACCOUNT_NUMBER);
+			usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+			usageDao.removeAccount(UNSEEN_ACCOUNT_NUMBER);
+		}
+	}
+	
+	@Test
+	public void testRateWindow() {
+		String TEST_ACCOUNT_NUMBER = "975310";
+		String RATE_KEY = "RATE:"+TEST_ACCOUNT_NUMBER;
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.name()).setThreshhold(-1L));
+		ReflectionTestUtils.setField(usageRateWindow, "enabled", true);
+		
+		try {
+			/*
+			 * Buckets older than the window are not counted, and are pruned once there are too many.
+			 */
+			for(int bucket=1; bucket<=30; bucket++) {
+				stringRedisTemplate.opsForHash().put(RATE_KEY, Integer.toString(bucket), "1000");
+			}
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(30));
+			usageDao.increaseAmountUsed(Arrays.asList(new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(20L)));
+			assertThat(usageDao.getWindowedAmountUsed(TEST_ACCOUNT_NUMBER),equalTo(Long.valueOf(50)));
+			assertThat(stringRedisTemplate.opsForHash().size(RATE_KEY),equalTo(Long.valueOf(1)));
+			assertTrue(stringRedisTemplate.getExpire(RATE_KEY) > 0);
+			
+			CustomerUsage customerUsage = usageDao.getCurrentUsageAndTier(TEST_ACCOUNT_NUMBER);
+			assertThat(customerUsage.getSpeed(),equalTo(UsageTierEnum.FAST.name()));
+			
+			/*
+			 * An account bursting over the threshold is throttled whatever its cumulative tier.
+			 */
+			ReflectionTestUtils.setField(usageRateWindow, "burstThreshold", 40L);
+			customerUsage = usageDao.getCurrentUsageAndTier(TEST_ACCOUNT_NUMBER);
+			assertThat(customerUsage.getTotalUsage(),equalTo(Long.valueOf(50)));
+			assertThat(customerUsage.getWindowUsage(),equalTo(Long.valueOf(50)));
+			assertThat(customerUsage.getSpeed(),equalTo(UsageTierEnum.SLOW.name()));
+			assertThat(usageDao.getCurrentUsages(Arrays.asList(TEST_ACCOUNT_NUMBER), true).get(0).getSpeed(),equalTo(UsageTierEnum.SLOW.name()));
+			
+			usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+			assertThat(usageDao.getWindowedAmountUsed(TEST_ACCOUNT_NUMBER),equalTo(Long.valueOf(0)));
+			assertThat(usageDao.getCurrentUsageAndTier(TEST_ACCOUNT_NUMBER).getSpeed(),equalTo(UsageTierEnum.FAST.name()));
+		}
+		finally {
+			ReflectionTestUtils.setField(usageRateWindow, "burstThreshold", 0L);
+			ReflectionTestUtils.setField(usageRateWindow, "enabled", false);
+			tierDao.deleteTier(new Tier().setSpeed(UsageTierEnum.FAST.name()));
+			usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		}
+	}
+
+	@Test
+	public void testTierChanges() throws InterruptedException {
+		String TEST_ACCOUNT_NUMBER = "864209";
+		BlockingQueue<String> tierChanges = new LinkedBlockingQueue<String>();
+		MessageListener listener = (message, pattern) -> tierChanges.add(new String(message.getBody()));
+		ChannelTopic topic = new ChannelTopic(TierDao.TIER_CHANGES_CHANNEL);
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.FAST.name()).setThreshhold(-1L));
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.MEDIUM.name()).setThreshhold(100L));
+		tierDao.addTier(new Tier().setSpeed(UsageTierEnum.SLOW.name()).setThreshhold(200L));
+		redisMessageListenerContainer.addMessageListener(listener, topic);
+		
+		try {
+			Thread.sleep(200); // let the container subscribe
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(100)); // threshold not exceeded
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(50));
+			String tierChange = tierChanges.poll(5, TimeUnit.SECONDS);
+			assertThat(tierChange, containsString("\"accountNumber\":\""+TEST_ACCOUNT_NUMBER+"\""));
+			assertThat(tierChange, containsString("\"previousSpeed\":\"FAST\""));
+			assertThat(tierChange, containsString("\"speed\":\"MEDIUM\""));
+			assertThat(tierChange, containsString("\"totalUsage\":150"));
+			
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(10)); // same tier
+			usageDao.increaseAmountUsed(Arrays.asList(new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(100L)));
+			tierChange = tierChanges.poll(5, TimeUnit.SECONDS);
+			assertThat(tierChange, containsString("\"previousSpeed\":\"MEDIUM\""));
+			assertThat(tierChange, containsString("\"speed\":\"SLOW\""));
+			assertThat(tierChange, containsString("\"totalUsage\":260"));
+			assertThat(tierChanges.poll(200, TimeUnit.MILLISECONDS), nullValue());
+		}
+		finally {
+			redisMessageListenerContainer.removeMessageListener(listener, topic);
+			tierDao.deleteTier(new Tier().setSpeed(UsageTierEnum.SLOW.name()));
+			tierDao.deleteTier(new Tier().setSpeed(UsageTierEnum.MEDIUM.name()));
+			tierDao.deleteTier(new Tier().setSpeed(UsageTierEnum.FAST.name()));
+			usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		}
+	}
 }
@@ -0,0 +1,57 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.await;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.metric;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.programming4phone.data.redis.demo.EmbeddedRedisApplication;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Runs the near cache against an embedded Redis, changing the usage keys with another client so that only the
+ * keyspace notifications can invalidate the cached totals.
+ */
+public class UsageNearCacheTest {
+
+	private static final String TEST_ACCOUNT_NUMBER = "5550009000";
+
+	@Test
+	public void testInvalidation() throws IOException, InterruptedException {
+		try(EmbeddedRedisApplication application = new EmbeddedRedisApplication(
+				"usage.nearcache.enabled=true", "usage.nearcache.ttl.millis=600000", "tier.expiry.seconds=600");
+				Jedis jedis = new Jedis("127.0.0.1", application.getRedisPort())) {
+			UsageDao usageDao = application.getBean(UsageDao.class);
+			UsageNearCache usageNearCache = application.getBean(UsageNearCache.class);
+			assertThat(jedis.configGet("notify-keyspace-events").get(1).indexOf('K'), greaterThan(-1));
+
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(10));
+			// let the notification of the increase arrive first
+			Thread.sleep(200);
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(10)));
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(10)));
+			assertThat(metric(usageNearCache, "usage.nearcache.hits"), equalTo(1L));
+
+			// writes of this instance invalidate the cached total at once
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(5));
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(15)));
+
+			// writes of other clients invalidate it through the keyspace notifications, long before the time to live
+			jedis.incrBy(UsageDao.ACCOUNT_PREFIX + TEST_ACCOUNT_NUMBER, 20);
+			await("The cached total was not invalidated", () -> Long.valueOf(35).equals(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER)));
+			jedis.del(UsageDao.ACCOUNT_PREFIX + TEST_ACCOUNT_NUMBER);
+			await("The cached total was not invalidated", () -> Long.valueOf(0).equals(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER)));
+			assertThat(metric(usageNearCache, "usage.nearcache.invalidations"), greaterThan(1L));
+			long hits = metric(usageNearCache, "usage.nearcache.hits");
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(0)));
+			assertThat(metric(usageNearCache, "usage.nearcache.hits"), equalTo(hits + 1));
+		}
+	}
+
+}
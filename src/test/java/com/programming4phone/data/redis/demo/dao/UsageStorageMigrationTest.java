@@ -0,0 +1,70 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {"usage.storage.layout=HASH", "tier.expiry.seconds=86400"})
+public class UsageStorageMigrationTest {
+
+	@Autowired
+	private UsageStorageMigration usageStorageMigration;
+	
+	@Autowired
+	private UsageStorage usageStorage;
+	
+	@Autowired
+	private UsageDao usageDao;
+	
+	@Autowired
+	private StringRedisTemplate stringRedisTemplate;
+	
+	@Test
+	public void testMigrate() {
+		String TEST_ACCOUNT_NUMBER = "5550001234";
+		String OTHER_ACCOUNT_NUMBER = "5550001235";
+		
+		usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+		usageDao.removeAccount(OTHER_ACCOUNT_NUMBER);
+		try {
+			stringRedisTemplate.opsForValue().set(UsageDao.ACCOUNT_PREFIX+TEST_ACCOUNT_NUMBER, "40");
+			stringRedisTemplate.opsForValue().set(UsageDao.ACCOUNT_PREFIX+OTHER_ACCOUNT_NUMBER, "7");
+			usageDao.increaseAmountUsed(TEST_ACCOUNT_NUMBER, Long.valueOf(2)); // written to the hash before the migration
+			
+			assertThat(usageStorageMigration.migrate(), greaterThan(1L));
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(42)));
+			assertThat(usageDao.getCurrentAmountUsed(OTHER_ACCOUNT_NUMBER), equalTo(Long.valueOf(7)));
+			assertFalse(stringRedisTemplate.hasKey(UsageDao.ACCOUNT_PREFIX+TEST_ACCOUNT_NUMBER));
+			
+			String hash = usageStorage.key(TEST_ACCOUNT_NUMBER);
+			assertThat(stringRedisTemplate.getExpire(hash), greaterThan(0L));
+			assertThat(stringRedisTemplate.getExpire(hash), lessThanOrEqualTo(86400L));
+			Object encoding = stringRedisTemplate.execute((RedisCallback<Object>) connection -> 
+					connection.execute("OBJECT", "ENCODING".getBytes(StandardCharsets.UTF_8), hash.getBytes(StandardCharsets.UTF_8)));
+			assertThat(new String((byte[]) encoding, StandardCharsets.UTF_8), anyOf(equalTo("ziplist"), equalTo("listpack")));
+			
+			usageStorageMigration.migrate(); // nothing left to move for these accounts
+			assertThat(usageDao.getCurrentAmountUsed(TEST_ACCOUNT_NUMBER), equalTo(Long.valueOf(42)));
+		}
+		finally {
+			usageDao.removeAccount(TEST_ACCOUNT_NUMBER);
+			usageDao.removeAccount(OTHER_ACCOUNT_NUMBER);
+		}
+	}
+}
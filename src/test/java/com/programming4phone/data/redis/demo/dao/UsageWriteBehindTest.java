@@ -0,0 +1,98 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.metric;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class UsageWriteBehindTest {
+
+	private UsageWriteBehind usageWriteBehind;
+	private final Map<String, Long> flushedAmounts = new ConcurrentHashMap<String, Long>();
+	private final AtomicInteger flushes = new AtomicInteger();
+
+	@Before
+	public void setUp() {
+		usageWriteBehind = new UsageWriteBehind();
+		ReflectionTestUtils.setField(usageWriteBehind, "enabled", true);
+		ReflectionTestUtils.setField(usageWriteBehind, "flushMillis", 50L);
+		ReflectionTestUtils.setField(usageWriteBehind, "maxAccounts", 10000);
+	}
+
+	@Test
+	public void testIncreasesCollapseIntoFlushes() throws InterruptedException {
+		usageWriteBehind.start(usageAmounts -> {
+			flushes.incrementAndGet();
+			usageAmounts.forEach((accountNumber, usageAmount) -> flushedAmounts.merge(accountNumber, usageAmount, Long::sum));
+			return Collections.emptyMap();
+		});
+
+		IntStream.range(0, 100000).parallel().forEach(i -> usageWriteBehind.add("ACCT" + (i % 10), 1L));
+		Thread.sleep(120);
+		usageWriteBehind.add("ACCT0", 5L);
+		assertThat(usageWriteBehind.pending("ACCT0"), greaterThan(0L));
+		usageWriteBehind.stop(); // flushes whatever is still pending
+
+		assertThat(flushedAmounts.size(), equalTo(10));
+		assertThat(flushedAmounts.get("ACCT0"), equalTo(10005L));
+		assertThat(flushedAmounts.get("ACCT9"), equalTo(10000L));
+		assertThat(usageWriteBehind.pending("ACCT0"), equalTo(0L));
+		assertThat(flushes.get(), lessThan(100));
+		assertThat(metric(usageWriteBehind, "usage.writebehind.flush.count"), equalTo((long) flushes.get()));
+		assertThat(metric(usageWriteBehind, "usage.writebehind.flush.accounts"), greaterThan(9L));
+	}
+
+	@Test
+	public void testFailedFlushIsRetried() {
+		usageWriteBehind.start(usageAmounts -> {
+			if(flushes.incrementAndGet() == 1) throw new IllegalStateException("Redis is down");
+			flushedAmounts.putAll(usageAmounts);
+			return Collections.emptyMap();
+		});
+		usageWriteBehind.add("ACCT0", 7L);
+		usageWriteBehind.flush();
+		assertThat(usageWriteBehind.pending("ACCT0"), equalTo(7L));
+		assertThat(metric(usageWriteBehind, "usage.writebehind.flush.failures"), equalTo(1L));
+
+		usageWriteBehind.stop();
+		assertThat(flushedAmounts.get("ACCT0"), equalTo(7L));
+		assertThat(usageWriteBehind.take("ACCT0"), equalTo(0L));
+	}
+
+	@Test
+	public void testOnlyUnwrittenAmountsAreRetried() {
+		usageWriteBehind.start(usageAmounts -> {
+			// the node of ACCT1 fails on the first flush, the other accounts are written
+			Map<String, Long> unwrittenAmounts = new HashMap<String, Long>();
+			usageAmounts.forEach((accountNumber, usageAmount) -> {
+				if(accountNumber.equals("ACCT1") && flushes.get() == 0) unwrittenAmounts.put(accountNumber, usageAmount);
+				else flushedAmounts.merge(accountNumber, usageAmount, Long::sum);
+			});
+			flushes.incrementAndGet();
+			return unwrittenAmounts;
+		});
+		usageWriteBehind.add("ACCT0", 3L);
+		usageWriteBehind.add("ACCT1", 4L);
+		usageWriteBehind.flush();
+		assertThat(usageWriteBehind.pending("ACCT0"), equalTo(0L));
+		assertThat(usageWriteBehind.pending("ACCT1"), equalTo(4L));
+		assertThat(metric(usageWriteBehind, "usage.writebehind.flush.failures"), equalTo(1L));
+
+		usageWriteBehind.stop();
+		assertThat(flushedAmounts.get("ACCT0"), equalTo(3L));
+		assertThat(flushedAmounts.get("ACCT1"), equalTo(4L));
+		assertThat(metric(usageWriteBehind, "usage.writebehind.flush.accounts"), equalTo(2L));
+	}
+}
@@ -0,0 +1,119 @@
+package com.programming4phone.data.redis.demo.dao;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.await;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.metric;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class UsageWriteQueueTest {
+
+	private UsageWriteQueue usageWriteQueue;
+	private final Map<String, Long> totals = new ConcurrentHashMap<String, Long>();
+
+	@Before
+	public void setUp() {
+		usageWriteQueue = new UsageWriteQueue();
+		ReflectionTestUtils.setField(usageWriteQueue, "capacity", 8);
+		ReflectionTestUtils.setField(usageWriteQueue, "writerCount", 2);
+		ReflectionTestUtils.setField(usageWriteQueue, "batchSize", 100);
+		ReflectionTestUtils.setField(usageWriteQueue, "retryMillis", 10L);
+		ReflectionTestUtils.setField(usageWriteQueue, "maxAttempts", 3);
+	}
+
+	@After
+	public void tearDown() {
+		usageWriteQueue.stop();
+	}
+
+	@Test
+	public void testEventsOfAnAccountAreWrittenInOrder() {
+		// decreases clamp at zero as the Lua script does, so the result depends on the order of the events
+		usageWriteQueue.start(usageAmounts -> {
+			usageAmounts.forEach((accountNumber, usageAmount) -> totals.merge(accountNumber, usageAmount, Long::sum));
+			return Collections.emptyMap();
+		}, (accountNumber, usageAmount) -> totals.put(accountNumber, Math.max(0L, totals.getOrDefault(accountNumber, 0L) - usageAmount)));
+		assertThat(usageWriteQueue.offer("ACCT0", 10L), equalTo(true));
+		assertThat(usageWriteQueue.offer("ACCT0", -15L), equalTo(true));
+		assertThat(usageWriteQueue.offer("ACCT0", 3L), equalTo(true));
+		assertThat(usageWriteQueue.offer("ACCT1", 4L), equalTo(true));
+		usageWriteQueue.stop(); // writes whatever is still queued
+
+		assertThat(totals.get("ACCT0"), equalTo(3L));
+		assertThat(totals.get("ACCT1"), equalTo(4L));
+		assertThat(metric(usageWriteQueue, "usage.ack.written"), equalTo(4L));
+		assertThat(metric(usageWriteQueue, "usage.ack.queue.depth"), equalTo(0L));
+	}
+
+	@Test
+	public void testFullQueueRefusesEvents() throws InterruptedException {
+		CountDownLatch redisDown = new CountDownLatch(1);
+		AtomicInteger attempts = new AtomicInteger();
+		usageWriteQueue.start(usageAmounts -> {
+			attempts.incrementAndGet();
+			if(redisDown.getCount() > 0) throw new RedisConnectionFailureException("Redis is down");
+			usageAmounts.forEach((accountNumber, usageAmount) -> totals.merge(accountNumber, usageAmount, Long::sum));
+			return Collections.emptyMap();
+		}, (accountNumber, usageAmount) -> {});
+
+		// one account goes to a single writer, whose queue holds 4 events besides the batch it keeps retrying
+		int accepted = 0;
+		for(int i=0; i<20; i++) {
+			if(usageWriteQueue.offer("ACCT0", 1L)) accepted++;
+			Thread.sleep(5);
+		}
+		assertThat(accepted, equalTo(5));
+		assertThat(metric(usageWriteQueue, "usage.ack.rejected"), equalTo(15L));
+		assertThat(metric(usageWriteQueue, "usage.ack.queue.depth.max"), equalTo(4L));
+		assertThat(metric(usageWriteQueue, "usage.ack.failures"), greaterThan(0L));
+
+		// once Redis is back every accepted event is written exactly once
+		redisDown.countDown();
+		usageWriteQueue.stop();
+		assertThat(totals.get("ACCT0"), equalTo(5L));
+		assertThat(attempts.get(), greaterThan(2));
+		assertThat(metric(usageWriteQueue, "usage.ack.poisoned"), equalTo(0L));
+	}
+
+	@Test
+	public void testRejectedEventsAreDropped() throws InterruptedException {
+		ReflectionTestUtils.setField(usageWriteQueue, "writerCount", 1);
+		AtomicInteger rejections = new AtomicInteger();
+		usageWriteQueue.start(usageAmounts -> {
+			if(usageAmounts.containsKey("POISON")) {
+				rejections.incrementAndGet();
+				throw new InvalidDataAccessApiUsageException("WRONGTYPE Operation against a key holding the wrong kind of value");
+			}
+			usageAmounts.forEach((accountNumber, usageAmount) -> totals.merge(accountNumber, usageAmount, Long::sum));
+			return Collections.emptyMap();
+		}, (accountNumber, usageAmount) -> {});
+		assertThat(usageWriteQueue.offer("ACCT0", 1L), equalTo(true));
+		assertThat(usageWriteQueue.offer("POISON", 1L), equalTo(true));
+		assertThat(usageWriteQueue.offer("ACCT1", 2L), equalTo(true));
+		assertThat(usageWriteQueue.offer("ACCT0", 3L), equalTo(true));
+		// events that fail at shutdown are dropped without retrying, so wait for the writer first
+		await("The queued events were not written", () -> metric(usageWriteQueue, "usage.ack.written") + metric(usageWriteQueue, "usage.ack.poisoned") == 4L);
+		usageWriteQueue.stop();
+
+		// the accounts written with the rejected one are written on their own, the rejected one is retried and dropped
+		assertThat(totals.get("ACCT0"), equalTo(4L));
+		assertThat(totals.get("ACCT1"), equalTo(2L));
+		assertThat(totals.containsKey("POISON"), equalTo(false));
+		assertThat(metric(usageWriteQueue, "usage.ack.written"), equalTo(3L));
+		assertThat(metric(usageWriteQueue, "usage.ack.poisoned"), equalTo(1L));
+		assertThat(rejections.get(), greaterThan(2));
+	}
+}
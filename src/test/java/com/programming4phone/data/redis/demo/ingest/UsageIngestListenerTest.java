@@ -0,0 +1,154 @@
+package com.programming4phone.data.redis.demo.ingest;
+
+import static com.programming4phone.data.redis.demo.RedisTestSupport.await;
+import static com.programming4phone.data.redis.demo.RedisTestSupport.metric;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.programming4phone.data.redis.demo.EmbeddedRedisApplication;
+import com.programming4phone.data.redis.demo.dao.UsageDao;
+import com.programming4phone.data.redis.demo.rest.UsageBatchCodec;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Streams usage records to the ingestion listener over TCP and UDP, against an embedded Redis.
+ */
+public class UsageIngestListenerTest {
+
+	// the key prefix of UsageDao
+	private static final String ACCOUNT_PREFIX = "ACCOUNT:";
+	private static final String[] ACCOUNT_NUMBERS = { "5550007000", "5550007001", "5550007002" };
+	private static final int CONNECTIONS = 4;
+	private static final int RECORDS_PER_CONNECTION = 6000;
+	// a two byte varint
+	private static final long USAGE_AMOUNT = 200;
+
+	@Test
+	public void testIngestion() throws IOException, InterruptedException {
+		try(EmbeddedRedisApplication application = new EmbeddedRedisApplication("ingest.enabled=true", "ingest.tcp.port=0", "ingest.udp.port=0",
+				"ingest.connection.max.records=100", "tier.expiry.seconds=600")) {
+			UsageDao usageDao = application.getBean(UsageDao.class);
+			UsageIngestListener usageIngestListener = application.getBean(UsageIngestListener.class);
+			for(String accountNumber : ACCOUNT_NUMBERS) usageDao.removeAccount(accountNumber);
+
+			// records are written in small chunks, so they are split across reads
+			byte[] stream = records(RECORDS_PER_CONNECTION);
+			Thread[] senders = new Thread[CONNECTIONS];
+			for(int i=0; i<CONNECTIONS; i++) {
+				senders[i] = new Thread(() -> {
+					try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), usageIngestListener.getTcpPort())) {
+						OutputStream out = socket.getOutputStream();
+						for(int offset=0; offset<stream.length; offset+=7) out.write(stream, offset, Math.min(7, stream.length - offset));
+						out.flush();
+					}
+					catch(IOException ioe) {
+						throw new IllegalStateException(ioe);
+					}
+				});
+				senders[i].start();
+			}
+			for(Thread sender : senders) sender.join();
+
+			byte[] datagram = records(30);
+			try(DatagramSocket socket = new DatagramSocket()) {
+				socket.send(new DatagramPacket(datagram, datagram.length, InetAddress.getLoopbackAddress(), usageIngestListener.getUdpPort()));
+			}
+
+			// every account got a third of the records
+			long expected = (CONNECTIONS * RECORDS_PER_CONNECTION + 30) / ACCOUNT_NUMBERS.length * USAGE_AMOUNT;
+			await("The ingested usage was not written", () -> usageDao.getCurrentAmountUsed(ACCOUNT_NUMBERS[2]) == expected);
+			for(String accountNumber : ACCOUNT_NUMBERS) {
+				assertThat(usageDao.getCurrentAmountUsed(accountNumber), equalTo(expected));
+			}
+			assertThat(metric(usageIngestListener, "usage.ingest.records"), equalTo((long) CONNECTIONS * RECORDS_PER_CONNECTION + 30));
+			assertThat(metric(usageIngestListener, "usage.ingest.datagrams"), equalTo(1L));
+			assertThat(metric(usageIngestListener, "usage.ingest.paused"), greaterThan(0L));
+
+			// a malformed record (an empty account number) closes the connection
+			try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), usageIngestListener.getTcpPort())) {
+				socket.getOutputStream().write(new byte[] { 0, 1 });
+				InputStream in = socket.getInputStream();
+				assertThat(in.read(), equalTo(-1));
+			}
+			assertThat(metric(usageIngestListener, "usage.ingest.malformed"), equalTo(1L));
+			for(String accountNumber : ACCOUNT_NUMBERS) usageDao.removeAccount(accountNumber);
+		}
+	}
+
+	@Test
+	public void testFailuresAreContained() throws IOException, InterruptedException {
+		try(EmbeddedRedisApplication application = new EmbeddedRedisApplication("ingest.enabled=true", "ingest.tcp.port=0", "ingest.udp.port=0",
+				"ingest.workers=1", "ingest.retry.millis=10", "ingest.max.attempts=3", "tier.expiry.seconds=600");
+				Jedis jedis = new Jedis("localhost", application.getRedisPort())) {
+			UsageDao usageDao = application.getBean(UsageDao.class);
+			UsageIngestListener usageIngestListener = application.getBean(UsageIngestListener.class);
+			for(String accountNumber : ACCOUNT_NUMBERS) usageDao.removeAccount(accountNumber);
+
+			// Redis can no longer increase the first account, its amounts are dropped after three attempts
+			jedis.lpush(ACCOUNT_PREFIX + ACCOUNT_NUMBERS[0], "not a total");
+			send(usageIngestListener, records(ACCOUNT_NUMBERS[0], 3));
+			await("The ingested usage was not dropped", () -> metric(usageIngestListener, "usage.ingest.dropped") == 1L);
+			assertThat(metric(usageIngestListener, "usage.ingest.dropped.usage"), equalTo(3 * USAGE_AMOUNT));
+			assertThat(metric(usageIngestListener, "usage.ingest.write.failures"), equalTo(3L));
+			jedis.del(ACCOUNT_PREFIX + ACCOUNT_NUMBERS[0]);
+
+			// a worker that stops unexpectedly is replaced, and both ports keep being read
+			Object worker = ((List<?>) ReflectionTestUtils.getField(usageIngestListener, "workers")).get(0);
+			((Selector) ReflectionTestUtils.getField(worker, "selector")).close();
+			await("The ingestion worker was not replaced", () -> metric(usageIngestListener, "usage.ingest.worker.restarts") == 1L);
+			send(usageIngestListener, records(ACCOUNT_NUMBERS[1], 2));
+			try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), usageIngestListener.getTcpPort())) {
+				socket.getOutputStream().write(records(ACCOUNT_NUMBERS[2], 4));
+			}
+			await("The ingested usage was not written", () -> usageDao.getCurrentAmountUsed(ACCOUNT_NUMBERS[2]) == 4 * USAGE_AMOUNT);
+			assertThat(usageDao.getCurrentAmountUsed(ACCOUNT_NUMBERS[1]), equalTo(2 * USAGE_AMOUNT));
+			for(String accountNumber : ACCOUNT_NUMBERS) usageDao.removeAccount(accountNumber);
+		}
+	}
+
+	private static void send(UsageIngestListener usageIngestListener, byte[] datagram) throws IOException {
+		try(DatagramSocket socket = new DatagramSocket()) {
+			socket.send(new DatagramPacket(datagram, datagram.length, InetAddress.getLoopbackAddress(), usageIngestListener.getUdpPort()));
+		}
+	}
+
+	/**
+	 * @return <b>byte[]</b> of records for one account
+	 */
+	private static byte[] records(String accountNumber, int count) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		byte[] record = UsageBatchCodec.encode(Collections.singletonMap(accountNumber, USAGE_AMOUNT));
+		for(int i=0; i<count; i++) records.write(record, 0, record.length);
+		return records.toByteArray();
+	}
+
+	/**
+	 * @return <b>byte[]</b> of records for the accounts in turn
+	 */
+	private static byte[] records(int count) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for(int i=0; i<count; i++) {
+			byte[] record = UsageBatchCodec.encode(Collections.singletonMap(ACCOUNT_NUMBERS[i % ACCOUNT_NUMBERS.length], USAGE_AMOUNT));
+			records.write(record, 0, record.length);
+		}
+		return records.toByteArray();
+	}
+
+}
@@ -0,0 +1,10 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Runs every ControllerTest test against the non-blocking controllers of the <i>async</i> profile.
+ */
+@ActiveProfiles("async")
+public class AsyncControllerTest extends ControllerTest {
+}
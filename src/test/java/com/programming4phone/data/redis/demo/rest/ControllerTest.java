@@ -3,7 +3,13 @@ package com.programming4phone.data.redis.demo.rest;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,10 +20,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.context.embedded.LocalServerPort;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.programming4phone.data.redis.demo.entity.CustomerUsage;
 import com.programming4phone.data.redis.demo.entity.Tier;
+import com.programming4phone.data.redis.demo.entity.TierChange;
 
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.web.client.TestRestTemplate;
@@ -37,13 +46,21 @@ public class ControllerTest {
 	private static final String TIER_BASE_URL = "/throttle/tier";
 	private static final String TIER_DELETE_URL = TIER_BASE_URL + "/delete/{speed}";
 	private static final String TIER_USAGE_URL = TIER_BASE_URL + "/{accountNumber}";
+	private static final String TIER_EVENTS_URL = TIER_BASE_URL + "/events?accountNumber=";
 	
 	private static final String USAGE_BASE_URL = "/throttle/usage";
 	private static final String USAGE_INCREASE_URL = USAGE_BASE_URL + "/increase";
+	private static final String USAGE_INCREASE_BATCH_URL = USAGE_INCREASE_URL + "/batch";
 	private static final String USAGE_DECREASE_URL = USAGE_BASE_URL + "/decrease";
+	private static final String USAGE_QUEUED_INCREASE_URL = USAGE_INCREASE_URL + "?ack=async";
+	private static final String USAGE_QUEUED_DECREASE_URL = USAGE_DECREASE_URL + "?ack=async";
 	private static final String USAGE_REMOVE_URL = USAGE_BASE_URL + "/remove/{accountNumber}";
 	private static final String USAGE_RESET_URL = USAGE_BASE_URL + "/reset/{accountNumber}";
 	private static final String USAGE_GET_URL = USAGE_BASE_URL + "/{accountNumber}";
+	private static final String USAGE_BULK_URL = USAGE_BASE_URL + "/bulk?speed={speed}";
+	
+	private static final String METRICS_URL = "/metrics";
+	private static final String PROMETHEUS_URL = "/prometheus";
 	
 	private static final String FAST_SPEED = "FAST";
 	private static final String MEDIUM_SPEED = "MEDIUM";
@@ -54,6 +71,9 @@ public class ControllerTest {
 	@Autowired
 	private TestRestTemplate restTemplate;
 	
+	@LocalServerPort
+	private int port;
+	
 	@Test
 	public void testUsage() {
 		
@@ -197,6 +217,213 @@ public class ControllerTest {
 		deleteTiers();
 	}
 
+	@Test
+	public void testBatchUsage() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+		
+		CustomerUsage[] requestCustomerUsages = {
+				new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(5L),
+				new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(7L) };
+		HttpEntity<CustomerUsage[]> httpEntity = new HttpEntity<>(requestCustomerUsages, headers);
+		ResponseEntity<CustomerUsage[]> responseEntity = 
+				restTemplate.exchange(USAGE_INCREASE_BATCH_URL, HttpMethod.POST, httpEntity, CustomerUsage[].class);
+		assertThat(responseEntity.getStatusCode(), equalTo(HttpStatus.OK));
+		assertThat(responseEntity.getBody().length, equalTo(1));
+		assertThat(responseEntity.getBody()[0].getAccountNumber(), equalTo(TEST_ACCOUNT_NUMBER));
+		assertThat(responseEntity.getBody()[0].getTotalUsage(), equalTo(12L));
+		
+		/*
+		 * Negative usage amounts are rejected.
+		 */
+		requestCustomerUsages[1].setCurrentUsage(-7L);
+		httpEntity = new HttpEntity<>(requestCustomerUsages, headers);
+		ResponseEntity<Void> voidResponseEntity = 
+				restTemplate.exchange(USAGE_INCREASE_BATCH_URL, HttpMethod.POST, httpEntity, Void.class);
+		assertThat(voidResponseEntity.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+	}
+	
+	@Test
+	public void testBinaryBatchUsage() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.valueOf(UsageBatchCodec.MEDIA_TYPE));
+		headers.setAccept(Arrays.asList(MediaType.valueOf(UsageBatchCodec.MEDIA_TYPE)));
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+		
+		Map<String, Long> usageAmounts = new HashMap<String, Long>();
+		usageAmounts.put(TEST_ACCOUNT_NUMBER, 5L);
+		byte[] record = UsageBatchCodec.encode(usageAmounts);
+		byte[] batch = new byte[record.length * 2];
+		System.arraycopy(record, 0, batch, 0, record.length);
+		System.arraycopy(record, 0, batch, record.length, record.length);
+		ResponseEntity<byte[]> responseEntity = 
+				restTemplate.exchange(USAGE_INCREASE_BATCH_URL, HttpMethod.POST, new HttpEntity<>(batch, headers), byte[].class);
+		assertThat(responseEntity.getStatusCode(), equalTo(HttpStatus.OK));
+		assertThat(UsageBatchCodec.decode(responseEntity.getBody()), equalTo(Collections.singletonMap(TEST_ACCOUNT_NUMBER, 10L)));
+		
+		/*
+		 * Truncated batches are rejected.
+		 */
+		ResponseEntity<Void> voidResponseEntity = restTemplate.exchange(USAGE_INCREASE_BATCH_URL, HttpMethod.POST, 
+				new HttpEntity<>(Arrays.copyOf(batch, batch.length - 1), headers), Void.class);
+		assertThat(voidResponseEntity.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+	}
+	
+	@Test
+	public void testQueuedUsage() throws InterruptedException {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+		
+		/*
+		 * Queued events are acknowledged with 202 and no body, and written in order shortly after.
+		 */
+		CustomerUsage requestCustomerUsage = new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(20L);
+		ResponseEntity<String> responseEntity = 
+				restTemplate.exchange(USAGE_QUEUED_INCREASE_URL, HttpMethod.POST, new HttpEntity<>(requestCustomerUsage, headers), String.class);
+		assertThat(responseEntity.getStatusCode(), equalTo(HttpStatus.ACCEPTED));
+		assertThat(responseEntity.getBody(), nullValue());
+		requestCustomerUsage.setCurrentUsage(8L);
+		responseEntity = restTemplate.exchange(USAGE_QUEUED_DECREASE_URL, HttpMethod.POST, new HttpEntity<>(requestCustomerUsage, headers), String.class);
+		assertThat(responseEntity.getStatusCode(), equalTo(HttpStatus.ACCEPTED));
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		Long totalUsage;
+		do {
+			Thread.sleep(20);
+			totalUsage = restTemplate.getForObject(USAGE_GET_URL, CustomerUsage.class, TEST_ACCOUNT_NUMBER).getTotalUsage();
+		} while(!Long.valueOf(12L).equals(totalUsage) && System.currentTimeMillis() < deadline);
+		assertThat(totalUsage, equalTo(12L));
+		
+		/*
+		 * Negative usage amounts are rejected before they are queued.
+		 */
+		requestCustomerUsage.setCurrentUsage(-8L);
+		responseEntity = restTemplate.exchange(USAGE_QUEUED_INCREASE_URL, HttpMethod.POST, new HttpEntity<>(requestCustomerUsage, headers), String.class);
+		assertThat(responseEntity.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+		
+		@SuppressWarnings("unchecked")
+		Map<String, Object> metrics = restTemplate.getForObject(METRICS_URL, Map.class);
+		assertThat(((Number) metrics.get("usage.ack.accepted")).longValue(), greaterThan(1L));
+		assertThat(metrics, hasKey("usage.ack.queue.depth"));
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+	}
+	
+	@Test
+	public void testBulkUsage() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		String OTHER_ACCOUNT_NUMBER = "654321";
+		
+		createTiers();
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+		restTemplate.delete(USAGE_REMOVE_URL, OTHER_ACCOUNT_NUMBER);
+		
+		CustomerUsage requestCustomerUsage = new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(150L);
+		restTemplate.exchange(USAGE_INCREASE_URL, HttpMethod.POST, new HttpEntity<>(requestCustomerUsage, headers), CustomerUsage.class);
+		
+		HttpEntity<String[]> httpEntity = new HttpEntity<>(new String[] {TEST_ACCOUNT_NUMBER, OTHER_ACCOUNT_NUMBER}, headers);
+		ResponseEntity<CustomerUsage[]> responseEntity = 
+				restTemplate.exchange(USAGE_BULK_URL, HttpMethod.POST, httpEntity, CustomerUsage[].class, true);
+		assertThat(responseEntity.getStatusCode(), equalTo(HttpStatus.OK));
+		CustomerUsage[] responseCustomerUsages = responseEntity.getBody();
+		assertThat(responseCustomerUsages.length, equalTo(2));
+		assertThat(responseCustomerUsages[0].getAccountNumber(), equalTo(TEST_ACCOUNT_NUMBER));
+		assertThat(responseCustomerUsages[0].getTotalUsage(), equalTo(150L));
+		assertThat(responseCustomerUsages[0].getSpeed(), equalTo(MEDIUM_SPEED));
+		assertThat(responseCustomerUsages[1].getAccountNumber(), equalTo(OTHER_ACCOUNT_NUMBER));
+		assertThat(responseCustomerUsages[1].getTotalUsage(), equalTo(0L));
+		assertThat(responseCustomerUsages[1].getSpeed(), equalTo(FAST_SPEED));
+		
+		responseEntity = restTemplate.exchange(USAGE_BULK_URL, HttpMethod.POST, httpEntity, CustomerUsage[].class, false);
+		assertThat(responseEntity.getBody()[0].getTotalUsage(), equalTo(150L));
+		assertThat(responseEntity.getBody()[0].getSpeed(), nullValue());
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+		deleteTiers();
+	}
+	
+	@Test
+	public void testRedisMetrics() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		
+		createTiers();
+		CustomerUsage requestCustomerUsage = new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(50L);
+		restTemplate.exchange(USAGE_INCREASE_URL, HttpMethod.POST, new HttpEntity<>(requestCustomerUsage, headers), CustomerUsage.class);
+		restTemplate.getForEntity(TIER_USAGE_URL, CustomerUsage.class, TEST_ACCOUNT_NUMBER);
+		
+		@SuppressWarnings("unchecked")
+		Map<String, Object> metrics = restTemplate.getForObject(METRICS_URL, Map.class);
+		assertThat(((Number) metrics.get("redis.usage.incrby.count")).longValue(), greaterThan(0L));
+		assertThat(metrics, hasKey("redis.usage.incrby.p99.micros"));
+		assertThat(((Number) metrics.get("tier.resolution.hits")).longValue(), greaterThan(0L));
+		
+		ResponseEntity<String> responseEntity = restTemplate.getForEntity(PROMETHEUS_URL, String.class);
+		assertThat(responseEntity.getStatusCode(), equalTo(HttpStatus.OK));
+		assertThat(responseEntity.getHeaders().getContentType().toString(), startsWith("text/plain"));
+		assertThat(responseEntity.getBody(), containsString("\nredis_usage_incrby_count "));
+		
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+		deleteTiers();
+	}
+	
+	@Test
+	public void testTierChangeEvents() throws Exception {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		
+		createTiers();
+		restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+		
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + TIER_EVENTS_URL + TEST_ACCOUNT_NUMBER).openConnection();
+		connection.setReadTimeout(10000);
+		try {
+			assertThat(connection.getResponseCode(), equalTo(HttpStatus.OK.value()));
+			assertThat(connection.getContentType(), startsWith("text/event-stream"));
+			Thread.sleep(200); // let the listener container subscribe
+			
+			CustomerUsage requestCustomerUsage = new CustomerUsage().setAccountNumber("OTHER"+TEST_ACCOUNT_NUMBER).setCurrentUsage(150L);
+			restTemplate.exchange(USAGE_INCREASE_URL, HttpMethod.POST, new HttpEntity<>(requestCustomerUsage, headers), CustomerUsage.class);
+			requestCustomerUsage = new CustomerUsage().setAccountNumber(TEST_ACCOUNT_NUMBER).setCurrentUsage(150L);
+			restTemplate.exchange(USAGE_INCREASE_URL, HttpMethod.POST, new HttpEntity<>(requestCustomerUsage, headers), CustomerUsage.class);
+			
+			BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+			assertThat(reader.readLine(), equalTo("event:tier-change"));
+			String data = reader.readLine();
+			assertThat(data, startsWith("data:"));
+			TierChange tierChange = new ObjectMapper().readValue(data.substring("data:".length()), TierChange.class);
+			assertThat(tierChange.getAccountNumber(), equalTo(TEST_ACCOUNT_NUMBER)); // the other account is filtered out
+			assertThat(tierChange.getPreviousSpeed(), equalTo(FAST_SPEED));
+			assertThat(tierChange.getSpeed(), equalTo(MEDIUM_SPEED));
+			assertThat(tierChange.getTotalUsage(), equalTo(150L));
+			
+			/*
+			 * Editing the tiers is sent to every subscriber.
+			 */
+			Tier tier = new Tier().setSpeed(FAST_SPEED).setThreshhold(-1L);
+			restTemplate.exchange(TIER_BASE_URL, HttpMethod.PUT, new HttpEntity<>(tier, headers), Void.class);
+			assertThat(reader.readLine(), equalTo(""));
+			assertThat(reader.readLine(), equalTo("event:tiers-changed"));
+			assertThat(reader.readLine(), equalTo("data:TIERS"));
+		}
+		finally {
+			connection.disconnect();
+			restTemplate.delete(USAGE_REMOVE_URL, TEST_ACCOUNT_NUMBER);
+			restTemplate.delete(USAGE_REMOVE_URL, "OTHER"+TEST_ACCOUNT_NUMBER);
+			deleteTiers();
+		}
+	}
+	
 	@Test
 	public void testTiersFound() {
 		
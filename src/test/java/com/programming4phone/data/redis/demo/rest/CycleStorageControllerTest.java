@@ -0,0 +1,11 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs every ControllerTest test with the usage totals stored in hashes namespaced by billing cycle, 
+ * written without any expiration.
+ */
+@TestPropertySource(properties = {"usage.storage.layout=HASH", "usage.storage.cycle.enabled=true"})
+public class CycleStorageControllerTest extends ControllerTest {
+}
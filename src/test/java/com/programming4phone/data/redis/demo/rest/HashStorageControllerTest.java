@@ -0,0 +1,12 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs every ControllerTest test with the usage totals stored in hashes (the HASH storage layout). 
+ * The billing cycle is a day. Cycles are aligned on the epoch, so the hashes expire at midnight UTC, and a
+ * run crossing midnight UTC sees the totals written before it reset to zero.
+ */
+@TestPropertySource(properties = {"usage.storage.layout=HASH", "tier.expiry.seconds=86400"})
+public class HashStorageControllerTest extends ControllerTest {
+}
@@ -0,0 +1,59 @@
+package com.programming4phone.data.redis.demo.rest;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.programming4phone.data.redis.demo.error.InvalidUsageBatchException;
+
+public class UsageBatchCodecTest {
+
+	@Test
+	public void testDecodeCoalescesAccounts() {
+		byte[] batch = batch("5550001234", 5L, "5550004321", 300L, "5550001234", 7L);
+		Map<String, Long> usageAmounts = UsageBatchCodec.decode(batch);
+		assertThat(usageAmounts.keySet(), contains("5550001234", "5550004321"));
+		assertThat(usageAmounts.get("5550001234"), equalTo(12L));
+		assertThat(usageAmounts.get("5550004321"), equalTo(300L));
+		// a one byte length, 10 digits and a one or two byte varint per record
+		assertThat(batch.length, equalTo(12 + 13 + 12));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Map<String, Long> totalAmountsUsed = new LinkedHashMap<String, Long>();
+		for(int i=0; i<10000; i++) totalAmountsUsed.put(Integer.toString(5550000 + i), (long) i * i * i);
+		totalAmountsUsed.put("5559999999", Long.MAX_VALUE);
+		assertThat(UsageBatchCodec.decode(UsageBatchCodec.encode(totalAmountsUsed)), equalTo(totalAmountsUsed));
+	}
+
+	@Test(expected=InvalidUsageBatchException.class)
+	public void testTruncatedBatch() {
+		byte[] batch = batch("5550001234", 5L);
+		UsageBatchCodec.decode(Arrays.copyOf(batch, batch.length - 1));
+	}
+
+	@Test(expected=InvalidUsageBatchException.class)
+	public void testTotalOverflow() {
+		UsageBatchCodec.decode(batch("5550001234", Long.MAX_VALUE, "5550001234", 1L));
+	}
+
+	private static byte[] batch(Object... records) {
+		Map<String, Long> usageAmounts = new LinkedHashMap<String, Long>();
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		for(int i=0; i<records.length; i+=2) {
+			usageAmounts.clear();
+			usageAmounts.put((String) records[i], (Long) records[i+1]);
+			byte[] record = UsageBatchCodec.encode(usageAmounts);
+			batch.write(record, 0, record.length);
+		}
+		return batch.toByteArray();
+	}
+}